@@ -0,0 +1,155 @@
+package com.qozix.tileview.tiles;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.qozix.tileview.TileView;
+import com.qozix.tileview.graphics.BitmapProvider;
+import com.qozix.tileviewtest.MainActivity;
+import com.qozix.tileviewtest.R;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs on a device, since only real bitmaps have a size for the memory governor to account.
+ */
+@RunWith( AndroidJUnit4.class )
+public class TileCanvasViewGroupMemoryTest {
+
+  private static final long RENDER_TIMEOUT = 10000;
+
+  @Rule
+  public ActivityTestRule<MainActivity> mActivityTestRule = new ActivityTestRule<>( MainActivity.class );
+
+  @Test
+  public void getUsedBytes_returnsToViewportBytesAfterZoomCycle() throws Throwable {
+    final TileView tileView = (TileView) mActivityTestRule.getActivity().findViewById( R.id.tileview );
+    final TileCanvasViewGroup tileCanvasViewGroup = tileView.getTileCanvasViewGroup();
+    mActivityTestRule.runOnUiThread( new Runnable() {
+      @Override
+      public void run() {
+        tileView.setBitmapProvider( new BitmapProviderSolid() );
+        // decodes of the activity's own provider still in flight must not mark tiles missing
+        tileCanvasViewGroup.setMissingTileCache( null );
+        tileView.setTransitionsEnabled( false );
+        tileView.setShouldRenderProgressively( true );
+        tileView.setShouldDrawCoarseFallback( false );
+        // every tile gets a preview first
+        tileCanvasViewGroup.setProgressiveTileSize( 1 );
+        // pooled bitmaps are accounted as well, and would hide what leaked
+        tileCanvasViewGroup.setBitmapPool( null );
+      }
+    } );
+    // the tiles the activity's own provider had nothing for are only asked for again once the level changes
+    setScale( tileView, 0.5f );
+    awaitRendered( tileCanvasViewGroup );
+    setScale( tileView, 1f );
+    awaitRendered( tileCanvasViewGroup );
+    // zooming back in as soon as the coarser tiles are queued drops them pending, or holding only their previews
+    for( int i = 0; i < 3; i++ ) {
+      setScale( tileView, 0.5f );
+      awaitQueued( tileCanvasViewGroup );
+      setScale( tileView, 1f );
+      awaitQueued( tileCanvasViewGroup );
+    }
+    awaitRendered( tileCanvasViewGroup );
+    mActivityTestRule.runOnUiThread( new Runnable() {
+      @Override
+      public void run() {
+        // releases the tiles kept from the previous level, which are still legitimately held
+        tileCanvasViewGroup.trimMemory( ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN );
+        long viewportBytes = 0;
+        for( Tile tile : tileCanvasViewGroup.getTilesInCurrentViewport() ) {
+          viewportBytes += tile.getBitmapByteCount();
+        }
+        assertTrue( viewportBytes > 0 );
+        assertEquals( viewportBytes, tileCanvasViewGroup.getBitmapMemoryGovernor().getUsedBytes() );
+      }
+    } );
+  }
+
+  private void setScale( final TileView tileView, final float scale ) throws Throwable {
+    mActivityTestRule.runOnUiThread( new Runnable() {
+      @Override
+      public void run() {
+        tileView.setScale( scale );
+      }
+    } );
+  }
+
+  private static void awaitQueued( final TileCanvasViewGroup tileCanvasViewGroup ) {
+    await( "queued", new Condition() {
+      @Override
+      public boolean isMet() {
+        return !tileCanvasViewGroup.getTilesInCurrentViewport().isEmpty();
+      }
+    } );
+  }
+
+  private static void awaitRendered( final TileCanvasViewGroup tileCanvasViewGroup ) {
+    await( "rendered", new Condition() {
+      @Override
+      public boolean isMet() {
+        return isRendered( tileCanvasViewGroup );
+      }
+    } );
+  }
+
+  // checks the condition on the UI thread, where the tile sets are changed
+  private static void await( String description, final Condition condition ) {
+    long deadline = SystemClock.uptimeMillis() + RENDER_TIMEOUT;
+    final boolean[] isMet = new boolean[1];
+    while( SystemClock.uptimeMillis() < deadline ) {
+      InstrumentationRegistry.getInstrumentation().runOnMainSync( new Runnable() {
+        @Override
+        public void run() {
+          isMet[0] = condition.isMet();
+        }
+      } );
+      if( isMet[0] ) {
+        return;
+      }
+      SystemClock.sleep( 10 );
+    }
+    fail( "Tiles were not " + description + " within " + RENDER_TIMEOUT + "ms" );
+  }
+
+  private static boolean isRendered( TileCanvasViewGroup tileCanvasViewGroup ) {
+    if( tileCanvasViewGroup.getIsRendering() || tileCanvasViewGroup.getTilesInCurrentViewport().isEmpty() ) {
+      return false;
+    }
+    for( Tile tile : tileCanvasViewGroup.getTilesInCurrentViewport() ) {
+      if( !tile.hasBitmap() || tile.hasPreviewBitmap() ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private interface Condition {
+    boolean isMet();
+  }
+
+  /**
+   * Decodes every tile, full or preview, to a blank bitmap of the decoded size.
+   */
+  private static class BitmapProviderSolid implements BitmapProvider {
+    @Override
+    public Bitmap getBitmap( Tile tile, Context context ) {
+      int sampleSize = tile.getSampleSize();
+      int width = (tile.getWidth() + sampleSize - 1) / sampleSize;
+      int height = (tile.getHeight() + sampleSize - 1) / sampleSize;
+      return Bitmap.createBitmap( width, height, Bitmap.Config.RGB_565 );
+    }
+  }
+
+}
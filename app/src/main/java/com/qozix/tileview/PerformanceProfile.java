@@ -0,0 +1,265 @@
+package com.qozix.tileview;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.DisplayMetrics;
+
+import com.qozix.tileview.graphics.BitmapMemoryGovernor;
+import com.qozix.tileview.graphics.BitmapPool;
+import com.qozix.tileview.graphics.BitmapProviderAssets;
+import com.qozix.tileview.graphics.BitmapProviderOverzoom;
+import com.qozix.tileview.tiles.EncodedTileCache;
+import com.qozix.tileview.tiles.TileCanvasViewGroup;
+import com.qozix.tileview.tiles.TileRenderPoolExecutor;
+
+/**
+ * Groups the settings that trade memory and CPU for rendering speed, so they can be tuned
+ * together for a class of device rather than one by one: the number of render and fetch threads,
+ * the render buffer, the viewport padding, the size of the derived tile caches, the encoded tile
+ * cache and the bitmap pool, the bitmap memory budget and the bitmap config tiles are decoded
+ * with.
+ *
+ * Three presets are provided - low RAM, default and high end - and select( Context ) picks one
+ * from the memory class, core count and screen size of the device.  Nothing is applied unless
+ * the app opts in with TileView.setPerformanceProfile; the default preset is what a TileView
+ * uses without one.  A preset can be adjusted with the setters before it is applied.
+ *
+ * <pre>{@code
+ * PerformanceProfile profile = PerformanceProfile.select( context );
+ * profile.setRenderBuffer( 0 );
+ * tileView.setPerformanceProfile( profile );
+ * }</pre>
+ */
+public class PerformanceProfile {
+
+  private static final int AVAILABLE_PROCESSORS = Runtime.getRuntime().availableProcessors();
+
+  // the heap available to the app, measured in full screen ARGB_8888 frames
+  private static final int LOW_RAM_MAXIMUM_SCREENS_OF_MEMORY = 8;
+  private static final int HIGH_END_MINIMUM_SCREENS_OF_MEMORY = 20;
+  private static final int LOW_RAM_MAXIMUM_PROCESSORS = 2;
+  private static final int HIGH_END_MINIMUM_PROCESSORS = 4;
+
+  private int mRenderPoolSize;
+  private int mFetchPoolSize;
+  private int mRenderBuffer;
+  private int mViewportPadding;
+  private int mCacheSize;
+  private int mEncodedCacheSize;
+  private int mBitmapPoolSize;
+  private long mMemoryBudget;
+  private Bitmap.Config mBitmapConfig;
+
+  public PerformanceProfile(
+    int renderPoolSize,
+    int fetchPoolSize,
+    int renderBuffer,
+    int viewportPadding,
+    int cacheSize,
+    int encodedCacheSize,
+    int bitmapPoolSize,
+    long memoryBudget,
+    Bitmap.Config bitmapConfig ) {
+    mRenderPoolSize = renderPoolSize;
+    mFetchPoolSize = fetchPoolSize;
+    mRenderBuffer = renderBuffer;
+    mViewportPadding = viewportPadding;
+    mCacheSize = cacheSize;
+    mEncodedCacheSize = encodedCacheSize;
+    mBitmapPoolSize = bitmapPoolSize;
+    mMemoryBudget = memoryBudget;
+    mBitmapConfig = bitmapConfig;
+  }
+
+  /**
+   * At most 2 render threads, 2 fetch threads, small caches, no encoded tile cache and an eighth
+   * of the heap for tile bitmaps, decoded as RGB_565.
+   */
+  public static PerformanceProfile createLowRam() {
+    return new PerformanceProfile(
+      Math.min( AVAILABLE_PROCESSORS, 2 ),
+      2,
+      TileCanvasViewGroup.DEFAULT_RENDER_BUFFER,
+      0,
+      2 * 1024 * 1024,
+      0,
+      1024 * 1024,
+      Runtime.getRuntime().maxMemory() / 8,
+      Bitmap.Config.RGB_565
+    );
+  }
+
+  /**
+   * The settings a TileView uses without a profile: a render thread per core, 4 fetch threads, a
+   * quarter of the heap for tile bitmaps (the encoded tile cache included), decoded as RGB_565.
+   */
+  public static PerformanceProfile createDefault() {
+    return new PerformanceProfile(
+      TileRenderPoolExecutor.DEFAULT_POOL_SIZE,
+      TileRenderPoolExecutor.DEFAULT_FETCH_POOL_SIZE,
+      TileCanvasViewGroup.DEFAULT_RENDER_BUFFER,
+      0,
+      BitmapProviderOverzoom.DEFAULT_CACHE_SIZE,
+      EncodedTileCache.DEFAULT_CAPACITY,
+      BitmapPool.DEFAULT_MAXIMUM_SIZE,
+      BitmapMemoryGovernor.getDefaultBudget(),
+      BitmapProviderAssets.DEFAULT_BITMAP_CONFIG
+    );
+  }
+
+  /**
+   * A render thread per core and 8 fetch threads, with a short render buffer, tiles a tile's
+   * width beyond the viewport are prefetched, larger caches and a third of the heap for tile
+   * bitmaps, decoded as ARGB_8888.
+   */
+  public static PerformanceProfile createHighEnd() {
+    return new PerformanceProfile(
+      AVAILABLE_PROCESSORS,
+      8,
+      TileCanvasViewGroup.FAST_RENDER_BUFFER,
+      TileView.DEFAULT_TILE_SIZE,
+      16 * 1024 * 1024,
+      16 * 1024 * 1024,
+      8 * 1024 * 1024,
+      Runtime.getRuntime().maxMemory() / 3,
+      Bitmap.Config.ARGB_8888
+    );
+  }
+
+  /**
+   * Picks the preset suited to the device.  Memory is weighed against the screen size, since a
+   * larger screen shows (and needs memory for) more tiles at once: low RAM devices, devices with
+   * at most 2 cores, and devices whose heap holds fewer than 8 full screen frames get the low RAM
+   * preset; devices with at least 4 cores and a heap of 20 full screen frames or more get the
+   * high end preset.
+   *
+   * @param context A Context used to query the ActivityManager and the display metrics.
+   * @return A new PerformanceProfile.
+   */
+  public static PerformanceProfile select( Context context ) {
+    ActivityManager activityManager = (ActivityManager) context.getSystemService( Context.ACTIVITY_SERVICE );
+    boolean isLowRamDevice = false;
+    long memoryClassBytes = Runtime.getRuntime().maxMemory();
+    if( activityManager != null ) {
+      if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ) {
+        isLowRamDevice = activityManager.isLowRamDevice();
+      }
+      memoryClassBytes = activityManager.getMemoryClass() * 1024L * 1024L;
+    }
+    DisplayMetrics displayMetrics = context.getResources().getDisplayMetrics();
+    long screenBytes = Math.max( (long) displayMetrics.widthPixels * displayMetrics.heightPixels * 4, 1 );
+    long screensOfMemory = memoryClassBytes / screenBytes;
+    if( isLowRamDevice
+      || AVAILABLE_PROCESSORS <= LOW_RAM_MAXIMUM_PROCESSORS
+      || screensOfMemory < LOW_RAM_MAXIMUM_SCREENS_OF_MEMORY ) {
+      return createLowRam();
+    }
+    if( AVAILABLE_PROCESSORS >= HIGH_END_MINIMUM_PROCESSORS
+      && screensOfMemory >= HIGH_END_MINIMUM_SCREENS_OF_MEMORY ) {
+      return createHighEnd();
+    }
+    return createDefault();
+  }
+
+  public int getRenderPoolSize() {
+    return mRenderPoolSize;
+  }
+
+  /**
+   * @param renderPoolSize The number of threads tiles are decoded on.
+   */
+  public void setRenderPoolSize( int renderPoolSize ) {
+    mRenderPoolSize = renderPoolSize;
+  }
+
+  public int getFetchPoolSize() {
+    return mFetchPoolSize;
+  }
+
+  /**
+   * @param fetchPoolSize The maximum number of threads the tiles of a StagedBitmapProvider are fetched on.
+   */
+  public void setFetchPoolSize( int fetchPoolSize ) {
+    mFetchPoolSize = fetchPoolSize;
+  }
+
+  public int getRenderBuffer() {
+    return mRenderBuffer;
+  }
+
+  /**
+   * @param renderBuffer The maximum deferral of a render pass, in milliseconds.
+   */
+  public void setRenderBuffer( int renderBuffer ) {
+    mRenderBuffer = renderBuffer;
+  }
+
+  public int getViewportPadding() {
+    return mViewportPadding;
+  }
+
+  /**
+   * @param viewportPadding The number of pixels beyond the viewport in which tiles are rendered, unless set with TileView.setViewportPadding.
+   */
+  public void setViewportPadding( int viewportPadding ) {
+    mViewportPadding = viewportPadding;
+  }
+
+  public int getCacheSize() {
+    return mCacheSize;
+  }
+
+  /**
+   * @param cacheSize The number of bytes each of the overzoom and synthesized tile caches may hold.
+   */
+  public void setCacheSize( int cacheSize ) {
+    mCacheSize = cacheSize;
+  }
+
+  public int getEncodedCacheSize() {
+    return mEncodedCacheSize;
+  }
+
+  /**
+   * @param encodedCacheSize The number of bytes of off-heap memory the encoded tile cache may use; 0 to turn it off.
+   */
+  public void setEncodedCacheSize( int encodedCacheSize ) {
+    mEncodedCacheSize = encodedCacheSize;
+  }
+
+  public int getBitmapPoolSize() {
+    return mBitmapPoolSize;
+  }
+
+  /**
+   * @param bitmapPoolSize The number of bytes of released bitmaps kept for reuse.
+   */
+  public void setBitmapPoolSize( int bitmapPoolSize ) {
+    mBitmapPoolSize = bitmapPoolSize;
+  }
+
+  public long getMemoryBudget() {
+    return mMemoryBudget;
+  }
+
+  /**
+   * @param memoryBudget The number of bytes of pixel memory all tile bitmaps may hold.
+   */
+  public void setMemoryBudget( long memoryBudget ) {
+    mMemoryBudget = memoryBudget;
+  }
+
+  public Bitmap.Config getBitmapConfig() {
+    return mBitmapConfig;
+  }
+
+  /**
+   * @param bitmapConfig The config BitmapProviderAssets (and its subclasses) decode tiles with, unless set on the provider itself.
+   */
+  public void setBitmapConfig( Bitmap.Config bitmapConfig ) {
+    mBitmapConfig = bitmapConfig;
+  }
+
+}
@@ -1,13 +1,16 @@
 package com.qozix.tileview;
 
+import android.content.ComponentCallbacks;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.Region;
-import android.os.Handler;
-import android.os.Message;
+import android.os.Build;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.AttributeSet;
@@ -17,9 +20,13 @@ import android.view.ViewGroup;
 
 import com.qozix.tileview.detail.DetailLevel;
 import com.qozix.tileview.detail.DetailLevelManager;
+import com.qozix.tileview.detail.TileCoverage;
 import com.qozix.tileview.geom.CoordinateTranslater;
 import com.qozix.tileview.geom.FloatMathHelper;
+import com.qozix.tileview.graphics.BitmapPool;
 import com.qozix.tileview.graphics.BitmapProvider;
+import com.qozix.tileview.graphics.BitmapProviderAssets;
+import com.qozix.tileview.graphics.DecodeOptions;
 import com.qozix.tileview.hotspots.HotSpot;
 import com.qozix.tileview.hotspots.HotSpotManager;
 import com.qozix.tileview.markers.CalloutLayout;
@@ -72,6 +79,8 @@ public class TileView extends ZoomPanLayout implements
 
   protected static final int DEFAULT_TILE_SIZE = 256;
 
+  public static final int DEFAULT_MEMORY_PRESSURE_RECOVERY_DELAY = 10000;
+
   private DetailLevelManager mDetailLevelManager = new DetailLevelManager();
   private CoordinateTranslater mCoordinateTranslater = new CoordinateTranslater();
   private HotSpotManager mHotSpotManager = new HotSpotManager();
@@ -82,11 +91,14 @@ public class TileView extends ZoomPanLayout implements
   private MarkerLayout mMarkerLayout;
   private CalloutLayout mCalloutLayout;
 
-  private RenderThrottleHandler mRenderThrottleHandler;
-
-  private boolean mShouldRenderWhilePanning = false;
   private boolean mShouldUpdateDetailLevelWhileZooming = false;
 
+  private PerformanceProfile mPerformanceProfile;
+  private boolean mIsViewportPaddingSet;
+
+  private ComponentCallbacks mTrimMemoryCallbacks;
+  private int mMemoryPressureRecoveryDelay = DEFAULT_MEMORY_PRESSURE_RECOVERY_DELAY;
+
   /**
    * Constructor to use when creating a TileView from code.
    *
@@ -123,8 +135,6 @@ public class TileView extends ZoomPanLayout implements
     mTileCanvasViewGroup.setTileRenderListener( this );
     addZoomPanListener( this );
 
-    mRenderThrottleHandler = new RenderThrottleHandler( this );
-
     requestRender();
 
   }
@@ -221,34 +231,22 @@ public class TileView extends ZoomPanLayout implements
 
   /**
    * Request that the current tile set is re-examined and re-drawn.
-   * The request is added to a queue and is not guaranteed to be processed at any particular
-   * time, and will never be handled immediately.
+   * Requests are batched and evaluated on the next animation frame, and will never be handled
+   * immediately.  While the viewport moves quickly (e.g., during a fling) the render pass may be
+   * deferred, for at most the render buffer.
    */
   public void requestRender() {
     mTileCanvasViewGroup.requestRender();
   }
 
   /**
-   * While all render operation requests are queued and batched, this method provides an additional
-   * throttle layer, so that any subsequent invocations cancel and pending invocations.
+   * Render requests are already coalesced into at most one evaluation per frame, and throttled
+   * according to viewport velocity, so this is equivalent to requestRender.
    *
-   * This is useful when requesting in a stream fashion, either in a loop or in response to a
-   * progressive action like an animation or touch move.
+   * @deprecated Use requestRender.
    */
   public void requestThrottledRender() {
-    mRenderThrottleHandler.submit();
-  }
-
-  /**
-   * If flinging, defer render, otherwise request now.
-   * If a render operation starts at the beginning of a fling, a stutter can occur.
-   */
-  protected void requestSafeRender() {
-    if( isFlinging() ) {
-      requestThrottledRender();
-    } else {
-      requestRender();
-    }
+    requestRender();
   }
 
   /**
@@ -277,9 +275,33 @@ public class TileView extends ZoomPanLayout implements
    * @param bitmapProvider A class instance that implements BitmapProvider, and must define a getBitmap method, which accepts a String file name and a Context object, and returns a Bitmap
    */
   public void setBitmapProvider( BitmapProvider bitmapProvider ) {
+    if( mPerformanceProfile != null ) {
+      applyBitmapConfig( bitmapProvider, mPerformanceProfile.getBitmapConfig() );
+    }
     mTileCanvasViewGroup.setBitmapProvider( bitmapProvider );
   }
 
+  /**
+   * Draws tiles from the next coarser detail level in place of tiles that have not been decoded
+   * yet.  See {@link TileCanvasViewGroup#setShouldDrawCoarseFallback(boolean)}.
+   *
+   * @param shouldDrawCoarseFallback True to draw coarser tiles in place of tiles that are not yet decoded.
+   */
+  public void setShouldDrawCoarseFallback( boolean shouldDrawCoarseFallback ) {
+    mTileCanvasViewGroup.setShouldDrawCoarseFallback( shouldDrawCoarseFallback );
+  }
+
+  /**
+   * Renders large tiles in two passes: a fast low resolution preview, drawn immediately, then
+   * the full resolution tile that replaces it.  See
+   * {@link TileCanvasViewGroup#setShouldRenderProgressively(boolean)}.
+   *
+   * @param shouldRenderProgressively True to decode a preview before each large tile.
+   */
+  public void setShouldRenderProgressively( boolean shouldRenderProgressively ) {
+    mTileCanvasViewGroup.setShouldRenderProgressively( shouldRenderProgressively );
+  }
+
   /**
    * Defines whether tile bitmaps should be rendered using an AlphaAnimation
    *
@@ -342,6 +364,129 @@ public class TileView extends ZoomPanLayout implements
     mDetailLevelManager.addDetailLevel( detailScale, data, tileWidth, tileHeight );
   }
 
+  /**
+   * Register a tile set to be used for a particular detail level, decoded with its own options.
+   * e.g., an overlay level with transparency can be decoded as ARGB_8888 while opaque levels
+   * keep the smaller RGB_565 format.
+   *
+   * @param detailScale   Scale at which the TileView should use the tiles in this set.
+   * @param data          An arbitrary object of any type that is passed to the BitmapProvider for each tile on this level.
+   * @param tileWidth     Size of each tiled column.
+   * @param tileHeight    Size of each tiled row.
+   * @param decodeOptions How the tiles of this level should be decoded.
+   */
+  public void addDetailLevel( float detailScale, Object data, int tileWidth, int tileHeight, DecodeOptions decodeOptions ) {
+    mDetailLevelManager.addDetailLevel( detailScale, data, tileWidth, tileHeight, decodeOptions );
+  }
+
+  /**
+   * Marks a registered tile set as sparse, e.g. a high resolution level that only exists for
+   * parts of the image.  Tiles are only requested for the cells the coverage contains, and
+   * coarser tiles are drawn in place of the others.
+   *
+   * @param detailScale  Scale the tile set was registered at.
+   * @param tileCoverage Where the tile set has tiles, or null if it has tiles for every cell.
+   */
+  public void setTileCoverage( float detailScale, TileCoverage tileCoverage ) {
+    mDetailLevelManager.setTileCoverage( detailScale, tileCoverage );
+    requestRender();
+  }
+
+  /**
+   * Sets how far past a DetailLevel boundary the scale must move before the TileView switches
+   * DetailLevels, as a fraction of the boundary scale.  Prevents repeated level switches (and tile
+   * re-decodes) when the scale oscillates around a boundary during a pinch.
+   *
+   * @param levelHysteresis Fraction of the boundary scale, e.g. 0.1f for 10%.  The default is 0.
+   */
+  public void setDetailLevelHysteresis( float levelHysteresis ) {
+    mDetailLevelManager.setLevelHysteresis( levelHysteresis );
+  }
+
+  /**
+   * Allows the TileView to use a coarser DetailLevel, whose pixels are magnified on screen by up
+   * to the factor passed, rather than decode detail that is barely visible.  See
+   * {@link DetailLevelManager#setAcceptableUpsampling(float)}.
+   *
+   * @param acceptableUpsampling Magnification allowed in screen pixels, or 0 to disable.
+   */
+  public void setAcceptableUpsampling( float acceptableUpsampling ) {
+    mDetailLevelManager.setAcceptableUpsampling( acceptableUpsampling );
+  }
+
+  /**
+   * When enabled, tiles drawn at half their DetailLevel's scale or less (e.g., when zoomed far out
+   * with a single registered level) are decoded at a reduced, power-of-two sample size, and decoded
+   * again at full resolution when zooming back in.  The BitmapProvider must honor
+   * Tile.getSampleSize; the default BitmapProviderAssets does.
+   *
+   * @param shouldDownsample True if tiles should be decoded at a reduced size when drawn shrunk.
+   */
+  public void setShouldDownsampleTiles( boolean shouldDownsample ) {
+    mDetailLevelManager.setShouldDownsample( shouldDownsample );
+  }
+
+  /**
+   * When enabled, zooming beyond the largest DetailLevel crops the visible parts of that level's
+   * tiles into smaller tiles, rather than keeping and upscaling entire tiles.  See
+   * {@link DetailLevelManager#setShouldOverzoom(boolean)}.
+   *
+   * @param shouldOverzoom True if scales beyond the largest DetailLevel should use cropped tiles.
+   */
+  public void setShouldOverzoom( boolean shouldOverzoom ) {
+    mDetailLevelManager.setShouldOverzoom( shouldOverzoom );
+  }
+
+  /**
+   * When enabled, zooming out beyond the smallest DetailLevel uses synthesized levels whose tiles
+   * are built from 2x2 blocks of finer tiles, rather than drawing many full size tiles shrunk.  See
+   * {@link DetailLevelManager#setShouldSynthesizeLevels(boolean)}.
+   *
+   * @param shouldSynthesizeLevels True if scales below the smallest DetailLevel should use synthesized tiles.
+   */
+  public void setShouldSynthesizeLevels( boolean shouldSynthesizeLevels ) {
+    mDetailLevelManager.setShouldSynthesizeLevels( shouldSynthesizeLevels );
+  }
+
+  public PerformanceProfile getPerformanceProfile() {
+    return mPerformanceProfile;
+  }
+
+  /**
+   * Applies all the settings of a PerformanceProfile at once: render threads, render buffer,
+   * viewport padding, derived tile cache size, bitmap pool size, memory budget, and the bitmap
+   * config of the BitmapProvider, current or set later, if it is a BitmapProviderAssets.  No
+   * profile is applied by default; PerformanceProfile.select( Context ) picks one for the device.
+   *
+   * A viewport padding set with setViewportPadding, and a bitmap config set on the provider
+   * itself, are kept.  Settings changed individually afterwards override the profile's.
+   *
+   * @param performanceProfile The PerformanceProfile to apply.
+   */
+  public void setPerformanceProfile( PerformanceProfile performanceProfile ) {
+    mPerformanceProfile = performanceProfile;
+    mTileCanvasViewGroup.setRenderPoolSize( performanceProfile.getRenderPoolSize() );
+    mTileCanvasViewGroup.setFetchPoolSize( performanceProfile.getFetchPoolSize() );
+    mTileCanvasViewGroup.setRenderBuffer( performanceProfile.getRenderBuffer() );
+    mTileCanvasViewGroup.setCacheSize( performanceProfile.getCacheSize() );
+    mTileCanvasViewGroup.setEncodedCacheSize( performanceProfile.getEncodedCacheSize() );
+    mTileCanvasViewGroup.setMemoryBudget( performanceProfile.getMemoryBudget() );
+    BitmapPool bitmapPool = mTileCanvasViewGroup.getBitmapPool();
+    if( bitmapPool != null ) {
+      bitmapPool.setMaximumSize( performanceProfile.getBitmapPoolSize() );
+    }
+    applyBitmapConfig( mTileCanvasViewGroup.getBitmapProvider(), performanceProfile.getBitmapConfig() );
+    if( !mIsViewportPaddingSet ) {
+      mDetailLevelManager.setViewportPadding( performanceProfile.getViewportPadding() );
+    }
+  }
+
+  private static void applyBitmapConfig( BitmapProvider bitmapProvider, Bitmap.Config bitmapConfig ) {
+    if( bitmapProvider instanceof BitmapProviderAssets ) {
+      ( (BitmapProviderAssets) bitmapProvider ).setDefaultBitmapConfig( bitmapConfig );
+    }
+  }
+
   /**
    * Pads the viewport by the number of pixels passed.  e.g., setViewportPadding( 100 ) instructs the
    * TileView to interpret it's actual viewport offset by 100 pixels in each direction (top, left,
@@ -350,6 +495,7 @@ public class TileView extends ZoomPanLayout implements
    * @param padding The number of pixels to pad the viewport by
    */
   public void setViewportPadding( int padding ) {
+    mIsViewportPaddingSet = true;
     mDetailLevelManager.setViewportPadding( padding );
   }
 
@@ -677,7 +823,7 @@ public class TileView extends ZoomPanLayout implements
    * appropriate for Activity.onPause.
    */
   public void pause() {
-    mRenderThrottleHandler.clear();
+    mTileCanvasViewGroup.cancelRenderRequest();
     mDetailLevelManager.invalidateAll();
     setWillNotDraw( true );
   }
@@ -707,12 +853,78 @@ public class TileView extends ZoomPanLayout implements
   }
 
   /**
-   * Allows the TileView to render tiles while panning.
+   * Responds to a ComponentCallbacks2 trim memory level.  TileView registers for these itself
+   * while attached to a window (API 14 and above), but this can also be called directly, e.g.,
+   * from Activity.onTrimMemory.
+   *
+   * Pooled and cached bitmaps and tiles kept from the previous detail level are released at every
+   * level.  Under running memory pressure the memory budget is reduced and DetailLevel selection
+   * is biased toward coarser levels (by 2 at TRIM_MEMORY_RUNNING_LOW, by 4 at
+   * TRIM_MEMORY_RUNNING_CRITICAL).  Both are restored once no trim callback has been received
+   * for the memory pressure recovery delay.  TRIM_MEMORY_UI_HIDDEN and the background levels only
+   * release memory.  onLowMemory is handled as TRIM_MEMORY_RUNNING_CRITICAL.
+   *
+   * @param level A ComponentCallbacks2 trim memory level.
+   */
+  public void onTrimMemory( int level ) {
+    mTileCanvasViewGroup.trimMemory( level );
+    int bias = TileCanvasViewGroup.getMemoryPressureDivisor( level );
+    if( bias <= 1 ) {
+      return;
+    }
+    if( bias > mDetailLevelManager.getMemoryPressureBias() ) {
+      mDetailLevelManager.setMemoryPressureBias( bias );
+    }
+    removeCallbacks( mMemoryPressureRecoveryRunnable );
+    postDelayed( mMemoryPressureRecoveryRunnable, mMemoryPressureRecoveryDelay );
+  }
+
+  /**
+   * @param memoryPressureRecoveryDelay Time, in milliseconds, without trim memory callbacks after which full capacity is restored.
+   */
+  public void setMemoryPressureRecoveryDelay( int memoryPressureRecoveryDelay ) {
+    mMemoryPressureRecoveryDelay = memoryPressureRecoveryDelay;
+  }
+
+  private Runnable mMemoryPressureRecoveryRunnable = new Runnable() {
+    @Override
+    public void run() {
+      mTileCanvasViewGroup.restoreMemoryCapacity();
+      mDetailLevelManager.setMemoryPressureBias( 1 );
+      requestRender();
+    }
+  };
+
+  @Override
+  protected void onAttachedToWindow() {
+    super.onAttachedToWindow();
+    if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH ) {
+      if( mTrimMemoryCallbacks == null ) {
+        mTrimMemoryCallbacks = new TrimMemoryCallbacks( this );
+      }
+      getContext().getApplicationContext().registerComponentCallbacks( mTrimMemoryCallbacks );
+    }
+    if( mDetailLevelManager.getMemoryPressureBias() > 1 ) {
+      postDelayed( mMemoryPressureRecoveryRunnable, mMemoryPressureRecoveryDelay );
+    }
+  }
+
+  @Override
+  protected void onDetachedFromWindow() {
+    super.onDetachedFromWindow();
+    if( mTrimMemoryCallbacks != null ) {
+      getContext().getApplicationContext().unregisterComponentCallbacks( mTrimMemoryCallbacks );
+    }
+    // nothing is restored or rendered while detached; recovery is scheduled again once attached
+    removeCallbacks( mMemoryPressureRecoveryRunnable );
+  }
+
+  /**
+   * Allows the TileView to render tiles while panning, even when the viewport is moving quickly.
    *
    * @param shouldRender True if it should render while panning.
    */
   public void setShouldRenderWhilePanning( boolean shouldRender ) {
-    mShouldRenderWhilePanning = shouldRender;
     int buffer = shouldRender ? TileCanvasViewGroup.FAST_RENDER_BUFFER : TileCanvasViewGroup.DEFAULT_RENDER_BUFFER;
     mTileCanvasViewGroup.setRenderBuffer( buffer );
   }
@@ -777,11 +989,7 @@ public class TileView extends ZoomPanLayout implements
   protected void onScrollChanged( int l, int t, int oldl, int oldt ) {
     super.onScrollChanged( l, t, oldl, oldt );
     updateViewport();
-    if( mShouldRenderWhilePanning ) {
-      requestRender();
-    } else {
-      requestThrottledRender();
-    }
+    requestRender();
   }
 
   @Override
@@ -861,38 +1069,6 @@ public class TileView extends ZoomPanLayout implements
 
   }
 
-  private static class RenderThrottleHandler extends Handler {
-
-    private static final int MESSAGE = 0;
-    private static final int RENDER_THROTTLE_TIMEOUT = 100;
-
-    private final WeakReference<TileView> mTileViewWeakReference;
-
-    public RenderThrottleHandler( TileView tileView ) {
-      super();
-      mTileViewWeakReference = new WeakReference<TileView>( tileView );
-    }
-
-    @Override
-    public void handleMessage( Message msg ) {
-      TileView tileView = mTileViewWeakReference.get();
-      if( tileView != null ) {
-        tileView.requestSafeRender();
-      }
-    }
-
-    public void clear() {
-      if( hasMessages( MESSAGE ) ) {
-        removeMessages( MESSAGE );
-      }
-    }
-
-    public void submit() {
-      clear();
-      sendEmptyMessageDelayed( MESSAGE, RENDER_THROTTLE_TIMEOUT );
-    }
-  }
-
   /**
    * Object used to keep some data when a configuration change happens and the activity is
    * re-created.
@@ -965,4 +1141,32 @@ public class TileView extends ZoomPanLayout implements
     });
   }
 
-}
\ No newline at end of file
+  // registered with the application context, so it must not keep the TileView (and its Activity) alive
+  private static class TrimMemoryCallbacks implements ComponentCallbacks2 {
+    private final WeakReference<TileView> mTileViewWeakReference;
+
+    public TrimMemoryCallbacks( TileView tileView ) {
+      mTileViewWeakReference = new WeakReference<>( tileView );
+    }
+
+    @Override
+    public void onTrimMemory( int level ) {
+      TileView tileView = mTileViewWeakReference.get();
+      if( tileView != null ) {
+        tileView.onTrimMemory( level );
+      }
+    }
+
+    @Override
+    public void onLowMemory() {
+      // the system is about to kill background processes, as severe as pressure gets while running
+      onTrimMemory( TRIM_MEMORY_RUNNING_CRITICAL );
+    }
+
+    @Override
+    public void onConfigurationChanged( Configuration newConfig ) {
+
+    }
+  }
+
+}
@@ -0,0 +1,210 @@
+package com.qozix.tileview.archive;
+
+import android.content.res.AssetFileDescriptor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads a tile archive (see TileArchiveFormat) through a memory mapping, so tiles are read
+ * without opening a file per tile: looking a tile up is a read from the mapped index, and its
+ * encoded bytes are a slice of the mapped file.  Archives are limited to 2GB.
+ *
+ * An archive packaged as an asset must be stored uncompressed (e.g., aaptOptions { noCompress "tva" })
+ * to be opened with open( AssetFileDescriptor ).
+ *
+ * A TileArchive is immutable once opened, and can be read from any number of threads.
+ */
+public class TileArchive {
+
+  private final ByteBuffer mBuffer;
+  private final Map<String, Level> mLevels = new HashMap<>();
+
+  private TileArchive( ByteBuffer buffer ) throws IOException {
+    mBuffer = buffer;
+    readHeader();
+  }
+
+  public static TileArchive open( File file ) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile( file, "r" );
+    try {
+      FileChannel fileChannel = randomAccessFile.getChannel();
+      return open( fileChannel, 0, fileChannel.size() );
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+  public static TileArchive open( AssetFileDescriptor assetFileDescriptor ) throws IOException {
+    FileInputStream fileInputStream = new FileInputStream( assetFileDescriptor.getFileDescriptor() );
+    try {
+      return open( fileInputStream.getChannel(), assetFileDescriptor.getStartOffset(), assetFileDescriptor.getLength() );
+    } finally {
+      fileInputStream.close();
+    }
+  }
+
+  /**
+   * Maps an archive stored in a region of a file.  The mapping stays valid once the channel is closed.
+   *
+   * @param fileChannel The channel of the file the archive is stored in.
+   * @param position    The offset of the archive in the file.
+   * @param size        The length of the archive.
+   */
+  public static TileArchive open( FileChannel fileChannel, long position, long size ) throws IOException {
+    if( size > Integer.MAX_VALUE ) {
+      throw new IOException( "Tile archives larger than 2GB are not supported" );
+    }
+    return new TileArchive( fileChannel.map( FileChannel.MapMode.READ_ONLY, position, size ) );
+  }
+
+  private void readHeader() throws IOException {
+    int capacity = mBuffer.capacity();
+    if( capacity < TileArchiveFormat.HEADER_SIZE || mBuffer.getInt( 0 ) != TileArchiveFormat.MAGIC ) {
+      throw new IOException( "Not a tile archive" );
+    }
+    int version = mBuffer.getInt( 4 );
+    if( version != TileArchiveFormat.VERSION ) {
+      throw new IOException( "Unsupported tile archive version " + version );
+    }
+    int levelCount = mBuffer.getInt( 8 );
+    int position = TileArchiveFormat.HEADER_SIZE;
+    for( int i = 0; i < levelCount; i++ ) {
+      if( position + 4 > capacity ) {
+        throw new IOException( "Truncated tile archive header" );
+      }
+      int nameLength = mBuffer.getInt( position );
+      position += 4;
+      if( nameLength < 0 || position + nameLength + TileArchiveFormat.LEVEL_ENTRY_SIZE - 4 > capacity ) {
+        throw new IOException( "Truncated tile archive header" );
+      }
+      byte[] nameBytes = new byte[nameLength];
+      for( int j = 0; j < nameLength; j++ ) {
+        nameBytes[j] = mBuffer.get( position + j );
+      }
+      position += nameLength;
+      String name = new String( nameBytes, TileArchiveFormat.CHARSET );
+      int columnCount = mBuffer.getInt( position );
+      int rowCount = mBuffer.getInt( position + 4 );
+      long indexOffset = mBuffer.getLong( position + 8 );
+      position += TileArchiveFormat.LEVEL_ENTRY_SIZE - 4;
+      if( columnCount < 0 || rowCount < 0 || indexOffset < 0
+        || indexOffset + (long) columnCount * rowCount * TileArchiveFormat.INDEX_ENTRY_SIZE > capacity ) {
+        throw new IOException( "Invalid index for level " + name );
+      }
+      mLevels.put( name, new Level( name, columnCount, rowCount, (int) indexOffset ) );
+    }
+  }
+
+  public Set<String> getLevelNames() {
+    return Collections.unmodifiableSet( mLevels.keySet() );
+  }
+
+  /**
+   * @param name The name the level was packed with.
+   * @return The level, or null if the archive has no level of that name.
+   */
+  public Level getLevel( String name ) {
+    return mLevels.get( name );
+  }
+
+  /**
+   * Copies a range of the archive, e.g. the blobs of several tiles stored next to each other,
+   * in one sequential read.
+   *
+   * @param offset      The offset of the range in the archive.
+   * @param destination The array the range is copied into.
+   * @param length      The length of the range.
+   */
+  public void read( long offset, byte[] destination, int length ) {
+    ByteBuffer buffer = mBuffer.asReadOnlyBuffer();
+    buffer.position( (int) offset );
+    buffer.get( destination, 0, length );
+  }
+
+  /**
+   * A level of tiles in the archive.
+   */
+  public class Level {
+
+    private final String mName;
+    private final int mColumnCount;
+    private final int mRowCount;
+    private final int mIndexOffset;
+
+    private Level( String name, int columnCount, int rowCount, int indexOffset ) {
+      mName = name;
+      mColumnCount = columnCount;
+      mRowCount = rowCount;
+      mIndexOffset = indexOffset;
+    }
+
+    public String getName() {
+      return mName;
+    }
+
+    public int getColumnCount() {
+      return mColumnCount;
+    }
+
+    public int getRowCount() {
+      return mRowCount;
+    }
+
+    /**
+     * @return The offset of the tile's blob in the archive, or -1 if the archive does not contain the tile.
+     */
+    public long getTileOffset( int column, int row ) {
+      if( getTileLength( column, row ) == 0 ) {
+        return -1;
+      }
+      return mBuffer.getLong( getEntryOffset( column, row ) );
+    }
+
+    /**
+     * @return The length of the tile's blob, or 0 if the archive does not contain the tile.
+     */
+    public int getTileLength( int column, int row ) {
+      if( column < 0 || row < 0 || column >= mColumnCount || row >= mRowCount ) {
+        return 0;
+      }
+      int entryOffset = getEntryOffset( column, row );
+      long offset = mBuffer.getLong( entryOffset );
+      int length = mBuffer.getInt( entryOffset + 8 );
+      if( length <= 0 || offset < 0 || offset + length > mBuffer.capacity() ) {
+        return 0;
+      }
+      return length;
+    }
+
+    private int getEntryOffset( int column, int row ) {
+      return mIndexOffset + (row * mColumnCount + column) * TileArchiveFormat.INDEX_ENTRY_SIZE;
+    }
+
+    /**
+     * @return The encoded bytes of the tile, as a read-only buffer positioned at 0, or null if the archive does not contain the tile.
+     */
+    public ByteBuffer getTile( int column, int row ) {
+      int length = getTileLength( column, row );
+      if( length == 0 ) {
+        return null;
+      }
+      long offset = mBuffer.getLong( getEntryOffset( column, row ) );
+      // the shared buffer's position and limit are never changed, so duplicating it is safe from any thread
+      ByteBuffer tileBuffer = mBuffer.asReadOnlyBuffer();
+      tileBuffer.position( (int) offset );
+      tileBuffer.limit( (int) offset + length );
+      return tileBuffer.slice();
+    }
+
+  }
+
+}
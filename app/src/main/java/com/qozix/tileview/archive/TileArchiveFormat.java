@@ -0,0 +1,40 @@
+package com.qozix.tileview.archive;
+
+/**
+ * Constants of the tile archive format, shared by TileArchive (the reader) and
+ * TileArchiveWriter (the packer).  All values are big-endian.
+ *
+ * <pre>
+ * header:
+ *   int     magic ("TVAR")
+ *   int     version
+ *   int     level count
+ *   per level:
+ *     int     name length, followed by the name in UTF-8
+ *     int     column count
+ *     int     row count
+ *     long    offset of the level's index
+ * index, per level:
+ *   per tile, row by row:
+ *     long    offset of the tile's blob
+ *     int     length of the tile's blob, 0 if the tile is absent
+ * blobs:
+ *   the encoded tiles (e.g., JPEG or PNG), contiguous
+ * </pre>
+ */
+public class TileArchiveFormat {
+
+  public static final int MAGIC = 0x54564152;
+  public static final int VERSION = 1;
+
+  public static final int HEADER_SIZE = 12;
+  public static final int LEVEL_ENTRY_SIZE = 20;  // excluding the name itself
+  public static final int INDEX_ENTRY_SIZE = 12;
+
+  public static final String CHARSET = "UTF-8";
+
+  private TileArchiveFormat() {
+
+  }
+
+}
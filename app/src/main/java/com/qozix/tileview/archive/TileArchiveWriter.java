@@ -0,0 +1,366 @@
+package com.qozix.tileview.archive;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Packs tile images into a tile archive (see TileArchiveFormat), to be read with TileArchive.
+ * This class has no Android dependencies, and can be run on a desktop JVM as part of the build
+ * that produces the tiles:
+ *
+ * <pre>
+ * java -cp tileview-classes.jar com.qozix.tileview.archive.TileArchiveWriter map.tva \
+ *   1000=tiles/map/1000/%d-%d.jpg 500=tiles/map/500/%d-%d.jpg
+ * </pre>
+ *
+ * Each level is given as name=pattern, where the pattern is the file name of the tiles with %d
+ * for the column and then the row, as used by BitmapProviderAssets.  The name is the data the
+ * level is registered with in the TileView (e.g., tileView.addDetailLevel( 1f, "1000" )).
+ *
+ * The blobs of each level are stored along a Hilbert curve by default, so tiles that are close
+ * to each other on screen are close to each other in the file, and the tiles of a viewport can
+ * be read in a few sequential ranges (see BitmapProviderArchive).  The layout can be changed with
+ * setLayout, or with a --layout=hilbert|z-order|row-major argument.
+ */
+public class TileArchiveWriter {
+
+  /**
+   * Blobs are stored row by row.
+   */
+  public static final int LAYOUT_ROW_MAJOR = 0;
+  /**
+   * Blobs are stored along a Z-order (Morton) curve: cheap to compute, with occasional long jumps.
+   */
+  public static final int LAYOUT_Z_ORDER = 1;
+  /**
+   * Blobs are stored along a Hilbert curve, where consecutive tiles are always adjacent.
+   */
+  public static final int LAYOUT_HILBERT = 2;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final String LAYOUT_ARGUMENT = "--layout=";
+
+  private List<LevelEntry> mLevelEntries = new ArrayList<>();
+
+  private int mLayout = LAYOUT_HILBERT;
+
+  public int getLayout() {
+    return mLayout;
+  }
+
+  /**
+   * @param layout The order blobs are stored in: LAYOUT_ROW_MAJOR, LAYOUT_Z_ORDER or LAYOUT_HILBERT.
+   */
+  public void setLayout( int layout ) {
+    if( layout != LAYOUT_ROW_MAJOR && layout != LAYOUT_Z_ORDER && layout != LAYOUT_HILBERT ) {
+      throw new IllegalArgumentException( "Unknown layout " + layout );
+    }
+    mLayout = layout;
+  }
+
+  /**
+   * @param name        The name the level is looked up by.
+   * @param columnCount The number of columns of tiles.
+   * @param rowCount    The number of rows of tiles.
+   */
+  public void addLevel( String name, int columnCount, int rowCount ) {
+    if( getLevelEntry( name ) != null ) {
+      throw new IllegalArgumentException( "Duplicate level " + name );
+    }
+    mLevelEntries.add( new LevelEntry( name, columnCount, rowCount ) );
+  }
+
+  /**
+   * @param name   The name of a level already added.
+   * @param column The column of the tile.
+   * @param row    The row of the tile.
+   * @param file   The encoded image of the tile, copied as is into the archive.
+   */
+  public void addTile( String name, int column, int row, File file ) {
+    LevelEntry levelEntry = getLevelEntry( name );
+    if( levelEntry == null ) {
+      throw new IllegalArgumentException( "Unknown level " + name );
+    }
+    if( column < 0 || row < 0 || column >= levelEntry.columnCount || row >= levelEntry.rowCount ) {
+      throw new IllegalArgumentException( "Tile " + column + ":" + row + " is outside of level " + name );
+    }
+    levelEntry.files[row * levelEntry.columnCount + column] = file;
+  }
+
+  private LevelEntry getLevelEntry( String name ) {
+    for( LevelEntry levelEntry : mLevelEntries ) {
+      if( levelEntry.name.equals( name ) ) {
+        return levelEntry;
+      }
+    }
+    return null;
+  }
+
+  public void write( File output ) throws IOException {
+    List<byte[]> nameBytesList = new ArrayList<>();
+    long headerSize = TileArchiveFormat.HEADER_SIZE;
+    for( LevelEntry levelEntry : mLevelEntries ) {
+      byte[] nameBytes = levelEntry.name.getBytes( TileArchiveFormat.CHARSET );
+      nameBytesList.add( nameBytes );
+      headerSize += TileArchiveFormat.LEVEL_ENTRY_SIZE + nameBytes.length;
+    }
+    long indexOffset = headerSize;
+    long blobOffset = headerSize;
+    for( LevelEntry levelEntry : mLevelEntries ) {
+      blobOffset += (long) levelEntry.files.length * TileArchiveFormat.INDEX_ENTRY_SIZE;
+    }
+    DataOutputStream outputStream = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( output ), BUFFER_SIZE ) );
+    try {
+      outputStream.writeInt( TileArchiveFormat.MAGIC );
+      outputStream.writeInt( TileArchiveFormat.VERSION );
+      outputStream.writeInt( mLevelEntries.size() );
+      for( int i = 0; i < mLevelEntries.size(); i++ ) {
+        LevelEntry levelEntry = mLevelEntries.get( i );
+        byte[] nameBytes = nameBytesList.get( i );
+        outputStream.writeInt( nameBytes.length );
+        outputStream.write( nameBytes );
+        outputStream.writeInt( levelEntry.columnCount );
+        outputStream.writeInt( levelEntry.rowCount );
+        outputStream.writeLong( indexOffset );
+        indexOffset += (long) levelEntry.files.length * TileArchiveFormat.INDEX_ENTRY_SIZE;
+      }
+      // the index is always row by row, the blobs it points to are in layout order
+      List<int[]> layoutOrders = new ArrayList<>();
+      for( LevelEntry levelEntry : mLevelEntries ) {
+        int[] layoutOrder = getLayoutOrder( levelEntry );
+        layoutOrders.add( layoutOrder );
+        long[] blobOffsets = new long[levelEntry.files.length];
+        for( int cell : layoutOrder ) {
+          File file = levelEntry.files[cell];
+          if( file != null ) {
+            blobOffsets[cell] = blobOffset;
+            blobOffset += file.length();
+          }
+        }
+        for( int cell = 0; cell < levelEntry.files.length; cell++ ) {
+          File file = levelEntry.files[cell];
+          long length = file == null ? 0 : file.length();
+          if( length > Integer.MAX_VALUE ) {
+            throw new IOException( file + " is too large for a tile" );
+          }
+          outputStream.writeLong( length == 0 ? 0 : blobOffsets[cell] );
+          outputStream.writeInt( (int) length );
+        }
+      }
+      byte[] buffer = new byte[BUFFER_SIZE];
+      for( int i = 0; i < mLevelEntries.size(); i++ ) {
+        LevelEntry levelEntry = mLevelEntries.get( i );
+        for( int cell : layoutOrders.get( i ) ) {
+          File file = levelEntry.files[cell];
+          if( file != null ) {
+            copy( file, outputStream, buffer );
+          }
+        }
+      }
+    } finally {
+      outputStream.close();
+    }
+  }
+
+  /**
+   * @return The row-major indices of the level's cells, in the order their blobs are stored.
+   */
+  private int[] getLayoutOrder( LevelEntry levelEntry ) {
+    int cellCount = levelEntry.files.length;
+    final long[] keys = new long[cellCount];
+    int side = Integer.highestOneBit( Math.max( Math.max( levelEntry.columnCount, levelEntry.rowCount ), 1 ) );
+    if( side < Math.max( levelEntry.columnCount, levelEntry.rowCount ) ) {
+      side <<= 1;
+    }
+    for( int cell = 0; cell < cellCount; cell++ ) {
+      int column = cell % levelEntry.columnCount;
+      int row = cell / levelEntry.columnCount;
+      long key;
+      switch( mLayout ) {
+        case LAYOUT_Z_ORDER:
+          key = getZOrderKey( column, row );
+          break;
+        case LAYOUT_HILBERT:
+          key = getHilbertKey( column, row, side );
+          break;
+        default:
+          key = cell;
+      }
+      keys[cell] = key;
+    }
+    Integer[] cells = new Integer[cellCount];
+    for( int cell = 0; cell < cellCount; cell++ ) {
+      cells[cell] = cell;
+    }
+    Arrays.sort( cells, new Comparator<Integer>() {
+      @Override
+      public int compare( Integer lhs, Integer rhs ) {
+        long difference = keys[lhs] - keys[rhs];
+        return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+      }
+    } );
+    int[] layoutOrder = new int[cellCount];
+    for( int i = 0; i < cellCount; i++ ) {
+      layoutOrder[i] = cells[i];
+    }
+    return layoutOrder;
+  }
+
+  /**
+   * Interleaves the bits of the column and the row.
+   */
+  static long getZOrderKey( int column, int row ) {
+    long key = 0;
+    for( int bit = 0; bit < 31; bit++ ) {
+      key |= ((long) (column >> bit) & 1) << (2 * bit);
+      key |= ((long) (row >> bit) & 1) << (2 * bit + 1);
+    }
+    return key;
+  }
+
+  /**
+   * The distance of the cell along a Hilbert curve filling a square of the side passed, a power of two.
+   */
+  static long getHilbertKey( int column, int row, int side ) {
+    long key = 0;
+    int x = column;
+    int y = row;
+    for( int s = side >> 1; s > 0; s >>= 1 ) {
+      int rx = (x & s) > 0 ? 1 : 0;
+      int ry = (y & s) > 0 ? 1 : 0;
+      key += (long) s * s * ((3 * rx) ^ ry);
+      // rotate the quadrant so the curve inside it starts and ends next to its neighbours
+      if( ry == 0 ) {
+        if( rx == 1 ) {
+          x = s - 1 - (x & (s - 1));
+          y = s - 1 - (y & (s - 1));
+        }
+        int swap = x;
+        x = y;
+        y = swap;
+      }
+    }
+    return key;
+  }
+
+  private static void copy( File file, DataOutputStream outputStream, byte[] buffer ) throws IOException {
+    long expected = file.length();
+    long copied = 0;
+    InputStream inputStream = new FileInputStream( file );
+    try {
+      int read;
+      while( (read = inputStream.read( buffer )) != -1 ) {
+        outputStream.write( buffer, 0, read );
+        copied += read;
+      }
+    } finally {
+      inputStream.close();
+    }
+    if( copied != expected ) {
+      throw new IOException( file + " changed while it was being packed" );
+    }
+  }
+
+  /**
+   * Adds a level from all files matching a pattern, such as "tiles/map/1000/%d-%d.jpg", where
+   * the first %d is the column and the second the row.  The level's size is that of the largest
+   * column and row found.
+   *
+   * @return The number of tiles added.
+   */
+  public int addLevelFromPattern( String name, String pattern ) {
+    File patternFile = new File( pattern );
+    File directory = patternFile.getAbsoluteFile().getParentFile();
+    String[] parts = patternFile.getName().split( "%d", -1 );
+    if( parts.length != 3 ) {
+      throw new IllegalArgumentException( "The pattern " + pattern + " must contain %d twice, for the column and the row" );
+    }
+    Pattern fileNamePattern = Pattern.compile( Pattern.quote( parts[0] ) + "(\\d+)" + Pattern.quote( parts[1] ) + "(\\d+)" + Pattern.quote( parts[2] ) );
+    File[] files = directory.listFiles();
+    List<File> matchingFiles = new ArrayList<>();
+    List<int[]> positions = new ArrayList<>();
+    int columnCount = 0;
+    int rowCount = 0;
+    if( files != null ) {
+      for( File file : files ) {
+        Matcher matcher = fileNamePattern.matcher( file.getName() );
+        if( file.isFile() && matcher.matches() ) {
+          int column = Integer.parseInt( matcher.group( 1 ) );
+          int row = Integer.parseInt( matcher.group( 2 ) );
+          matchingFiles.add( file );
+          positions.add( new int[]{ column, row } );
+          columnCount = Math.max( columnCount, column + 1 );
+          rowCount = Math.max( rowCount, row + 1 );
+        }
+      }
+    }
+    addLevel( name, columnCount, rowCount );
+    for( int i = 0; i < matchingFiles.size(); i++ ) {
+      int[] position = positions.get( i );
+      addTile( name, position[0], position[1], matchingFiles.get( i ) );
+    }
+    return matchingFiles.size();
+  }
+
+  public static void main( String[] args ) throws IOException {
+    if( args.length < 2 ) {
+      System.err.println( "Usage: TileArchiveWriter <output> [--layout=hilbert|z-order|row-major] <name>=<pattern> [<name>=<pattern> ...]" );
+      System.exit( 1 );
+    }
+    TileArchiveWriter tileArchiveWriter = new TileArchiveWriter();
+    for( int i = 1; i < args.length; i++ ) {
+      if( args[i].startsWith( LAYOUT_ARGUMENT ) ) {
+        String layout = args[i].substring( LAYOUT_ARGUMENT.length() );
+        if( layout.equals( "hilbert" ) ) {
+          tileArchiveWriter.setLayout( LAYOUT_HILBERT );
+        } else if( layout.equals( "z-order" ) ) {
+          tileArchiveWriter.setLayout( LAYOUT_Z_ORDER );
+        } else if( layout.equals( "row-major" ) ) {
+          tileArchiveWriter.setLayout( LAYOUT_ROW_MAJOR );
+        } else {
+          System.err.println( "Unknown layout " + layout );
+          System.exit( 1 );
+        }
+        continue;
+      }
+      int separator = args[i].indexOf( '=' );
+      if( separator <= 0 ) {
+        System.err.println( "Levels must be given as <name>=<pattern>: " + args[i] );
+        System.exit( 1 );
+      }
+      String name = args[i].substring( 0, separator );
+      int count = tileArchiveWriter.addLevelFromPattern( name, args[i].substring( separator + 1 ) );
+      System.out.println( "Level " + name + ": " + count + " tiles" );
+    }
+    File output = new File( args[0] );
+    tileArchiveWriter.write( output );
+    System.out.println( "Wrote " + output + " (" + output.length() + " bytes)" );
+  }
+
+  private static class LevelEntry {
+    final String name;
+    final int columnCount;
+    final int rowCount;
+    final File[] files;
+
+    LevelEntry( String name, int columnCount, int rowCount ) {
+      this.name = name;
+      this.columnCount = columnCount;
+      this.rowCount = rowCount;
+      this.files = new File[columnCount * rowCount];
+    }
+  }
+
+}
@@ -3,9 +3,13 @@ package com.qozix.tileview.detail;
 import android.graphics.Rect;
 import android.support.annotation.NonNull;
 
+import com.qozix.tileview.geom.FloatMathHelper;
+import com.qozix.tileview.graphics.DecodeOptions;
 import com.qozix.tileview.tiles.Tile;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 public class DetailLevel implements Comparable<DetailLevel> {
@@ -14,19 +18,59 @@ public class DetailLevel implements Comparable<DetailLevel> {
   private int mTileWidth;
   private int mTileHeight;
   private Object mData;
+  private DecodeOptions mDecodeOptions;
+  private TileCoverage mTileCoverage;
 
   private DetailLevelManager mDetailLevelManager;
 
+  // derived levels are not registered, their tiles are produced from the tiles of the source level
+  private DetailLevel mSourceDetailLevel;
+  private int mDerivationDepth;
+
   private StateSnapshot mLastStateSnapshot;
 
   private Set<Tile> mTilesVisibleInViewport = new HashSet<>();
+  private List<Rect> mAbsentRectsInViewport = new ArrayList<>();
+  // Rects of earlier computations, reused so absent cells allocate nothing on each pass
+  private List<Rect> mRecycledAbsentRects = new ArrayList<>();
+  private Rect mCellRange = new Rect();
+
+  private Rect mViewport = new Rect();
 
   public DetailLevel( DetailLevelManager detailLevelManager, float scale, Object data, int tileWidth, int tileHeight ) {
+    this( detailLevelManager, scale, data, tileWidth, tileHeight, null );
+  }
+
+  /**
+   * @param decodeOptions How the tiles of this level should be decoded, or null for the BitmapProvider's defaults.
+   */
+  public DetailLevel( DetailLevelManager detailLevelManager, float scale, Object data, int tileWidth, int tileHeight, DecodeOptions decodeOptions ) {
     mDetailLevelManager = detailLevelManager;
     mScale = scale;
     mData = data;
     mTileWidth = tileWidth;
     mTileHeight = tileHeight;
+    mDecodeOptions = decodeOptions;
+  }
+
+  /**
+   * Creates a DetailLevel derived from another, at the source level's scale multiplied by
+   * 2 to the power of the derivation depth, with the same tile size, data and decode options.
+   *
+   * @param sourceDetailLevel The DetailLevel this level's tiles are produced from.
+   * @param derivationDepth   Positive for finer levels, negative for coarser levels.
+   */
+  DetailLevel( DetailLevel sourceDetailLevel, int derivationDepth ) {
+    this(
+      sourceDetailLevel.getDetailLevelManager(),
+      sourceDetailLevel.getScale() * (float) Math.pow( 2, derivationDepth ),
+      sourceDetailLevel.getData(),
+      sourceDetailLevel.getTileWidth(),
+      sourceDetailLevel.getTileHeight(),
+      sourceDetailLevel.getDecodeOptions()
+    );
+    mSourceDetailLevel = sourceDetailLevel;
+    mDerivationDepth = derivationDepth;
   }
 
   public DetailLevelManager getDetailLevelManager() {
@@ -35,6 +79,8 @@ public class DetailLevel implements Comparable<DetailLevel> {
 
   /**
    * Returns true if there has been a change, false otherwise.
+   * This is evaluated on every render frame while the viewport moves, so it does not allocate
+   * unless the visible row/column window has actually changed.
    *
    * @return True if there has been a change, false otherwise.
    */
@@ -44,7 +90,8 @@ public class DetailLevel implements Comparable<DetailLevel> {
     int drawableHeight = mDetailLevelManager.getScaledHeight();
     float offsetWidth = mTileWidth * relativeScale;
     float offsetHeight = mTileHeight * relativeScale;
-    Rect viewport = new Rect( mDetailLevelManager.getComputedViewport() );
+    Rect viewport = mViewport;
+    viewport.set( mDetailLevelManager.getComputedViewport() );
     viewport.top = Math.max( viewport.top, 0 );
     viewport.left = Math.max( viewport.left, 0 );
     viewport.right = Math.min( viewport.right, drawableWidth );
@@ -53,10 +100,12 @@ public class DetailLevel implements Comparable<DetailLevel> {
     int rowEnd = (int) Math.ceil( viewport.bottom / offsetHeight );
     int columnStart = (int) Math.floor( viewport.left / offsetWidth );
     int columnEnd = (int) Math.ceil( viewport.right / offsetWidth );
-    StateSnapshot stateSnapshot = new StateSnapshot( this, rowStart, rowEnd, columnStart, columnEnd );
-    boolean sameState = stateSnapshot.equals( mLastStateSnapshot );
-    mLastStateSnapshot = stateSnapshot;
-    return !sameState;
+    int sampleSize = getSampleSize();
+    if( mLastStateSnapshot != null && mLastStateSnapshot.matches( rowStart, rowEnd, columnStart, columnEnd, sampleSize ) ) {
+      return false;
+    }
+    mLastStateSnapshot = new StateSnapshot( this, rowStart, rowEnd, columnStart, columnEnd, sampleSize );
+    return true;
   }
 
   /**
@@ -71,16 +120,168 @@ public class DetailLevel implements Comparable<DetailLevel> {
     return mTilesVisibleInViewport;
   }
 
+  /**
+   * Returns the sample size the tiles from the last viewport computation should be decoded with.
+   *
+   * @return The sample size of the last computed tile set.
+   */
+  public int getSampleSizeFromLastViewportComputation() {
+    if( mLastStateSnapshot == null ) {
+      throw new StateNotComputedException();
+    }
+    return mLastStateSnapshot.sampleSize;
+  }
+
+  /**
+   * Returns the areas of the last viewport computation this level has no tiles for (see
+   * setTileCoverage), in unscaled pixels, one per cell.  The Rects are reused by the next
+   * computation, so must be copied to be kept.
+   *
+   * @return The areas of the currently visible cells without tiles.
+   */
+  public List<Rect> getAbsentRectsFromLastViewportComputation() {
+    if( mLastStateSnapshot == null ) {
+      throw new StateNotComputedException();
+    }
+    return mAbsentRectsInViewport;
+  }
+
   public void computeVisibleTilesFromViewport() {
     mTilesVisibleInViewport.clear();
+    mRecycledAbsentRects.addAll( mAbsentRectsInViewport );
+    mAbsentRectsInViewport.clear();
+    int sampleSize = mLastStateSnapshot.sampleSize;
     for( int rowCurrent = mLastStateSnapshot.rowStart; rowCurrent < mLastStateSnapshot.rowEnd; rowCurrent++ ) {
       for( int columnCurrent = mLastStateSnapshot.columnStart; columnCurrent < mLastStateSnapshot.columnEnd; columnCurrent++ ) {
-        Tile tile = new Tile( columnCurrent, rowCurrent, mTileWidth, mTileHeight, mData, this );
+        if( !hasTile( columnCurrent, rowCurrent ) ) {
+          int recycledCount = mRecycledAbsentRects.size();
+          Rect rect = recycledCount > 0 ? mRecycledAbsentRects.remove( recycledCount - 1 ) : new Rect();
+          mAbsentRectsInViewport.add( computeCellRelativeRect( columnCurrent, rowCurrent, rect ) );
+          continue;
+        }
+        Tile tile = new Tile( columnCurrent, rowCurrent, mTileWidth, mTileHeight, mData, this, sampleSize );
         mTilesVisibleInViewport.add( tile );
       }
     }
   }
 
+  // the area of a cell in unscaled pixels, as Tile computes it
+  private Rect computeCellRelativeRect( int column, int row, Rect rect ) {
+    int left = column * mTileWidth;
+    int top = row * mTileHeight;
+    rect.set(
+      FloatMathHelper.unscale( left, mScale ),
+      FloatMathHelper.unscale( top, mScale ),
+      FloatMathHelper.unscale( left + mTileWidth, mScale ),
+      FloatMathHelper.unscale( top + mTileHeight, mScale )
+    );
+    return rect;
+  }
+
+  /**
+   * @return The TileCoverage set for this level, or null if it has tiles for every cell.  Derived levels return their source level's.
+   */
+  public TileCoverage getTileCoverage() {
+    return mSourceDetailLevel != null ? mSourceDetailLevel.getTileCoverage() : mTileCoverage;
+  }
+
+  /**
+   * Marks this level as sparse: tiles are only created for the cells the coverage contains.
+   * Levels derived from this level follow its coverage.
+   *
+   * @param tileCoverage Where this level has tiles, or null if it has tiles for every cell.
+   */
+  public void setTileCoverage( TileCoverage tileCoverage ) {
+    mTileCoverage = tileCoverage;
+    invalidate();
+  }
+
+  /**
+   * An overzoomed tile exists where the source tile it is cropped from does, and a synthesized
+   * tile where any of the source tiles it is built from do.
+   *
+   * @return True if this level has a tile for the cell passed.
+   */
+  public boolean hasTile( int column, int row ) {
+    if( mSourceDetailLevel == null ) {
+      return mTileCoverage == null || mTileCoverage.contains( column, row );
+    }
+    if( mSourceDetailLevel.getTileCoverage() == null ) {
+      return true;
+    }
+    if( mDerivationDepth > 0 ) {
+      return mSourceDetailLevel.hasTile( column >> mDerivationDepth, row >> mDerivationDepth );
+    }
+    int factor = 1 << -mDerivationDepth;
+    for( int sourceRow = row * factor; sourceRow < (row + 1) * factor; sourceRow++ ) {
+      for( int sourceColumn = column * factor; sourceColumn < (column + 1) * factor; sourceColumn++ ) {
+        if( mSourceDetailLevel.hasTile( sourceColumn, sourceRow ) ) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param relativeRect The area to check, in unscaled pixels.
+   * @return True if this level has tiles for every cell within the area passed.
+   */
+  public boolean hasTilesCoveringRect( Rect relativeRect ) {
+    if( getTileCoverage() == null ) {
+      return true;
+    }
+    Rect cellRange = computeCellRange( relativeRect );
+    for( int rowCurrent = cellRange.top; rowCurrent < cellRange.bottom; rowCurrent++ ) {
+      for( int columnCurrent = cellRange.left; columnCurrent < cellRange.right; columnCurrent++ ) {
+        if( !hasTile( columnCurrent, rowCurrent ) ) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Adds the tiles of this level that cover the area passed to the set passed.  Used to find
+   * coarser tiles that can stand in for finer tiles that have not been decoded yet.  Cells this
+   * level has no tiles for are skipped.
+   *
+   * @param relativeRect The area to cover, in unscaled pixels.
+   * @param tiles        The set covering tiles are added to.
+   */
+  public void computeTilesCoveringRect( Rect relativeRect, Set<Tile> tiles ) {
+    Rect cellRange = computeCellRange( relativeRect );
+    int sampleSize = getSampleSize();
+    for( int rowCurrent = cellRange.top; rowCurrent < cellRange.bottom; rowCurrent++ ) {
+      for( int columnCurrent = cellRange.left; columnCurrent < cellRange.right; columnCurrent++ ) {
+        if( hasTile( columnCurrent, rowCurrent ) ) {
+          tiles.add( new Tile( columnCurrent, rowCurrent, mTileWidth, mTileHeight, mData, this, sampleSize ) );
+        }
+      }
+    }
+  }
+
+  // reused between calls on the UI thread
+  private Rect computeCellRange( Rect relativeRect ) {
+    return computeCellRange( relativeRect, mCellRange );
+  }
+
+  /**
+   * @param relativeRect The area, in unscaled pixels.
+   * @param cellRange    The Rect the columns (left to right) and rows (top to bottom) of the cells within the area are written to, exclusive of right and bottom.
+   * @return The cell range passed.
+   */
+  public Rect computeCellRange( Rect relativeRect, Rect cellRange ) {
+    cellRange.set(
+      Math.max( (int) Math.floor( relativeRect.left * mScale / mTileWidth ), 0 ),
+      Math.max( (int) Math.floor( relativeRect.top * mScale / mTileHeight ), 0 ),
+      Math.min( (int) Math.ceil( relativeRect.right * mScale / mTileWidth ), getColumnCount() ),
+      Math.min( (int) Math.ceil( relativeRect.bottom * mScale / mTileHeight ), getRowCount() )
+    );
+    return cellRange;
+  }
+
   /**
    * Ensures that computeCurrentState will return true, indicating a change has occurred.
    */
@@ -96,6 +297,78 @@ public class DetailLevel implements Comparable<DetailLevel> {
     return mDetailLevelManager.getScale() / mScale;
   }
 
+  /**
+   * Returns the power-of-two factor tiles on this level can be downsampled by at the current
+   * scale without visible loss, i.e., the largest power of two that the relative scale is still at
+   * or below the inverse of.  Always 1 unless downsampling is enabled on the DetailLevelManager,
+   * multiplied by the decode sample size (see getDecodeSampleSize), and for overzoomed levels by
+   * the power of two they are derived at.
+   *
+   * @return The sample size to decode tiles of this level with.
+   */
+  public int getSampleSize() {
+    int derivedSampleSize = getDecodeSampleSize();
+    // overzoomed tiles are cropped from source tiles, so hold only a fraction of their pixels
+    if( mDerivationDepth > 0 ) {
+      derivedSampleSize <<= mDerivationDepth;
+    }
+    if( !mDetailLevelManager.getShouldDownsample() ) {
+      return derivedSampleSize;
+    }
+    float relativeScale = getRelativeScale();
+    int sampleSize = 1;
+    while( relativeScale * sampleSize * 2 <= 1 ) {
+      sampleSize <<= 1;
+    }
+    return sampleSize * derivedSampleSize;
+  }
+
+  /**
+   * Returns the sample size of the level's DecodeOptions, or 1 if it has none.  Derived levels
+   * share the DecodeOptions of their source level, so this is the sample size the registered tiles
+   * they are produced from are decoded with.
+   *
+   * @return The sample size registered tiles are decoded with, before any downsampling.
+   */
+  public int getDecodeSampleSize() {
+    return mDecodeOptions == null ? 1 : mDecodeOptions.getSampleSize();
+  }
+
+  /**
+   * @return True if this level was not registered but derived from a registered level.
+   */
+  public boolean isDerived() {
+    return mSourceDetailLevel != null;
+  }
+
+  /**
+   * @return The DetailLevel this level was derived from, or null if it was registered.
+   */
+  public DetailLevel getSourceDetailLevel() {
+    return mSourceDetailLevel;
+  }
+
+  /**
+   * @return The power of two this level's scale is the source level's scale multiplied by; 0 if it was registered.
+   */
+  public int getDerivationDepth() {
+    return mDerivationDepth;
+  }
+
+  /**
+   * @return The number of tile columns needed to cover the full width at this level's scale.
+   */
+  public int getColumnCount() {
+    return (int) Math.ceil( mDetailLevelManager.getBaseWidth() * mScale / mTileWidth );
+  }
+
+  /**
+   * @return The number of tile rows needed to cover the full height at this level's scale.
+   */
+  public int getRowCount() {
+    return (int) Math.ceil( mDetailLevelManager.getBaseHeight() * mScale / mTileHeight );
+  }
+
   public int getTileWidth() {
     return mTileWidth;
   }
@@ -108,6 +381,13 @@ public class DetailLevel implements Comparable<DetailLevel> {
     return mData;
   }
 
+  /**
+   * @return How the tiles of this level should be decoded, or null for the BitmapProvider's defaults.
+   */
+  public DecodeOptions getDecodeOptions() {
+    return mDecodeOptions;
+  }
+
   @Override
   public int compareTo( @NonNull DetailLevel detailLevel ) {
     return (int) Math.signum( getScale() - detailLevel.getScale() );
@@ -144,14 +424,24 @@ public class DetailLevel implements Comparable<DetailLevel> {
     public int rowEnd;
     public int columnStart;
     public int columnEnd;
+    public int sampleSize;
     public DetailLevel detailLevel;
 
-    public StateSnapshot( DetailLevel detailLevel, int rowStart, int rowEnd, int columnStart, int columnEnd ) {
+    public StateSnapshot( DetailLevel detailLevel, int rowStart, int rowEnd, int columnStart, int columnEnd, int sampleSize ) {
       this.detailLevel = detailLevel;
       this.rowStart = rowStart;
       this.rowEnd = rowEnd;
       this.columnStart = columnStart;
       this.columnEnd = columnEnd;
+      this.sampleSize = sampleSize;
+    }
+
+    public boolean matches( int rowStart, int rowEnd, int columnStart, int columnEnd, int sampleSize ) {
+      return this.rowStart == rowStart
+        && this.rowEnd == rowEnd
+        && this.columnStart == columnStart
+        && this.columnEnd == columnEnd
+        && this.sampleSize == sampleSize;
     }
 
     public boolean equals( Object o ) {
@@ -164,7 +454,8 @@ public class DetailLevel implements Comparable<DetailLevel> {
           && rowStart == stateSnapshot.rowStart
           && columnStart == stateSnapshot.columnStart
           && rowEnd == stateSnapshot.rowEnd
-          && columnEnd == stateSnapshot.columnEnd;
+          && columnEnd == stateSnapshot.columnEnd
+          && sampleSize == stateSnapshot.sampleSize;
       }
       return false;
     }
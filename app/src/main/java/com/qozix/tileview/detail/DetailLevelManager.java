@@ -3,13 +3,37 @@ package com.qozix.tileview.detail;
 import android.graphics.Rect;
 
 import com.qozix.tileview.geom.FloatMathHelper;
+import com.qozix.tileview.graphics.DecodeOptions;
 
-import java.util.Collections;
-import java.util.LinkedList;
+import java.util.Arrays;
 
 public class DetailLevelManager {
 
-  protected LinkedList<DetailLevel> mDetailLevelLinkedList = new LinkedList<DetailLevel>();
+  public static final float DEFAULT_LEVEL_HYSTERESIS = 0f;
+  public static final int DEFAULT_MAXIMUM_OVERZOOM_DEPTH = 4;
+  public static final int DEFAULT_MAXIMUM_SYNTHESIS_DEPTH = 4;
+  // each synthesized tile at depth n is built from 4^n registered tiles
+  public static final int MAXIMUM_SYNTHESIS_DEPTH = 4;
+
+  // sorted by ascending scale
+  protected DetailLevel[] mDetailLevels = new DetailLevel[0];
+
+  private float mLevelHysteresis = DEFAULT_LEVEL_HYSTERESIS;
+
+  private boolean mShouldDownsample;
+
+  private boolean mShouldOverzoom;
+  private int mMaximumOverzoomDepth = DEFAULT_MAXIMUM_OVERZOOM_DEPTH;
+  // created lazily, index 0 is one power of two beyond the largest registered scale
+  private DetailLevel[] mOverzoomDetailLevels = new DetailLevel[0];
+
+  private boolean mShouldSynthesizeLevels;
+  private int mMaximumSynthesisDepth = DEFAULT_MAXIMUM_SYNTHESIS_DEPTH;
+  // created lazily, index 0 is one power of two below the smallest registered scale
+  private DetailLevel[] mSynthesizedDetailLevels = new DetailLevel[0];
+
+  private float mAcceptableUpsampling = 0;
+  private float mMemoryPressureBias = 1;
 
   private DetailLevelChangeListener mDetailLevelChangeListener;
 
@@ -133,8 +157,165 @@ public class DetailLevelManager {
     return mDetailLevelLocked;
   }
 
+  public float getLevelHysteresis() {
+    return mLevelHysteresis;
+  }
+
+  /**
+   * Sets a margin, relative to the scale at which DetailLevels would normally switch, that the
+   * scale must cross before the current DetailLevel is replaced.  E.g., with a hysteresis of 0.1f
+   * and levels at 0.5 and 1, the 1 level is kept until the scale drops below 0.45, and the 0.5 level
+   * is kept until the scale rises above 0.55.  This prevents small oscillations around a level
+   * boundary (as during a pinch) from repeatedly switching levels and re-decoding tiles.
+   *
+   * The default value is 0, which switches exactly at the level boundaries.
+   *
+   * @param levelHysteresis Fraction of the boundary scale, e.g. 0.1f for 10%.
+   */
+  public void setLevelHysteresis( float levelHysteresis ) {
+    mLevelHysteresis = Math.max( 0, levelHysteresis );
+  }
+
+  public float getAcceptableUpsampling() {
+    return mAcceptableUpsampling;
+  }
+
+  /**
+   * Sets how far a DetailLevel's pixels may be magnified on screen before a finer level is
+   * required, whatever the display's density: with a value of 2, a level with half the current
+   * scale is considered sufficient, so each of its pixels covers at most 2x2 screen pixels.
+   * Coarser levels cost fewer decodes and less memory for detail that is barely visible, e.g., on
+   * low density tablets, or in small previews of a large image.
+   *
+   * The default value is 0 (as is any value up to 1), which always selects the smallest level at
+   * or above the current scale.
+   *
+   * @param acceptableUpsampling Magnification allowed in screen pixels, or 0 to disable.
+   */
+  public void setAcceptableUpsampling( float acceptableUpsampling ) {
+    mAcceptableUpsampling = acceptableUpsampling;
+    update();
+  }
+
+  /**
+   * Returns the scale DetailLevels are matched against: the current scale, reduced by the
+   * acceptable upsampling and the memory pressure bias.
+   *
+   * @return The scale used to select a DetailLevel.
+   */
+  public float getLevelSelectionScale() {
+    if( mAcceptableUpsampling <= 1 ) {
+      return mScale / mMemoryPressureBias;
+    }
+    return mScale / (mAcceptableUpsampling * mMemoryPressureBias);
+  }
+
+  public float getMemoryPressureBias() {
+    return mMemoryPressureBias;
+  }
+
+  /**
+   * While memory is low, the level selection scale can be further divided by this factor, so
+   * coarser DetailLevels (with fewer, or smaller, tile bitmaps) are selected until the pressure
+   * clears.  TileView sets this from its trim memory callbacks.
+   *
+   * The default value is 1 (no bias).
+   *
+   * @param memoryPressureBias A factor of 1 or more.
+   */
+  public void setMemoryPressureBias( float memoryPressureBias ) {
+    mMemoryPressureBias = Math.max( memoryPressureBias, 1 );
+    update();
+  }
+
+  public boolean getShouldDownsample() {
+    return mShouldDownsample;
+  }
+
+  /**
+   * When enabled, tiles of a DetailLevel displayed at half its scale or less are requested at a
+   * power-of-two sample size (see Tile.getSampleSize), and re-requested at full resolution when
+   * the scale increases again.  The BitmapProvider must honor the sample size (BitmapProviderAssets
+   * does), returning bitmaps whose dimensions are divided by it.
+   *
+   * The default value is false.
+   *
+   * @param shouldDownsample True if tiles should be decoded at a reduced size when drawn shrunk.
+   */
+  public void setShouldDownsample( boolean shouldDownsample ) {
+    mShouldDownsample = shouldDownsample;
+    invalidateAll();
+  }
+
+  public boolean getShouldOverzoom() {
+    return mShouldOverzoom;
+  }
+
+  /**
+   * When enabled, scales beyond the largest registered DetailLevel are served by derived levels
+   * at successive powers of two beyond it, up to the maximum overzoom depth.  Tiles of a derived
+   * level are cropped from the decoded tiles of the largest registered level, so only the visible
+   * part of each source tile is kept and drawn, rather than the entire source tile upscaled.
+   *
+   * The default value is false.
+   *
+   * @param shouldOverzoom True if scales beyond the largest DetailLevel should use derived levels.
+   */
+  public void setShouldOverzoom( boolean shouldOverzoom ) {
+    mShouldOverzoom = shouldOverzoom;
+    update();
+  }
+
+  public int getMaximumOverzoomDepth() {
+    return mMaximumOverzoomDepth;
+  }
+
+  /**
+   * @param maximumOverzoomDepth The number of powers of two beyond the largest registered scale levels are derived for.
+   */
+  public void setMaximumOverzoomDepth( int maximumOverzoomDepth ) {
+    mMaximumOverzoomDepth = maximumOverzoomDepth;
+    mOverzoomDetailLevels = new DetailLevel[0];
+    update();
+  }
+
+  public boolean getShouldSynthesizeLevels() {
+    return mShouldSynthesizeLevels;
+  }
+
+  /**
+   * When enabled, scales at or below half the smallest registered DetailLevel are served by
+   * synthesized levels at successive powers of two below it, down to the maximum synthesis depth.
+   * Each tile of a synthesized level is built from the 2x2 block of tiles of the next finer level,
+   * each drawn at half size, so a zoomed out viewport needs a small, fixed number of bitmaps
+   * instead of hundreds of full size tiles drawn shrunk.
+   *
+   * The default value is false.
+   *
+   * @param shouldSynthesizeLevels True if scales below the smallest DetailLevel should use synthesized levels.
+   */
+  public void setShouldSynthesizeLevels( boolean shouldSynthesizeLevels ) {
+    mShouldSynthesizeLevels = shouldSynthesizeLevels;
+    update();
+  }
+
+  public int getMaximumSynthesisDepth() {
+    return mMaximumSynthesisDepth;
+  }
+
+  /**
+   * @param maximumSynthesisDepth The number of powers of two below the smallest registered scale levels are synthesized for, at most MAXIMUM_SYNTHESIS_DEPTH.
+   */
+  public void setMaximumSynthesisDepth( int maximumSynthesisDepth ) {
+    mMaximumSynthesisDepth = Math.min( maximumSynthesisDepth, MAXIMUM_SYNTHESIS_DEPTH );
+    mSynthesizedDetailLevels = new DetailLevel[0];
+    update();
+  }
+
   public void resetDetailLevels() {
-    mDetailLevelLinkedList.clear();
+    mDetailLevels = new DetailLevel[0];
+    mOverzoomDetailLevels = new DetailLevel[0];
+    mSynthesizedDetailLevels = new DetailLevel[0];
     update();
   }
 
@@ -146,6 +327,9 @@ public class DetailLevelManager {
     boolean detailLevelChanged = false;
     if( !mDetailLevelLocked ) {
       DetailLevel matchingLevel = getDetailLevelForScale();
+      if( matchingLevel != null && isWithinLevelHysteresis( matchingLevel ) ) {
+        matchingLevel = mCurrentDetailLevel;
+      }
       if( matchingLevel != null ) {
         detailLevelChanged = !matchingLevel.equals( mCurrentDetailLevel );
         mCurrentDetailLevel = matchingLevel;
@@ -161,40 +345,224 @@ public class DetailLevelManager {
   }
 
   public void addDetailLevel( float scale, Object data, int tileWidth, int tileHeight ) {
-    DetailLevel detailLevel = new DetailLevel( this, scale, data, tileWidth, tileHeight );
-    if( mDetailLevelLinkedList.contains( detailLevel ) ) {
+    addDetailLevel( scale, data, tileWidth, tileHeight, null );
+  }
+
+  public void addDetailLevel( float scale, Object data, int tileWidth, int tileHeight, DecodeOptions decodeOptions ) {
+    DetailLevel detailLevel = new DetailLevel( this, scale, data, tileWidth, tileHeight, decodeOptions );
+    int index = Arrays.binarySearch( mDetailLevels, detailLevel );
+    if( index >= 0 ) {
       return;
     }
-    mDetailLevelLinkedList.add( detailLevel );
-    Collections.sort( mDetailLevelLinkedList );
+    int insertionPoint = -(index + 1);
+    DetailLevel[] detailLevels = new DetailLevel[mDetailLevels.length + 1];
+    System.arraycopy( mDetailLevels, 0, detailLevels, 0, insertionPoint );
+    detailLevels[insertionPoint] = detailLevel;
+    System.arraycopy( mDetailLevels, insertionPoint, detailLevels, insertionPoint + 1, mDetailLevels.length - insertionPoint );
+    mDetailLevels = detailLevels;
+    mOverzoomDetailLevels = new DetailLevel[0];
+    mSynthesizedDetailLevels = new DetailLevel[0];
     update();
   }
 
+  /**
+   * Sets where a registered DetailLevel has tiles (see DetailLevel.setTileCoverage).
+   *
+   * @param scale        The scale the DetailLevel was registered with.
+   * @param tileCoverage Where the level has tiles, or null if it has tiles for every cell.
+   */
+  public void setTileCoverage( float scale, TileCoverage tileCoverage ) {
+    int index = Arrays.binarySearch( mDetailLevels, new DetailLevel( this, scale, null, 0, 0 ) );
+    if( index < 0 ) {
+      return;
+    }
+    mDetailLevels[index].setTileCoverage( tileCoverage );
+    // levels derived from it follow its coverage, and must recompute their tiles too
+    for( DetailLevel detailLevel : mOverzoomDetailLevels ) {
+      if( detailLevel != null ) {
+        detailLevel.invalidate();
+      }
+    }
+    for( DetailLevel detailLevel : mSynthesizedDetailLevels ) {
+      if( detailLevel != null ) {
+        detailLevel.invalidate();
+      }
+    }
+  }
+
+  /**
+   * Returns the DetailLevel with the smallest scale that is equal to or greater than the level
+   * selection scale, or the DetailLevel with the largest scale if none is.
+   *
+   * @return The matching DetailLevel, or null if none are registered.
+   */
   public DetailLevel getDetailLevelForScale() {
-    if( mDetailLevelLinkedList.size() == 0 ) {
+    if( mDetailLevels.length == 0 ) {
+      return null;
+    }
+    float scale = getLevelSelectionScale();
+    int index = getDetailLevelIndexForScale( scale );
+    DetailLevel detailLevel = mDetailLevels[index];
+    if( mShouldOverzoom && scale > detailLevel.getScale() ) {
+      return getOverzoomDetailLevel( detailLevel, scale );
+    }
+    if( mShouldSynthesizeLevels && index == 0 && scale <= detailLevel.getScale() / 2 ) {
+      return getSynthesizedDetailLevel( detailLevel, scale );
+    }
+    return detailLevel;
+  }
+
+  /**
+   * Returns the synthesized level with the smallest power of two below the smallest registered
+   * scale that is equal to or greater than the scale passed, clamped to the maximum synthesis depth.
+   */
+  private DetailLevel getSynthesizedDetailLevel( DetailLevel smallestDetailLevel, float scale ) {
+    if( mMaximumSynthesisDepth <= 0 ) {
+      return smallestDetailLevel;
+    }
+    int depth = 1;
+    while( depth < mMaximumSynthesisDepth && smallestDetailLevel.getScale() / (1 << (depth + 1)) >= scale ) {
+      depth++;
+    }
+    return getSynthesizedDetailLevelAtDepth( smallestDetailLevel, depth );
+  }
+
+  private DetailLevel getSynthesizedDetailLevelAtDepth( DetailLevel smallestDetailLevel, int depth ) {
+    if( mSynthesizedDetailLevels.length != mMaximumSynthesisDepth ) {
+      mSynthesizedDetailLevels = new DetailLevel[mMaximumSynthesisDepth];
+    }
+    DetailLevel detailLevel = mSynthesizedDetailLevels[depth - 1];
+    if( detailLevel == null ) {
+      detailLevel = new DetailLevel( smallestDetailLevel, -depth );
+      mSynthesizedDetailLevels[depth - 1] = detailLevel;
+    }
+    return detailLevel;
+  }
+
+  /**
+   * Returns the derived level with the smallest power of two beyond the largest registered scale
+   * that is equal to or greater than the scale passed, clamped to the maximum overzoom depth.
+   */
+  private DetailLevel getOverzoomDetailLevel( DetailLevel largestDetailLevel, float scale ) {
+    if( mMaximumOverzoomDepth <= 0 ) {
+      return largestDetailLevel;
+    }
+    int depth = 1;
+    while( depth < mMaximumOverzoomDepth && largestDetailLevel.getScale() * (1 << depth) < scale ) {
+      depth++;
+    }
+    return getOverzoomDetailLevelAtDepth( largestDetailLevel, depth );
+  }
+
+  private DetailLevel getOverzoomDetailLevelAtDepth( DetailLevel largestDetailLevel, int depth ) {
+    if( mOverzoomDetailLevels.length != mMaximumOverzoomDepth ) {
+      mOverzoomDetailLevels = new DetailLevel[mMaximumOverzoomDepth];
+    }
+    DetailLevel detailLevel = mOverzoomDetailLevels[depth - 1];
+    if( detailLevel == null ) {
+      detailLevel = new DetailLevel( largestDetailLevel, depth );
+      mOverzoomDetailLevels[depth - 1] = detailLevel;
+    }
+    return detailLevel;
+  }
+
+  /**
+   * Binary search for the index of the smallest registered scale that is equal to or greater than
+   * the scale passed, clamped to the last index.
+   */
+  protected int getDetailLevelIndexForScale( float scale ) {
+    int low = 0;
+    int high = mDetailLevels.length - 1;
+    while( low < high ) {
+      int middle = (low + high) >>> 1;
+      if( mDetailLevels[middle].getScale() < scale ) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Returns the registered DetailLevel with the next smaller scale than the one passed.
+   *
+   * @param detailLevel A DetailLevel registered with this manager.
+   * @return The next coarser DetailLevel, or null if there is none.
+   */
+  public DetailLevel getCoarserDetailLevel( DetailLevel detailLevel ) {
+    if( detailLevel.getDerivationDepth() > 0 ) {
+      int depth = detailLevel.getDerivationDepth() - 1;
+      DetailLevel sourceDetailLevel = detailLevel.getSourceDetailLevel();
+      return depth == 0 ? sourceDetailLevel : getOverzoomDetailLevelAtDepth( sourceDetailLevel, depth );
+    }
+    int index = Arrays.binarySearch( mDetailLevels, detailLevel );
+    if( index <= 0 ) {
       return null;
     }
-    if( mDetailLevelLinkedList.size() == 1 ) {
-      return mDetailLevelLinkedList.get( 0 );
-    }
-    DetailLevel match = null;
-    int index = mDetailLevelLinkedList.size() - 1;
-    for( int i = index; i >= 0; i-- ) {
-      match = mDetailLevelLinkedList.get( i );
-      if( match.getScale() < mScale ) {
-        if( i < index ) {
-          match = mDetailLevelLinkedList.get( i + 1 );
-        }
-        break;
+    return mDetailLevels[index - 1];
+  }
+
+  /**
+   * Returns the DetailLevel with the next larger scale than the one passed, including derived levels.
+   * A synthesized level's tiles are built from the tiles of this level.
+   *
+   * @param detailLevel A DetailLevel registered with or derived by this manager.
+   * @return The next finer DetailLevel, or null if there is none.
+   */
+  public DetailLevel getFinerDetailLevel( DetailLevel detailLevel ) {
+    int derivationDepth = detailLevel.getDerivationDepth();
+    if( derivationDepth < 0 ) {
+      DetailLevel sourceDetailLevel = detailLevel.getSourceDetailLevel();
+      return derivationDepth == -1 ? sourceDetailLevel : getSynthesizedDetailLevelAtDepth( sourceDetailLevel, -derivationDepth - 1 );
+    }
+    if( derivationDepth > 0 ) {
+      if( derivationDepth >= mMaximumOverzoomDepth ) {
+        return null;
       }
+      return getOverzoomDetailLevelAtDepth( detailLevel.getSourceDetailLevel(), derivationDepth + 1 );
+    }
+    int index = Arrays.binarySearch( mDetailLevels, detailLevel );
+    if( index < 0 || index == mDetailLevels.length - 1 ) {
+      return null;
+    }
+    return mDetailLevels[index + 1];
+  }
+
+  private boolean isWithinLevelHysteresis( DetailLevel candidate ) {
+    if( mLevelHysteresis <= 0 || mCurrentDetailLevel == null || candidate.equals( mCurrentDetailLevel ) ) {
+      return false;
+    }
+    int currentIndex = Arrays.binarySearch( mDetailLevels, mCurrentDetailLevel );
+    if( currentIndex < 0 ) {
+      return false;
+    }
+    float scale = getLevelSelectionScale();
+    float currentScale = mCurrentDetailLevel.getScale();
+    if( candidate.getScale() > currentScale ) {
+      return scale <= currentScale * (1 + mLevelHysteresis);
+    }
+    if( currentIndex == 0 ) {
+      return false;
     }
-    return match;
+    float boundaryScale = mDetailLevels[currentIndex - 1].getScale();
+    return scale > boundaryScale * (1 - mLevelHysteresis);
   }
 
   public void invalidateAll(){
-    for( DetailLevel detailLevel : mDetailLevelLinkedList ){
+    for( DetailLevel detailLevel : mDetailLevels ){
       detailLevel.invalidate();
     }
+    for( DetailLevel detailLevel : mOverzoomDetailLevels ){
+      if( detailLevel != null ) {
+        detailLevel.invalidate();
+      }
+    }
+    for( DetailLevel detailLevel : mSynthesizedDetailLevels ){
+      if( detailLevel != null ) {
+        detailLevel.invalidate();
+      }
+    }
   }
 
   public interface DetailLevelChangeListener {
@@ -0,0 +1,21 @@
+package com.qozix.tileview.detail;
+
+/**
+ * Describes where a sparse DetailLevel has tiles, e.g. a high resolution level that only exists
+ * for parts of the image.  No Tile is created for a cell the coverage does not contain, so it is
+ * never asked of the BitmapProvider; coarser tiles are drawn in its place instead.
+ *
+ * See TileCoverageBitSet and TileCoverageRects.
+ */
+public interface TileCoverage {
+
+  /**
+   * Called on the UI thread as the viewport changes, so should be cheap.
+   *
+   * @param column The column of the cell, on the DetailLevel the coverage was set for.
+   * @param row    The row of the cell.
+   * @return True if the DetailLevel has a tile for the cell.
+   */
+  boolean contains( int column, int row );
+
+}
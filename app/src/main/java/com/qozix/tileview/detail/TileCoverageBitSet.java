@@ -0,0 +1,75 @@
+package com.qozix.tileview.detail;
+
+import java.util.BitSet;
+
+/**
+ * A TileCoverage with a bit per cell of the level's grid, for levels with scattered tiles.
+ * Cells outside the grid are not covered.
+ */
+public class TileCoverageBitSet implements TileCoverage {
+
+  private final int mColumnCount;
+  private final int mRowCount;
+  private final BitSet mBitSet;
+
+  /**
+   * Creates a coverage with no cells covered.
+   *
+   * @param columnCount The number of columns of the level (see DetailLevel.getColumnCount).
+   * @param rowCount    The number of rows of the level.
+   */
+  public TileCoverageBitSet( int columnCount, int rowCount ) {
+    mColumnCount = columnCount;
+    mRowCount = rowCount;
+    mBitSet = new BitSet( columnCount * rowCount );
+  }
+
+  public int getColumnCount() {
+    return mColumnCount;
+  }
+
+  public int getRowCount() {
+    return mRowCount;
+  }
+
+  public void add( int column, int row ) {
+    if( isInGrid( column, row ) ) {
+      mBitSet.set( row * mColumnCount + column );
+    }
+  }
+
+  /**
+   * Covers a range of cells.
+   *
+   * @param columnStart The first column covered.
+   * @param rowStart    The first row covered.
+   * @param columnEnd   The column after the last column covered.
+   * @param rowEnd      The row after the last row covered.
+   */
+  public void add( int columnStart, int rowStart, int columnEnd, int rowEnd ) {
+    columnStart = Math.max( columnStart, 0 );
+    columnEnd = Math.min( columnEnd, mColumnCount );
+    if( columnStart >= columnEnd ) {
+      return;
+    }
+    for( int row = Math.max( rowStart, 0 ); row < Math.min( rowEnd, mRowCount ); row++ ) {
+      mBitSet.set( row * mColumnCount + columnStart, row * mColumnCount + columnEnd );
+    }
+  }
+
+  public void remove( int column, int row ) {
+    if( isInGrid( column, row ) ) {
+      mBitSet.clear( row * mColumnCount + column );
+    }
+  }
+
+  @Override
+  public boolean contains( int column, int row ) {
+    return isInGrid( column, row ) && mBitSet.get( row * mColumnCount + column );
+  }
+
+  private boolean isInGrid( int column, int row ) {
+    return column >= 0 && row >= 0 && column < mColumnCount && row < mRowCount;
+  }
+
+}
@@ -0,0 +1,47 @@
+package com.qozix.tileview.detail;
+
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A TileCoverage made of rectangles of cells, for levels whose tiles are in a few blocks
+ * (e.g., a building's footprint).  Lookups check every rectangle, so it is best kept to a
+ * handful; use a TileCoverageBitSet for scattered tiles.
+ */
+public class TileCoverageRects implements TileCoverage {
+
+  private final List<Rect> mRects = new ArrayList<>();
+
+  /**
+   * Covers a rectangle of cells.
+   *
+   * @param columnStart The first column covered.
+   * @param rowStart    The first row covered.
+   * @param columnEnd   The column after the last column covered.
+   * @param rowEnd      The row after the last row covered.
+   */
+  public void add( int columnStart, int rowStart, int columnEnd, int rowEnd ) {
+    mRects.add( new Rect( columnStart, rowStart, columnEnd, rowEnd ) );
+  }
+
+  /**
+   * @return The rectangles of cells covered, with exclusive right and bottom edges.
+   */
+  public List<Rect> getRects() {
+    return mRects;
+  }
+
+  @Override
+  public boolean contains( int column, int row ) {
+    for( int i = 0; i < mRects.size(); i++ ) {
+      Rect rect = mRects.get( i );
+      if( column >= rect.left && column < rect.right && row >= rect.top && row < rect.bottom ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+}
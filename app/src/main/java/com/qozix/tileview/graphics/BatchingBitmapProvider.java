@@ -0,0 +1,35 @@
+package com.qozix.tileview.graphics;
+
+import android.content.Context;
+
+import com.qozix.tileview.tiles.Tile;
+
+import java.util.Collection;
+
+/**
+ * A BitmapProvider that is told, once per render pass, which tiles are about to be requested,
+ * so it can plan to fetch them together (e.g., one sequential read for tiles stored next to
+ * each other) rather than one at a time as getBitmap is called for each.
+ *
+ * prepareBatch is called on the UI thread before the tiles are queued for decoding, so it
+ * should only plan the work, and leave the I/O itself to getBitmap, which runs on render threads.
+ * Every tile passed to prepareBatch is then either requested with getBitmap, or passed to
+ * releaseBatch, e.g., when its decode is cancelled or it turns out not to need the provider.
+ */
+public interface BatchingBitmapProvider extends BitmapProvider {
+  /**
+   * @param tiles   The tiles about to be queued for decoding.  Tiles of earlier batches stay
+   *                planned until they are requested or released.
+   * @param context The Context passed to getBitmap.
+   */
+  void prepareBatch( Collection<Tile> tiles, Context context );
+
+  /**
+   * Drops whatever was planned for a tile that will not be requested, or was served without
+   * getBitmap.  Called on any thread, possibly for a tile that was never batched or already
+   * requested, in which case it does nothing.
+   *
+   * @param tile A tile passed to prepareBatch.
+   */
+  void releaseBatch( Tile tile );
+}
@@ -0,0 +1,142 @@
+package com.qozix.tileview.graphics;
+
+import android.graphics.Bitmap;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted holder for a tile bitmap.
+ *
+ * A handle is created holding a single reference, owned by whoever created it.  Anything else
+ * that needs the bitmap to stay valid (the Tile drawing it, a cache, a prefetcher, a thread
+ * cropping or scaling it) acquires a reference, and releases it when done.  When the last
+ * reference is released the bitmap is returned to the BitmapPool the handle was created with,
+ * or recycled if there is none (or the pool won't take it), so pixel memory is reclaimed exactly
+ * once, and never while the bitmap is still in use.  A handle created with a BitmapMemoryGovernor
+ * accounts the bitmap's bytes with it from creation until the last reference is released.
+ *
+ * <pre>{@code
+ * BitmapHandle handle = tile.acquireBitmapHandle();
+ * if( handle != null ) {
+ *   try {
+ *     // use handle.getBitmap()
+ *   } finally {
+ *     handle.release();
+ *   }
+ * }
+ * }</pre>
+ */
+public class BitmapHandle {
+
+  private final Bitmap mBitmap;
+  private final BitmapPool mBitmapPool;
+  private final BitmapMemoryGovernor mBitmapMemoryGovernor;
+
+  private final AtomicInteger mReferenceCount = new AtomicInteger( 1 );
+
+  private volatile boolean mShouldRecycle = true;
+
+  /**
+   * @param bitmap     The bitmap to hold.
+   * @param bitmapPool The pool the bitmap is returned to when the last reference is released, or null to recycle it.
+   */
+  public BitmapHandle( Bitmap bitmap, BitmapPool bitmapPool ) {
+    this( bitmap, bitmapPool, null );
+  }
+
+  /**
+   * @param bitmap               The bitmap to hold.
+   * @param bitmapPool           The pool the bitmap is returned to when the last reference is released, or null to recycle it.
+   * @param bitmapMemoryGovernor The governor the bitmap's bytes are accounted with, or null.
+   */
+  public BitmapHandle( Bitmap bitmap, BitmapPool bitmapPool, BitmapMemoryGovernor bitmapMemoryGovernor ) {
+    mBitmap = bitmap;
+    mBitmapPool = bitmapPool;
+    mBitmapMemoryGovernor = bitmapMemoryGovernor;
+    if( mBitmapMemoryGovernor != null ) {
+      mBitmapMemoryGovernor.onAllocated( getByteCount() );
+    }
+  }
+
+  public Bitmap getBitmap() {
+    return mBitmap;
+  }
+
+  public int getReferenceCount() {
+    return mReferenceCount.get();
+  }
+
+  /**
+   * @return The number of bytes of pixel memory held by the bitmap.
+   */
+  public int getByteCount() {
+    return mBitmap.getRowBytes() * mBitmap.getHeight();
+  }
+
+  /**
+   * Adds a reference to this handle.
+   *
+   * @return This handle.
+   * @throws IllegalStateException If the last reference has already been released.
+   */
+  public BitmapHandle acquire() {
+    if( !tryAcquire() ) {
+      throw new IllegalStateException( "BitmapHandle has already been released" );
+    }
+    return this;
+  }
+
+  /**
+   * Adds a reference to this handle, unless the last reference has already been released, e.g.,
+   * when a cache entry is read while another thread evicts it.
+   *
+   * @return True if a reference was added.
+   */
+  public boolean tryAcquire() {
+    while( true ) {
+      int referenceCount = mReferenceCount.get();
+      if( referenceCount <= 0 ) {
+        return false;
+      }
+      if( mReferenceCount.compareAndSet( referenceCount, referenceCount + 1 ) ) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Removes a reference from this handle, pooling or recycling the bitmap if it was the last one.
+   *
+   * @throws IllegalStateException If the handle has no references left.
+   */
+  public void release() {
+    int referenceCount = mReferenceCount.decrementAndGet();
+    if( referenceCount == 0 ) {
+      if( mBitmapMemoryGovernor != null ) {
+        mBitmapMemoryGovernor.onReleased( getByteCount() );
+      }
+      if( mShouldRecycle && (mBitmapPool == null || !mBitmapPool.put( mBitmap )) ) {
+        mBitmap.recycle();
+      }
+    } else if( referenceCount < 0 ) {
+      throw new IllegalStateException( "BitmapHandle released more times than acquired" );
+    }
+  }
+
+  /**
+   * Removes a reference from this handle.  Once any reference is released with shouldRecycle
+   * false, the bitmap is neither pooled nor recycled when the last reference goes, since it may be
+   * referenced elsewhere (e.g., cached by the BitmapProvider); its bytes are still accounted as
+   * released.
+   *
+   * @param shouldRecycle False if the bitmap must be left as is once the last reference is released.
+   * @throws IllegalStateException If the handle has no references left.
+   */
+  public void release( boolean shouldRecycle ) {
+    if( !shouldRecycle ) {
+      mShouldRecycle = false;
+    }
+    release();
+  }
+
+}
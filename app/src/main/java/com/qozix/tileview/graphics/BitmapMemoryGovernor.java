@@ -0,0 +1,188 @@
+package com.qozix.tileview.graphics;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Accounts the pixel memory held by all tile bitmaps - tiles on screen, tiles kept from the
+ * previous detail level, pooled bitmaps, cached bitmaps and decodes in flight - against a single
+ * byte budget.
+ *
+ * BitmapHandles and BitmapPools created with a governor report their bytes to it.  Holders that
+ * can give memory back register as Evictables with a priority; when a decode needs room, the
+ * lowest priorities are asked to evict first (by default the pool, then caches, then tiles of the
+ * previous level).  The decode then waits, for at most the admission timeout, until enough memory
+ * has actually been released.  If nothing is left to evict it is admitted right away, so tiles on
+ * screen are never refused; the budget bounds everything else.
+ *
+ * Memory other than bitmaps that is held for tiles, e.g., the buffer of an EncodedTileCache, is
+ * accounted the same way, with onAllocated and onReleased.
+ */
+public class BitmapMemoryGovernor {
+
+  public static final int PRIORITY_POOL = 0;
+  public static final int PRIORITY_CACHE = 1;
+  public static final int PRIORITY_PREVIOUS_LEVEL = 2;
+
+  public static final long DEFAULT_ADMISSION_TIMEOUT = 500;
+
+  private long mBudget;
+  private long mAdmissionTimeout = DEFAULT_ADMISSION_TIMEOUT;
+
+  private long mAllocatedBytes;
+  private long mReservedBytes;
+
+  // sorted by ascending priority
+  private final List<EvictableEntry> mEvictableEntries = new ArrayList<>();
+
+  /**
+   * @param budget The number of bytes of pixel memory tile bitmaps may hold.
+   */
+  public BitmapMemoryGovernor( long budget ) {
+    mBudget = budget;
+  }
+
+  /**
+   * @return A quarter of the maximum heap size.
+   */
+  public static long getDefaultBudget() {
+    return Runtime.getRuntime().maxMemory() / 4;
+  }
+
+  public synchronized long getBudget() {
+    return mBudget;
+  }
+
+  public synchronized void setBudget( long budget ) {
+    mBudget = budget;
+    notifyAll();
+  }
+
+  public synchronized long getAdmissionTimeout() {
+    return mAdmissionTimeout;
+  }
+
+  /**
+   * @param admissionTimeout The longest time, in milliseconds, a decode waits for memory to be released.
+   */
+  public synchronized void setAdmissionTimeout( long admissionTimeout ) {
+    mAdmissionTimeout = admissionTimeout;
+  }
+
+  /**
+   * @return The number of bytes currently held by accounted bitmaps and reserved for decodes in flight.
+   */
+  public synchronized long getUsedBytes() {
+    return mAllocatedBytes + mReservedBytes;
+  }
+
+  public synchronized void register( Evictable evictable, int priority ) {
+    unregister( evictable );
+    int index = 0;
+    while( index < mEvictableEntries.size() && mEvictableEntries.get( index ).priority <= priority ) {
+      index++;
+    }
+    mEvictableEntries.add( index, new EvictableEntry( evictable, priority ) );
+  }
+
+  public synchronized void unregister( Evictable evictable ) {
+    for( int i = 0; i < mEvictableEntries.size(); i++ ) {
+      if( mEvictableEntries.get( i ).evictable == evictable ) {
+        mEvictableEntries.remove( i );
+        return;
+      }
+    }
+  }
+
+  /**
+   * Accounts memory that is now held.  Every call must be matched by a call to onReleased once
+   * the memory is released.
+   *
+   * @param bytes The number of bytes allocated.
+   */
+  public synchronized void onAllocated( long bytes ) {
+    mAllocatedBytes += bytes;
+  }
+
+  /**
+   * @param bytes The number of bytes released, which were accounted with onAllocated.
+   */
+  public synchronized void onReleased( long bytes ) {
+    mAllocatedBytes -= bytes;
+    notifyAll();
+  }
+
+  /**
+   * Reserves memory for a decode about to start, evicting from the registered Evictables and
+   * waiting for the memory to be released if the budget would be exceeded.  Must not be called
+   * on the UI thread.  Every reservation must be ended with endReservation, whatever the outcome
+   * of the decode.
+   *
+   * @param bytes The estimated number of bytes the decode will allocate.
+   * @throws InterruptedException If the thread is interrupted while waiting.
+   */
+  public void reserve( long bytes ) throws InterruptedException {
+    long excess;
+    EvictableEntry[] evictableEntries;
+    synchronized( this ) {
+      excess = mAllocatedBytes + mReservedBytes + bytes - mBudget;
+      if( excess <= 0 ) {
+        mReservedBytes += bytes;
+        return;
+      }
+      evictableEntries = mEvictableEntries.toArray( new EvictableEntry[mEvictableEntries.size()] );
+    }
+    // evictables are called without holding the lock, as they release handles that report back here
+    long expected = 0;
+    for( EvictableEntry evictableEntry : evictableEntries ) {
+      if( expected >= excess ) {
+        break;
+      }
+      expected += evictableEntry.evictable.evict( excess - expected );
+    }
+    synchronized( this ) {
+      if( expected > 0 ) {
+        long deadline = SystemClock.uptimeMillis() + mAdmissionTimeout;
+        long remaining = mAdmissionTimeout;
+        while( mAllocatedBytes + mReservedBytes + bytes > mBudget && remaining > 0 ) {
+          wait( remaining );
+          remaining = deadline - SystemClock.uptimeMillis();
+        }
+      }
+      mReservedBytes += bytes;
+    }
+  }
+
+  public synchronized void endReservation( long bytes ) {
+    mReservedBytes -= bytes;
+    notifyAll();
+  }
+
+  /**
+   * A holder of bitmaps that can release some of them on request.
+   */
+  public interface Evictable {
+    /**
+     * Asks the holder to release at least the number of bytes passed, or as much as it can.  May
+     * be called from any thread; the release itself may happen asynchronously (e.g., posted to
+     * the UI thread), and is noticed when the released BitmapHandles or BitmapPool report it.
+     *
+     * @param bytes The number of bytes needed.
+     * @return The number of bytes that will be released; 0 if the holder has nothing to give back.
+     */
+    long evict( long bytes );
+  }
+
+  private static class EvictableEntry {
+    final Evictable evictable;
+    final int priority;
+
+    EvictableEntry( Evictable evictable, int priority ) {
+      this.evictable = evictable;
+      this.priority = priority;
+    }
+  }
+
+}
@@ -0,0 +1,142 @@
+package com.qozix.tileview.graphics;
+
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Keeps bitmaps that are no longer drawn so BitmapProviders can decode new tiles into them
+ * (BitmapFactory.Options.inBitmap) rather than allocating fresh pixel memory for every tile.
+ * Since tiles of a DetailLevel share their dimensions, nearly every decode can reuse a bitmap.
+ *
+ * Only mutable bitmaps are kept.  The pool is bounded by byte size; when full, the bitmaps that
+ * have been pooled the longest are recycled.  All methods are safe to call from any thread.
+ *
+ * As an Evictable, the pool gives up its oldest bitmaps first when a BitmapMemoryGovernor needs room.
+ */
+public class BitmapPool implements BitmapMemoryGovernor.Evictable {
+
+  public static final int DEFAULT_MAXIMUM_SIZE = 4 * 1024 * 1024;
+
+  // oldest first
+  private final LinkedList<Bitmap> mBitmaps = new LinkedList<>();
+
+  private int mMaximumSize;
+  private int mSize;
+
+  private BitmapMemoryGovernor mBitmapMemoryGovernor;
+
+  public BitmapPool() {
+    this( DEFAULT_MAXIMUM_SIZE );
+  }
+
+  /**
+   * @param maximumSize The number of bytes of pixel memory the pool may hold.
+   */
+  public BitmapPool( int maximumSize ) {
+    mMaximumSize = maximumSize;
+  }
+
+  public synchronized int getMaximumSize() {
+    return mMaximumSize;
+  }
+
+  public synchronized void setMaximumSize( int maximumSize ) {
+    mMaximumSize = maximumSize;
+    trimToSize( maximumSize );
+  }
+
+  public synchronized int getSize() {
+    return mSize;
+  }
+
+  /**
+   * @param bitmapMemoryGovernor The governor pooled bytes are accounted with, or null.
+   */
+  public synchronized void setBitmapMemoryGovernor( BitmapMemoryGovernor bitmapMemoryGovernor ) {
+    if( mBitmapMemoryGovernor != null ) {
+      mBitmapMemoryGovernor.onReleased( mSize );
+    }
+    mBitmapMemoryGovernor = bitmapMemoryGovernor;
+    if( mBitmapMemoryGovernor != null ) {
+      mBitmapMemoryGovernor.onAllocated( mSize );
+    }
+  }
+
+  /**
+   * Removes and returns a pooled bitmap with exactly the dimensions and config passed.
+   *
+   * @return A bitmap to decode into, or null if none matches.
+   */
+  public synchronized Bitmap get( int width, int height, Bitmap.Config config ) {
+    Iterator<Bitmap> iterator = mBitmaps.iterator();
+    while( iterator.hasNext() ) {
+      Bitmap bitmap = iterator.next();
+      if( bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config ) {
+        iterator.remove();
+        onRemoved( bitmap );
+        return bitmap;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Offers a bitmap no longer in use to the pool.
+   *
+   * @return True if the pool took the bitmap; otherwise the caller is still responsible for it.
+   */
+  public synchronized boolean put( Bitmap bitmap ) {
+    if( bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() ) {
+      return false;
+    }
+    int byteCount = getByteCount( bitmap );
+    if( byteCount > mMaximumSize ) {
+      return false;
+    }
+    mBitmaps.addLast( bitmap );
+    mSize += byteCount;
+    if( mBitmapMemoryGovernor != null ) {
+      mBitmapMemoryGovernor.onAllocated( byteCount );
+    }
+    trimToSize( mMaximumSize );
+    return true;
+  }
+
+  /**
+   * Recycles the bitmaps that have been pooled the longest until the pool holds no more than the
+   * number of bytes passed.
+   */
+  public synchronized void trimToSize( int size ) {
+    while( mSize > size && !mBitmaps.isEmpty() ) {
+      Bitmap bitmap = mBitmaps.removeFirst();
+      onRemoved( bitmap );
+      bitmap.recycle();
+    }
+  }
+
+  @Override
+  public synchronized long evict( long bytes ) {
+    int size = mSize;
+    trimToSize( (int) Math.max( size - bytes, 0 ) );
+    return size - mSize;
+  }
+
+  private void onRemoved( Bitmap bitmap ) {
+    int byteCount = getByteCount( bitmap );
+    mSize -= byteCount;
+    if( mBitmapMemoryGovernor != null ) {
+      mBitmapMemoryGovernor.onReleased( byteCount );
+    }
+  }
+
+  public void clear() {
+    trimToSize( 0 );
+  }
+
+  private static int getByteCount( Bitmap bitmap ) {
+    return bitmap.getRowBytes() * bitmap.getHeight();
+  }
+
+}
@@ -13,6 +13,10 @@ import com.qozix.tileview.tiles.Tile;
  * like column and row numbers, including the arbitrary data object passed for the detail level),
  * and a Context instance to help with things like file i/o - as long as the
  * getBitmap method returns a bitmap, everything will run along nicely.
+ *
+ * Return null only if there is no such tile: tiles a BitmapProvider returns null for are
+ * remembered as missing for a while (see MissingTileCache), and drawn blank.  A tile that could
+ * not be read (e.g., an I/O error, or out of memory) should throw instead, so it is asked for again.
  */
 public interface BitmapProvider {
   Bitmap getBitmap( Tile tile, Context context );
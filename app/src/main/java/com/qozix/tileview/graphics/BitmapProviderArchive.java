@@ -0,0 +1,249 @@
+package com.qozix.tileview.graphics;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.qozix.tileview.archive.TileArchive;
+import com.qozix.tileview.tiles.Tile;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A BitmapProvider that decodes tiles from a memory-mapped TileArchive, rather than opening an
+ * asset per tile.  The data of each DetailLevel is the name of its level in the archive:
+ *
+ * <pre>{@code
+ * TileArchive tileArchive = TileArchive.open( getAssets().openFd( "map.tva" ) );
+ * tileView.setBitmapProvider( new BitmapProviderArchive( tileArchive ) );
+ * tileView.addDetailLevel( 1.000f, "1000" );
+ * tileView.addDetailLevel( 0.500f, "500" );
+ * }</pre>
+ *
+ * The tiles of a render pass are read in batches: before they are decoded, the blobs of tiles
+ * that are stored close to each other (see TileArchiveWriter's layouts) are grouped into ranges,
+ * and each range is read in one sequential copy by the first render thread that needs one of
+ * its tiles, rather than with one random read per tile.
+ */
+public class BitmapProviderArchive implements BatchingBitmapProvider {
+
+  /**
+   * Blobs further apart than this are read separately rather than with the bytes between them.
+   */
+  public static final int DEFAULT_MAXIMUM_GAP = 16 * 1024;
+  public static final int DEFAULT_MAXIMUM_BATCH_SIZE = 1024 * 1024;
+
+  private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+
+  private TileArchive mTileArchive;
+
+  // BitmapFactory cannot decode from a ByteBuffer, only from an array, a stream or a file
+  // descriptor, so each render thread copies tiles out of the mapping into its own buffer, which
+  // grows to the largest tile.  A stream over the mapping would copy just the same, in chunks,
+  // and decoding an array spares the decoder the stream's buffering and rewinding.
+  private ThreadLocal<byte[]> mBuffers = new ThreadLocal<>();
+
+  private int mMaximumGap = DEFAULT_MAXIMUM_GAP;
+  private int mMaximumBatchSize = DEFAULT_MAXIMUM_BATCH_SIZE;
+
+  // entries are added by prepareBatch, and removed as the tiles are read or released
+  private final Map<Tile, BatchEntry> mBatchEntries = new ConcurrentHashMap<>();
+
+  public BitmapProviderArchive( TileArchive tileArchive ) {
+    mTileArchive = tileArchive;
+    mOptions.inPreferredConfig = BitmapProviderAssets.DEFAULT_BITMAP_CONFIG;
+  }
+
+  public TileArchive getTileArchive() {
+    return mTileArchive;
+  }
+
+  public Bitmap.Config getBitmapConfig() {
+    return mOptions.inPreferredConfig;
+  }
+
+  /**
+   * @param bitmapConfig The config tiles are decoded with; RGB_565 by default.
+   */
+  public void setBitmapConfig( Bitmap.Config bitmapConfig ) {
+    mOptions.inPreferredConfig = bitmapConfig;
+  }
+
+  public int getMaximumGap() {
+    return mMaximumGap;
+  }
+
+  /**
+   * @param maximumGap The largest number of bytes between two blobs that are still read together.
+   */
+  public void setMaximumGap( int maximumGap ) {
+    mMaximumGap = maximumGap;
+  }
+
+  public int getMaximumBatchSize() {
+    return mMaximumBatchSize;
+  }
+
+  /**
+   * @param maximumBatchSize The largest number of bytes read at once.
+   */
+  public void setMaximumBatchSize( int maximumBatchSize ) {
+    mMaximumBatchSize = maximumBatchSize;
+  }
+
+  @Override
+  public void prepareBatch( Collection<Tile> tiles, Context context ) {
+    List<BatchEntry> pendingBatchEntries = new ArrayList<>();
+    for( Tile tile : tiles ) {
+      // tiles already planned keep their batch, which might already have been read
+      if( mBatchEntries.containsKey( tile ) ) {
+        continue;
+      }
+      TileArchive.Level level = getLevel( tile );
+      if( level == null ) {
+        continue;
+      }
+      int length = level.getTileLength( tile.getColumn(), tile.getRow() );
+      if( length > 0 ) {
+        pendingBatchEntries.add( new BatchEntry( tile, level.getTileOffset( tile.getColumn(), tile.getRow() ), length ) );
+      }
+    }
+    Collections.sort( pendingBatchEntries );
+    List<BatchEntry> runBatchEntries = new ArrayList<>();
+    long runStart = 0;
+    long runEnd = 0;
+    for( BatchEntry batchEntry : pendingBatchEntries ) {
+      long end = batchEntry.offset + batchEntry.length;
+      if( !runBatchEntries.isEmpty() && (batchEntry.offset - runEnd > mMaximumGap || end - runStart > mMaximumBatchSize) ) {
+        addBatch( runBatchEntries, runStart, runEnd, mBatchEntries );
+        runBatchEntries.clear();
+      }
+      if( runBatchEntries.isEmpty() ) {
+        runStart = batchEntry.offset;
+        runEnd = end;
+      }
+      runBatchEntries.add( batchEntry );
+      runEnd = Math.max( runEnd, end );
+    }
+    addBatch( runBatchEntries, runStart, runEnd, mBatchEntries );
+  }
+
+  /**
+   * The tile's share of its batch is released, so the batch's bytes are dropped once the tiles
+   * that are still to be read are done with them.
+   */
+  @Override
+  public void releaseBatch( Tile tile ) {
+    BatchEntry batchEntry = mBatchEntries.remove( tile );
+    if( batchEntry != null ) {
+      batchEntry.batch.release();
+    }
+  }
+
+  // a tile read alone gains nothing from a batch, and is read straight from the archive instead
+  private void addBatch( List<BatchEntry> runBatchEntries, long start, long end, Map<Tile, BatchEntry> batchEntries ) {
+    if( runBatchEntries.size() < 2 ) {
+      return;
+    }
+    Batch batch = new Batch( start, (int) (end - start), runBatchEntries.size() );
+    for( BatchEntry batchEntry : runBatchEntries ) {
+      batchEntry.batch = batch;
+      batchEntries.put( batchEntry.tile, batchEntry );
+    }
+  }
+
+  private TileArchive.Level getLevel( Tile tile ) {
+    Object data = tile.getData();
+    if( !(data instanceof String) ) {
+      return null;
+    }
+    return mTileArchive.getLevel( (String) data );
+  }
+
+  @Override
+  public Bitmap getBitmap( Tile tile, Context context ) {
+    BatchEntry batchEntry = mBatchEntries.remove( tile );
+    if( batchEntry != null ) {
+      Batch batch = batchEntry.batch;
+      try {
+        byte[] bytes = batch.read( mTileArchive );
+        return DecodeOptionsHelper.decodeByteArray( bytes, (int) (batchEntry.offset - batch.start), batchEntry.length, tile, mOptions );
+      } finally {
+        batch.release();
+      }
+    }
+    TileArchive.Level level = getLevel( tile );
+    if( level == null ) {
+      return null;
+    }
+    ByteBuffer tileBuffer = level.getTile( tile.getColumn(), tile.getRow() );
+    if( tileBuffer == null ) {
+      return null;
+    }
+    int length = tileBuffer.remaining();
+    byte[] bytes = mBuffers.get();
+    if( bytes == null || bytes.length < length ) {
+      bytes = new byte[length];
+      mBuffers.set( bytes );
+    }
+    tileBuffer.get( bytes, 0, length );
+    return DecodeOptionsHelper.decodeByteArray( bytes, 0, length, tile, mOptions );
+  }
+
+  /**
+   * A range of the archive holding the blobs of several tiles of a render pass, read once.
+   */
+  private static class Batch {
+    final long start;
+    final int length;
+    private int mRemainingCount;
+    private byte[] mBytes;
+
+    Batch( long start, int length, int count ) {
+      this.start = start;
+      this.length = length;
+      mRemainingCount = count;
+    }
+
+    synchronized byte[] read( TileArchive tileArchive ) {
+      if( mBytes == null ) {
+        mBytes = new byte[length];
+        tileArchive.read( start, mBytes, length );
+      }
+      return mBytes;
+    }
+
+    // the bytes are dropped once every tile of the batch has been read
+    synchronized void release() {
+      mRemainingCount--;
+      if( mRemainingCount <= 0 ) {
+        mBytes = null;
+      }
+    }
+  }
+
+  private static class BatchEntry implements Comparable<BatchEntry> {
+    final Tile tile;
+    final long offset;
+    final int length;
+    Batch batch;
+
+    BatchEntry( Tile tile, long offset, int length ) {
+      this.tile = tile;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    @Override
+    public int compareTo( BatchEntry other ) {
+      return offset < other.offset ? -1 : (offset > other.offset ? 1 : 0);
+    }
+  }
+
+}
@@ -8,6 +8,9 @@ import android.util.Log;
 
 import com.qozix.tileview.tiles.Tile;
 
+import java.io.BufferedInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 
 /**
@@ -18,12 +21,43 @@ import java.io.InputStream;
  * Picasso, or add your own disk-caching scheme, etc.
  */
 
-public class BitmapProviderAssets implements BitmapProvider {
+public class BitmapProviderAssets implements StagedBitmapProvider {
 
-  private static final BitmapFactory.Options OPTIONS = new BitmapFactory.Options();
+  public static final Bitmap.Config DEFAULT_BITMAP_CONFIG = Bitmap.Config.RGB_565;
 
-  static {
-    OPTIONS.inPreferredConfig = Bitmap.Config.RGB_565;
+  private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+
+  private boolean mIsBitmapConfigSet;
+
+  private final boolean mIsStaged;
+
+  public BitmapProviderAssets() {
+    mOptions.inPreferredConfig = DEFAULT_BITMAP_CONFIG;
+    mIsStaged = hasStages( getClass() );
+  }
+
+  public Bitmap.Config getBitmapConfig() {
+    return mOptions.inPreferredConfig;
+  }
+
+  /**
+   * @param bitmapConfig The config tiles are decoded with; RGB_565 by default.
+   */
+  public void setBitmapConfig( Bitmap.Config bitmapConfig ) {
+    mOptions.inPreferredConfig = bitmapConfig;
+    mIsBitmapConfigSet = true;
+  }
+
+  /**
+   * Sets the config tiles are decoded with, unless one was set with setBitmapConfig, e.g., when
+   * the TileView applies a PerformanceProfile.
+   *
+   * @param bitmapConfig The config tiles are decoded with when none was set explicitly.
+   */
+  public void setDefaultBitmapConfig( Bitmap.Config bitmapConfig ) {
+    if( !mIsBitmapConfigSet ) {
+      mOptions.inPreferredConfig = bitmapConfig;
+    }
   }
 
   @Override
@@ -33,23 +67,136 @@ public class BitmapProviderAssets implements BitmapProvider {
       String unformattedFileName = (String) tile.getData();
       String formattedFileName = String.format( unformattedFileName, tile.getColumn(), tile.getRow() );
       AssetManager assetManager = context.getAssets();
+      return decode( assetManager, formattedFileName, tile, true );
+    }
+    return null;
+  }
+
+  /**
+   * Tiles are rendered in two stages unless a subclass overrides getBitmap without also
+   * overriding fetch, in which case they are rendered with its getBitmap.
+   */
+  @Override
+  public boolean isStaged() {
+    return mIsStaged;
+  }
+
+  /**
+   * A subclass that overrides getBitmap (e.g., to post-process tiles) but not fetch has stages
+   * that would bypass its getBitmap.
+   *
+   * @return True if the class's fetch is declared by the class declaring its getBitmap, or a subclass of it.
+   */
+  static boolean hasStages( Class<? extends StagedBitmapProvider> providerClass ) {
+    try {
+      Class<?> getBitmapClass = providerClass.getMethod( "getBitmap", Tile.class, Context.class ).getDeclaringClass();
+      Class<?> fetchClass = providerClass.getMethod( "fetch", Tile.class, Context.class, BytePool.class ).getDeclaringClass();
+      return getBitmapClass.isAssignableFrom( fetchClass );
+    } catch( NoSuchMethodException e ) {
+      return false;
+    }
+  }
+
+  @Override
+  public EncodedTile fetch( Tile tile, Context context, BytePool bytePool ) throws IOException {
+    Object data = tile.getData();
+    if( data instanceof String ) {
+      String fileName = String.format( (String) data, tile.getColumn(), tile.getRow() );
+      return fetch( context.getAssets(), fileName, bytePool );
+    }
+    return null;
+  }
+
+  /**
+   * Reads an asset, undecoded, through an InputStream.
+   *
+   * @return The asset's bytes, or null if there is no such asset.
+   */
+  protected EncodedTile fetch( AssetManager assetManager, String fileName, BytePool bytePool ) throws IOException {
+    InputStream inputStream;
+    try {
+      inputStream = assetManager.open( fileName );
+    } catch( FileNotFoundException e ) {
+      return null;
+    }
+    try {
+      // the remaining length of an asset stream is the asset's length
+      return EncodedTile.read( inputStream, inputStream.available(), bytePool );
+    } finally {
+      inputStream.close();
+    }
+  }
+
+  @Override
+  public Bitmap decode( Tile tile, EncodedTile encodedTile, Context context ) {
+    return DecodeOptionsHelper.decodeByteArray( encodedTile.getBytes(), 0, encodedTile.getLength(), tile, mOptions );
+  }
+
+  /**
+   * @return The options tiles are decoded with when their DetailLevel has no DecodeOptions.
+   */
+  protected BitmapFactory.Options getDefaultOptions() {
+    return mOptions;
+  }
+
+  /**
+   * Decodes an asset through an InputStream.  Only a missing asset, or one that is not an image,
+   * gives null; a tile that fails to read or decode (e.g., out of memory) throws, so it is asked
+   * for again rather than remembered as missing.
+   *
+   * @param shouldReuseBitmap False to skip decoding into a pooled bitmap, e.g. when that already failed.
+   */
+  protected Bitmap decode( AssetManager assetManager, String fileName, Tile tile, boolean shouldReuseBitmap ) {
+    InputStream inputStream;
+    try {
+      inputStream = assetManager.open( fileName );
+    } catch( FileNotFoundException e ) {
+      return null;
+    } catch( IOException e ) {
+      throw new RuntimeException( "Failed to open " + fileName, e );
+    }
+    // buffered so the format can be checked, and the stream rewound, before decoding
+    inputStream = new BufferedInputStream( inputStream );
+    try {
+      boolean mayHaveAlpha = DecodeOptionsHelper.shouldDetectAlpha( tile ) && mayHaveAlpha( inputStream );
+      BitmapFactory.Options options = DecodeOptionsHelper.getOptions( tile, mOptions, mayHaveAlpha, shouldReuseBitmap );
+      Bitmap bitmap;
       try {
-        InputStream inputStream = assetManager.open( formattedFileName );
-        if( inputStream != null ) {
-          try {
-            return BitmapFactory.decodeStream( inputStream, null, OPTIONS );
-          } catch( OutOfMemoryError | Exception e ) {
-            Log.d(getClass().getSimpleName(), "OOME for " + tile.getColumn() + ":" + tile.getRow() );
-            // this is probably an out of memory error - you can try sleeping (this method won't be called in the UI thread) or try again (or give up)
-          }
+        bitmap = BitmapFactory.decodeStream( inputStream, null, options );
+      } catch( IllegalArgumentException e ) {
+        if( options.inBitmap == null ) {
+          throw e;
         }
-      } catch( Exception e ) {
-        Log.d(getClass().getSimpleName(), "OOME for " + tile.getColumn() + ":" + tile.getRow() );
-        // this is probably an IOException, meaning the file can't be found
+        // the pooled bitmap could not be decoded into (e.g., the image is not the tile size), give it back and decode into a new one
+        tile.getBitmapPool().put( options.inBitmap );
+        return decode( assetManager, fileName, tile, false );
+      }
+      // nothing could be decoded, a retry would fail the same way; the pooled bitmap is unused
+      if( bitmap == null && options.inBitmap != null ) {
+        tile.getBitmapPool().put( options.inBitmap );
+      }
+      return bitmap;
+    } catch( IOException e ) {
+      throw new RuntimeException( "Failed to read " + fileName, e );
+    } finally {
+      try {
+        inputStream.close();
+      } catch( IOException e ) {
+        Log.d( getClass().getSimpleName(), "Failed to close " + fileName + ": " + e );
       }
     }
-    return null;
   }
 
+  /**
+   * Checks the signature at the start of the stream, which is left where it was.
+   */
+  private static boolean mayHaveAlpha( InputStream inputStream ) throws IOException {
+    inputStream.mark( 2 );
+    try {
+      return DecodeOptionsHelper.mayHaveAlpha( inputStream.read(), inputStream.read() );
+    } finally {
+      inputStream.reset();
+    }
+  }
 
 }
@@ -0,0 +1,266 @@
+package com.qozix.tileview.graphics;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.qozix.tileview.tiles.Tile;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A BitmapProviderAssets for large tile sets, used the same way:
+ *
+ * <pre>{@code
+ * tileView.setBitmapProvider( new BitmapProviderIndexedAssets() );
+ * tileView.addDetailLevel( 1.000f, "tiles/map/1000/%d-%d.jpg" );
+ * }</pre>
+ *
+ * The first time a DetailLevel's tiles are requested, the asset directory in its pattern is
+ * listed once into a manifest, so a tile that does not exist costs a set lookup rather than an
+ * asset open failing with an exception.  Patterns with conversions in their directories (e.g.,
+ * "tiles/%d/%d.jpg") cannot be listed, and are not indexed.  The pattern itself is parsed once
+ * (see FileNameTemplate) rather than by String.format for every tile.
+ *
+ * Tiles are decoded through a file descriptor (AssetManager.openFd), which reads the tile
+ * straight out of the APK, rather than through an InputStream.  That only works for assets
+ * stored uncompressed, which image formats like JPEG, PNG and WebP are by default; once openFd
+ * fails for a level's tiles, they are decoded through an InputStream instead.  openFd fails the
+ * same way for missing and compressed assets, so once it has opened one of a level's tiles, the
+ * level's assets are known to be stored, and a tile it cannot open is missing rather than opened
+ * again as an InputStream.
+ */
+public class BitmapProviderIndexedAssets extends BitmapProviderAssets {
+
+  private final ConcurrentHashMap<String, AssetLevel> mAssetLevels = new ConcurrentHashMap<>();
+
+  @Override
+  public Bitmap getBitmap( Tile tile, Context context ) {
+    Object data = tile.getData();
+    if( !(data instanceof String) ) {
+      return null;
+    }
+    AssetManager assetManager = context.getAssets();
+    AssetLevel assetLevel = getAssetLevel( (String) data, assetManager );
+    String name = assetLevel.template.format( tile.getColumn(), tile.getRow() );
+    if( assetLevel.names != null && !assetLevel.names.contains( name ) ) {
+      return null;
+    }
+    String fileName = assetLevel.directory + name;
+    if( assetLevel.shouldOpenFd ) {
+      AssetFileDescriptor assetFileDescriptor;
+      try {
+        assetFileDescriptor = openFd( assetManager, fileName, assetLevel );
+      } catch( IOException e ) {
+        throw new RuntimeException( "Failed to open " + fileName, e );
+      }
+      if( assetFileDescriptor != null ) {
+        // as in BitmapProviderAssets.decode, a tile that fails to read is thrown rather than taken as missing
+        try {
+          return decodeFileDescriptor( assetFileDescriptor, tile, true );
+        } catch( IOException e ) {
+          throw new RuntimeException( "Failed to read " + fileName, e );
+        } finally {
+          close( assetFileDescriptor );
+        }
+      }
+      if( isMissing( assetLevel ) ) {
+        return null;
+      }
+    }
+    Bitmap bitmap = decode( assetManager, fileName, tile, true );
+    if( bitmap != null && assetLevel.shouldOpenFd ) {
+      assetLevel.shouldOpenFd = false;
+    }
+    return bitmap;
+  }
+
+  /**
+   * Reads the tile through a file descriptor, like getBitmap, with a single positional read.
+   */
+  @Override
+  public EncodedTile fetch( Tile tile, Context context, BytePool bytePool ) throws IOException {
+    Object data = tile.getData();
+    if( !(data instanceof String) ) {
+      return null;
+    }
+    AssetManager assetManager = context.getAssets();
+    AssetLevel assetLevel = getAssetLevel( (String) data, assetManager );
+    String name = assetLevel.template.format( tile.getColumn(), tile.getRow() );
+    if( assetLevel.names != null && !assetLevel.names.contains( name ) ) {
+      return null;
+    }
+    String fileName = assetLevel.directory + name;
+    if( assetLevel.shouldOpenFd ) {
+      AssetFileDescriptor assetFileDescriptor = openFd( assetManager, fileName, assetLevel );
+      if( assetFileDescriptor != null ) {
+        try {
+          return readFileDescriptor( assetFileDescriptor, bytePool );
+        } finally {
+          close( assetFileDescriptor );
+        }
+      }
+      if( isMissing( assetLevel ) ) {
+        return null;
+      }
+    }
+    EncodedTile encodedTile = fetch( assetManager, fileName, bytePool );
+    if( encodedTile != null && assetLevel.shouldOpenFd ) {
+      assetLevel.shouldOpenFd = false;
+    }
+    return encodedTile;
+  }
+
+  /**
+   * @return The asset's file descriptor, or null if it cannot be opened as one (e.g., because it is compressed, or missing).
+   */
+  private static AssetFileDescriptor openFd( AssetManager assetManager, String fileName, AssetLevel assetLevel ) throws IOException {
+    try {
+      AssetFileDescriptor assetFileDescriptor = assetManager.openFd( fileName );
+      if( !assetLevel.hasOpenedFd ) {
+        assetLevel.hasOpenedFd = true;
+      }
+      return assetFileDescriptor;
+    } catch( FileNotFoundException e ) {
+      // with a manifest, the asset exists, so it must be compressed; without one, it might be either
+      if( assetLevel.names != null ) {
+        assetLevel.shouldOpenFd = false;
+      }
+      return null;
+    }
+  }
+
+  /**
+   * @return True if openFd failed for a tile because it is missing, rather than compressed.
+   */
+  private static boolean isMissing( AssetLevel assetLevel ) {
+    // the level's assets are stored, and still opened as file descriptors
+    return assetLevel.shouldOpenFd && assetLevel.hasOpenedFd;
+  }
+
+  private static EncodedTile readFileDescriptor( AssetFileDescriptor assetFileDescriptor, BytePool bytePool ) throws IOException {
+    long length = assetFileDescriptor.getLength();
+    if( length < 0 || length > Integer.MAX_VALUE ) {
+      throw new IOException( "Unexpected asset length " + length );
+    }
+    byte[] bytes = bytePool.acquire( (int) length );
+    ByteBuffer buffer = ByteBuffer.wrap( bytes, 0, (int) length );
+    // not closed, since that would close the descriptor, which belongs to the AssetFileDescriptor
+    FileChannel fileChannel = new FileInputStream( assetFileDescriptor.getFileDescriptor() ).getChannel();
+    long startOffset = assetFileDescriptor.getStartOffset();
+    while( buffer.hasRemaining() ) {
+      if( fileChannel.read( buffer, startOffset + buffer.position() ) == -1 ) {
+        bytePool.release( bytes );
+        throw new IOException( "Truncated asset" );
+      }
+    }
+    return new EncodedTile( bytes, (int) length, bytePool );
+  }
+
+  private AssetLevel getAssetLevel( String pattern, AssetManager assetManager ) {
+    AssetLevel assetLevel = mAssetLevels.get( pattern );
+    if( assetLevel == null ) {
+      // render threads might build the same level at once, which is harmless, and only the first is kept
+      assetLevel = new AssetLevel( pattern, assetManager );
+      AssetLevel existingAssetLevel = mAssetLevels.putIfAbsent( pattern, assetLevel );
+      if( existingAssetLevel != null ) {
+        assetLevel = existingAssetLevel;
+      }
+    }
+    return assetLevel;
+  }
+
+  /**
+   * Decodes from the asset's offset in the file descriptor; BitmapFactory restores the offset
+   * after decoding, so it is set again before decoding without the pooled bitmap.
+   */
+  private Bitmap decodeFileDescriptor( AssetFileDescriptor assetFileDescriptor, Tile tile, boolean shouldReuseBitmap ) throws IOException {
+    FileDescriptor fileDescriptor = assetFileDescriptor.getFileDescriptor();
+    // not closed, since that would close the descriptor, which belongs to the AssetFileDescriptor
+    FileChannel fileChannel = new FileInputStream( fileDescriptor ).getChannel();
+    long startOffset = assetFileDescriptor.getStartOffset();
+    boolean mayHaveAlpha = false;
+    if( DecodeOptionsHelper.shouldDetectAlpha( tile ) ) {
+      ByteBuffer signature = ByteBuffer.allocate( 2 );
+      fileChannel.read( signature, startOffset );
+      mayHaveAlpha = signature.position() < 2 || DecodeOptionsHelper.mayHaveAlpha( signature.get( 0 ) & 0xFF, signature.get( 1 ) & 0xFF );
+    }
+    BitmapFactory.Options options = DecodeOptionsHelper.getOptions( tile, getDefaultOptions(), mayHaveAlpha, shouldReuseBitmap );
+    fileChannel.position( startOffset );
+    Bitmap bitmap;
+    try {
+      bitmap = BitmapFactory.decodeFileDescriptor( fileDescriptor, null, options );
+    } catch( IllegalArgumentException e ) {
+      if( options.inBitmap == null ) {
+        throw e;
+      }
+      // the pooled bitmap could not be decoded into (e.g., the image is not the tile size), give it back and decode into a new one
+      tile.getBitmapPool().put( options.inBitmap );
+      return decodeFileDescriptor( assetFileDescriptor, tile, false );
+    }
+    // nothing could be decoded, a retry would fail the same way; the pooled bitmap is unused
+    if( bitmap == null && options.inBitmap != null ) {
+      tile.getBitmapPool().put( options.inBitmap );
+    }
+    return bitmap;
+  }
+
+  private static void close( AssetFileDescriptor assetFileDescriptor ) {
+    try {
+      assetFileDescriptor.close();
+    } catch( IOException e ) {
+      // nothing was written, so there is nothing to lose
+    }
+  }
+
+  /**
+   * What is known about the assets of a file name pattern.
+   */
+  private static class AssetLevel {
+    final FileNameTemplate template;
+    // the directory part of the pattern, with its trailing slash, or empty if it is not indexed
+    final String directory;
+    // the names of the files in the directory, or null if it is not indexed
+    final Set<String> names;
+    volatile boolean shouldOpenFd = true;
+    // true once openFd has opened one of the level's assets, so they are stored uncompressed
+    volatile boolean hasOpenedFd;
+
+    AssetLevel( String pattern, AssetManager assetManager ) {
+      int separatorIndex = pattern.lastIndexOf( '/' );
+      String directoryPath = separatorIndex == -1 ? "" : pattern.substring( 0, separatorIndex );
+      Set<String> names = null;
+      if( directoryPath.indexOf( '%' ) == -1 ) {
+        try {
+          String[] list = assetManager.list( directoryPath );
+          if( list != null ) {
+            names = new HashSet<>( Arrays.asList( list ) );
+          }
+        } catch( IOException e ) {
+          Log.d( BitmapProviderIndexedAssets.class.getSimpleName(), "Failed to list " + directoryPath + ": " + e );
+        }
+      }
+      this.names = names;
+      if( names != null ) {
+        template = new FileNameTemplate( pattern.substring( separatorIndex + 1 ) );
+        directory = separatorIndex == -1 ? "" : directoryPath + "/";
+      } else {
+        template = new FileNameTemplate( pattern );
+        directory = "";
+      }
+    }
+  }
+
+}
@@ -0,0 +1,454 @@
+package com.qozix.tileview.graphics;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.ParcelFileDescriptor;
+
+import com.qozix.tileview.tiles.Tile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A BitmapProvider that decodes tiles from an MBTiles file (an SQLite database with a tiles
+ * table keyed by zoom level, column and row).  The data of each DetailLevel is its zoom level in
+ * the file, as an Integer or a String:
+ *
+ * <pre>{@code
+ * BitmapProviderMBTiles bitmapProvider = new BitmapProviderMBTiles( new File( getFilesDir(), "map.mbtiles" ) );
+ * tileView.setBitmapProvider( bitmapProvider );
+ * tileView.addDetailLevel( 1.000f, 14 );
+ * tileView.addDetailLevel( 0.500f, 13 );
+ * ...
+ * bitmapProvider.close();  // e.g., in onDestroy
+ * }</pre>
+ *
+ * MBTiles rows count from the bottom (the TMS scheme), so rows are flipped to the TileView's,
+ * which count from the top, unless disabled with setShouldFlipRows.
+ *
+ * Each render thread reads through its own read-only connection and prepared statement: a
+ * thread checks one out when it starts a tile and returns it when done, so there are never more
+ * connections than threads reading at once.  The tiles of a render pass are looked up together:
+ * the first thread that needs one of them runs a single query for the pass's tiles at that zoom
+ * level, rather than one query per tile.
+ *
+ * Blobs of up to MAXIMUM_DIRECT_BLOB_SIZE are read through cursors, and batches are read a page
+ * of rows at a time, so a cursor window (2MB by default) is never outgrown.  Larger blobs are read
+ * one by one through a file descriptor.
+ */
+public class BitmapProviderMBTiles implements BatchingBitmapProvider, StagedBitmapProvider {
+
+  /**
+   * The largest blob read through a cursor; larger blobs are read through a file descriptor.
+   */
+  public static final int MAXIMUM_DIRECT_BLOB_SIZE = 64 * 1024;
+
+  // the rows of a batch read per query, which with MAXIMUM_DIRECT_BLOB_SIZE keeps a page at about 1MB
+  private static final int BATCH_PAGE_SIZE = 16;
+
+  // the blob, if small enough to read directly, and its length; the length is compared to an inline constant, as bound arguments are strings
+  private static final String TILE_QUERY = "SELECT CASE WHEN length(tile_data) <= " + MAXIMUM_DIRECT_BLOB_SIZE + " THEN tile_data END, length(tile_data) "
+    + "FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+  private static final String TILE_FILE_DESCRIPTOR_QUERY = "SELECT tile_data FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+  // pages through the rectangle in index order, starting after the last column and row read
+  private static final String BATCH_QUERY = "SELECT tile_column, tile_row, CASE WHEN length(tile_data) <= " + MAXIMUM_DIRECT_BLOB_SIZE + " THEN tile_data END "
+    + "FROM tiles WHERE zoom_level = ? AND tile_column BETWEEN ? AND ? AND tile_row BETWEEN ? AND ? "
+    + "AND (tile_column > ? OR (tile_column = ? AND tile_row > ?)) "
+    + "ORDER BY tile_column, tile_row LIMIT " + BATCH_PAGE_SIZE;
+
+  private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+
+  private String mPath;
+
+  private boolean mShouldFlipRows = true;
+
+  private final Queue<Connection> mIdleConnections = new ConcurrentLinkedQueue<>();
+  private volatile boolean mIsClosed;
+
+  // buffers for tiles fetched and decoded in one call, by getBitmap
+  private final BytePool mBytePool = new BytePool();
+
+  // entries are added by prepareBatch, and removed as the tiles are read or released
+  private final Map<Tile, Batch> mBatches = new ConcurrentHashMap<>();
+
+  private final boolean mIsStaged;
+
+  /**
+   * @param file The MBTiles file, which is opened read-only as tiles are requested.
+   */
+  public BitmapProviderMBTiles( File file ) {
+    mPath = file.getAbsolutePath();
+    mOptions.inPreferredConfig = BitmapProviderAssets.DEFAULT_BITMAP_CONFIG;
+    mIsStaged = BitmapProviderAssets.hasStages( getClass() );
+  }
+
+  public Bitmap.Config getBitmapConfig() {
+    return mOptions.inPreferredConfig;
+  }
+
+  /**
+   * @param bitmapConfig The config tiles are decoded with; RGB_565 by default.
+   */
+  public void setBitmapConfig( Bitmap.Config bitmapConfig ) {
+    mOptions.inPreferredConfig = bitmapConfig;
+  }
+
+  public boolean getShouldFlipRows() {
+    return mShouldFlipRows;
+  }
+
+  /**
+   * @param shouldFlipRows False if the file's rows count from the top (the XYZ scheme), as the TileView's do.
+   */
+  public void setShouldFlipRows( boolean shouldFlipRows ) {
+    mShouldFlipRows = shouldFlipRows;
+  }
+
+  /**
+   * Closes all connections.  Connections in use are closed as soon as their tile is read, and
+   * tiles requested afterwards are not provided.
+   */
+  public void close() {
+    mIsClosed = true;
+    Connection connection;
+    while( (connection = mIdleConnections.poll()) != null ) {
+      connection.close();
+    }
+  }
+
+  /**
+   * @return The zoom level the tile's DetailLevel maps to, or -1 if its data is not a zoom level.
+   */
+  protected int getZoomLevel( Tile tile ) {
+    Object data = tile.getData();
+    if( data instanceof Number ) {
+      return ((Number) data).intValue();
+    }
+    if( data instanceof String ) {
+      try {
+        return Integer.parseInt( (String) data );
+      } catch( NumberFormatException e ) {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  private int getFileRow( int row, int zoomLevel ) {
+    return mShouldFlipRows ? (1 << zoomLevel) - 1 - row : row;
+  }
+
+  @Override
+  public void prepareBatch( Collection<Tile> tiles, Context context ) {
+    Map<Integer, List<Tile>> tilesByZoomLevel = new HashMap<>();
+    for( Tile tile : tiles ) {
+      // tiles already planned keep their batch, which might already have been read
+      if( mBatches.containsKey( tile ) ) {
+        continue;
+      }
+      int zoomLevel = getZoomLevel( tile );
+      if( zoomLevel < 0 ) {
+        continue;
+      }
+      List<Tile> zoomLevelTiles = tilesByZoomLevel.get( zoomLevel );
+      if( zoomLevelTiles == null ) {
+        zoomLevelTiles = new ArrayList<>();
+        tilesByZoomLevel.put( zoomLevel, zoomLevelTiles );
+      }
+      zoomLevelTiles.add( tile );
+    }
+    for( Map.Entry<Integer, List<Tile>> entry : tilesByZoomLevel.entrySet() ) {
+      List<Tile> zoomLevelTiles = entry.getValue();
+      // a tile looked up alone gains nothing from a batch
+      if( zoomLevelTiles.size() < 2 ) {
+        continue;
+      }
+      int zoomLevel = entry.getKey();
+      Batch batch = new Batch( zoomLevel, zoomLevelTiles.size() );
+      for( Tile tile : zoomLevelTiles ) {
+        batch.include( tile.getColumn(), getFileRow( tile.getRow(), zoomLevel ) );
+        mBatches.put( tile, batch );
+      }
+    }
+  }
+
+  @Override
+  public void releaseBatch( Tile tile ) {
+    Batch batch = mBatches.remove( tile );
+    if( batch != null ) {
+      batch.release( tile.getColumn(), getFileRow( tile.getRow(), batch.zoomLevel ) );
+    }
+  }
+
+  /**
+   * Tiles are rendered in two stages unless a subclass overrides getBitmap without also
+   * overriding fetch.
+   */
+  @Override
+  public boolean isStaged() {
+    return mIsStaged;
+  }
+
+  @Override
+  public EncodedTile fetch( Tile tile, Context context, BytePool bytePool ) throws IOException {
+    int zoomLevel = getZoomLevel( tile );
+    if( zoomLevel < 0 ) {
+      return null;
+    }
+    int column = tile.getColumn();
+    int row = getFileRow( tile.getRow(), zoomLevel );
+    Connection connection = acquireConnection();
+    if( connection == null ) {
+      return null;
+    }
+    try {
+      byte[] blob;
+      Batch batch = mBatches.remove( tile );
+      if( batch != null ) {
+        blob = batch.take( connection.database, column, row );
+      } else {
+        blob = readBlob( connection.database, zoomLevel, column, row );
+      }
+      if( blob == null ) {
+        return null;
+      }
+      if( blob != LARGE_BLOB ) {
+        // the blob is owned by this tile alone, so it is handed over rather than copied into a pooled buffer
+        return new EncodedTile( blob, blob.length, null );
+      }
+      InputStream inputStream = openBlob( connection.statement, zoomLevel, column, row );
+      if( inputStream == null ) {
+        return null;
+      }
+      try {
+        return EncodedTile.read( inputStream, 0, bytePool );
+      } finally {
+        inputStream.close();
+      }
+    } finally {
+      releaseConnection( connection );
+    }
+  }
+
+  @Override
+  public Bitmap decode( Tile tile, EncodedTile encodedTile, Context context ) {
+    return DecodeOptionsHelper.decodeByteArray( encodedTile.getBytes(), 0, encodedTile.getLength(), tile, mOptions );
+  }
+
+  @Override
+  public Bitmap getBitmap( Tile tile, Context context ) {
+    try {
+      EncodedTile encodedTile = fetch( tile, context, mBytePool );
+      if( encodedTile == null ) {
+        return null;
+      }
+      try {
+        return decode( tile, encodedTile, context );
+      } finally {
+        encodedTile.release();
+      }
+    } catch( IOException e ) {
+      // thrown rather than returned as null, which would mark the tile missing
+      throw new RuntimeException( "Failed to read " + tile.getData() + "/" + tile.getColumn() + "/" + tile.getRow(), e );
+    }
+  }
+
+  /**
+   * @return The tile's blob, LARGE_BLOB if it is too large to read through a cursor, or null if
+   * there is no such tile.
+   */
+  private static byte[] readBlob( SQLiteDatabase database, int zoomLevel, int column, int row ) {
+    Cursor cursor = database.rawQuery( TILE_QUERY, new String[]{
+      String.valueOf( zoomLevel ),
+      String.valueOf( column ),
+      String.valueOf( row )
+    } );
+    try {
+      if( !cursor.moveToFirst() || cursor.isNull( 1 ) ) {
+        return null;
+      }
+      return cursor.isNull( 0 ) ? LARGE_BLOB : cursor.getBlob( 0 );
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Opens the tile's blob through a file descriptor rather than a cursor, so a blob too large for
+   * a cursor window can be read.  Each descriptor is backed by its own shared memory region, so
+   * this is only used for blobs larger than MAXIMUM_DIRECT_BLOB_SIZE.
+   *
+   * @return A stream of the blob, or null if there is no such tile.
+   */
+  private InputStream openBlob( SQLiteStatement statement, int zoomLevel, int column, int row ) {
+    ParcelFileDescriptor parcelFileDescriptor;
+    statement.bindLong( 1, zoomLevel );
+    statement.bindLong( 2, column );
+    statement.bindLong( 3, row );
+    try {
+      parcelFileDescriptor = statement.simpleQueryForBlobFileDescriptor();
+    } catch( SQLiteDoneException e ) {
+      return null;
+    } finally {
+      statement.clearBindings();
+    }
+    if( parcelFileDescriptor == null ) {
+      return null;
+    }
+    return new ParcelFileDescriptor.AutoCloseInputStream( parcelFileDescriptor );
+  }
+
+  /**
+   * @return A connection, or null if the provider is closed.
+   */
+  private Connection acquireConnection() throws IOException {
+    if( mIsClosed ) {
+      return null;
+    }
+    Connection connection = mIdleConnections.poll();
+    if( connection != null ) {
+      return connection;
+    }
+    try {
+      SQLiteDatabase database = SQLiteDatabase.openDatabase( mPath, null, SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS );
+      return new Connection( database, database.compileStatement( TILE_FILE_DESCRIPTOR_QUERY ) );
+    } catch( RuntimeException e ) {
+      throw new IOException( "Failed to open " + mPath, e );
+    }
+  }
+
+  private void releaseConnection( Connection connection ) {
+    if( mIsClosed ) {
+      connection.close();
+      return;
+    }
+    mIdleConnections.offer( connection );
+    // close might have drained the idle connections between the check and the offer
+    if( mIsClosed && mIdleConnections.remove( connection ) ) {
+      connection.close();
+    }
+  }
+
+  // stands in for blobs larger than MAXIMUM_DIRECT_BLOB_SIZE, which are read through a file descriptor
+  private static final byte[] LARGE_BLOB = new byte[0];
+
+  private static class Connection {
+    final SQLiteDatabase database;
+    final SQLiteStatement statement;
+
+    Connection( SQLiteDatabase database, SQLiteStatement statement ) {
+      this.database = database;
+      this.statement = statement;
+    }
+
+    void close() {
+      statement.close();
+      database.close();
+    }
+  }
+
+  /**
+   * The tiles of a render pass at one zoom level, looked up with a single query over the
+   * rectangle of columns and rows they span.
+   */
+  private static class Batch {
+    final int zoomLevel;
+    private int mMinimumColumn = Integer.MAX_VALUE;
+    private int mMaximumColumn = Integer.MIN_VALUE;
+    private int mMinimumRow = Integer.MAX_VALUE;
+    private int mMaximumRow = Integer.MIN_VALUE;
+    private int mRemainingCount;
+    private Map<Long, byte[]> mBlobs;
+
+    Batch( int zoomLevel, int count ) {
+      this.zoomLevel = zoomLevel;
+      mRemainingCount = count;
+    }
+
+    void include( int column, int row ) {
+      mMinimumColumn = Math.min( mMinimumColumn, column );
+      mMaximumColumn = Math.max( mMaximumColumn, column );
+      mMinimumRow = Math.min( mMinimumRow, row );
+      mMaximumRow = Math.max( mMaximumRow, row );
+    }
+
+    /**
+     * Runs the batch's queries the first time it is called, then hands out each blob once.  The
+     * blobs are dropped once every tile of the batch has been read or released.
+     *
+     * @return The tile's blob, LARGE_BLOB if it is too large to read through a cursor, or null if
+     * there is no such tile.
+     */
+    synchronized byte[] take( SQLiteDatabase database, int column, int row ) {
+      try {
+        if( mBlobs == null ) {
+          mBlobs = read( database );
+        }
+        return mBlobs.get( getKey( column, row ) );
+      } finally {
+        release( column, row );
+      }
+    }
+
+    private Map<Long, byte[]> read( SQLiteDatabase database ) {
+      Map<Long, byte[]> blobs = new HashMap<>();
+      // file rows are never negative, so the first page starts before every tile of the rectangle
+      int lastColumn = mMinimumColumn - 1;
+      int lastRow = -1;
+      int pageCount;
+      do {
+        pageCount = 0;
+        Cursor cursor = database.rawQuery( BATCH_QUERY, new String[]{
+          String.valueOf( zoomLevel ),
+          String.valueOf( mMinimumColumn ),
+          String.valueOf( mMaximumColumn ),
+          String.valueOf( mMinimumRow ),
+          String.valueOf( mMaximumRow ),
+          String.valueOf( lastColumn ),
+          String.valueOf( lastColumn ),
+          String.valueOf( lastRow )
+        } );
+        try {
+          while( cursor.moveToNext() ) {
+            lastColumn = cursor.getInt( 0 );
+            lastRow = cursor.getInt( 1 );
+            blobs.put( getKey( lastColumn, lastRow ), cursor.isNull( 2 ) ? LARGE_BLOB : cursor.getBlob( 2 ) );
+            pageCount++;
+          }
+        } finally {
+          cursor.close();
+        }
+      } while( pageCount == BATCH_PAGE_SIZE );
+      return blobs;
+    }
+
+    synchronized void release( int column, int row ) {
+      mRemainingCount--;
+      if( mBlobs != null ) {
+        mBlobs.remove( getKey( column, row ) );
+        if( mRemainingCount <= 0 ) {
+          mBlobs.clear();
+        }
+      }
+    }
+
+    private static long getKey( int column, int row ) {
+      return ((long) column << 32) | (row & 0xFFFFFFFFL);
+    }
+  }
+
+}
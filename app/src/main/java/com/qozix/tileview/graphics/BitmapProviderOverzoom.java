@@ -0,0 +1,203 @@
+package com.qozix.tileview.graphics;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+
+import com.qozix.tileview.detail.DetailLevel;
+import com.qozix.tileview.tiles.Tile;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Wraps another BitmapProvider to produce the tiles of overzoomed DetailLevels (see
+ * DetailLevelManager.setShouldOverzoom).  Each overzoomed tile is a region copied out of the
+ * decoded tile of the largest registered level it falls within; those source bitmaps are kept
+ * in a small cache, so the tiles cropped from one source tile cost a single decode.  Cached
+ * bitmaps are held through BitmapHandles, so one evicted while it is being cropped is only
+ * recycled once the crop is done.
+ *
+ * Tiles of registered levels are passed straight through to the wrapped BitmapProvider.
+ */
+public class BitmapProviderOverzoom implements BatchingBitmapProvider, BitmapMemoryGovernor.Evictable {
+
+  public static final int DEFAULT_CACHE_SIZE = 8 * 1024 * 1024;
+
+  private BitmapProvider mBitmapProvider;
+
+  private LruCache<Tile, BitmapHandle> mSourceBitmapCache;
+
+  private BitmapMemoryGovernor mBitmapMemoryGovernor;
+
+  public BitmapProviderOverzoom( BitmapProvider bitmapProvider ) {
+    this( bitmapProvider, DEFAULT_CACHE_SIZE );
+  }
+
+  /**
+   * @param bitmapProvider The BitmapProvider that decodes the tiles of registered levels.
+   * @param cacheSize      The number of bytes of decoded source bitmaps to keep.
+   */
+  public BitmapProviderOverzoom( BitmapProvider bitmapProvider, int cacheSize ) {
+    mBitmapProvider = bitmapProvider;
+    mSourceBitmapCache = new LruCache<Tile, BitmapHandle>( cacheSize ) {
+      @Override
+      protected int sizeOf( Tile tile, BitmapHandle bitmapHandle ) {
+        return bitmapHandle.getByteCount();
+      }
+
+      @Override
+      protected void entryRemoved( boolean evicted, Tile tile, BitmapHandle oldBitmapHandle, BitmapHandle newBitmapHandle ) {
+        oldBitmapHandle.release();
+      }
+    };
+  }
+
+  public BitmapProvider getBitmapProvider() {
+    return mBitmapProvider;
+  }
+
+  /**
+   * @param bitmapMemoryGovernor The governor cached bytes are accounted with, or null.
+   */
+  public void setBitmapMemoryGovernor( BitmapMemoryGovernor bitmapMemoryGovernor ) {
+    mBitmapMemoryGovernor = bitmapMemoryGovernor;
+  }
+
+  /**
+   * Drops the least recently used source bitmaps until the number of bytes passed have been freed.
+   */
+  @Override
+  public long evict( long bytes ) {
+    int size = mSourceBitmapCache.size();
+    mSourceBitmapCache.trimToSize( (int) Math.max( size - bytes, 0 ) );
+    return size - mSourceBitmapCache.size();
+  }
+
+  /**
+   * Drops all cached source bitmaps.  Cropped tiles are copies and are not affected.
+   */
+  public void clearCache() {
+    mSourceBitmapCache.evictAll();
+  }
+
+  /**
+   * Passes the batch on to the wrapped provider if it batches, with overzoomed tiles replaced by
+   * the source tiles they are cropped from.
+   */
+  @Override
+  public void prepareBatch( Collection<Tile> tiles, Context context ) {
+    if( !(mBitmapProvider instanceof BatchingBitmapProvider) ) {
+      return;
+    }
+    Set<Tile> sourceTiles = new HashSet<>();
+    for( Tile tile : tiles ) {
+      DetailLevel detailLevel = tile.getDetailLevel();
+      if( detailLevel.getDerivationDepth() <= 0 ) {
+        sourceTiles.add( tile );
+      } else {
+        sourceTiles.add( getSourceTile( tile ) );
+      }
+    }
+    ((BatchingBitmapProvider) mBitmapProvider).prepareBatch( sourceTiles, context );
+  }
+
+  /**
+   * Releases the source tile's batch entry, which an overzoomed tile served from the cache never
+   * requested.
+   */
+  @Override
+  public void releaseBatch( Tile tile ) {
+    if( !(mBitmapProvider instanceof BatchingBitmapProvider) ) {
+      return;
+    }
+    if( tile.getDetailLevel().getDerivationDepth() <= 0 ) {
+      ((BatchingBitmapProvider) mBitmapProvider).releaseBatch( tile );
+    } else {
+      ((BatchingBitmapProvider) mBitmapProvider).releaseBatch( getSourceTile( tile ) );
+    }
+  }
+
+  @Override
+  public Bitmap getBitmap( Tile tile, Context context ) {
+    DetailLevel detailLevel = tile.getDetailLevel();
+    if( detailLevel.getDerivationDepth() <= 0 ) {
+      return mBitmapProvider.getBitmap( tile, context );
+    }
+    int factor = 1 << detailLevel.getDerivationDepth();
+    Tile sourceTile = getSourceTile( tile );
+    BitmapHandle sourceBitmapHandle = acquireSourceBitmapHandle( sourceTile, context );
+    if( sourceBitmapHandle == null ) {
+      return null;
+    }
+    try {
+      return crop( tile, sourceBitmapHandle.getBitmap(), factor, sourceTile.getSampleSize() );
+    } finally {
+      sourceBitmapHandle.release();
+    }
+  }
+
+  // decoded with the sample size of the source level's DecodeOptions, as its own tiles are
+  private static Tile getSourceTile( Tile tile ) {
+    DetailLevel detailLevel = tile.getDetailLevel();
+    DetailLevel sourceDetailLevel = detailLevel.getSourceDetailLevel();
+    int factor = 1 << detailLevel.getDerivationDepth();
+    return new Tile(
+      tile.getColumn() / factor,
+      tile.getRow() / factor,
+      tile.getWidth(),
+      tile.getHeight(),
+      tile.getData(),
+      sourceDetailLevel,
+      sourceDetailLevel.getDecodeSampleSize()
+    );
+  }
+
+  /**
+   * @param factor           The power of two the tile's level is derived at.
+   * @param sourceSampleSize The sample size the source bitmap was decoded with.
+   */
+  private Bitmap crop( Tile tile, Bitmap sourceBitmap, int factor, int sourceSampleSize ) {
+    int divisor = factor * sourceSampleSize;
+    int x = (tile.getColumn() % factor) * tile.getWidth() / divisor;
+    int y = (tile.getRow() % factor) * tile.getHeight() / divisor;
+    int width = Math.min( (tile.getWidth() + divisor - 1) / divisor, sourceBitmap.getWidth() - x );
+    int height = Math.min( (tile.getHeight() + divisor - 1) / divisor, sourceBitmap.getHeight() - y );
+    if( width <= 0 || height <= 0 ) {
+      return null;
+    }
+    Bitmap bitmap = Bitmap.createBitmap( sourceBitmap, x, y, width, height );
+    // the region was the entire (edge) source bitmap, which is returned as is, but belongs to the cache
+    if( bitmap == sourceBitmap ) {
+      bitmap = sourceBitmap.copy( sourceBitmap.getConfig(), false );
+    }
+    // e.g., a progressive preview, which is smaller still than the cropped region
+    int sampleSize = tile.getSampleSize() / divisor;
+    if( sampleSize > 1 ) {
+      Bitmap sampledBitmap = Bitmap.createScaledBitmap( bitmap, Math.max( width / sampleSize, 1 ), Math.max( height / sampleSize, 1 ), true );
+      if( sampledBitmap != bitmap ) {
+        bitmap.recycle();
+      }
+      bitmap = sampledBitmap;
+    }
+    return bitmap;
+  }
+
+  // the returned handle has a reference added for the caller, who must release it
+  private BitmapHandle acquireSourceBitmapHandle( Tile sourceTile, Context context ) {
+    BitmapHandle sourceBitmapHandle = mSourceBitmapCache.get( sourceTile );
+    if( sourceBitmapHandle != null && sourceBitmapHandle.tryAcquire() ) {
+      return sourceBitmapHandle;
+    }
+    Bitmap sourceBitmap = mBitmapProvider.getBitmap( sourceTile, context );
+    if( sourceBitmap == null ) {
+      return null;
+    }
+    // the cache owns the initial reference
+    sourceBitmapHandle = new BitmapHandle( sourceBitmap, null, mBitmapMemoryGovernor ).acquire();
+    mSourceBitmapCache.put( sourceTile, sourceBitmapHandle );
+    return sourceBitmapHandle;
+  }
+
+}
@@ -0,0 +1,148 @@
+package com.qozix.tileview.graphics;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.qozix.tileview.raw.RawTileFormat;
+import com.qozix.tileview.tiles.Tile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * A BitmapProvider that loads raw tiles (see RawTileFormat and RawTileConverter) by copying their
+ * pixels straight into a Bitmap - a pooled one when there is one - without decoding.  Tiles that
+ * have no raw tile, and tiles that must be downsampled (raw tiles are full size), are passed to
+ * a fallback BitmapProvider, which decodes the encoded tile.
+ *
+ * The data of each DetailLevel is the same file name pattern the fallback uses, e.g.
+ * "tiles/map/1000/%d-%d.jpg"; raw tiles are looked up at that path, plus the raw extension,
+ * under the raw directory:
+ *
+ * <pre>{@code
+ * File rawDirectory = new File( context.getFilesDir(), "raw-tiles" );
+ * tileView.setBitmapProvider( new BitmapProviderRaw( rawDirectory ) );
+ * tileView.addDetailLevel( 1.000f, "tiles/map/1000/%d-%d.jpg" );
+ * }</pre>
+ *
+ * Raw tiles keep the config they were converted with; DecodeOptions only apply to the fallback.
+ */
+public class BitmapProviderRaw implements BatchingBitmapProvider {
+
+  private File mRawDirectory;
+  private BitmapProvider mFallbackBitmapProvider;
+
+  // each render thread reads and decompresses into its own buffers, which grow to the largest tile
+  private ThreadLocal<byte[]> mPayloadBuffers = new ThreadLocal<>();
+  private ThreadLocal<byte[]> mPixelBuffers = new ThreadLocal<>();
+
+  /**
+   * Falls back to a BitmapProviderAssets.
+   *
+   * @param rawDirectory The directory raw tiles were converted into.
+   */
+  public BitmapProviderRaw( File rawDirectory ) {
+    this( rawDirectory, new BitmapProviderAssets() );
+  }
+
+  /**
+   * @param rawDirectory           The directory raw tiles were converted into.
+   * @param fallbackBitmapProvider The BitmapProvider that decodes tiles without a raw tile.
+   */
+  public BitmapProviderRaw( File rawDirectory, BitmapProvider fallbackBitmapProvider ) {
+    mRawDirectory = rawDirectory;
+    mFallbackBitmapProvider = fallbackBitmapProvider;
+  }
+
+  public File getRawDirectory() {
+    return mRawDirectory;
+  }
+
+  public BitmapProvider getFallbackBitmapProvider() {
+    return mFallbackBitmapProvider;
+  }
+
+  @Override
+  public void prepareBatch( Collection<Tile> tiles, Context context ) {
+    if( mFallbackBitmapProvider instanceof BatchingBitmapProvider ) {
+      ((BatchingBitmapProvider) mFallbackBitmapProvider).prepareBatch( tiles, context );
+    }
+  }
+
+  @Override
+  public void releaseBatch( Tile tile ) {
+    if( mFallbackBitmapProvider instanceof BatchingBitmapProvider ) {
+      ((BatchingBitmapProvider) mFallbackBitmapProvider).releaseBatch( tile );
+    }
+  }
+
+  @Override
+  public Bitmap getBitmap( Tile tile, Context context ) {
+    Object data = tile.getData();
+    if( data instanceof String && tile.getSampleSize() == 1 ) {
+      String fileName = String.format( (String) data, tile.getColumn(), tile.getRow() );
+      File file = new File( mRawDirectory, fileName + RawTileFormat.EXTENSION );
+      if( file.isFile() ) {
+        try {
+          Bitmap bitmap = read( file, tile );
+          if( bitmap != null ) {
+            return bitmap;
+          }
+        } catch( IOException e ) {
+          // e.g., a raw tile left truncated by an interrupted conversion, which the encoded tile stands in for
+          Log.d( getClass().getSimpleName(), "Failed to read raw tile " + file + ": " + e );
+        }
+      }
+    }
+    return mFallbackBitmapProvider.getBitmap( tile, context );
+  }
+
+  private Bitmap read( File file, Tile tile ) throws IOException {
+    RawTileFormat.Header header;
+    byte[] payload;
+    RandomAccessFile randomAccessFile = new RandomAccessFile( file, "r" );
+    try {
+      header = RawTileFormat.readHeader( randomAccessFile, randomAccessFile.length() );
+      payload = getBuffer( mPayloadBuffers, header.payloadLength );
+      randomAccessFile.readFully( payload, 0, header.payloadLength );
+    } finally {
+      randomAccessFile.close();
+    }
+    int width = header.width;
+    int height = header.height;
+    int pixelLength = header.pixelLength;
+    Bitmap.Config bitmapConfig = header.config == RawTileFormat.CONFIG_RGB_565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    byte[] pixels = header.compression == RawTileFormat.COMPRESSION_LZ4
+      ? RawTileFormat.readPixels( header, payload, getBuffer( mPixelBuffers, pixelLength ) )
+      : payload;
+    Bitmap bitmap = null;
+    BitmapPool bitmapPool = tile.getBitmapPool();
+    if( bitmapPool != null ) {
+      bitmap = bitmapPool.get( width, height, bitmapConfig );
+      // a pooled bitmap with padded rows cannot take the pixels as they are
+      if( bitmap != null && bitmap.getByteCount() != pixelLength ) {
+        bitmapPool.put( bitmap );
+        bitmap = null;
+      }
+    }
+    if( bitmap == null ) {
+      bitmap = Bitmap.createBitmap( width, height, bitmapConfig );
+    }
+    bitmap.copyPixelsFromBuffer( ByteBuffer.wrap( pixels, 0, pixelLength ) );
+    return bitmap;
+  }
+
+  private static byte[] getBuffer( ThreadLocal<byte[]> buffers, int length ) {
+    byte[] buffer = buffers.get();
+    if( buffer == null || buffer.length < length ) {
+      buffer = new byte[length];
+      buffers.set( buffer );
+    }
+    return buffer;
+  }
+
+}
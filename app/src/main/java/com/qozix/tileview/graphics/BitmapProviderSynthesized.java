@@ -0,0 +1,248 @@
+package com.qozix.tileview.graphics;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.support.v4.util.LruCache;
+
+import com.qozix.tileview.detail.DetailLevel;
+import com.qozix.tileview.detail.DetailLevelManager;
+import com.qozix.tileview.tiles.Tile;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Wraps another BitmapProvider to produce the tiles of synthesized DetailLevels (see
+ * DetailLevelManager.setShouldSynthesizeLevels).  Each synthesized tile is built by drawing the
+ * 2x2 block of tiles it covers on the next finer level at half size; for levels more than one
+ * step below the smallest registered level, that finer level is itself synthesized.
+ *
+ * Synthesized bitmaps are cached, so each one is only built once while it is cached, and a
+ * deeper level reuses the tiles of the levels above it.  Cached bitmaps are held through
+ * BitmapHandles, and tiles handed out for drawing are copies, so a bitmap is only recycled once
+ * it is neither cached nor being drawn into a coarser tile.
+ *
+ * Tiles of registered levels are passed straight through to the wrapped BitmapProvider.
+ */
+public class BitmapProviderSynthesized implements BatchingBitmapProvider, BitmapMemoryGovernor.Evictable {
+
+  public static final int DEFAULT_CACHE_SIZE = 8 * 1024 * 1024;
+
+  private static final Paint PAINT = new Paint( Paint.FILTER_BITMAP_FLAG );
+
+  private BitmapProvider mBitmapProvider;
+
+  private LruCache<Tile, BitmapHandle> mSynthesizedBitmapCache;
+
+  private BitmapMemoryGovernor mBitmapMemoryGovernor;
+
+  public BitmapProviderSynthesized( BitmapProvider bitmapProvider ) {
+    this( bitmapProvider, DEFAULT_CACHE_SIZE );
+  }
+
+  /**
+   * @param bitmapProvider The BitmapProvider that decodes the tiles of registered levels.
+   * @param cacheSize      The number of bytes of synthesized bitmaps to keep.
+   */
+  public BitmapProviderSynthesized( BitmapProvider bitmapProvider, int cacheSize ) {
+    mBitmapProvider = bitmapProvider;
+    mSynthesizedBitmapCache = new LruCache<Tile, BitmapHandle>( cacheSize ) {
+      @Override
+      protected int sizeOf( Tile tile, BitmapHandle bitmapHandle ) {
+        return bitmapHandle.getByteCount();
+      }
+
+      @Override
+      protected void entryRemoved( boolean evicted, Tile tile, BitmapHandle oldBitmapHandle, BitmapHandle newBitmapHandle ) {
+        oldBitmapHandle.release();
+      }
+    };
+  }
+
+  public BitmapProvider getBitmapProvider() {
+    return mBitmapProvider;
+  }
+
+  /**
+   * @param bitmapMemoryGovernor The governor cached bytes are accounted with, or null.
+   */
+  public void setBitmapMemoryGovernor( BitmapMemoryGovernor bitmapMemoryGovernor ) {
+    mBitmapMemoryGovernor = bitmapMemoryGovernor;
+  }
+
+  /**
+   * Drops the least recently used synthesized bitmaps until the number of bytes passed have been freed.
+   */
+  @Override
+  public long evict( long bytes ) {
+    int size = mSynthesizedBitmapCache.size();
+    mSynthesizedBitmapCache.trimToSize( (int) Math.max( size - bytes, 0 ) );
+    return size - mSynthesizedBitmapCache.size();
+  }
+
+  /**
+   * Drops all cached synthesized bitmaps.  Tiles already handed out are copies and are not affected.
+   */
+  public void clearCache() {
+    mSynthesizedBitmapCache.evictAll();
+  }
+
+  /**
+   * Passes the tiles of registered levels on to the wrapped provider if it batches.  Synthesized
+   * tiles are left out, as the finer tiles they are built from are usually cached already.
+   */
+  @Override
+  public void prepareBatch( Collection<Tile> tiles, Context context ) {
+    if( !(mBitmapProvider instanceof BatchingBitmapProvider) ) {
+      return;
+    }
+    List<Tile> registeredTiles = new ArrayList<>();
+    for( Tile tile : tiles ) {
+      if( tile.getDetailLevel().getDerivationDepth() >= 0 ) {
+        registeredTiles.add( tile );
+      }
+    }
+    ((BatchingBitmapProvider) mBitmapProvider).prepareBatch( registeredTiles, context );
+  }
+
+  @Override
+  public void releaseBatch( Tile tile ) {
+    if( mBitmapProvider instanceof BatchingBitmapProvider && tile.getDetailLevel().getDerivationDepth() >= 0 ) {
+      ((BatchingBitmapProvider) mBitmapProvider).releaseBatch( tile );
+    }
+  }
+
+  @Override
+  public Bitmap getBitmap( Tile tile, Context context ) {
+    if( tile.getDetailLevel().getDerivationDepth() >= 0 ) {
+      return mBitmapProvider.getBitmap( tile, context );
+    }
+    BitmapHandle synthesizedBitmapHandle = acquireSynthesizedBitmapHandle( tile, context );
+    if( synthesizedBitmapHandle == null ) {
+      return null;
+    }
+    try {
+      Bitmap synthesizedBitmap = synthesizedBitmapHandle.getBitmap();
+      // synthesized bitmaps are built at the decode sample size, the tile might be downsampled further
+      int sampleSize = tile.getSampleSize() / tile.getDetailLevel().getDecodeSampleSize();
+      if( sampleSize > 1 ) {
+        int width = Math.max( synthesizedBitmap.getWidth() / sampleSize, 1 );
+        int height = Math.max( synthesizedBitmap.getHeight() / sampleSize, 1 );
+        return Bitmap.createScaledBitmap( synthesizedBitmap, width, height, true );
+      }
+      return synthesizedBitmap.copy( synthesizedBitmap.getConfig(), false );
+    } finally {
+      synthesizedBitmapHandle.release();
+    }
+  }
+
+  // the returned handle has a reference added for the caller, who must release it
+  private BitmapHandle acquireSynthesizedBitmapHandle( Tile tile, Context context ) {
+    DetailLevel detailLevel = tile.getDetailLevel();
+    int decodeSampleSize = detailLevel.getDecodeSampleSize();
+    Tile key = tile.getSampleSize() == decodeSampleSize ? tile : new Tile( tile.getColumn(), tile.getRow(), tile.getWidth(), tile.getHeight(), tile.getData(), detailLevel, decodeSampleSize );
+    BitmapHandle bitmapHandle = mSynthesizedBitmapCache.get( key );
+    if( bitmapHandle != null && bitmapHandle.tryAcquire() ) {
+      return bitmapHandle;
+    }
+    Bitmap bitmap = synthesize( key, context );
+    if( bitmap == null ) {
+      return null;
+    }
+    // the cache owns the initial reference
+    bitmapHandle = new BitmapHandle( bitmap, null, mBitmapMemoryGovernor ).acquire();
+    mSynthesizedBitmapCache.put( key, bitmapHandle );
+    return bitmapHandle;
+  }
+
+  private Bitmap synthesize( Tile tile, Context context ) {
+    DetailLevel detailLevel = tile.getDetailLevel();
+    if( -detailLevel.getDerivationDepth() > DetailLevelManager.MAXIMUM_SYNTHESIS_DEPTH ) {
+      return null;
+    }
+    DetailLevelManager detailLevelManager = detailLevel.getDetailLevelManager();
+    DetailLevel finerDetailLevel = detailLevelManager.getFinerDetailLevel( detailLevel );
+    if( finerDetailLevel == null ) {
+      return null;
+    }
+    boolean isFinerLevelSynthesized = finerDetailLevel.getDerivationDepth() < 0;
+    // the finer tiles are decoded with the source level's sample size, and the result keeps it
+    int sampleSize = tile.getSampleSize();
+    int width = (tile.getWidth() + sampleSize - 1) / sampleSize;
+    int height = (tile.getHeight() + sampleSize - 1) / sampleSize;
+    int halfWidth = (width + 1) / 2;
+    int halfHeight = (height + 1) / 2;
+    int columnCount = finerDetailLevel.getColumnCount();
+    int rowCount = finerDetailLevel.getRowCount();
+    // the 2x2 block of finer tiles, in row order; absent and failed cells stay null
+    Bitmap[] childBitmaps = new Bitmap[4];
+    BitmapHandle[] childBitmapHandles = new BitmapHandle[4];
+    try {
+      Bitmap firstChildBitmap = null;
+      boolean isCovered = true;
+      for( int i = 0; i < 4; i++ ) {
+        int column = tile.getColumn() * 2 + i % 2;
+        int row = tile.getRow() * 2 + i / 2;
+        // sparse levels have no tiles for some cells, which are left empty
+        if( column < columnCount && row < rowCount && finerDetailLevel.hasTile( column, row ) ) {
+          Tile childTile = new Tile( column, row, tile.getWidth(), tile.getHeight(), tile.getData(), finerDetailLevel, sampleSize );
+          if( isFinerLevelSynthesized ) {
+            childBitmapHandles[i] = acquireSynthesizedBitmapHandle( childTile, context );
+            childBitmaps[i] = childBitmapHandles[i] == null ? null : childBitmapHandles[i].getBitmap();
+          } else {
+            childBitmaps[i] = mBitmapProvider.getBitmap( childTile, context );
+          }
+        }
+        Bitmap childBitmap = childBitmaps[i];
+        if( childBitmap == null ) {
+          isCovered = false;
+          continue;
+        }
+        // edge tiles may be smaller than the tile size
+        if( childBitmap.getWidth() < width || childBitmap.getHeight() < height ) {
+          isCovered = false;
+        }
+        if( firstChildBitmap == null ) {
+          firstChildBitmap = childBitmap;
+        }
+      }
+      if( firstChildBitmap == null ) {
+        return null;
+      }
+      Bitmap.Config config = firstChildBitmap.getConfig();
+      // an opaque config would fill the uncovered part of a partial tile with black, rather than leave it clear
+      if( config == null || (!isCovered && config == Bitmap.Config.RGB_565) ) {
+        config = Bitmap.Config.ARGB_8888;
+      }
+      Bitmap bitmap = Bitmap.createBitmap( width, height, config );
+      Canvas canvas = new Canvas( bitmap );
+      Rect destinationRect = new Rect();
+      for( int i = 0; i < 4; i++ ) {
+        Bitmap childBitmap = childBitmaps[i];
+        if( childBitmap == null ) {
+          continue;
+        }
+        // edge tiles keep their size relative to the tile size
+        int left = (i % 2) * halfWidth;
+        int top = (i / 2) * halfHeight;
+        destinationRect.set( left, top, left + (childBitmap.getWidth() + 1) / 2, top + (childBitmap.getHeight() + 1) / 2 );
+        canvas.drawBitmap( childBitmap, null, destinationRect, PAINT );
+      }
+      return bitmap;
+    } finally {
+      // synthesized children stay cached; the wrapped provider's bitmaps were decoded for this tile alone
+      for( int i = 0; i < 4; i++ ) {
+        if( childBitmapHandles[i] != null ) {
+          childBitmapHandles[i].release();
+        } else if( childBitmaps[i] != null ) {
+          childBitmaps[i].recycle();
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,109 @@
+package com.qozix.tileview.graphics;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.qozix.tileview.tiles.Tile;
+import com.qozix.tileview.zip.ZipTileBundle;
+
+import java.io.IOException;
+
+/**
+ * A BitmapProvider that decodes tiles from a zip file, e.g. a tile pyramid delivered on external
+ * storage, through a ZipTileBundle.  The data of each DetailLevel is a file name pattern, as for
+ * BitmapProviderAssets, matched against the paths of the zip file's entries:
+ *
+ * <pre>{@code
+ * ZipTileBundle zipTileBundle = ZipTileBundle.open( new File( storageDirectory, "map.zip" ) );
+ * tileView.setBitmapProvider( new BitmapProviderZip( zipTileBundle ) );
+ * tileView.addDetailLevel( 1.000f, "tiles/map/1000/%d-%d.jpg" );
+ * tileView.addDetailLevel( 0.500f, "tiles/map/500/%d-%d.jpg" );
+ * }</pre>
+ */
+public class BitmapProviderZip implements StagedBitmapProvider {
+
+  private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+
+  private ZipTileBundle mZipTileBundle;
+
+  // buffers for tiles fetched and decoded in one call, by getBitmap
+  private final BytePool mBytePool = new BytePool();
+
+  private final boolean mIsStaged;
+
+  public BitmapProviderZip( ZipTileBundle zipTileBundle ) {
+    mZipTileBundle = zipTileBundle;
+    mOptions.inPreferredConfig = BitmapProviderAssets.DEFAULT_BITMAP_CONFIG;
+    mIsStaged = BitmapProviderAssets.hasStages( getClass() );
+  }
+
+  public ZipTileBundle getZipTileBundle() {
+    return mZipTileBundle;
+  }
+
+  public Bitmap.Config getBitmapConfig() {
+    return mOptions.inPreferredConfig;
+  }
+
+  /**
+   * @param bitmapConfig The config tiles are decoded with; RGB_565 by default.
+   */
+  public void setBitmapConfig( Bitmap.Config bitmapConfig ) {
+    mOptions.inPreferredConfig = bitmapConfig;
+  }
+
+  /**
+   * Tiles are rendered in two stages unless a subclass overrides getBitmap without also
+   * overriding fetch.
+   */
+  @Override
+  public boolean isStaged() {
+    return mIsStaged;
+  }
+
+  @Override
+  public EncodedTile fetch( Tile tile, Context context, BytePool bytePool ) throws IOException {
+    Object data = tile.getData();
+    if( !(data instanceof String) ) {
+      return null;
+    }
+    String name = String.format( (String) data, tile.getColumn(), tile.getRow() );
+    // one lookup, and one read of the local header, for both the size and the data
+    ZipTileBundle.Entry entry = mZipTileBundle.find( name );
+    if( entry == null || entry.getSize() <= 0 ) {
+      return null;
+    }
+    byte[] bytes = bytePool.acquire( entry.getSize() );
+    int length = mZipTileBundle.read( entry, bytes );
+    if( length <= 0 ) {
+      bytePool.release( bytes );
+      return null;
+    }
+    return new EncodedTile( bytes, length, bytePool );
+  }
+
+  @Override
+  public Bitmap decode( Tile tile, EncodedTile encodedTile, Context context ) {
+    return DecodeOptionsHelper.decodeByteArray( encodedTile.getBytes(), 0, encodedTile.getLength(), tile, mOptions );
+  }
+
+  @Override
+  public Bitmap getBitmap( Tile tile, Context context ) {
+    try {
+      EncodedTile encodedTile = fetch( tile, context, mBytePool );
+      if( encodedTile == null ) {
+        return null;
+      }
+      try {
+        return decode( tile, encodedTile, context );
+      } finally {
+        encodedTile.release();
+      }
+    } catch( IOException e ) {
+      // thrown rather than returned as null, which would mark the tile missing
+      throw new RuntimeException( "Failed to read " + tile.getColumn() + ":" + tile.getRow(), e );
+    }
+  }
+
+}
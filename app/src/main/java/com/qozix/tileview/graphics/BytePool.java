@@ -0,0 +1,99 @@
+package com.qozix.tileview.graphics;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the buffers encoded tiles are fetched into (see StagedBitmapProvider), so fetching a
+ * tile does not allocate a new array for its bytes.  Buffers are sized in powers of two, so any
+ * buffer of the size a tile rounds up to can be reused for it.
+ *
+ * The pool is bounded by byte size; buffers released once it is full are dropped.  All methods
+ * are safe to call from any thread.
+ */
+public class BytePool {
+
+  public static final int DEFAULT_MAXIMUM_SIZE = 2 * 1024 * 1024;
+
+  private static final int MINIMUM_BUFFER_SIZE = 4 * 1024;
+
+  private final Map<Integer, ArrayDeque<byte[]>> mBuffers = new HashMap<>();
+
+  private int mMaximumSize;
+  private int mSize;
+
+  public BytePool() {
+    this( DEFAULT_MAXIMUM_SIZE );
+  }
+
+  /**
+   * @param maximumSize The number of bytes of buffers the pool may hold.
+   */
+  public BytePool( int maximumSize ) {
+    mMaximumSize = maximumSize;
+  }
+
+  public synchronized int getMaximumSize() {
+    return mMaximumSize;
+  }
+
+  public synchronized void setMaximumSize( int maximumSize ) {
+    mMaximumSize = maximumSize;
+    if( mSize > mMaximumSize ) {
+      clear();
+    }
+  }
+
+  public synchronized int getSize() {
+    return mSize;
+  }
+
+  /**
+   * @param minimumLength The number of bytes needed.
+   * @return A pooled buffer at least that long, or a new one.
+   */
+  public byte[] acquire( int minimumLength ) {
+    int length = getBufferLength( minimumLength );
+    synchronized( this ) {
+      ArrayDeque<byte[]> buffers = mBuffers.get( length );
+      if( buffers != null && !buffers.isEmpty() ) {
+        mSize -= length;
+        return buffers.pop();
+      }
+    }
+    return new byte[length];
+  }
+
+  /**
+   * Returns a buffer to the pool.  The buffer must not be used afterwards.
+   */
+  public synchronized void release( byte[] buffer ) {
+    int length = buffer.length;
+    // only buffers this pool sized can be handed out again
+    if( length != getBufferLength( length ) || mSize + length > mMaximumSize ) {
+      return;
+    }
+    ArrayDeque<byte[]> buffers = mBuffers.get( length );
+    if( buffers == null ) {
+      buffers = new ArrayDeque<>();
+      mBuffers.put( length, buffers );
+    }
+    buffers.push( buffer );
+    mSize += length;
+  }
+
+  public synchronized void clear() {
+    mBuffers.clear();
+    mSize = 0;
+  }
+
+  private static int getBufferLength( int minimumLength ) {
+    if( minimumLength <= MINIMUM_BUFFER_SIZE ) {
+      return MINIMUM_BUFFER_SIZE;
+    }
+    int length = Integer.highestOneBit( minimumLength );
+    return length == minimumLength ? length : length << 1;
+  }
+
+}
@@ -0,0 +1,94 @@
+package com.qozix.tileview.graphics;
+
+import android.graphics.Bitmap;
+
+/**
+ * Describes how the tiles of a DetailLevel should be decoded, for BitmapProviders that support
+ * it (e.g., BitmapProviderAssets).  This lets opaque, photographic levels use the half size
+ * RGB_565 format while only the levels that need transparency pay for ARGB_8888 pixels.
+ *
+ * <pre>{@code
+ * DecodeOptions overlayOptions = new DecodeOptions();
+ * overlayOptions.setBitmapConfig( Bitmap.Config.ARGB_8888 );
+ * tileView.addDetailLevel( 1.0f, "tiles/overlay/%d-%d.png", 256, 256, overlayOptions );
+ * }</pre>
+ */
+public class DecodeOptions {
+
+  private Bitmap.Config mBitmapConfig;
+  private int mSampleSize = 1;
+  private boolean mIsPremultiplied = true;
+  private boolean mShouldDetectAlpha;
+
+  public DecodeOptions() {
+
+  }
+
+  /**
+   * @param bitmapConfig      The config to decode with, or null for the BitmapProvider's default.
+   * @param sampleSize        The power-of-two factor tiles are decoded smaller by.
+   * @param isPremultiplied   False to decode tiles with unpremultiplied alpha.
+   * @param shouldDetectAlpha True to decode with ARGB_8888 those tiles whose format may have alpha.
+   */
+  public DecodeOptions( Bitmap.Config bitmapConfig, int sampleSize, boolean isPremultiplied, boolean shouldDetectAlpha ) {
+    mBitmapConfig = bitmapConfig;
+    mIsPremultiplied = isPremultiplied;
+    mShouldDetectAlpha = shouldDetectAlpha;
+    setSampleSize( sampleSize );
+  }
+
+  public Bitmap.Config getBitmapConfig() {
+    return mBitmapConfig;
+  }
+
+  /**
+   * @param bitmapConfig The config to decode with, or null for the BitmapProvider's default.
+   */
+  public void setBitmapConfig( Bitmap.Config bitmapConfig ) {
+    mBitmapConfig = bitmapConfig;
+  }
+
+  public int getSampleSize() {
+    return mSampleSize;
+  }
+
+  /**
+   * Decodes the tiles smaller than their intrinsic size, e.g. for a level whose images are
+   * larger than they need to be on the devices it is shown on.  Tiles are still drawn at their
+   * full size.
+   *
+   * @param sampleSize The power-of-two factor tiles are decoded smaller by; other values are rounded down.
+   */
+  public void setSampleSize( int sampleSize ) {
+    mSampleSize = Math.max( Integer.highestOneBit( sampleSize ), 1 );
+  }
+
+  public boolean getIsPremultiplied() {
+    return mIsPremultiplied;
+  }
+
+  /**
+   * Only honored from KitKat on; earlier versions always decode premultiplied.
+   *
+   * @param isPremultiplied False to decode tiles with unpremultiplied alpha.
+   */
+  public void setIsPremultiplied( boolean isPremultiplied ) {
+    mIsPremultiplied = isPremultiplied;
+  }
+
+  public boolean getShouldDetectAlpha() {
+    return mShouldDetectAlpha;
+  }
+
+  /**
+   * When enabled, the format of each tile is checked before it is decoded: tiles in a format
+   * that cannot have alpha (JPEG) are decoded with the configured config, and all others with
+   * ARGB_8888.  This suits levels that mix opaque and transparent tiles.
+   *
+   * @param shouldDetectAlpha True to decode tiles that may have alpha with ARGB_8888.
+   */
+  public void setShouldDetectAlpha( boolean shouldDetectAlpha ) {
+    mShouldDetectAlpha = shouldDetectAlpha;
+  }
+
+}
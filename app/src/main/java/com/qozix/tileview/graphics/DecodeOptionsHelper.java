@@ -0,0 +1,115 @@
+package com.qozix.tileview.graphics;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import com.qozix.tileview.detail.DetailLevel;
+import com.qozix.tileview.tiles.Tile;
+
+/**
+ * Builds the BitmapFactory.Options a tile is decoded with, and decodes with them, for the
+ * BitmapProviders that decode with BitmapFactory.
+ */
+class DecodeOptionsHelper {
+
+  /**
+   * @return The DecodeOptions of the tile's DetailLevel, or null if it has none.
+   */
+  static DecodeOptions getDecodeOptions( Tile tile ) {
+    DetailLevel detailLevel = tile.getDetailLevel();
+    return detailLevel == null ? null : detailLevel.getDecodeOptions();
+  }
+
+  /**
+   * @return True if the format of the tile should be checked for alpha before it is decoded.
+   */
+  static boolean shouldDetectAlpha( Tile tile ) {
+    DecodeOptions decodeOptions = getDecodeOptions( tile );
+    return decodeOptions != null && decodeOptions.getShouldDetectAlpha();
+  }
+
+  /**
+   * Checks the signature at the start of an encoded image: JPEG cannot have alpha, anything
+   * else (PNG, WebP, GIF) might.
+   */
+  static boolean mayHaveAlpha( int firstByte, int secondByte ) {
+    return !(firstByte == 0xFF && secondByte == 0xD8);
+  }
+
+  /**
+   * Tiles are decoded with the DecodeOptions of their DetailLevel, if it has any, and with the
+   * default options passed otherwise.
+   *
+   * When the tile has a BitmapPool, bitmaps are decoded mutable so they can be pooled once
+   * released, and into a pooled bitmap of the expected size when there is one (before KitKat,
+   * bitmaps can only be reused for decodes that are not sampled).
+   *
+   * @param tile              The tile to decode.
+   * @param defaultOptions    The provider's options, returned as is when nothing needs to change.
+   * @param mayHaveAlpha      True if the tile's format was detected to possibly have alpha.
+   * @param shouldReuseBitmap False to skip decoding into a pooled bitmap, e.g. when that already failed.
+   */
+  static BitmapFactory.Options getOptions( Tile tile, BitmapFactory.Options defaultOptions, boolean mayHaveAlpha, boolean shouldReuseBitmap ) {
+    int sampleSize = tile.getSampleSize();
+    BitmapPool bitmapPool = tile.getBitmapPool();
+    DecodeOptions decodeOptions = getDecodeOptions( tile );
+    if( sampleSize == 1 && bitmapPool == null && decodeOptions == null ) {
+      return defaultOptions;
+    }
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inPreferredConfig = defaultOptions.inPreferredConfig;
+    options.inSampleSize = sampleSize;
+    if( decodeOptions != null ) {
+      if( decodeOptions.getBitmapConfig() != null ) {
+        options.inPreferredConfig = decodeOptions.getBitmapConfig();
+      }
+      if( decodeOptions.getShouldDetectAlpha() && mayHaveAlpha ) {
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+      }
+      if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ) {
+        options.inPremultiplied = decodeOptions.getIsPremultiplied();
+      }
+    }
+    if( bitmapPool != null ) {
+      options.inMutable = true;
+      if( shouldReuseBitmap && (sampleSize == 1 || Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) ) {
+        int width = (tile.getWidth() + sampleSize - 1) / sampleSize;
+        int height = (tile.getHeight() + sampleSize - 1) / sampleSize;
+        options.inBitmap = bitmapPool.get( width, height, options.inPreferredConfig );
+      }
+    }
+    return options;
+  }
+
+  /**
+   * Decodes an encoded tile held in the range of the array passed, with the options getOptions
+   * builds, and without the pooled bitmap if it could not be decoded into.  Errors (e.g., out of
+   * memory) are thrown rather than returned as null, which would mark the tile missing.
+   *
+   * @return The decoded bitmap, or null if the bytes are not an image.
+   */
+  static Bitmap decodeByteArray( byte[] bytes, int offset, int length, Tile tile, BitmapFactory.Options defaultOptions ) {
+    boolean mayHaveAlpha = shouldDetectAlpha( tile )
+      && length >= 2 && mayHaveAlpha( bytes[offset] & 0xFF, bytes[offset + 1] & 0xFF );
+    BitmapFactory.Options options = getOptions( tile, defaultOptions, mayHaveAlpha, true );
+    Bitmap bitmap;
+    try {
+      bitmap = BitmapFactory.decodeByteArray( bytes, offset, length, options );
+    } catch( IllegalArgumentException e ) {
+      if( options.inBitmap == null ) {
+        throw e;
+      }
+      // the pooled bitmap could not be decoded into (e.g., the image is not the tile size), give it back and decode into a new one
+      tile.getBitmapPool().put( options.inBitmap );
+      options = getOptions( tile, defaultOptions, mayHaveAlpha, false );
+      bitmap = BitmapFactory.decodeByteArray( bytes, offset, length, options );
+    }
+    // nothing could be decoded, a retry would fail the same way; the pooled bitmap is unused
+    if( bitmap == null && options.inBitmap != null ) {
+      tile.getBitmapPool().put( options.inBitmap );
+    }
+    return bitmap;
+  }
+
+}
@@ -0,0 +1,73 @@
+package com.qozix.tileview.graphics;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The encoded bytes of a tile (e.g., a JPEG), fetched by a StagedBitmapProvider and not yet
+ * decoded, held in a buffer from a BytePool.
+ */
+public class EncodedTile {
+
+  private byte[] mBytes;
+  private final int mLength;
+  private final BytePool mBytePool;
+
+  /**
+   * @param bytes    The buffer holding the tile's bytes, from its start.
+   * @param length   The number of bytes of the tile.
+   * @param bytePool The pool the buffer is returned to once the tile is decoded, or null.
+   */
+  public EncodedTile( byte[] bytes, int length, BytePool bytePool ) {
+    mBytes = bytes;
+    mLength = length;
+    mBytePool = bytePool;
+  }
+
+  /**
+   * Reads a stream to its end into a pooled buffer.  The stream is not closed.
+   *
+   * @param inputStream    The stream to read.
+   * @param expectedLength The length of the stream if it is known, to size the buffer; 0 otherwise.
+   * @param bytePool       The pool to take buffers from.
+   */
+  public static EncodedTile read( InputStream inputStream, int expectedLength, BytePool bytePool ) throws IOException {
+    // one more than expected, so reaching the end never needs a larger buffer
+    byte[] bytes = bytePool.acquire( expectedLength + 1 );
+    int length = 0;
+    int read;
+    while( (read = inputStream.read( bytes, length, bytes.length - length )) != -1 ) {
+      length += read;
+      if( length == bytes.length ) {
+        byte[] grownBytes = bytePool.acquire( bytes.length * 2 );
+        System.arraycopy( bytes, 0, grownBytes, 0, length );
+        bytePool.release( bytes );
+        bytes = grownBytes;
+      }
+    }
+    return new EncodedTile( bytes, length, bytePool );
+  }
+
+  /**
+   * @return The buffer holding the tile's bytes, which may be longer than the tile.
+   */
+  public byte[] getBytes() {
+    return mBytes;
+  }
+
+  public int getLength() {
+    return mLength;
+  }
+
+  /**
+   * Returns the buffer to its pool.  Called once the tile is decoded; the bytes must not be used afterwards.
+   */
+  public void release() {
+    byte[] bytes = mBytes;
+    mBytes = null;
+    if( bytes != null && mBytePool != null ) {
+      mBytePool.release( bytes );
+    }
+  }
+
+}
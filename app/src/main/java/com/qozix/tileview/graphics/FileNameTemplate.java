@@ -0,0 +1,103 @@
+package com.qozix.tileview.graphics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A file name pattern, e.g. "tiles/map/1000/%d-%d.jpg", parsed once so tile file names can be
+ * built by appending its literal parts and the column and row, rather than by String.format
+ * parsing the pattern for every tile.
+ *
+ * Compiled patterns may use %d and %s, with explicit argument indices or not (e.g. "%2$d_%1$d"),
+ * and %%; patterns with other conversions or with flags and widths (e.g. "%03d") are formatted
+ * with String.format.  As with String.format, only conversions without an explicit index take
+ * the next argument, so "%2$d_%d" is the row, then the column.
+ */
+class FileNameTemplate {
+
+  private final String mPattern;
+  private final boolean mIsCompiled;
+  // the literal before each argument, then the literal after the last
+  private String[] mLiterals;
+  // 0 for the column, 1 for the row
+  private int[] mArguments;
+  private int mLength;
+
+  FileNameTemplate( String pattern ) {
+    mPattern = pattern;
+    mIsCompiled = compile( pattern );
+  }
+
+  String getPattern() {
+    return mPattern;
+  }
+
+  private boolean compile( String pattern ) {
+    List<String> literals = new ArrayList<>();
+    List<Integer> arguments = new ArrayList<>();
+    StringBuilder literal = new StringBuilder();
+    int nextArgument = 0;
+    int length = pattern.length();
+    int i = 0;
+    while( i < length ) {
+      char c = pattern.charAt( i++ );
+      if( c != '%' ) {
+        literal.append( c );
+        continue;
+      }
+      if( i == length ) {
+        return false;
+      }
+      c = pattern.charAt( i++ );
+      if( c == '%' ) {
+        literal.append( '%' );
+        continue;
+      }
+      int argument;
+      if( c >= '1' && c <= '9' ) {
+        int index = 0;
+        while( c >= '0' && c <= '9' && i < length ) {
+          // capped, so long indices do not overflow into valid ones
+          index = Math.min( index * 10 + (c - '0'), 100 );
+          c = pattern.charAt( i++ );
+        }
+        if( c != '$' || i == length ) {
+          return false;
+        }
+        argument = index - 1;
+        c = pattern.charAt( i++ );
+      } else {
+        argument = nextArgument++;
+      }
+      if( (c != 'd' && c != 's') || argument > 1 ) {
+        return false;
+      }
+      literals.add( literal.toString() );
+      arguments.add( argument );
+      mLength += literal.length();
+      literal.setLength( 0 );
+    }
+    literals.add( literal.toString() );
+    mLength += literal.length();
+    mLiterals = literals.toArray( new String[literals.size()] );
+    mArguments = new int[arguments.size()];
+    for( int j = 0; j < mArguments.length; j++ ) {
+      mArguments[j] = arguments.get( j );
+    }
+    return true;
+  }
+
+  String format( int column, int row ) {
+    if( !mIsCompiled ) {
+      return String.format( mPattern, column, row );
+    }
+    StringBuilder builder = new StringBuilder( mLength + 8 );
+    for( int i = 0; i < mArguments.length; i++ ) {
+      builder.append( mLiterals[i] );
+      builder.append( mArguments[i] == 0 ? column : row );
+    }
+    builder.append( mLiterals[mArguments.length] );
+    return builder.toString();
+  }
+
+}
@@ -0,0 +1,52 @@
+package com.qozix.tileview.graphics;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import com.qozix.tileview.tiles.Tile;
+
+/**
+ * A BitmapProvider that separates reading a tile's encoded bytes from decoding them, so tiles
+ * are rendered in two stages: the fetch stage runs on a pool of threads sized for I/O, where a
+ * slow read does not hold up a decoder, and the decode stage on the render threads, sized to the
+ * device's cores, where a slow decode does not hold up reads.  Only a bounded number of fetched
+ * tiles wait for a decoder at once.
+ *
+ * The stages are only used for the tiles of registered DetailLevels.  getBitmap, which should
+ * fetch and decode in one call, is still used for everything else: previews, and the source
+ * tiles of overzoomed and synthesized levels.  Plain BitmapProviders are rendered with
+ * getBitmap alone, on the render threads, as before, and so are StagedBitmapProviders whose
+ * isStaged returns false.
+ */
+public interface StagedBitmapProvider extends BitmapProvider {
+
+  /**
+   * @return True if tiles should be rendered in two stages, with fetch and decode; false if they
+   * should be rendered with getBitmap, e.g., because a subclass overrides getBitmap and its
+   * stages would not render the same.
+   */
+  boolean isStaged();
+
+  /**
+   * Fetch stage, on an I/O thread: reads the tile's encoded bytes, without decoding them.
+   *
+   * @param tile     The tile to fetch.
+   * @param context  A Context, e.g. for asset access.
+   * @param bytePool The pool to take the buffer for the bytes from.
+   * @return The tile's bytes, or null if there is no such tile.
+   * @throws Exception If the tile could not be read; it is asked for again later.
+   */
+  EncodedTile fetch( Tile tile, Context context, BytePool bytePool ) throws Exception;
+
+  /**
+   * Decode stage, on a render thread.  The encoded tile is released once this returns, so its
+   * bytes must not be kept.
+   *
+   * @param tile        The tile to decode.
+   * @param encodedTile The bytes fetch returned for the tile.
+   * @param context     A Context.
+   * @return The decoded bitmap, or null if the bytes are not an image.
+   */
+  Bitmap decode( Tile tile, EncodedTile encodedTile, Context context );
+
+}
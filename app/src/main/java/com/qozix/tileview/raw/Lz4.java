@@ -0,0 +1,207 @@
+package com.qozix.tileview.raw;
+
+import java.io.IOException;
+
+/**
+ * A compressor and decompressor for the LZ4 block format, with no dependencies.  LZ4 trades
+ * compression ratio for speed: decompressing is little more than copying, which makes it
+ * suitable for pixel data that must be expanded on every load.
+ *
+ * Only the block format is supported (no frame header, checksums or dictionaries); the
+ * uncompressed length must be known to decompress, and is stored alongside the block.
+ */
+public class Lz4 {
+
+  private static final int MIN_MATCH = 4;
+  private static final int MAX_DISTANCE = 65535;
+  // the block format requires the last 5 bytes to be literals, and the last match to start 12 bytes before the end
+  private static final int LAST_LITERALS = 5;
+  private static final int MF_LIMIT = 12;
+
+  private static final int HASH_LOG = 12;
+  private static final int SKIP_STRENGTH = 6;
+
+  private Lz4() {
+
+  }
+
+  /**
+   * @return The largest number of bytes a block of the length passed can compress to.
+   */
+  public static int maxCompressedLength( int length ) {
+    return length + length / 255 + 16;
+  }
+
+  /**
+   * @param source            The bytes to compress.
+   * @param sourceOffset      The offset of the first byte to compress.
+   * @param sourceLength      The number of bytes to compress.
+   * @param destination       The array the block is written to, at least maxCompressedLength( sourceLength ) from the offset.
+   * @param destinationOffset The offset the block is written at.
+   * @return The length of the compressed block.
+   */
+  public static int compress( byte[] source, int sourceOffset, int sourceLength, byte[] destination, int destinationOffset ) {
+    int sourceEnd = sourceOffset + sourceLength;
+    int matchLimit = sourceEnd - LAST_LITERALS;
+    int mfLimit = sourceEnd - MF_LIMIT;
+    int anchor = sourceOffset;
+    int position = sourceOffset;
+    int output = destinationOffset;
+    // positions are stored plus one, so the zeroed table reads as empty
+    int[] hashTable = new int[1 << HASH_LOG];
+    int searchCount = 1 << SKIP_STRENGTH;
+    while( position < mfLimit ) {
+      int sequence = readInt( source, position );
+      int hash = hash( sequence );
+      int reference = hashTable[hash] - 1;
+      hashTable[hash] = position + 1;
+      if( reference < 0 || position - reference > MAX_DISTANCE || readInt( source, reference ) != sequence ) {
+        // incompressible data is skipped through faster the longer no match is found
+        position += searchCount++ >>> SKIP_STRENGTH;
+        continue;
+      }
+      searchCount = 1 << SKIP_STRENGTH;
+      while( position > anchor && reference > sourceOffset && source[position - 1] == source[reference - 1] ) {
+        position--;
+        reference--;
+      }
+      int matchLength = MIN_MATCH;
+      while( position + matchLength < matchLimit && source[position + matchLength] == source[reference + matchLength] ) {
+        matchLength++;
+      }
+      output = writeSequence( source, anchor, position - anchor, position - reference, matchLength, destination, output );
+      position += matchLength;
+      anchor = position;
+    }
+    output = writeLiterals( source, anchor, sourceEnd - anchor, destination, output );
+    return output - destinationOffset;
+  }
+
+  /**
+   * @param source            The compressed block.
+   * @param sourceOffset      The offset of the block.
+   * @param sourceLength      The length of the block.
+   * @param destination       The array the bytes are decompressed into.
+   * @param destinationOffset The offset the bytes are decompressed at.
+   * @param destinationLength The room available, usually the uncompressed length.
+   * @return The number of bytes decompressed.
+   * @throws IOException If the block is malformed, or decompresses to more than the room available.
+   */
+  public static int decompress( byte[] source, int sourceOffset, int sourceLength, byte[] destination, int destinationOffset, int destinationLength ) throws IOException {
+    int sourceEnd = sourceOffset + sourceLength;
+    int destinationEnd = destinationOffset + destinationLength;
+    int position = sourceOffset;
+    int output = destinationOffset;
+    while( position < sourceEnd ) {
+      int token = source[position++] & 0xFF;
+      int literalLength = token >>> 4;
+      if( literalLength == 15 ) {
+        int value;
+        do {
+          if( position >= sourceEnd ) {
+            throw new IOException( "Malformed LZ4 block" );
+          }
+          value = source[position++] & 0xFF;
+          literalLength += value;
+        } while( value == 255 && literalLength < sourceLength );
+      }
+      if( literalLength > sourceEnd - position || literalLength > destinationEnd - output ) {
+        throw new IOException( "Malformed LZ4 block" );
+      }
+      System.arraycopy( source, position, destination, output, literalLength );
+      position += literalLength;
+      output += literalLength;
+      // the last sequence has literals only
+      if( position == sourceEnd ) {
+        break;
+      }
+      if( position + 2 > sourceEnd ) {
+        throw new IOException( "Malformed LZ4 block" );
+      }
+      int offset = (source[position] & 0xFF) | ((source[position + 1] & 0xFF) << 8);
+      position += 2;
+      int matchLength = token & 0x0F;
+      if( matchLength == 15 ) {
+        int value;
+        do {
+          if( position >= sourceEnd ) {
+            throw new IOException( "Malformed LZ4 block" );
+          }
+          value = source[position++] & 0xFF;
+          matchLength += value;
+        } while( value == 255 && matchLength < destinationLength );
+      }
+      matchLength += MIN_MATCH;
+      int reference = output - offset;
+      if( offset == 0 || reference < destinationOffset || matchLength > destinationEnd - output ) {
+        throw new IOException( "Malformed LZ4 block" );
+      }
+      if( offset >= matchLength ) {
+        System.arraycopy( destination, reference, destination, output, matchLength );
+        output += matchLength;
+      } else {
+        // the match overlaps the bytes it produces, e.g. a run, and must be copied byte by byte
+        for( int i = 0; i < matchLength; i++ ) {
+          destination[output++] = destination[reference++];
+        }
+      }
+    }
+    return output - destinationOffset;
+  }
+
+  private static int writeSequence( byte[] source, int literalOffset, int literalLength, int offset, int matchLength, byte[] destination, int output ) {
+    int tokenPosition = output++;
+    int token;
+    if( literalLength >= 15 ) {
+      token = 15 << 4;
+      output = writeLength( literalLength - 15, destination, output );
+    } else {
+      token = literalLength << 4;
+    }
+    System.arraycopy( source, literalOffset, destination, output, literalLength );
+    output += literalLength;
+    destination[output++] = (byte) offset;
+    destination[output++] = (byte) (offset >>> 8);
+    int encodedMatchLength = matchLength - MIN_MATCH;
+    if( encodedMatchLength >= 15 ) {
+      token |= 15;
+      output = writeLength( encodedMatchLength - 15, destination, output );
+    } else {
+      token |= encodedMatchLength;
+    }
+    destination[tokenPosition] = (byte) token;
+    return output;
+  }
+
+  private static int writeLiterals( byte[] source, int literalOffset, int literalLength, byte[] destination, int output ) {
+    if( literalLength >= 15 ) {
+      destination[output++] = (byte) (15 << 4);
+      output = writeLength( literalLength - 15, destination, output );
+    } else {
+      destination[output++] = (byte) (literalLength << 4);
+    }
+    System.arraycopy( source, literalOffset, destination, output, literalLength );
+    return output + literalLength;
+  }
+
+  private static int writeLength( int length, byte[] destination, int output ) {
+    while( length >= 255 ) {
+      destination[output++] = (byte) 255;
+      length -= 255;
+    }
+    destination[output++] = (byte) length;
+    return output;
+  }
+
+  private static int readInt( byte[] source, int position ) {
+    return (source[position] & 0xFF)
+      | ((source[position + 1] & 0xFF) << 8)
+      | ((source[position + 2] & 0xFF) << 16)
+      | ((source[position + 3] & 0xFF) << 24);
+  }
+
+  private static int hash( int sequence ) {
+    return (sequence * -1640531535) >>> (32 - HASH_LOG);
+  }
+
+}
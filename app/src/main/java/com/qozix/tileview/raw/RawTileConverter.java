@@ -0,0 +1,181 @@
+package com.qozix.tileview.raw;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Converts encoded tiles (e.g., JPEG) into raw tiles (see RawTileFormat), to be loaded by
+ * BitmapProviderRaw.  Conversion runs on Android, since the pixels must be laid out exactly as
+ * the device's Bitmaps hold them; run it once on a background thread (e.g., after install, into
+ * the app's files directory), or on an emulator as part of the build.
+ *
+ * <pre>{@code
+ * File rawDirectory = new File( context.getFilesDir(), "raw-tiles" );
+ * new RawTileConverter().convertAssets( context.getAssets(), "tiles/map/1000", rawDirectory );
+ * }</pre>
+ *
+ * Converted tiles keep their path relative to the directory converted, so the same pattern
+ * (e.g., "tiles/map/1000/%d-%d.jpg") finds both the encoded tile and the raw one.
+ */
+public class RawTileConverter {
+
+  private Bitmap.Config mBitmapConfig = Bitmap.Config.RGB_565;
+  private boolean mShouldCompress = true;
+
+  public Bitmap.Config getBitmapConfig() {
+    return mBitmapConfig;
+  }
+
+  /**
+   * @param bitmapConfig RGB_565 or ARGB_8888.  Tiles with alpha are always converted as ARGB_8888.
+   */
+  public void setBitmapConfig( Bitmap.Config bitmapConfig ) {
+    mBitmapConfig = bitmapConfig;
+  }
+
+  public boolean getShouldCompress() {
+    return mShouldCompress;
+  }
+
+  /**
+   * @param shouldCompress True to LZ4 compress the pixels of tiles that get smaller for it.
+   */
+  public void setShouldCompress( boolean shouldCompress ) {
+    mShouldCompress = shouldCompress;
+  }
+
+  /**
+   * Converts every image in an asset directory and its subdirectories.
+   *
+   * @param assetManager         The AssetManager to read tiles from.
+   * @param assetDirectory       The asset directory to convert, e.g. "tiles/map/1000".
+   * @param destinationDirectory The directory raw tiles are written to, under the asset directory's path.
+   * @return The number of tiles converted.
+   */
+  public int convertAssets( AssetManager assetManager, String assetDirectory, File destinationDirectory ) throws IOException {
+    String[] names = assetManager.list( assetDirectory );
+    if( names == null ) {
+      return 0;
+    }
+    int count = 0;
+    for( String name : names ) {
+      String path = assetDirectory.length() == 0 ? name : assetDirectory + "/" + name;
+      // only directories have children, list returns an empty array for files
+      String[] children = assetManager.list( path );
+      if( children != null && children.length > 0 ) {
+        count += convertAssets( assetManager, path, destinationDirectory );
+        continue;
+      }
+      InputStream inputStream = assetManager.open( path );
+      try {
+        if( convert( inputStream, new File( destinationDirectory, path + RawTileFormat.EXTENSION ) ) ) {
+          count++;
+        }
+      } finally {
+        inputStream.close();
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Converts every image in a directory and its subdirectories.
+   *
+   * @param sourceDirectory      The directory to convert.
+   * @param destinationDirectory The directory raw tiles are written to, with the same relative paths.
+   * @return The number of tiles converted.
+   */
+  public int convertDirectory( File sourceDirectory, File destinationDirectory ) throws IOException {
+    File[] files = sourceDirectory.listFiles();
+    if( files == null ) {
+      return 0;
+    }
+    int count = 0;
+    for( File file : files ) {
+      if( file.isDirectory() ) {
+        count += convertDirectory( file, new File( destinationDirectory, file.getName() ) );
+        continue;
+      }
+      InputStream inputStream = new FileInputStream( file );
+      try {
+        if( convert( inputStream, new File( destinationDirectory, file.getName() + RawTileFormat.EXTENSION ) ) ) {
+          count++;
+        }
+      } finally {
+        inputStream.close();
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @param inputStream The encoded tile.
+   * @param destination The file the raw tile is written to.
+   * @return True if the tile was converted, false if it could not be decoded.
+   */
+  public boolean convert( InputStream inputStream, File destination ) throws IOException {
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inPreferredConfig = mBitmapConfig;
+    Bitmap bitmap = BitmapFactory.decodeStream( inputStream, null, options );
+    if( bitmap == null ) {
+      return false;
+    }
+    try {
+      File parent = destination.getParentFile();
+      if( parent != null && !parent.isDirectory() && !parent.mkdirs() ) {
+        throw new IOException( "Could not create " + parent );
+      }
+      OutputStream outputStream = new BufferedOutputStream( new FileOutputStream( destination ) );
+      try {
+        write( bitmap, outputStream, mShouldCompress );
+      } finally {
+        outputStream.close();
+      }
+    } finally {
+      bitmap.recycle();
+    }
+    return true;
+  }
+
+  /**
+   * Writes a Bitmap as a raw tile.
+   *
+   * @param bitmap         The Bitmap to write; configs other than RGB_565 are written as ARGB_8888.
+   * @param outputStream   The stream to write to, which is not closed.
+   * @param shouldCompress True to LZ4 compress the pixels if they get smaller for it.
+   */
+  public static void write( Bitmap bitmap, OutputStream outputStream, boolean shouldCompress ) throws IOException {
+    Bitmap sourceBitmap = bitmap;
+    if( bitmap.getConfig() != Bitmap.Config.RGB_565 && bitmap.getConfig() != Bitmap.Config.ARGB_8888 ) {
+      sourceBitmap = bitmap.copy( Bitmap.Config.ARGB_8888, false );
+    }
+    try {
+      boolean isRgb565 = sourceBitmap.getConfig() == Bitmap.Config.RGB_565;
+      int width = sourceBitmap.getWidth();
+      int height = sourceBitmap.getHeight();
+      int pixelLength = width * height * (isRgb565 ? 2 : 4);
+      if( sourceBitmap.getByteCount() != pixelLength ) {
+        throw new IOException( "Bitmaps with padded rows cannot be written as raw tiles" );
+      }
+      ByteBuffer pixels = ByteBuffer.allocate( pixelLength );
+      sourceBitmap.copyPixelsToBuffer( pixels );
+      int config = isRgb565 ? RawTileFormat.CONFIG_RGB_565 : RawTileFormat.CONFIG_ARGB_8888;
+      RawTileFormat.write( outputStream, width, height, config, pixels.array(), shouldCompress );
+    } finally {
+      if( sourceBitmap != bitmap ) {
+        sourceBitmap.recycle();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,163 @@
+package com.qozix.tileview.raw;
+
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Constants of the raw tile format: a tile's pixels exactly as Bitmap.copyPixelsToBuffer
+ * produces them, so they can be loaded with copyPixelsFromBuffer without decoding.  The header
+ * values are big-endian.
+ *
+ * <pre>
+ * int     magic ("TVRT")
+ * int     version
+ * int     width
+ * int     height
+ * int     config (CONFIG_RGB_565 or CONFIG_ARGB_8888)
+ * int     compression (COMPRESSION_NONE or COMPRESSION_LZ4)
+ * int     length of the pixels
+ * int     length of the payload, which is the pixels, LZ4 compressed or not
+ * </pre>
+ *
+ * Each raw tile is a file named after the encoded tile it was converted from, plus EXTENSION
+ * (e.g., "tiles/map/1000/3-4.jpg.raw").  write and readHeader/readPixels are the writer and the
+ * reader of the format; they have no Android dependencies.
+ */
+public class RawTileFormat {
+
+  public static final int MAGIC = 0x54565254;
+  public static final int VERSION = 1;
+
+  public static final int HEADER_SIZE = 32;
+
+  public static final int CONFIG_RGB_565 = 0;
+  public static final int CONFIG_ARGB_8888 = 1;
+
+  public static final int COMPRESSION_NONE = 0;
+  public static final int COMPRESSION_LZ4 = 1;
+
+  public static final String EXTENSION = ".raw";
+
+  private RawTileFormat() {
+
+  }
+
+  /**
+   * Writes a raw tile.
+   *
+   * @param outputStream   The stream to write to, which is not closed.
+   * @param width          The width of the tile, in pixels.
+   * @param height         The height of the tile, in pixels.
+   * @param config         CONFIG_RGB_565 or CONFIG_ARGB_8888.
+   * @param pixels         The pixels, as Bitmap.copyPixelsToBuffer lays them out.
+   * @param shouldCompress True to LZ4 compress the pixels if they get smaller for it.
+   */
+  public static void write( OutputStream outputStream, int width, int height, int config, byte[] pixels, boolean shouldCompress ) throws IOException {
+    int pixelLength = width * height * getBytesPerPixel( config );
+    if( pixels.length < pixelLength ) {
+      throw new IllegalArgumentException( "Expected " + pixelLength + " bytes of pixels, got " + pixels.length );
+    }
+    byte[] payload = pixels;
+    int payloadLength = pixelLength;
+    int compression = COMPRESSION_NONE;
+    if( shouldCompress ) {
+      byte[] compressed = new byte[Lz4.maxCompressedLength( pixelLength )];
+      int compressedLength = Lz4.compress( pixels, 0, pixelLength, compressed, 0 );
+      if( compressedLength < pixelLength ) {
+        payload = compressed;
+        payloadLength = compressedLength;
+        compression = COMPRESSION_LZ4;
+      }
+    }
+    DataOutputStream dataOutputStream = new DataOutputStream( outputStream );
+    dataOutputStream.writeInt( MAGIC );
+    dataOutputStream.writeInt( VERSION );
+    dataOutputStream.writeInt( width );
+    dataOutputStream.writeInt( height );
+    dataOutputStream.writeInt( config );
+    dataOutputStream.writeInt( compression );
+    dataOutputStream.writeInt( pixelLength );
+    dataOutputStream.writeInt( payloadLength );
+    dataOutputStream.write( payload, 0, payloadLength );
+    dataOutputStream.flush();
+  }
+
+  /**
+   * Reads and checks the header of a raw tile.
+   *
+   * @param dataInput The input, positioned at the start of the tile; left at the start of the payload.
+   * @param length    The length of the tile, header included.
+   * @return The header.
+   * @throws IOException If the input is not a raw tile, or is shorter than its header says.
+   */
+  public static Header readHeader( DataInput dataInput, long length ) throws IOException {
+    if( length < HEADER_SIZE || dataInput.readInt() != MAGIC ) {
+      throw new IOException( "Not a raw tile" );
+    }
+    int version = dataInput.readInt();
+    if( version != VERSION ) {
+      throw new IOException( "Unsupported raw tile version " + version );
+    }
+    Header header = new Header();
+    header.width = dataInput.readInt();
+    header.height = dataInput.readInt();
+    header.config = dataInput.readInt();
+    header.compression = dataInput.readInt();
+    header.pixelLength = dataInput.readInt();
+    header.payloadLength = dataInput.readInt();
+    if( header.config != CONFIG_RGB_565 && header.config != CONFIG_ARGB_8888 ) {
+      throw new IOException( "Unsupported raw tile config " + header.config );
+    }
+    if( header.compression != COMPRESSION_NONE && header.compression != COMPRESSION_LZ4 ) {
+      throw new IOException( "Unsupported raw tile compression " + header.compression );
+    }
+    if( header.width <= 0 || header.height <= 0
+      || header.pixelLength != (long) header.width * header.height * getBytesPerPixel( header.config ) ) {
+      throw new IOException( "Invalid raw tile dimensions" );
+    }
+    if( header.payloadLength < 0 || header.payloadLength > length - HEADER_SIZE
+      || (header.compression == COMPRESSION_NONE && header.payloadLength != header.pixelLength) ) {
+      throw new IOException( "Truncated raw tile" );
+    }
+    return header;
+  }
+
+  /**
+   * Expands the payload of a raw tile into its pixels.
+   *
+   * @param header  The tile's header.
+   * @param payload The payload, header.payloadLength bytes read after the header.
+   * @param pixels  An array of at least header.pixelLength bytes the pixels are decompressed
+   *                into, which is not used if the payload is not compressed.
+   * @return The array holding the pixels: pixels, or payload itself if it is not compressed.
+   * @throws IOException If the payload does not decompress to the tile's pixels.
+   */
+  public static byte[] readPixels( Header header, byte[] payload, byte[] pixels ) throws IOException {
+    if( header.compression == COMPRESSION_NONE ) {
+      return payload;
+    }
+    if( Lz4.decompress( payload, 0, header.payloadLength, pixels, 0, header.pixelLength ) != header.pixelLength ) {
+      throw new IOException( "Truncated raw tile pixels" );
+    }
+    return pixels;
+  }
+
+  public static int getBytesPerPixel( int config ) {
+    return config == CONFIG_RGB_565 ? 2 : 4;
+  }
+
+  /**
+   * The header of a raw tile, as read by readHeader.
+   */
+  public static class Header {
+    public int width;
+    public int height;
+    public int config;
+    public int compression;
+    public int pixelLength;
+    public int payloadLength;
+  }
+
+}
@@ -0,0 +1,233 @@
+package com.qozix.tileview.tiles;
+
+import com.qozix.tileview.graphics.BitmapMemoryGovernor;
+import com.qozix.tileview.graphics.BytePool;
+import com.qozix.tileview.graphics.EncodedTile;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Keeps the encoded bytes (e.g., the JPEGs) of recently fetched tiles, as a tier behind the
+ * decoded bitmaps: a tile scrolled or zoomed back into view is decoded from here rather than
+ * read again from its StagedBitmapProvider.  An encoded tile is typically a tenth of the size of
+ * its decoded bitmap, so the same memory keeps far more of the image at hand.
+ *
+ * The bytes are held off the Java heap, in a single direct ByteBuffer, allocated the first time a
+ * tile is added and used as a ring: each tile is written after the last one, and once the end of
+ * the buffer is reached, writing wraps around to its start, dropping the oldest tiles in the
+ * way.  Tiles larger than a quarter of the capacity are not kept, so a capacity of 0 turns the
+ * cache off.
+ *
+ * The buffer is accounted with a BitmapMemoryGovernor, if one is set, from the time it is
+ * allocated until it is dropped.  As an Evictable, the cache drops its buffer when the governor
+ * needs room.
+ *
+ * Only the tiles of a StagedBitmapProvider are cached, since only they are fetched as bytes.  The
+ * cache is cleared when the BitmapProvider is replaced.  It is used from both the UI thread and
+ * fetch threads.
+ */
+public class EncodedTileCache implements BitmapMemoryGovernor.Evictable {
+
+  public static final int DEFAULT_CAPACITY = 8 * 1024 * 1024;
+
+  private int mCapacity;
+
+  private BitmapMemoryGovernor mBitmapMemoryGovernor;
+
+  private ByteBuffer mBuffer;
+  // where the next tile is written
+  private int mHead;
+  // the number of bytes of tiles that can be looked up
+  private int mSize;
+
+  private final HashMap<TileKey, Entry> mEntries = new HashMap<>();
+  // every tile written and not yet overwritten, oldest first, including those since removed from mEntries
+  private final ArrayDeque<Entry> mRing = new ArrayDeque<>();
+
+  // lookups reuse this key, under the lock, rather than allocating one per tile
+  private final TileKey mProbeKey = new TileKey();
+
+  public EncodedTileCache() {
+    this( DEFAULT_CAPACITY );
+  }
+
+  /**
+   * @param capacity The number of bytes of off-heap memory the cache may use.
+   */
+  public EncodedTileCache( int capacity ) {
+    mCapacity = capacity;
+  }
+
+  public synchronized int getCapacity() {
+    return mCapacity;
+  }
+
+  /**
+   * Drops every tile, and the off-heap buffer, which is allocated at the new capacity when a tile
+   * is next added.
+   *
+   * @param capacity The number of bytes of off-heap memory the cache may use; 0 to cache nothing.
+   */
+  public synchronized void setCapacity( int capacity ) {
+    trim();
+    mCapacity = capacity;
+  }
+
+  /**
+   * @param bitmapMemoryGovernor The governor the off-heap buffer is accounted with, or null.
+   */
+  public synchronized void setBitmapMemoryGovernor( BitmapMemoryGovernor bitmapMemoryGovernor ) {
+    if( mBitmapMemoryGovernor != null && mBuffer != null ) {
+      mBitmapMemoryGovernor.onReleased( mCapacity );
+    }
+    mBitmapMemoryGovernor = bitmapMemoryGovernor;
+    if( mBitmapMemoryGovernor != null && mBuffer != null ) {
+      mBitmapMemoryGovernor.onAllocated( mCapacity );
+    }
+  }
+
+  /**
+   * @return The number of bytes of tiles in the cache.
+   */
+  public synchronized int getSize() {
+    return mSize;
+  }
+
+  /**
+   * @return The number of tiles in the cache.
+   */
+  public synchronized int getCount() {
+    return mEntries.size();
+  }
+
+  /**
+   * Copies a tile's bytes out of the cache.
+   *
+   * @param tile     The tile to look up.
+   * @param bytePool The pool to take the buffer for the bytes from.
+   * @return The tile's bytes, or null if they are not in the cache.
+   */
+  public synchronized EncodedTile get( Tile tile, BytePool bytePool ) {
+    if( mBuffer == null ) {
+      return null;
+    }
+    mProbeKey.set( tile );
+    Entry entry = mEntries.get( mProbeKey );
+    if( entry == null ) {
+      return null;
+    }
+    byte[] bytes = bytePool.acquire( entry.length );
+    mBuffer.position( entry.offset );
+    mBuffer.get( bytes, 0, entry.length );
+    return new EncodedTile( bytes, entry.length, bytePool );
+  }
+
+  /**
+   * Copies a tile's bytes into the cache, replacing any already cached for it.
+   */
+  public synchronized void put( Tile tile, EncodedTile encodedTile ) {
+    int length = encodedTile.getLength();
+    if( length <= 0 || length > mCapacity >> 2 ) {
+      return;
+    }
+    if( mBuffer == null ) {
+      // once evicted, the buffer is only allocated again when the budget has room for it
+      if( mBitmapMemoryGovernor != null && mBitmapMemoryGovernor.getUsedBytes() + mCapacity > mBitmapMemoryGovernor.getBudget() ) {
+        return;
+      }
+      mBuffer = ByteBuffer.allocateDirect( mCapacity );
+      if( mBitmapMemoryGovernor != null ) {
+        mBitmapMemoryGovernor.onAllocated( mCapacity );
+      }
+    }
+    TileKey key = new TileKey();
+    key.set( tile );
+    removeEntry( key );
+    int offset = mHead;
+    boolean isWrapping = offset + length > mCapacity;
+    if( isWrapping ) {
+      offset = 0;
+    }
+    // the oldest tiles are the ones in the way: when wrapping, all those past the head, then those the new tile overlaps
+    while( !mRing.isEmpty() ) {
+      Entry oldest = mRing.peekFirst();
+      boolean isPastHead = isWrapping && oldest.offset >= mHead;
+      boolean isOverlapped = oldest.offset < offset + length && oldest.offset + oldest.length > offset;
+      if( !isPastHead && !isOverlapped ) {
+        break;
+      }
+      mRing.removeFirst();
+      if( mEntries.get( oldest.key ) == oldest ) {
+        removeEntry( oldest.key );
+      }
+    }
+    mBuffer.position( offset );
+    mBuffer.put( encodedTile.getBytes(), 0, length );
+    Entry entry = new Entry( key, offset, length );
+    mRing.addLast( entry );
+    mEntries.put( key, entry );
+    mSize += length;
+    mHead = offset + length;
+  }
+
+  public synchronized void remove( Tile tile ) {
+    mProbeKey.set( tile );
+    removeEntry( mProbeKey );
+  }
+
+  /**
+   * Drops every tile.  The off-heap buffer is kept for the tiles cached next.
+   */
+  public synchronized void clear() {
+    mEntries.clear();
+    mRing.clear();
+    mHead = 0;
+    mSize = 0;
+  }
+
+  /**
+   * Drops every tile, and the off-heap buffer, which is allocated again when a tile is next added.
+   */
+  public synchronized void trim() {
+    clear();
+    if( mBuffer != null && mBitmapMemoryGovernor != null ) {
+      mBitmapMemoryGovernor.onReleased( mCapacity );
+    }
+    mBuffer = null;
+  }
+
+  /**
+   * The buffer is dropped whole, since the ring has no smaller unit to give back.
+   */
+  @Override
+  public synchronized long evict( long bytes ) {
+    if( mBuffer == null ) {
+      return 0;
+    }
+    trim();
+    return mCapacity;
+  }
+
+  // the entry's bytes stay in the ring until they are overwritten
+  private void removeEntry( TileKey key ) {
+    Entry entry = mEntries.remove( key );
+    if( entry != null ) {
+      mSize -= entry.length;
+    }
+  }
+
+  private static class Entry {
+    final TileKey key;
+    final int offset;
+    final int length;
+
+    Entry( TileKey key, int offset, int length ) {
+      this.key = key;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+}
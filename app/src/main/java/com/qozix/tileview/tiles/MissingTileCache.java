@@ -0,0 +1,106 @@
+package com.qozix.tileview.tiles;
+
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers tiles the BitmapProvider had nothing for (it returned null, or threw a
+ * FileNotFoundException), by detail level, column and row, so that sparse levels (e.g., ocean,
+ * or outside a building's footprint) are not asked for the same missing tiles on every render
+ * pass.  Tiles that failed any other way (e.g., out of memory, or an I/O error) are not
+ * remembered, and are asked for again.  Tiles known to be missing are
+ * not queued for decoding, and are drawn as intentionally blank: nothing is drawn in their
+ * place, including coarser fallback tiles.
+ *
+ * Entries are kept until they expire (after DEFAULT_TIME_TO_LIVE, unless set otherwise), until
+ * the cache is cleared (e.g., because the tile set has changed), or until the cache is full, when
+ * the least recently used entries are dropped.  Expired tiles are asked for again by the next render pass that
+ * queues tiles.
+ *
+ * The cache is provider-agnostic, and is cleared when the BitmapProvider is replaced.
+ * It is used from both the UI thread and render threads.
+ */
+public class MissingTileCache {
+
+  public static final int DEFAULT_MAXIMUM_SIZE = 4096;
+  // long enough to spare repeated lookups while panning, short enough for tiles that appear later (e.g., downloaded) to be picked up
+  public static final long DEFAULT_TIME_TO_LIVE = 5 * 60 * 1000;
+
+  private int mMaximumSize = DEFAULT_MAXIMUM_SIZE;
+  private long mTimeToLive = DEFAULT_TIME_TO_LIVE;
+
+  // values are the times the entries expire, in uptime milliseconds, or Long.MAX_VALUE
+  private final LinkedHashMap<TileKey, Long> mExpiryTimes = new LinkedHashMap<TileKey, Long>( 16, 0.75f, true ) {
+    @Override
+    protected boolean removeEldestEntry( Map.Entry<TileKey, Long> eldest ) {
+      return size() > mMaximumSize;
+    }
+  };
+
+  // lookups reuse this key, under the lock, rather than allocating one per tile
+  private final TileKey mProbeKey = new TileKey();
+
+  public synchronized int getMaximumSize() {
+    return mMaximumSize;
+  }
+
+  /**
+   * @param maximumSize The maximum number of missing tiles remembered.
+   */
+  public synchronized void setMaximumSize( int maximumSize ) {
+    mMaximumSize = maximumSize;
+    while( mExpiryTimes.size() > mMaximumSize ) {
+      mExpiryTimes.remove( mExpiryTimes.keySet().iterator().next() );
+    }
+  }
+
+  public synchronized long getTimeToLive() {
+    return mTimeToLive;
+  }
+
+  /**
+   * @param timeToLive The time, in milliseconds, a tile is known to be missing before it is asked for again, or 0 for no limit.  Applies to tiles added afterwards.
+   */
+  public synchronized void setTimeToLive( long timeToLive ) {
+    mTimeToLive = timeToLive;
+  }
+
+  /**
+   * @return True if the tile (or any tile of the same detail level, column and row) is known to be missing.
+   */
+  public synchronized boolean contains( Tile tile ) {
+    mProbeKey.set( tile );
+    Long expiryTime = mExpiryTimes.get( mProbeKey );
+    if( expiryTime == null ) {
+      return false;
+    }
+    if( expiryTime <= SystemClock.uptimeMillis() ) {
+      mExpiryTimes.remove( mProbeKey );
+      return false;
+    }
+    return true;
+  }
+
+  public synchronized void add( Tile tile ) {
+    TileKey key = new TileKey();
+    key.set( tile );
+    long expiryTime = mTimeToLive > 0 ? SystemClock.uptimeMillis() + mTimeToLive : Long.MAX_VALUE;
+    mExpiryTimes.put( key, expiryTime );
+  }
+
+  public synchronized void remove( Tile tile ) {
+    mProbeKey.set( tile );
+    mExpiryTimes.remove( mProbeKey );
+  }
+
+  public synchronized int size() {
+    return mExpiryTimes.size();
+  }
+
+  public synchronized void clear() {
+    mExpiryTimes.clear();
+  }
+
+}
@@ -9,6 +9,9 @@ import android.view.animation.AnimationUtils;
 
 import com.qozix.tileview.detail.DetailLevel;
 import com.qozix.tileview.geom.FloatMathHelper;
+import com.qozix.tileview.graphics.BitmapHandle;
+import com.qozix.tileview.graphics.BitmapMemoryGovernor;
+import com.qozix.tileview.graphics.BitmapPool;
 import com.qozix.tileview.graphics.BitmapProvider;
 
 public class Tile {
@@ -16,11 +19,15 @@ public class Tile {
   public enum State {
     UNASSIGNED,
     PENDING_DECODE,
-    DECODED
+    DECODED,
+    // the BitmapProvider had nothing for the tile (see MissingTileCache), it is drawn as intentionally blank
+    MISSING
   }
 
   private static final int DEFAULT_TRANSITION_DURATION = 200;
 
+  public static final int PREVIEW_SAMPLE_FACTOR = 8;
+
   private State mState = State.UNASSIGNED;
 
   private int mWidth;
@@ -36,17 +43,32 @@ public class Tile {
   private int mRow;
   private int mColumn;
 
+  private int mSampleSize;
+
   private float mDetailLevelScale;
 
   private boolean mHasReportedDirtyAtFullOpacity;
 
   private Object mData;
-  private Bitmap mBitmap;
+  private volatile BitmapHandle mBitmapHandle;
+  private volatile BitmapHandle mPreviewBitmapHandle;
+
+  private BitmapPool mBitmapPool;
+  private BitmapMemoryGovernor mBitmapMemoryGovernor;
+  private boolean mShouldRecycleBitmaps = true;
+
+  // set by destroy, under the tile's lock, so a decode finishing afterwards releases its bitmap rather than keeping it
+  private boolean mIsDestroyed;
+  private boolean mShouldRecycleAfterDestroy;
 
   private Rect mIntrinsicRect = new Rect();
+  private Rect mDecodedRect = new Rect();
+  private Rect mPreviewRect = new Rect();
   private Rect mBaseRect = new Rect();
   private Rect mRelativeRect = new Rect();
   private Rect mScaledRect = new Rect();
+  private Rect mClippedSourceRect = new Rect();
+  private Rect mClippedDestinationRect = new Rect();
 
   public double mRenderTimeStamp;
 
@@ -59,6 +81,13 @@ public class Tile {
   private DetailLevel mDetailLevel;
 
   public Tile( int column, int row, int width, int height, Object data, DetailLevel detailLevel ) {
+    this( column, row, width, height, data, detailLevel, 1 );
+  }
+
+  /**
+   * @param sampleSize Power-of-two factor the tile's bitmap dimensions are reduced by; 1 for full resolution.
+   */
+  public Tile( int column, int row, int width, int height, Object data, DetailLevel detailLevel, int sampleSize ) {
     mRow = row;
     mColumn = column;
     mWidth = width;
@@ -70,7 +99,9 @@ public class Tile {
     mData = data;
     mDetailLevel = detailLevel;
     mDetailLevelScale = mDetailLevel.getScale();
+    mSampleSize = sampleSize;
     mIntrinsicRect.set( 0, 0, mWidth, mHeight );
+    mDecodedRect.set( 0, 0, (mWidth + sampleSize - 1) / sampleSize, (mHeight + sampleSize - 1) / sampleSize );
     mBaseRect.set( mLeft, mTop, mRight, mBottom );  // TODO: need this?
     mRelativeRect.set(
       FloatMathHelper.unscale( mLeft, mDetailLevelScale ),
@@ -109,18 +140,104 @@ public class Tile {
     return mData;
   }
 
+  /**
+   * BitmapProviders that support downsampling should decode this tile with this sample size
+   * (e.g., as BitmapFactory.Options.inSampleSize).  It is always 1 unless downsampling is enabled.
+   *
+   * @return The power-of-two factor the bitmap's dimensions should be reduced by.
+   */
+  public int getSampleSize() {
+    return mSampleSize;
+  }
+
   public Bitmap getBitmap() {
-    return mBitmap;
+    BitmapHandle bitmapHandle = mBitmapHandle;
+    return bitmapHandle == null ? null : bitmapHandle.getBitmap();
   }
 
   public boolean hasBitmap() {
-    return mBitmap != null;
+    return mBitmapHandle != null;
+  }
+
+  /**
+   * Returns this tile's bitmap handle with a reference added, which the caller must release.
+   * The bitmap stays valid until then, even if the tile is destroyed in the meantime.
+   *
+   * @return The acquired BitmapHandle, or null if the tile has no bitmap.
+   */
+  public BitmapHandle acquireBitmapHandle() {
+    BitmapHandle bitmapHandle = mBitmapHandle;
+    if( bitmapHandle == null || !bitmapHandle.tryAcquire() ) {
+      return null;
+    }
+    return bitmapHandle;
+  }
+
+  /**
+   * BitmapProviders that support bitmap reuse may decode this tile into a bitmap taken from this pool.
+   *
+   * @return The pool released tile bitmaps are returned to, or null if there is none.
+   */
+  public BitmapPool getBitmapPool() {
+    return mBitmapPool;
+  }
+
+  void setBitmapPool( BitmapPool bitmapPool ) {
+    mBitmapPool = bitmapPool;
+  }
+
+  BitmapMemoryGovernor getBitmapMemoryGovernor() {
+    return mBitmapMemoryGovernor;
+  }
+
+  void setBitmapMemoryGovernor( BitmapMemoryGovernor bitmapMemoryGovernor ) {
+    mBitmapMemoryGovernor = bitmapMemoryGovernor;
+  }
+
+  /**
+   * @param shouldRecycleBitmaps False if bitmaps decoded for this tile may be referenced elsewhere (see TileCanvasViewGroup.setShouldRecycleBitmaps).
+   */
+  void setShouldRecycleBitmaps( boolean shouldRecycleBitmaps ) {
+    mShouldRecycleBitmaps = shouldRecycleBitmaps;
+  }
+
+  /**
+   * @param sampleFactor Factor applied on top of this tile's sample size, e.g., PREVIEW_SAMPLE_FACTOR.
+   * @return An upper bound for the number of bytes a decode of this tile allocates (4 bytes per pixel).
+   */
+  long estimateByteCount( int sampleFactor ) {
+    int sampleSize = mSampleSize * sampleFactor;
+    long width = (mWidth + sampleSize - 1) / sampleSize;
+    long height = (mHeight + sampleSize - 1) / sampleSize;
+    return width * height * 4;
+  }
+
+  /**
+   * @return The number of bytes of pixel memory held by this tile's (full) bitmap, or 0 if it has none.
+   */
+  public int getBitmapByteCount() {
+    BitmapHandle bitmapHandle = mBitmapHandle;
+    if( bitmapHandle == null ) {
+      return 0;
+    }
+    return bitmapHandle.getByteCount();
+  }
+
+  public boolean hasPreviewBitmap() {
+    return mPreviewBitmapHandle != null;
   }
 
   public Rect getBaseRect() {
     return mBaseRect;
   }
 
+  /**
+   * @return The area this tile covers, in unscaled pixels.
+   */
+  public Rect getRelativeRect() {
+    return mRelativeRect;
+  }
+
   public Rect getScaledRect( float scale ) {
     mScaledRect.set(
       (int) (mRelativeRect.left * scale),
@@ -212,19 +329,109 @@ public class Tile {
   }
 
   void generateBitmap( Context context, BitmapProvider bitmapProvider ) {
-    if( mBitmap != null ) {
+    if( mBitmapHandle != null ) {
+      return;
+    }
+    Bitmap bitmap = bitmapProvider.getBitmap( this, context );
+    if( bitmap != null ) {
+      BitmapHandle bitmapHandle = new BitmapHandle( bitmap, mBitmapPool, mBitmapMemoryGovernor );
+      boolean shouldRecycle;
+      synchronized( this ) {
+        if( !mIsDestroyed ) {
+          mBitmapHandle = bitmapHandle;
+          mState = State.DECODED;
+          return;
+        }
+        shouldRecycle = mShouldRecycleAfterDestroy;
+      }
+      // the tile was destroyed while decoding, so nothing would ever draw or release the bitmap
+      bitmapHandle.release( shouldRecycle );
       return;
     }
-    mBitmap = bitmapProvider.getBitmap( this, context );
     mState = State.DECODED;
   }
 
+  /**
+   * @return True if the tile has been destroyed, e.g., because it left the viewport while decoding.
+   */
+  synchronized boolean isDestroyed() {
+    return mIsDestroyed;
+  }
+
+  /**
+   * Decodes a low resolution version of this tile, requested from the BitmapProvider at
+   * PREVIEW_SAMPLE_FACTOR times this tile's sample size, to be drawn until the full decode is done.
+   */
+  void generatePreviewBitmap( Context context, BitmapProvider bitmapProvider ) {
+    if( mBitmapHandle != null || mPreviewBitmapHandle != null ) {
+      return;
+    }
+    int sampleSize = mSampleSize * PREVIEW_SAMPLE_FACTOR;
+    Tile previewTile = new Tile( mColumn, mRow, mWidth, mHeight, mData, mDetailLevel, sampleSize );
+    previewTile.mBitmapPool = mBitmapPool;
+    Bitmap previewBitmap = bitmapProvider.getBitmap( previewTile, context );
+    if( previewBitmap == null ) {
+      return;
+    }
+    BitmapHandle previewBitmapHandle = new BitmapHandle( previewBitmap, mBitmapPool, mBitmapMemoryGovernor );
+    synchronized( this ) {
+      // the full decode won the race, or the tile was destroyed, and the preview is no longer useful
+      if( mBitmapHandle == null && !mIsDestroyed ) {
+        mPreviewRect.set( previewTile.mDecodedRect );
+        mPreviewBitmapHandle = previewBitmapHandle;
+        return;
+      }
+    }
+    previewBitmapHandle.release( mShouldRecycleBitmaps );
+  }
+
+  /**
+   * @param shouldRecycle False if the bitmap may be referenced elsewhere (e.g., cached by the
+   *                      BitmapProvider), in which case it is released without being pooled or recycled.
+   */
+  void releasePreviewBitmap( boolean shouldRecycle ) {
+    BitmapHandle previewBitmapHandle;
+    synchronized( this ) {
+      previewBitmapHandle = mPreviewBitmapHandle;
+      mPreviewBitmapHandle = null;
+    }
+    if( previewBitmapHandle != null ) {
+      previewBitmapHandle.release( shouldRecycle );
+    }
+  }
+
   void destroy( boolean shouldRecycle ) {
+    synchronized( this ) {
+      mIsDestroyed = true;
+      mShouldRecycleAfterDestroy = shouldRecycle;
+    }
+    releasePreviewBitmap( shouldRecycle );
+    discardBitmap( shouldRecycle );
+  }
+
+  /**
+   * Drops a bitmap that has not been drawn yet (e.g., from a cancelled decode), leaving any
+   * preview in place, and recycling it as set by setShouldRecycleBitmaps.  Safe to call from a
+   * render thread.
+   */
+  void discardBitmap() {
+    discardBitmap( mShouldRecycleBitmaps );
+  }
+
+  /**
+   * Drops a bitmap that has not been drawn yet (e.g., from a cancelled decode), leaving any
+   * preview in place.  Safe to call from a render thread.
+   */
+  void discardBitmap( boolean shouldRecycle ) {
     mState = State.UNASSIGNED;
-    if( shouldRecycle && mBitmap != null && !mBitmap.isRecycled() ) {
-      mBitmap.recycle();
+    BitmapHandle bitmapHandle;
+    synchronized( this ) {
+      bitmapHandle = mBitmapHandle;
+      mBitmapHandle = null;
+    }
+    if( bitmapHandle != null ) {
+      bitmapHandle.release( shouldRecycle );
     }
-    mBitmap = null;
   }
 
   /**
@@ -232,8 +439,55 @@ public class Tile {
    * @return True if the tile is dirty (drawing output has changed and needs parent validation)
    */
   boolean draw( Canvas canvas ) {  // TODO: this might squish edge images
-    if( mBitmap != null ) {
-      canvas.drawBitmap( mBitmap, mIntrinsicRect, mRelativeRect, getPaint() );
+    // a reference is held while drawing, so a bitmap released meanwhile is not pooled (and decoded into) mid-draw
+    BitmapHandle bitmapHandle = acquireBitmapHandle();
+    if( bitmapHandle != null ) {
+      try {
+        canvas.drawBitmap( bitmapHandle.getBitmap(), mDecodedRect, mRelativeRect, getPaint() );
+      } finally {
+        bitmapHandle.release();
+      }
+    } else {
+      BitmapHandle previewBitmapHandle = mPreviewBitmapHandle;
+      if( previewBitmapHandle != null && previewBitmapHandle.tryAcquire() ) {
+        try {
+          canvas.drawBitmap( previewBitmapHandle.getBitmap(), mPreviewRect, mRelativeRect, getPaint() );
+        } finally {
+          previewBitmapHandle.release();
+        }
+      }
+    }
+    return getIsDirty();
+  }
+
+  /**
+   * Draws only the part of this tile's bitmap that falls within the area passed, e.g., where a
+   * coarser tile stands in for a finer tile that has not been decoded yet.
+   *
+   * @param canvas   The canvas the tile's bitmap should be drawn into
+   * @param clipRect The area to draw, in unscaled pixels
+   * @return True if the tile is dirty (drawing output has changed and needs parent validation)
+   */
+  boolean drawClipped( Canvas canvas, Rect clipRect ) {
+    if( mBitmapHandle == null || !mClippedDestinationRect.setIntersect( mRelativeRect, clipRect ) ) {
+      return false;
+    }
+    BitmapHandle bitmapHandle = acquireBitmapHandle();
+    if( bitmapHandle == null ) {
+      return false;
+    }
+    float horizontalRatio = mDecodedRect.width() / (float) mRelativeRect.width();
+    float verticalRatio = mDecodedRect.height() / (float) mRelativeRect.height();
+    mClippedSourceRect.set(
+      (int) Math.floor( (mClippedDestinationRect.left - mRelativeRect.left) * horizontalRatio ),
+      (int) Math.floor( (mClippedDestinationRect.top - mRelativeRect.top) * verticalRatio ),
+      (int) Math.ceil( (mClippedDestinationRect.right - mRelativeRect.left) * horizontalRatio ),
+      (int) Math.ceil( (mClippedDestinationRect.bottom - mRelativeRect.top) * verticalRatio )
+    );
+    try {
+      canvas.drawBitmap( bitmapHandle.getBitmap(), mClippedSourceRect, mClippedDestinationRect, getPaint() );
+    } finally {
+      bitmapHandle.release();
     }
     return getIsDirty();
   }
@@ -244,6 +498,7 @@ public class Tile {
     hash = hash * 31 + getColumn();
     hash = hash * 31 + getRow();
     hash = hash * 31 + (int) (1000 * getDetailLevel().getScale());
+    hash = hash * 31 + mSampleSize;
     return hash;
   }
 
@@ -256,7 +511,8 @@ public class Tile {
       Tile m = (Tile) o;
       return m.getRow() == getRow()
         && m.getColumn() == getColumn()
-        && m.getDetailLevel().getScale() == getDetailLevel().getScale();
+        && m.getDetailLevel().getScale() == getDetailLevel().getScale()
+        && m.mSampleSize == mSampleSize;
     }
     return false;
   }
@@ -1,36 +1,60 @@
 package com.qozix.tileview.tiles;
 
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Rect;
 import android.graphics.Region;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
-import android.os.Message;
 import android.util.Log;
 import android.view.View;
+import android.view.animation.AnimationUtils;
 
 import com.qozix.tileview.detail.DetailLevel;
+import com.qozix.tileview.detail.DetailLevelManager;
+import com.qozix.tileview.graphics.BitmapMemoryGovernor;
+import com.qozix.tileview.graphics.BitmapPool;
 import com.qozix.tileview.graphics.BitmapProvider;
 import com.qozix.tileview.graphics.BitmapProviderAssets;
+import com.qozix.tileview.graphics.BitmapProviderOverzoom;
+import com.qozix.tileview.graphics.BitmapProviderSynthesized;
 
-import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class TileCanvasViewGroup extends View {
 
-  private static final int RENDER_FLAG = 1;
-
   public static final int DEFAULT_RENDER_BUFFER = 250;
   public static final int FAST_RENDER_BUFFER = 15;
 
+  public static final int DEFAULT_PROGRESSIVE_TILE_SIZE = 512;
+
+  public static final int DEFAULT_PREVIOUS_LEVEL_BYTE_BUDGET = 16 * 1024 * 1024;
+  public static final int DEFAULT_PREVIOUS_LEVEL_TIME_TO_LIVE = 3000;
+
   private static final int DEFAULT_TRANSITION_DURATION = 200;
 
   private float mScale = 1;
 
   private BitmapProvider mBitmapProvider;
+  private BitmapProviderOverzoom mBitmapProviderOverzoom;
+  private BitmapProviderSynthesized mBitmapProviderSynthesized;
+  private int mCacheSize = BitmapProviderOverzoom.DEFAULT_CACHE_SIZE;
+  private MissingTileCache mMissingTileCache = new MissingTileCache();
+  private EncodedTileCache mEncodedTileCache = new EncodedTileCache();
+
+  private BitmapPool mBitmapPool = new BitmapPool();
+  private BitmapMemoryGovernor mBitmapMemoryGovernor;
+  // the governor's budget before it was reduced by trimMemory, or -1
+  private long mNormalMemoryBudget = -1;
 
   private DetailLevel mDetailLevelToRender;
   private DetailLevel mLastRequestedDetailLevel;
@@ -44,10 +68,21 @@ public class TileCanvasViewGroup extends View {
 
   private boolean mShouldRecycleBitmaps = true;
 
+  private boolean mShouldDrawCoarseFallback = false;
+
+  private boolean mShouldRenderProgressively = false;
+  private int mProgressiveTileSize = DEFAULT_PROGRESSIVE_TILE_SIZE;
+
+  private int mPreviousLevelByteBudget = DEFAULT_PREVIOUS_LEVEL_BYTE_BUDGET;
+  private int mPreviousLevelTimeToLive = DEFAULT_PREVIOUS_LEVEL_TIME_TO_LIVE;
+  // read by the memory governor from render threads
+  private volatile int mPreviousLevelByteCount;
+
   private boolean mTransitionsEnabled = true;
   private int mTransitionDuration = DEFAULT_TRANSITION_DURATION;
 
-  private TileRenderThrottleHandler mTileRenderThrottleHandler;
+  private TileRenderScheduler mTileRenderScheduler;
+  private Handler mMainThreadHandler;
   private TileRenderListener mTileRenderListener;
   private TileRenderThrowableListener mTileRenderThrowableListener;
 
@@ -56,14 +91,37 @@ public class TileCanvasViewGroup extends View {
   private TileRenderPoolExecutor mTileRenderPoolExecutor;
 
   private Set<Tile> mTilesInCurrentViewport = new HashSet<>();
-  private Set<Tile> mPreviousLevelDrawnTiles = new HashSet<>();
+  // areas of the viewport the level being rendered has no tiles for, covered by fallback tiles
+  private List<Rect> mAbsentRectsInCurrentViewport = new ArrayList<>();
+  // values are the times the tiles were retained, oldest first
+  private LinkedHashMap<Tile, Long> mPreviousLevelDrawnTiles = new LinkedHashMap<>();
   private Set<Tile> mDecodedTilesInCurrentViewport = new HashSet<>();
+  private Set<Tile> mFallbackTiles = new HashSet<>();
+  // mFallbackTiles by cell, to find those under a tile without testing each of them
+  private TileGrid mFallbackTileGrid = new TileGrid();
+  private List<Tile> mIntersectingFallbackTiles = new ArrayList<>();
+  private Set<Tile> mRequiredFallbackTiles = new HashSet<>();
 
   public TileCanvasViewGroup( Context context ) {
     super( context );
     setWillNotDraw( false );
-    mTileRenderThrottleHandler = new TileRenderThrottleHandler( this );
+    mTileRenderScheduler = new TileRenderScheduler( this );
+    mTileRenderScheduler.setMaximumDeferral( mRenderBuffer );
+    mMainThreadHandler = new Handler( Looper.getMainLooper() );
     mTileRenderPoolExecutor = new TileRenderPoolExecutor();
+    mBitmapMemoryGovernor = new BitmapMemoryGovernor( BitmapMemoryGovernor.getDefaultBudget() );
+    if( isLowRamDevice( context ) ) {
+      mEncodedTileCache.setCapacity( 0 );
+    }
+    registerEvictables();
+  }
+
+  private static boolean isLowRamDevice( Context context ) {
+    if( Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT ) {
+      return false;
+    }
+    ActivityManager activityManager = (ActivityManager) context.getSystemService( Context.ACTIVITY_SERVICE );
+    return activityManager != null && activityManager.isLowRamDevice();
   }
 
   public void setScale( float factor ) {
@@ -99,7 +157,308 @@ public class TileCanvasViewGroup extends View {
   }
 
   public void setBitmapProvider( BitmapProvider bitmapProvider ) {
+    unregisterEvictables();
     mBitmapProvider = bitmapProvider;
+    clearDerivedCaches();
+    mBitmapProviderOverzoom = null;
+    mBitmapProviderSynthesized = null;
+    registerEvictables();
+    if( mMissingTileCache != null ) {
+      mMissingTileCache.clear();
+    }
+    if( mEncodedTileCache != null ) {
+      mEncodedTileCache.clear();
+    }
+  }
+
+  /**
+   * The BitmapProvider tiles are actually decoded with: the BitmapProvider supplied, wrapped so
+   * that the tiles of overzoomed (derived) DetailLevels are cropped from source tiles, and the
+   * tiles of synthesized DetailLevels are built from finer tiles.  Each wrapper (and its cache)
+   * only exists while the DetailLevelManager actually derives levels of that kind; with neither
+   * enabled this is the BitmapProvider supplied.
+   */
+  BitmapProvider getRenderBitmapProvider() {
+    DetailLevelManager detailLevelManager = mDetailLevelToRender == null ? null : mDetailLevelToRender.getDetailLevelManager();
+    boolean shouldOverzoom = detailLevelManager != null && detailLevelManager.getShouldOverzoom();
+    boolean shouldSynthesizeLevels = detailLevelManager != null && detailLevelManager.getShouldSynthesizeLevels();
+    if( shouldOverzoom != (mBitmapProviderOverzoom != null)
+      || shouldSynthesizeLevels != (mBitmapProviderSynthesized != null) ) {
+      unregisterEvictables();
+      clearDerivedCaches();
+      BitmapProvider bitmapProvider = getBitmapProvider();
+      mBitmapProviderSynthesized = null;
+      mBitmapProviderOverzoom = null;
+      if( shouldSynthesizeLevels ) {
+        mBitmapProviderSynthesized = new BitmapProviderSynthesized( bitmapProvider, mCacheSize );
+        bitmapProvider = mBitmapProviderSynthesized;
+      }
+      if( shouldOverzoom ) {
+        mBitmapProviderOverzoom = new BitmapProviderOverzoom( bitmapProvider, mCacheSize );
+      }
+      registerEvictables();
+    }
+    if( mBitmapProviderOverzoom != null ) {
+      return mBitmapProviderOverzoom;
+    }
+    if( mBitmapProviderSynthesized != null ) {
+      return mBitmapProviderSynthesized;
+    }
+    return getBitmapProvider();
+  }
+
+  private void clearDerivedCaches() {
+    if( mBitmapProviderOverzoom != null ) {
+      mBitmapProviderOverzoom.clearCache();
+    }
+    if( mBitmapProviderSynthesized != null ) {
+      mBitmapProviderSynthesized.clearCache();
+    }
+  }
+
+  public int getCacheSize() {
+    return mCacheSize;
+  }
+
+  /**
+   * Sets the number of bytes each of the caches behind overzoomed and synthesized tiles may hold.
+   * Cached bitmaps are dropped, and the caches are rebuilt at the new size.
+   *
+   * @param cacheSize The number of bytes of cached bitmaps.
+   */
+  public void setCacheSize( int cacheSize ) {
+    mCacheSize = cacheSize;
+    unregisterEvictables();
+    clearDerivedCaches();
+    mBitmapProviderOverzoom = null;
+    mBitmapProviderSynthesized = null;
+    registerEvictables();
+  }
+
+  public MissingTileCache getMissingTileCache() {
+    return mMissingTileCache;
+  }
+
+  /**
+   * Tiles the BitmapProvider has nothing for are remembered in this cache, and are neither asked
+   * for again nor covered with fallback tiles while they are in it.  The cache is cleared when
+   * the BitmapProvider is replaced; clear it if the provider's tiles change otherwise.
+   *
+   * @param missingTileCache The cache to use, or null to ask for missing tiles on every render pass.
+   */
+  public void setMissingTileCache( MissingTileCache missingTileCache ) {
+    mMissingTileCache = missingTileCache;
+  }
+
+  public EncodedTileCache getEncodedTileCache() {
+    return mEncodedTileCache;
+  }
+
+  /**
+   * The encoded bytes of tiles fetched from a StagedBitmapProvider are kept in this cache, so
+   * tiles that come back into view are decoded again without being read again.  The cache is
+   * cleared when the BitmapProvider is replaced; clear it if the provider's tiles change otherwise.
+   * Its off-heap buffer counts against the memory governor's budget.
+   *
+   * The default cache holds EncodedTileCache.DEFAULT_CAPACITY bytes, except on low RAM devices,
+   * where it is off.
+   *
+   * @param encodedTileCache The cache to use, or null to read tiles again each time they are decoded.
+   */
+  public void setEncodedTileCache( EncodedTileCache encodedTileCache ) {
+    unregisterEvictables();
+    mEncodedTileCache = encodedTileCache;
+    registerEvictables();
+  }
+
+  /**
+   * Resizes the encoded tile cache, if there is one, dropping the tiles in it.
+   *
+   * @param encodedCacheSize The number of bytes of off-heap memory the cache may use; 0 to cache nothing.
+   */
+  public void setEncodedCacheSize( int encodedCacheSize ) {
+    if( mEncodedTileCache != null ) {
+      mEncodedTileCache.setCapacity( encodedCacheSize );
+    }
+  }
+
+  /**
+   * Resizes the pool of threads tiles are decoded on; by default, one per core.
+   *
+   * @param renderPoolSize The number of threads decoding tiles at once.
+   */
+  public void setRenderPoolSize( int renderPoolSize ) {
+    mTileRenderPoolExecutor.setPoolSize( renderPoolSize );
+  }
+
+  /**
+   * Resizes the pool of threads the tiles of a StagedBitmapProvider are read on, before being
+   * decoded on the render threads; by default, TileRenderPoolExecutor.DEFAULT_FETCH_POOL_SIZE.
+   *
+   * @param fetchPoolSize The maximum number of threads reading tiles at once.
+   */
+  public void setFetchPoolSize( int fetchPoolSize ) {
+    mTileRenderPoolExecutor.setFetchPoolSize( fetchPoolSize );
+  }
+
+  public BitmapPool getBitmapPool() {
+    return mBitmapPool;
+  }
+
+  /**
+   * Released tile bitmaps are returned to this pool (when bitmaps are recycled, see
+   * setShouldRecycleBitmaps), and BitmapProviders that support it decode new tiles into them.
+   *
+   * @param bitmapPool The pool to use, or null to recycle released bitmaps instead.
+   */
+  public void setBitmapPool( BitmapPool bitmapPool ) {
+    unregisterEvictables();
+    mBitmapPool = bitmapPool;
+    registerEvictables();
+  }
+
+  public BitmapMemoryGovernor getBitmapMemoryGovernor() {
+    return mBitmapMemoryGovernor;
+  }
+
+  /**
+   * All tile bitmaps (on screen, from the previous level, pooled, cached and in flight), and the
+   * encoded tile cache's buffer, are accounted with this governor.  When it is out of budget, it first evicts pooled bitmaps, then
+   * cached bitmaps, then tiles kept from the previous level, and new decodes wait until memory
+   * has been released rather than failing.
+   *
+   * The default governor's budget is a quarter of the maximum heap size.
+   *
+   * @param bitmapMemoryGovernor The governor to use, or null to leave tile bitmap memory unbounded.
+   */
+  public void setBitmapMemoryGovernor( BitmapMemoryGovernor bitmapMemoryGovernor ) {
+    restoreMemoryCapacity();
+    unregisterEvictables();
+    mBitmapMemoryGovernor = bitmapMemoryGovernor;
+    registerEvictables();
+  }
+
+  /**
+   * Releases all tile bitmap memory not needed to draw the tiles currently on screen: pooled
+   * bitmaps, cached bitmaps, and tiles kept from the previous detail level.  Under running
+   * memory pressure (TRIM_MEMORY_RUNNING_LOW and TRIM_MEMORY_RUNNING_CRITICAL) the memory
+   * governor's budget is also reduced, until restoreMemoryCapacity is called.  The levels sent
+   * once the UI is hidden or the process is in the background only release memory; the budget is
+   * left as is, so the tiles can be decoded again as usual once the UI is visible.
+   *
+   * @param level A ComponentCallbacks2 trim memory level.
+   */
+  public void trimMemory( int level ) {
+    if( mBitmapPool != null ) {
+      mBitmapPool.clear();
+    }
+    clearDerivedCaches();
+    if( mEncodedTileCache != null ) {
+      mEncodedTileCache.trim();
+    }
+    mTileRenderPoolExecutor.getBytePool().clear();
+    releasePreviousLevelTiles();
+    invalidate();
+    int divisor = getMemoryPressureDivisor( level );
+    if( mBitmapMemoryGovernor != null && divisor > 1 ) {
+      if( mNormalMemoryBudget < 0 ) {
+        mNormalMemoryBudget = mBitmapMemoryGovernor.getBudget();
+      }
+      mBitmapMemoryGovernor.setBudget( Math.min( mBitmapMemoryGovernor.getBudget(), mNormalMemoryBudget / divisor ) );
+    }
+  }
+
+  /**
+   * The factor running memory pressure calls for reducing memory use by: 2 at
+   * TRIM_MEMORY_RUNNING_LOW, 4 at TRIM_MEMORY_RUNNING_CRITICAL, and 1 otherwise, including the
+   * UI hidden and background levels, which are numerically higher but say nothing about the
+   * memory available while the UI is in use.
+   *
+   * @param level A ComponentCallbacks2 trim memory level.
+   * @return The factor to reduce memory use by.
+   */
+  public static int getMemoryPressureDivisor( int level ) {
+    switch( level ) {
+      case ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL:
+        return 4;
+      case ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW:
+        return 2;
+      default:
+        return 1;
+    }
+  }
+
+  /**
+   * Sets the budget of the memory governor, if there is one.  While trimMemory has the budget
+   * reduced, the budget passed is the one restored by restoreMemoryCapacity.
+   *
+   * @param memoryBudget The number of bytes of pixel memory all tile bitmaps may hold.
+   */
+  public void setMemoryBudget( long memoryBudget ) {
+    if( mBitmapMemoryGovernor == null ) {
+      return;
+    }
+    if( mNormalMemoryBudget >= 0 ) {
+      mNormalMemoryBudget = memoryBudget;
+      memoryBudget = Math.min( memoryBudget, mBitmapMemoryGovernor.getBudget() );
+    }
+    mBitmapMemoryGovernor.setBudget( memoryBudget );
+  }
+
+  /**
+   * Restores the memory governor's budget after trimMemory reduced it.
+   */
+  public void restoreMemoryCapacity() {
+    if( mBitmapMemoryGovernor != null && mNormalMemoryBudget >= 0 ) {
+      mBitmapMemoryGovernor.setBudget( mNormalMemoryBudget );
+    }
+    mNormalMemoryBudget = -1;
+  }
+
+  private void registerEvictables() {
+    if( mBitmapMemoryGovernor == null ) {
+      return;
+    }
+    if( mBitmapPool != null ) {
+      mBitmapPool.setBitmapMemoryGovernor( mBitmapMemoryGovernor );
+      mBitmapMemoryGovernor.register( mBitmapPool, BitmapMemoryGovernor.PRIORITY_POOL );
+    }
+    if( mBitmapProviderOverzoom != null ) {
+      mBitmapProviderOverzoom.setBitmapMemoryGovernor( mBitmapMemoryGovernor );
+      mBitmapMemoryGovernor.register( mBitmapProviderOverzoom, BitmapMemoryGovernor.PRIORITY_CACHE );
+    }
+    if( mBitmapProviderSynthesized != null ) {
+      mBitmapProviderSynthesized.setBitmapMemoryGovernor( mBitmapMemoryGovernor );
+      mBitmapMemoryGovernor.register( mBitmapProviderSynthesized, BitmapMemoryGovernor.PRIORITY_CACHE );
+    }
+    if( mEncodedTileCache != null ) {
+      mEncodedTileCache.setBitmapMemoryGovernor( mBitmapMemoryGovernor );
+      mBitmapMemoryGovernor.register( mEncodedTileCache, BitmapMemoryGovernor.PRIORITY_CACHE );
+    }
+    mBitmapMemoryGovernor.register( mPreviousLevelEvictable, BitmapMemoryGovernor.PRIORITY_PREVIOUS_LEVEL );
+  }
+
+  private void unregisterEvictables() {
+    if( mBitmapMemoryGovernor == null ) {
+      return;
+    }
+    if( mBitmapPool != null ) {
+      mBitmapPool.setBitmapMemoryGovernor( null );
+      mBitmapMemoryGovernor.unregister( mBitmapPool );
+    }
+    if( mBitmapProviderOverzoom != null ) {
+      mBitmapProviderOverzoom.setBitmapMemoryGovernor( null );
+      mBitmapMemoryGovernor.unregister( mBitmapProviderOverzoom );
+    }
+    if( mBitmapProviderSynthesized != null ) {
+      mBitmapProviderSynthesized.setBitmapMemoryGovernor( null );
+      mBitmapMemoryGovernor.unregister( mBitmapProviderSynthesized );
+    }
+    if( mEncodedTileCache != null ) {
+      mEncodedTileCache.setBitmapMemoryGovernor( null );
+      mBitmapMemoryGovernor.unregister( mEncodedTileCache );
+    }
+    mBitmapMemoryGovernor.unregister( mPreviousLevelEvictable );
   }
 
   public void setTileRenderListener( TileRenderListener tileRenderListener ) {
@@ -110,8 +469,29 @@ public class TileCanvasViewGroup extends View {
     return mRenderBuffer;
   }
 
+  /**
+   * The longest time, in milliseconds, a render pass may be deferred while the viewport is moving
+   * faster than the maximum render velocity.  Slow or stationary viewports render on the next frame.
+   *
+   * @param renderBuffer The maximum deferral of a render pass, in milliseconds.
+   */
   public void setRenderBuffer( int renderBuffer ) {
     mRenderBuffer = renderBuffer;
+    mTileRenderScheduler.setMaximumDeferral( renderBuffer );
+  }
+
+  public float getMaximumRenderVelocity() {
+    return mTileRenderScheduler.getMaximumRenderVelocity();
+  }
+
+  /**
+   * Viewport velocity, in pixels per millisecond, above which render passes are deferred
+   * (for at most the render buffer).
+   *
+   * @param maximumRenderVelocity Velocity in pixels per millisecond.
+   */
+  public void setMaximumRenderVelocity( float maximumRenderVelocity ) {
+    mTileRenderScheduler.setMaximumRenderVelocity( maximumRenderVelocity );
   }
 
   public boolean getShouldRecycleBitmaps() {
@@ -122,6 +502,84 @@ public class TileCanvasViewGroup extends View {
     mShouldRecycleBitmaps = shouldRecycleBitmaps;
   }
 
+  public boolean getShouldDrawCoarseFallback() {
+    return mShouldDrawCoarseFallback;
+  }
+
+  /**
+   * When enabled, any visible tile that has not been decoded yet is covered by the tiles of the
+   * next coarser detail level, cropped and scaled to its area, so the screen is not blank while
+   * the finer tiles are decoded.  Coarse tiles still on screen from the previous detail level are
+   * used as they are; any others are decoded ahead of the finer tiles, which adds decoding work
+   * whenever new tiles come into view.
+   *
+   * Areas a sparse detail level has no tiles for (see DetailLevel.setTileCoverage) are covered by
+   * coarser tiles whether this is enabled or not, since they would otherwise stay blank.
+   *
+   * The default value is false.
+   *
+   * @param shouldDrawCoarseFallback True to draw coarser tiles in place of tiles that are not yet decoded.
+   */
+  public void setShouldDrawCoarseFallback( boolean shouldDrawCoarseFallback ) {
+    mShouldDrawCoarseFallback = shouldDrawCoarseFallback;
+  }
+
+  public boolean getShouldRenderProgressively() {
+    return mShouldRenderProgressively;
+  }
+
+  /**
+   * When enabled, tiles at least as large as the progressive tile size are rendered in two passes:
+   * a fast, low resolution decode (see Tile.PREVIEW_SAMPLE_FACTOR) that is drawn as soon as it is
+   * ready, followed by the full resolution decode that replaces it in place.  Previews are decoded
+   * at a higher priority than full decodes.  The BitmapProvider must honor Tile.getSampleSize.
+   *
+   * The default value is false.
+   *
+   * @param shouldRenderProgressively True to decode a preview before each large tile.
+   */
+  public void setShouldRenderProgressively( boolean shouldRenderProgressively ) {
+    mShouldRenderProgressively = shouldRenderProgressively;
+  }
+
+  public int getProgressiveTileSize() {
+    return mProgressiveTileSize;
+  }
+
+  /**
+   * @param progressiveTileSize Tiles with a width or height at least this large are rendered progressively.
+   */
+  public void setProgressiveTileSize( int progressiveTileSize ) {
+    mProgressiveTileSize = progressiveTileSize;
+  }
+
+  public int getPreviousLevelByteBudget() {
+    return mPreviousLevelByteBudget;
+  }
+
+  /**
+   * Decoded tiles of the previous detail level are kept and drawn until the new level covers
+   * them.  When the bitmaps retained this way exceed this many bytes, the oldest are released.
+   *
+   * @param previousLevelByteBudget The maximum number of bytes of previous level bitmaps to retain.
+   */
+  public void setPreviousLevelByteBudget( int previousLevelByteBudget ) {
+    mPreviousLevelByteBudget = previousLevelByteBudget;
+    trimPreviousLevelTiles();
+  }
+
+  public int getPreviousLevelTimeToLive() {
+    return mPreviousLevelTimeToLive;
+  }
+
+  /**
+   * @param previousLevelTimeToLive The longest time, in milliseconds, a tile of the previous detail level is retained.
+   */
+  public void setPreviousLevelTimeToLive( int previousLevelTimeToLive ) {
+    mPreviousLevelTimeToLive = previousLevelTimeToLive;
+    trimPreviousLevelTiles();
+  }
+
   public void setTileRenderThrowableListener( TileRenderThrowableListener tileRenderThrowableListener ) {
     mTileRenderThrowableListener = tileRenderThrowableListener;
   }
@@ -142,9 +600,21 @@ public class TileCanvasViewGroup extends View {
     if( mDetailLevelToRender.getDetailLevelManager().getIsLocked() ) {
       return;
     }
-    if( !mTileRenderThrottleHandler.hasMessages( RENDER_FLAG ) ) {
-      mTileRenderThrottleHandler.sendEmptyMessageDelayed( RENDER_FLAG, mRenderBuffer );
+    mTileRenderScheduler.requestFrame();
+  }
+
+  /**
+   * Drops a pending render request, if any, without affecting decodes already in progress.
+   */
+  public void cancelRenderRequest() {
+    mTileRenderScheduler.cancel();
+  }
+
+  Rect getViewport() {
+    if( mDetailLevelToRender == null ) {
+      return null;
     }
+    return mDetailLevelToRender.getDetailLevelManager().getViewport();
   }
 
   /**
@@ -166,6 +636,13 @@ public class TileCanvasViewGroup extends View {
   }
 
 
+  /**
+   * @return The tiles of the level being rendered that are in (or near) the viewport, decoded or not.
+   */
+  Set<Tile> getTilesInCurrentViewport() {
+    return mTilesInCurrentViewport;
+  }
+
   public boolean getIsRendering() {
     return mIsRendering;
   }
@@ -173,7 +650,17 @@ public class TileCanvasViewGroup extends View {
   public void clear() {
     suppressRender();
     cancelRender();
+    // tiles still decoding are destroyed too, so their bitmaps are released as soon as they arrive
+    for( Tile tile : mTilesInCurrentViewport ) {
+      tile.destroy( mShouldRecycleBitmaps );
+    }
     mTilesInCurrentViewport.clear();
+    mAbsentRectsInCurrentViewport.clear();
+    for( Tile tile : mFallbackTiles ) {
+      tile.destroy( mShouldRecycleBitmaps );
+    }
+    mFallbackTiles.clear();
+    mFallbackTileGrid.clear();
     invalidate();
   }
 
@@ -201,13 +688,19 @@ public class TileCanvasViewGroup extends View {
           mFullyOpaqueRegion.op( tile.getScaledRect( mScale ), Region.Op.UNION );
         }
         mDecodedTilesInCurrentViewport.add( tile );
+      } else if( tile.getState() == Tile.State.MISSING ) {
+        // intentionally blank, so whatever is underneath is covered
+        mFullyOpaqueRegion.op( tile.getScaledRect( mScale ), Region.Op.UNION );
+      } else if( tile.hasPreviewBitmap() ) {
+        tile.composeWithOpacity();
+        mDecodedTilesInCurrentViewport.add( tile );
       }
     }
     Rect computedViewport = mDetailLevelToRender.getDetailLevelManager().getComputedViewport();
     Log.d( getClass().getSimpleName(), ">>>>>>>>>>>>>>>" );
     Log.d( getClass().getSimpleName(), "viewport=" + computedViewport.toShortString());
     Log.d( getClass().getSimpleName(), ">>>>>>>>>>>>>>>" );
-    Iterator<Tile> tilesFromLastDetailLevelIterator = mPreviousLevelDrawnTiles.iterator();
+    Iterator<Tile> tilesFromLastDetailLevelIterator = mPreviousLevelDrawnTiles.keySet().iterator();
     while( tilesFromLastDetailLevelIterator.hasNext() ) {
       Tile tile = tilesFromLastDetailLevelIterator.next();
       Rect rect = tile.getScaledRect( mScale );
@@ -220,12 +713,18 @@ public class TileCanvasViewGroup extends View {
         boolean dirty = tile.draw( canvas );
         shouldInvalidate = shouldInvalidate || dirty;
       } else {
+        // covered or scrolled out, it won't be drawn again
+        releasePreviousLevelTile( tile );
         tilesFromLastDetailLevelIterator.remove();
       }
       Log.d( getClass().getSimpleName(), "<" + shouldDrawPreviousTile + "> previous tile at " + tile.toShortString() );
     }
     mFullyOpaqueRegion.setEmpty();
     Log.d( getClass().getSimpleName(), "drawing " + mPreviousLevelDrawnTiles.size() + " previous tiles" );
+    if( !mFallbackTiles.isEmpty() ) {
+      boolean dirty = drawFallbackTiles( canvas );
+      shouldInvalidate = shouldInvalidate || dirty;
+    }
     for( Tile tile : mDecodedTilesInCurrentViewport ) {
       boolean dirty = tile.draw( canvas );
       shouldInvalidate = shouldInvalidate || dirty;
@@ -236,6 +735,111 @@ public class TileCanvasViewGroup extends View {
     }
   }
 
+  /**
+   * Draws the decoded fallback tiles, cropped to the visible tiles that are not yet (fully) drawn,
+   * and to the areas the level being rendered has no tiles for.
+   */
+  private boolean drawFallbackTiles( Canvas canvas ) {
+    boolean shouldInvalidate = false;
+    for( int i = 0; i < mAbsentRectsInCurrentViewport.size(); i++ ) {
+      boolean dirty = drawFallbackTilesClipped( canvas, mAbsentRectsInCurrentViewport.get( i ) );
+      shouldInvalidate = shouldInvalidate || dirty;
+    }
+    if( !mShouldDrawCoarseFallback ) {
+      return shouldInvalidate;
+    }
+    for( Tile tile : mTilesInCurrentViewport ) {
+      boolean isCovered = tile.getState() == Tile.State.DECODED || tile.getState() == Tile.State.MISSING || tile.hasPreviewBitmap();
+      if( isCovered && !tile.getIsDirty() ) {
+        continue;
+      }
+      boolean dirty = drawFallbackTilesClipped( canvas, tile.getRelativeRect() );
+      shouldInvalidate = shouldInvalidate || dirty;
+    }
+    return shouldInvalidate;
+  }
+
+  private boolean drawFallbackTilesClipped( Canvas canvas, Rect rect ) {
+    boolean shouldInvalidate = false;
+    mFallbackTileGrid.collectTilesIntersecting( rect, mIntersectingFallbackTiles );
+    for( int i = 0; i < mIntersectingFallbackTiles.size(); i++ ) {
+      Tile fallbackTile = mIntersectingFallbackTiles.get( i );
+      if( fallbackTile.getState() == Tile.State.DECODED ) {
+        boolean dirty = fallbackTile.drawClipped( canvas, rect );
+        shouldInvalidate = shouldInvalidate || dirty;
+      }
+    }
+    mIntersectingFallbackTiles.clear();
+    return shouldInvalidate;
+  }
+
+  /**
+   * Finds the tiles of the next coarser detail level that cover visible tiles with nothing to
+   * draw yet (if coarse fallback is enabled), and the coarser tiles that cover the areas the
+   * level being rendered has no tiles for (always, since nothing else ever covers them), and
+   * releases fallback tiles that no longer cover any.
+   *
+   * @param shouldAddTiles False to only release fallback tiles that are no longer needed.
+   * @return True if fallback tiles were added.
+   */
+  private boolean updateFallbackTiles( boolean shouldAddTiles ) {
+    mRequiredFallbackTiles.clear();
+    if( mDetailLevelToRender != null && (mShouldDrawCoarseFallback || !mAbsentRectsInCurrentViewport.isEmpty()) ) {
+      DetailLevel coarserDetailLevel = mDetailLevelToRender.getDetailLevelManager().getCoarserDetailLevel( mDetailLevelToRender );
+      if( coarserDetailLevel != null ) {
+        if( mShouldDrawCoarseFallback ) {
+          for( Tile tile : mTilesInCurrentViewport ) {
+            if( tile.getState() != Tile.State.DECODED && tile.getState() != Tile.State.MISSING && !tile.hasPreviewBitmap() ) {
+              coarserDetailLevel.computeTilesCoveringRect( tile.getRelativeRect(), mRequiredFallbackTiles );
+            }
+          }
+        }
+        for( int i = 0; i < mAbsentRectsInCurrentViewport.size(); i++ ) {
+          computeFallbackTilesCoveringAbsentRect( coarserDetailLevel, mAbsentRectsInCurrentViewport.get( i ), mRequiredFallbackTiles );
+        }
+      }
+    }
+    Iterator<Tile> fallbackTilesIterator = mFallbackTiles.iterator();
+    while( fallbackTilesIterator.hasNext() ) {
+      Tile tile = fallbackTilesIterator.next();
+      if( !mRequiredFallbackTiles.contains( tile ) ) {
+        tile.destroy( mShouldRecycleBitmaps );
+        fallbackTilesIterator.remove();
+        mFallbackTileGrid.remove( tile );
+      }
+    }
+    boolean wereTilesAdded = false;
+    if( shouldAddTiles ) {
+      for( Tile tile : mRequiredFallbackTiles ) {
+        // tiles left over from the previous detail level are already drawn underneath
+        if( mPreviousLevelDrawnTiles.containsKey( tile ) ) {
+          continue;
+        }
+        if( mFallbackTiles.add( tile ) ) {
+          mFallbackTileGrid.add( tile );
+          wereTilesAdded = true;
+        }
+      }
+    }
+    mRequiredFallbackTiles.clear();
+    return wereTilesAdded;
+  }
+
+  /**
+   * Areas the level being rendered has no tiles for stay uncovered for good, unlike undecoded
+   * tiles, so they are covered by the first coarser level that has tiles for all of the area, or
+   * by whatever the coarsest level has for it.
+   */
+  private void computeFallbackTilesCoveringAbsentRect( DetailLevel coarserDetailLevel, Rect rect, Set<Tile> tiles ) {
+    DetailLevelManager detailLevelManager = coarserDetailLevel.getDetailLevelManager();
+    DetailLevel detailLevel = coarserDetailLevel;
+    DetailLevel nextDetailLevel;
+    while( !detailLevel.hasTilesCoveringRect( rect ) && (nextDetailLevel = detailLevelManager.getCoarserDetailLevel( detailLevel )) != null ) {
+      detailLevel = nextDetailLevel;
+    }
+    detailLevel.computeTilesCoveringRect( rect, tiles );
+  }
+
   public void updateTileSet( DetailLevel detailLevel ) {  // TODO: need this?
     if( detailLevel == null ) {
       return;
@@ -244,13 +848,31 @@ public class TileCanvasViewGroup extends View {
       return;
     }
     cancelRender();
-    mPreviousLevelDrawnTiles.clear();
+    // source bitmaps are only useful while overzoomed
+    if( mBitmapProviderOverzoom != null && detailLevel.getDerivationDepth() <= 0 ) {
+      mBitmapProviderOverzoom.clearCache();
+    }
+    // synthesized bitmaps are only useful while zoomed out beyond the smallest level
+    if( mBitmapProviderSynthesized != null && detailLevel.getDerivationDepth() >= 0 ) {
+      mBitmapProviderSynthesized.clearCache();
+    }
+    releasePreviousLevelTiles();
+    // tiles that are not kept (pending, previewed only, or duplicates) would otherwise hold their bitmaps for good
     for( Tile tile : mTilesInCurrentViewport ) {
-      if( tile.getState() == Tile.State.DECODED ) {
-        mPreviousLevelDrawnTiles.add( tile );
+      if( !retainPreviousLevelTile( tile ) ) {
+        tile.destroy( mShouldRecycleBitmaps );
       }
     }
+    for( Tile tile : mFallbackTiles ) {
+      if( !retainPreviousLevelTile( tile ) ) {
+        tile.destroy( mShouldRecycleBitmaps );
+      }
+    }
+    trimPreviousLevelTiles();
+    mFallbackTiles.clear();
+    mFallbackTileGrid.clear();
     mTilesInCurrentViewport.clear();
+    mAbsentRectsInCurrentViewport.clear();
     mDetailLevelToRender = detailLevel;
     requestRender();
   }
@@ -270,9 +892,12 @@ public class TileCanvasViewGroup extends View {
     cleanup();
 
     boolean wereTilesAdded = mTilesInCurrentViewport.addAll( mDetailLevelToRender.getVisibleTilesFromLastViewportComputation() );
+    mAbsentRectsInCurrentViewport.clear();
+    mAbsentRectsInCurrentViewport.addAll( mDetailLevelToRender.getAbsentRectsFromLastViewportComputation() );
+    boolean wereFallbackTilesAdded = updateFallbackTiles( true );
 
-    if( wereTilesAdded && mTileRenderPoolExecutor != null ) {
-      mTileRenderPoolExecutor.queue( this, mTilesInCurrentViewport );
+    if( (wereTilesAdded || wereFallbackTilesAdded) && mTileRenderPoolExecutor != null ) {
+      mTileRenderPoolExecutor.queue( this, mTilesInCurrentViewport, mFallbackTiles );
     }
 
   }
@@ -282,9 +907,11 @@ public class TileCanvasViewGroup extends View {
    */
   public void cleanup() {
     Set<Tile> recentlyComputedVisibleTileSet;
+    int sampleSize;
     // these tiles are mathematically within the current viewport, and should be already computed
     try {
       recentlyComputedVisibleTileSet = mDetailLevelToRender.getVisibleTilesFromLastViewportComputation();
+      sampleSize = mDetailLevelToRender.getSampleSizeFromLastViewportComputation();
     } catch( DetailLevel.StateNotComputedException e ) {
       Log.d( "TCVG", "caught" );
       return;
@@ -293,20 +920,180 @@ public class TileCanvasViewGroup extends View {
     Iterator<Tile> tilesInCurrentViewportIterator = mTilesInCurrentViewport.iterator();
     while( tilesInCurrentViewportIterator.hasNext() ) {
       Tile tile = tilesInCurrentViewportIterator.next();
-      // this tile was visible previously, but is no longer, destroy and de-list it
+      // zoomed in since this tile was decoded downsampled; keep showing it until the sharper one replaces it
+      if( tile.getSampleSize() > sampleSize && recentlyComputedVisibleTileSet.contains( resample( tile, sampleSize ) ) ) {
+        if( !retainPreviousLevelTile( tile ) ) {
+          tile.destroy( mShouldRecycleBitmaps );
+        }
+        tilesInCurrentViewportIterator.remove();
+        continue;
+      }
+      // this tile was visible previously (or at another sample size), but is no longer, destroy and de-list it
       if( !recentlyComputedVisibleTileSet.contains( tile ) ) {
         tile.destroy( mShouldRecycleBitmaps );
         // an argument could be made to invalidate this rect, but since it's no longer on the heap, lets leave the artifacts and get some benefit from gpu caching
         tilesInCurrentViewportIterator.remove();
       }
     }
+    trimPreviousLevelTiles();
+
+  }
+
+
+  /**
+   * @return A tile equal to the one that would replace the tile passed at the sample size passed, to look it up with.
+   */
+  private static Tile resample( Tile tile, int sampleSize ) {
+    return new Tile( tile.getColumn(), tile.getRow(), tile.getWidth(), tile.getHeight(), tile.getData(), tile.getDetailLevel(), sampleSize );
+  }
 
+  /**
+   * Keeps a decoded tile that is no longer part of the rendered tile set, to be drawn until the
+   * tiles replacing it cover it.
+   *
+   * @return False if the tile was not retained, and should be destroyed.
+   */
+  private boolean retainPreviousLevelTile( Tile tile ) {
+    if( tile.getState() != Tile.State.DECODED || mPreviousLevelDrawnTiles.containsKey( tile ) ) {
+      return false;
+    }
+    if( mPreviousLevelDrawnTiles.isEmpty() ) {
+      mMainThreadHandler.postDelayed( mPreviousLevelExpiryRunnable, mPreviousLevelTimeToLive );
+    }
+    mPreviousLevelDrawnTiles.put( tile, AnimationUtils.currentAnimationTimeMillis() );
+    mPreviousLevelByteCount += tile.getBitmapByteCount();
+    return true;
   }
 
+  // the tile must be removed from mPreviousLevelDrawnTiles by the caller
+  private void releasePreviousLevelTile( Tile tile ) {
+    mPreviousLevelByteCount = Math.max( mPreviousLevelByteCount - tile.getBitmapByteCount(), 0 );
+    tile.destroy( mShouldRecycleBitmaps );
+  }
+
+  private void releasePreviousLevelTiles() {
+    for( Tile tile : mPreviousLevelDrawnTiles.keySet() ) {
+      tile.destroy( mShouldRecycleBitmaps );
+    }
+    mPreviousLevelDrawnTiles.clear();
+    mPreviousLevelByteCount = 0;
+    mMainThreadHandler.removeCallbacks( mPreviousLevelExpiryRunnable );
+  }
+
+  /**
+   * Releases the oldest retained tiles of the previous level while the byte budget is exceeded,
+   * and any that have been retained longer than the time to live.
+   */
+  private void trimPreviousLevelTiles() {
+    long now = AnimationUtils.currentAnimationTimeMillis();
+    boolean wereTilesReleased = false;
+    Iterator<Map.Entry<Tile, Long>> iterator = mPreviousLevelDrawnTiles.entrySet().iterator();
+    while( iterator.hasNext() ) {
+      Map.Entry<Tile, Long> entry = iterator.next();
+      boolean isOverBudget = mPreviousLevelByteCount > mPreviousLevelByteBudget;
+      boolean isExpired = now - entry.getValue() >= mPreviousLevelTimeToLive;
+      // entries are in retention order, so the rest are newer
+      if( !isOverBudget && !isExpired ) {
+        break;
+      }
+      releasePreviousLevelTile( entry.getKey() );
+      iterator.remove();
+      wereTilesReleased = true;
+    }
+    if( wereTilesReleased ) {
+      invalidate();
+    }
+  }
+
+  /**
+   * Releases the oldest retained tiles of the previous level until at least the number of bytes
+   * passed have been freed, or none are left.
+   */
+  private void releasePreviousLevelBytes( long bytes ) {
+    long released = 0;
+    Iterator<Tile> iterator = mPreviousLevelDrawnTiles.keySet().iterator();
+    while( released < bytes && iterator.hasNext() ) {
+      Tile tile = iterator.next();
+      released += tile.getBitmapByteCount();
+      releasePreviousLevelTile( tile );
+      iterator.remove();
+    }
+    if( released > 0 ) {
+      invalidate();
+    }
+  }
+
+  // called by the memory governor on a render thread, the tiles are released on the UI thread
+  private BitmapMemoryGovernor.Evictable mPreviousLevelEvictable = new BitmapMemoryGovernor.Evictable() {
+    @Override
+    public long evict( final long bytes ) {
+      long available = Math.min( mPreviousLevelByteCount, bytes );
+      if( available > 0 ) {
+        mMainThreadHandler.post( new Runnable() {
+          @Override
+          public void run() {
+            releasePreviousLevelBytes( bytes );
+          }
+        } );
+      }
+      return available;
+    }
+  };
+
+  private Runnable mPreviousLevelExpiryRunnable = new Runnable() {
+    @Override
+    public void run() {
+      trimPreviousLevelTiles();
+      if( !mPreviousLevelDrawnTiles.isEmpty() ) {
+        long oldest = mPreviousLevelDrawnTiles.values().iterator().next();
+        long remaining = oldest + mPreviousLevelTimeToLive - AnimationUtils.currentAnimationTimeMillis();
+        mMainThreadHandler.postDelayed( this, Math.max( remaining, 0 ) );
+      }
+    }
+  };
 
   // this tile has been decoded by the time it gets passed here
   void addTileToCanvas( final Tile tile ) {
+    // fallback tiles appear at once, underneath the tiles they stand in for
+    if( mFallbackTiles.contains( tile ) ) {
+      invalidate();
+      return;
+    }
+    // the tile was dropped while its bitmap was on the way; nothing else will release it
+    if( !mTilesInCurrentViewport.contains( tile ) ) {
+      if( mPreviousLevelDrawnTiles.containsKey( tile ) ) {
+        tile.releasePreviewBitmap( mShouldRecycleBitmaps );
+      } else {
+        tile.destroy( mShouldRecycleBitmaps );
+      }
+      return;
+    }
+    // a previewed tile is already fading in, the full bitmap just replaces the preview in place
+    boolean wasPreviewed = tile.hasPreviewBitmap();
+    tile.releasePreviewBitmap( mShouldRecycleBitmaps );
+    if( !wasPreviewed ) {
+      tile.setTransitionsEnabled( mTransitionsEnabled );
+      tile.setTransitionDuration( mTransitionDuration );
+      tile.stampTime();
+    }
+    invalidate();
+  }
+
+  // the BitmapProvider had nothing for this tile, which no longer needs anything drawn in its place
+  void addMissingTileToCanvas( final Tile tile ) {
+    if( mTilesInCurrentViewport.contains( tile ) ) {
+      invalidate();
+    }
+  }
+
+  // the low resolution preview of this tile has been decoded by the time it gets passed here
+  void addPreviewToCanvas( final Tile tile ) {
     if( !mTilesInCurrentViewport.contains( tile ) ) {
+      tile.releasePreviewBitmap( mShouldRecycleBitmaps );
+      return;
+    }
+    if( tile.hasBitmap() ) {
+      tile.releasePreviewBitmap( mShouldRecycleBitmaps );
       return;
     }
     tile.setTransitionsEnabled( mTransitionsEnabled );
@@ -332,7 +1119,7 @@ public class TileCanvasViewGroup extends View {
 
   void onRenderTaskPostExecute() {
     mIsRendering = false;
-    mTileRenderThrottleHandler.post( mRenderPostExecuteRunnable );
+    mMainThreadHandler.post( mRenderPostExecuteRunnable );
   }
 
   void handleTileRenderException( Throwable throwable ) {
@@ -346,10 +1133,14 @@ public class TileCanvasViewGroup extends View {
   }
 
   public void destroy() {
+    clearDerivedCaches();
     mTileRenderPoolExecutor.shutdownNow();
     clear();
-    if( !mTileRenderThrottleHandler.hasMessages( RENDER_FLAG ) ) {
-      mTileRenderThrottleHandler.removeMessages( RENDER_FLAG );
+    mTileRenderScheduler.cancel();
+    mMainThreadHandler.removeCallbacks( mRenderPostExecuteRunnable );
+    releasePreviousLevelTiles();
+    if( mBitmapPool != null ) {
+      mBitmapPool.clear();
     }
   }
 
@@ -362,24 +1153,6 @@ public class TileCanvasViewGroup extends View {
     canvas.restore();
   }
 
-  private static class TileRenderThrottleHandler extends Handler {
-
-    private final WeakReference<TileCanvasViewGroup> mTileCanvasViewGroupWeakReference;
-
-    public TileRenderThrottleHandler( TileCanvasViewGroup tileCanvasViewGroup ) {
-      super( Looper.getMainLooper() );
-      mTileCanvasViewGroupWeakReference = new WeakReference<>( tileCanvasViewGroup );
-    }
-
-    @Override
-    public final void handleMessage( Message message ) {
-      final TileCanvasViewGroup tileCanvasViewGroup = mTileCanvasViewGroupWeakReference.get();
-      if( tileCanvasViewGroup != null ) {
-        tileCanvasViewGroup.renderTiles();
-      }
-    }
-  }
-
   /**
    * Interface definition for callbacks to be invoked after render operations.
    */
@@ -401,6 +1174,7 @@ public class TileCanvasViewGroup extends View {
       if( !mTransitionsEnabled ) {  // TODO: why only if transitions disabled?
         cleanup();
       }
+      updateFallbackTiles( false );
       if( mTileRenderListener != null ) {
         mTileRenderListener.onRenderComplete();
       }
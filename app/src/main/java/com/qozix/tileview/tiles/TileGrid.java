@@ -0,0 +1,97 @@
+package com.qozix.tileview.tiles;
+
+import android.graphics.Rect;
+import android.util.SparseArray;
+
+import com.qozix.tileview.detail.DetailLevel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Indexes tiles by detail level and cell, so the tiles covering an area are found by looking up
+ * the cells within the area, rather than by testing every tile against it.  Used on the UI
+ * thread only.
+ */
+class TileGrid {
+
+  // by detail level, then row, then column
+  private final Map<DetailLevel, SparseArray<SparseArray<Tile>>> mTilesByDetailLevel = new HashMap<>();
+  private final List<DetailLevel> mDetailLevels = new ArrayList<>();
+  private final Rect mCellRange = new Rect();
+
+  void add( Tile tile ) {
+    DetailLevel detailLevel = tile.getDetailLevel();
+    SparseArray<SparseArray<Tile>> rows = mTilesByDetailLevel.get( detailLevel );
+    if( rows == null ) {
+      rows = new SparseArray<>();
+      mTilesByDetailLevel.put( detailLevel, rows );
+      mDetailLevels.add( detailLevel );
+    }
+    SparseArray<Tile> row = rows.get( tile.getRow() );
+    if( row == null ) {
+      row = new SparseArray<>();
+      rows.put( tile.getRow(), row );
+    }
+    row.put( tile.getColumn(), tile );
+  }
+
+  void remove( Tile tile ) {
+    DetailLevel detailLevel = tile.getDetailLevel();
+    SparseArray<SparseArray<Tile>> rows = mTilesByDetailLevel.get( detailLevel );
+    if( rows == null ) {
+      return;
+    }
+    SparseArray<Tile> row = rows.get( tile.getRow() );
+    // another tile (e.g., at another sample size) may have replaced it in its cell
+    if( row == null || row.get( tile.getColumn() ) != tile ) {
+      return;
+    }
+    row.remove( tile.getColumn() );
+    if( row.size() == 0 ) {
+      rows.remove( tile.getRow() );
+      if( rows.size() == 0 ) {
+        mTilesByDetailLevel.remove( detailLevel );
+        mDetailLevels.remove( detailLevel );
+      }
+    }
+  }
+
+  void clear() {
+    mTilesByDetailLevel.clear();
+    mDetailLevels.clear();
+  }
+
+  boolean isEmpty() {
+    return mDetailLevels.isEmpty();
+  }
+
+  /**
+   * Adds the tiles, of any detail level, that intersect the area passed to the list passed.
+   *
+   * @param relativeRect The area, in unscaled pixels.
+   * @param tiles        The list intersecting tiles are added to.
+   */
+  void collectTilesIntersecting( Rect relativeRect, List<Tile> tiles ) {
+    for( int i = 0; i < mDetailLevels.size(); i++ ) {
+      DetailLevel detailLevel = mDetailLevels.get( i );
+      SparseArray<SparseArray<Tile>> rows = mTilesByDetailLevel.get( detailLevel );
+      Rect cellRange = detailLevel.computeCellRange( relativeRect, mCellRange );
+      for( int rowCurrent = cellRange.top; rowCurrent < cellRange.bottom; rowCurrent++ ) {
+        SparseArray<Tile> row = rows.get( rowCurrent );
+        if( row == null ) {
+          continue;
+        }
+        for( int columnCurrent = cellRange.left; columnCurrent < cellRange.right; columnCurrent++ ) {
+          Tile tile = row.get( columnCurrent );
+          if( tile != null && Rect.intersects( tile.getRelativeRect(), relativeRect ) ) {
+            tiles.add( tile );
+          }
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,41 @@
+package com.qozix.tileview.tiles;
+
+/**
+ * Keys tiles as they are compared (see Tile.equals): by the scale of their detail level, column
+ * and row, without holding on to the tile itself.  Keys are mutable, so a cache can probe with a
+ * single key, under its lock, rather than allocating one per lookup.
+ */
+class TileKey {
+
+  private float mScale;
+  private int mColumn;
+  private int mRow;
+
+  void set( Tile tile ) {
+    mScale = tile.getDetailLevel().getScale();
+    mColumn = tile.getColumn();
+    mRow = tile.getRow();
+  }
+
+  @Override
+  public int hashCode() {
+    int hash = 17;
+    hash = hash * 31 + mColumn;
+    hash = hash * 31 + mRow;
+    hash = hash * 31 + Float.floatToIntBits( mScale );
+    return hash;
+  }
+
+  @Override
+  public boolean equals( Object o ) {
+    if( this == o ) {
+      return true;
+    }
+    if( o instanceof TileKey ) {
+      TileKey key = (TileKey) o;
+      return key.mColumn == mColumn && key.mRow == mRow && key.mScale == mScale;
+    }
+    return false;
+  }
+
+}
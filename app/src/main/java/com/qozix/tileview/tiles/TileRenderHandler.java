@@ -14,12 +14,14 @@ class TileRenderHandler extends Handler {
   public static final int RENDER_ERROR = -1;
   public static final int RENDER_INCOMPLETE = 0;
   public static final int RENDER_COMPLETE = 1;
+  public static final int RENDER_MISSING = 2;
 
   public enum Status {
 
     ERROR( RENDER_ERROR ),
     INCOMPLETE( RENDER_INCOMPLETE ),
-    COMPLETE( RENDER_COMPLETE );
+    COMPLETE( RENDER_COMPLETE ),
+    MISSING( RENDER_MISSING );
 
     private int mMessageCode;
 
@@ -68,9 +70,19 @@ class TileRenderHandler extends Handler {
     switch( message.what ) {
       case RENDER_ERROR:
         tileCanvasViewGroup.handleTileRenderException( tileRenderRunnable.getThrowable() );
+        if( tile.getState() == Tile.State.MISSING ) {
+          tileCanvasViewGroup.addMissingTileToCanvas( tile );
+        }
+        break;
+      case RENDER_MISSING:
+        tileCanvasViewGroup.addMissingTileToCanvas( tile );
         break;
       case RENDER_COMPLETE:
-        tileCanvasViewGroup.addTileToCanvas( tile );
+        if( tileRenderRunnable.isPreview() ) {
+          tileCanvasViewGroup.addPreviewToCanvas( tile );
+        } else {
+          tileCanvasViewGroup.addTileToCanvas( tile );
+        }
         break;
     }
   }
@@ -2,44 +2,228 @@ package com.qozix.tileview.tiles;
 
 import android.content.Context;
 
+import com.qozix.tileview.graphics.BatchingBitmapProvider;
+import com.qozix.tileview.graphics.BitmapMemoryGovernor;
+import com.qozix.tileview.graphics.BitmapPool;
 import com.qozix.tileview.graphics.BitmapProvider;
+import com.qozix.tileview.graphics.BytePool;
+import com.qozix.tileview.graphics.StagedBitmapProvider;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Renders tiles on a pool of threads sized to the device's cores.  Tiles of a
+ * StagedBitmapProvider are rendered in two stages: their bytes are fetched on a separate pool of
+ * threads, sized for I/O rather than cores, and handed back to this pool to be decoded.  Both
+ * queues are unbounded, so each pool always runs its full number of threads, which time out
+ * when idle.  At most
+ * DECODE_QUEUE_CAPACITY fetched tiles are held at once, waiting for or being decoded; fetch
+ * threads wait for a decoder rather than read further ahead.
+ */
 public class TileRenderPoolExecutor extends ThreadPoolExecutor {
 
   private static final int KEEP_ALIVE_TIME = 1;
   private static final TimeUnit KEEP_ALIVE_TIME_UNIT = TimeUnit.SECONDS;
 
   private static final int AVAILABLE_PROCESSORS = Runtime.getRuntime().availableProcessors();
-  private static final int INITIAL_POOL_SIZE = AVAILABLE_PROCESSORS >> 1;
-  private static final int MAXIMUM_POOL_SIZE = AVAILABLE_PROCESSORS;
+  public static final int DEFAULT_POOL_SIZE = AVAILABLE_PROCESSORS;
+
+  // fetch threads mostly wait on storage, which serves a few reads in parallel whatever the core count
+  public static final int DEFAULT_FETCH_POOL_SIZE = 4;
+  public static final int DECODE_QUEUE_CAPACITY = DEFAULT_POOL_SIZE * 2;
 
   private WeakReference<TileCanvasViewGroup> mTileCanvasViewGroupWeakReference;
 
   private TileRenderHandler mHandler = new TileRenderHandler();
 
+  private long mSequence;
+
+  private final ThreadPoolExecutor mFetchExecutor;
+  private final Semaphore mDecodeSlots = new Semaphore( DECODE_QUEUE_CAPACITY );
+  private final BytePool mBytePool = new BytePool();
+  // tiles queued for, or being, fetched, which will be handed to this pool unless abandoned
+  private final AtomicInteger mPendingFetchCount = new AtomicInteger();
+
   public TileRenderPoolExecutor() {
+    // a ThreadPoolExecutor never grows past its core size while its queue accepts work, so the core size is the pool size
     super(
-      INITIAL_POOL_SIZE,
-      MAXIMUM_POOL_SIZE,
+      DEFAULT_POOL_SIZE,
+      DEFAULT_POOL_SIZE,
+      KEEP_ALIVE_TIME,
+      KEEP_ALIVE_TIME_UNIT,
+      new PriorityBlockingQueue<Runnable>()
+    );
+    allowCoreThreadTimeOut( true );
+    mFetchExecutor = new ThreadPoolExecutor(
+      DEFAULT_FETCH_POOL_SIZE,
+      DEFAULT_FETCH_POOL_SIZE,
       KEEP_ALIVE_TIME,
       KEEP_ALIVE_TIME_UNIT,
-      new LinkedBlockingDeque<Runnable>()
+      new PriorityBlockingQueue<Runnable>()
     );
+    mFetchExecutor.allowCoreThreadTimeOut( true );
+  }
+
+  /**
+   * Resizes the pool of render threads, which decode tiles.  Decoding is CPU bound, so there
+   * should not be more of them than cores.
+   *
+   * @param poolSize The number of render threads.
+   */
+  public void setPoolSize( int poolSize ) {
+    // the core size may never exceed the maximum size, even in between the two calls
+    if( poolSize >= getCorePoolSize() ) {
+      setMaximumPoolSize( poolSize );
+      setCorePoolSize( poolSize );
+    } else {
+      setCorePoolSize( poolSize );
+      setMaximumPoolSize( poolSize );
+    }
+  }
+
+  /**
+   * Resizes the pool of threads tiles of a StagedBitmapProvider are fetched on.  Fetch threads
+   * mostly wait on I/O, so there can be more of them than cores.
+   *
+   * @param fetchPoolSize The maximum number of fetch threads.
+   */
+  public void setFetchPoolSize( int fetchPoolSize ) {
+    if( fetchPoolSize >= mFetchExecutor.getCorePoolSize() ) {
+      mFetchExecutor.setMaximumPoolSize( fetchPoolSize );
+      mFetchExecutor.setCorePoolSize( fetchPoolSize );
+    } else {
+      mFetchExecutor.setCorePoolSize( fetchPoolSize );
+      mFetchExecutor.setMaximumPoolSize( fetchPoolSize );
+    }
+  }
+
+  public int getFetchPoolSize() {
+    return mFetchExecutor.getMaximumPoolSize();
+  }
+
+  /**
+   * @return The pool fetched tiles' bytes are held in.
+   */
+  public BytePool getBytePool() {
+    return mBytePool;
+  }
+
+  Semaphore getDecodeSlots() {
+    return mDecodeSlots;
   }
 
   public void queue( TileCanvasViewGroup tileCanvasViewGroup, Set<Tile> renderSet ) {
+    queue( tileCanvasViewGroup, renderSet, Collections.<Tile>emptySet() );
+  }
+
+  /**
+   * Queues the tiles in both sets that have not been queued yet, and cancels anything queued
+   * that is in neither.  Fallback tiles are decoded ahead of the render set's tiles.
+   *
+   * @param tileCanvasViewGroup The TileCanvasViewGroup decoded tiles are delivered to.
+   * @param renderSet           Tiles of the detail level being rendered.
+   * @param fallbackSet         Coarser tiles drawn in place of render set tiles until those are decoded.
+   */
+  public void queue( TileCanvasViewGroup tileCanvasViewGroup, Set<Tile> renderSet, Set<Tile> fallbackSet ) {
     mTileCanvasViewGroupWeakReference = new WeakReference<>( tileCanvasViewGroup );
     mHandler.setTileCanvasViewGroup( tileCanvasViewGroup );
     final Context context = tileCanvasViewGroup.getContext();
-    final BitmapProvider bitmapProvider = tileCanvasViewGroup.getBitmapProvider();
+    final BitmapProvider bitmapProvider = tileCanvasViewGroup.getRenderBitmapProvider();
+    final boolean shouldRenderProgressively = tileCanvasViewGroup.getShouldRenderProgressively();
+    final int progressiveTileSize = tileCanvasViewGroup.getProgressiveTileSize();
+    final BitmapPool bitmapPool = tileCanvasViewGroup.getBitmapPool();
+    final BitmapMemoryGovernor bitmapMemoryGovernor = tileCanvasViewGroup.getBitmapMemoryGovernor();
+    final boolean shouldRecycleBitmaps = tileCanvasViewGroup.getShouldRecycleBitmaps();
+    final MissingTileCache missingTileCache = tileCanvasViewGroup.getMissingTileCache();
+    final EncodedTileCache encodedTileCache = tileCanvasViewGroup.getEncodedTileCache();
+    final BitmapProvider userBitmapProvider = tileCanvasViewGroup.getBitmapProvider();
+    final boolean isStaged = userBitmapProvider instanceof StagedBitmapProvider && ((StagedBitmapProvider) userBitmapProvider).isStaged();
     tileCanvasViewGroup.onRenderTaskPreExecute();
-    for( Runnable runnable : getQueue() ) {
+    for( TileRenderRunnable tileRenderRunnable : getUnneededRunnables( mFetchExecutor, renderSet, fallbackSet ) ) {
+      if( mFetchExecutor.remove( tileRenderRunnable ) ) {
+        tileRenderRunnable.abandon();
+        onFetchFinished();
+      }
+    }
+    for( TileRenderRunnable tileRenderRunnable : getUnneededRunnables( this, renderSet, fallbackSet ) ) {
+      if( remove( tileRenderRunnable ) ) {
+        tileRenderRunnable.abandon();
+      }
+    }
+    updateMissingTiles( fallbackSet, missingTileCache );
+    updateMissingTiles( renderSet, missingTileCache );
+    if( bitmapProvider instanceof BatchingBitmapProvider ) {
+      Set<Tile> batch = new HashSet<>();
+      // only the tiles queued below; those already queued were batched when they were
+      for( Tile tile : fallbackSet ) {
+        if( tile.getState() == Tile.State.UNASSIGNED ) {
+          batch.add( tile );
+        }
+      }
+      for( Tile tile : renderSet ) {
+        if( tile.getState() == Tile.State.UNASSIGNED ) {
+          batch.add( tile );
+        }
+      }
+      ((BatchingBitmapProvider) bitmapProvider).prepareBatch( batch, context );
+    }
+    for( Tile tile : fallbackSet ) {
+      if( isShutdownOrTerminating() ) {
+        return;
+      }
+      if( tile.getState() != Tile.State.UNASSIGNED ) {
+        continue;
+      }
+      tile.setBitmapPool( bitmapPool );
+      tile.setBitmapMemoryGovernor( bitmapMemoryGovernor );
+      tile.setShouldRecycleBitmaps( shouldRecycleBitmaps );
+      if( isStaged && !tile.getDetailLevel().isDerived() ) {
+        fetch( createRunnable( tile, context, userBitmapProvider, missingTileCache, false, TileRenderRunnable.PRIORITY_HIGH ), encodedTileCache );
+      } else {
+        execute( createRunnable( tile, context, bitmapProvider, missingTileCache, false, TileRenderRunnable.PRIORITY_HIGH ) );
+      }
+      tile.setState( Tile.State.PENDING_DECODE );
+    }
+    for( Tile tile : renderSet ) {
+      if( isShutdownOrTerminating() ) {
+        return;
+      }
+      if( tile.getState() != Tile.State.UNASSIGNED ) {
+        continue;
+      }
+      tile.setBitmapPool( bitmapPool );
+      tile.setBitmapMemoryGovernor( bitmapMemoryGovernor );
+      tile.setShouldRecycleBitmaps( shouldRecycleBitmaps );
+      if( shouldRenderProgressively && Math.max( tile.getWidth(), tile.getHeight() ) >= progressiveTileSize ) {
+        execute( createRunnable( tile, context, bitmapProvider, null, true, TileRenderRunnable.PRIORITY_HIGH ) );
+      }
+      if( isStaged && !tile.getDetailLevel().isDerived() ) {
+        fetch( createRunnable( tile, context, userBitmapProvider, missingTileCache, false, TileRenderRunnable.PRIORITY_NORMAL ), encodedTileCache );
+      } else {
+        execute( createRunnable( tile, context, bitmapProvider, missingTileCache, false, TileRenderRunnable.PRIORITY_NORMAL ) );
+      }
+      tile.setState( Tile.State.PENDING_DECODE );
+    }
+  }
+
+  /**
+   * @return The runnables queued on the executor, and not yet run, whose tiles are in neither set.  They are cancelled.
+   */
+  private static List<TileRenderRunnable> getUnneededRunnables( ThreadPoolExecutor executor, Set<Tile> renderSet, Set<Tile> fallbackSet ) {
+    List<TileRenderRunnable> unneededRunnables = new ArrayList<>();
+    for( Runnable runnable : executor.getQueue() ) {
       if( runnable instanceof TileRenderRunnable ) {
         TileRenderRunnable tileRenderRunnable = (TileRenderRunnable) runnable;
         if( tileRenderRunnable.isDone() || tileRenderRunnable.isCancelled() ) {
@@ -49,31 +233,94 @@ public class TileRenderPoolExecutor extends ThreadPoolExecutor {
         if( tile == null ) {
           continue;
         }
-        if( renderSet.contains( tile ) ) {
-          renderSet.remove( tile );
-        } else {
+        // tiles still in the render set are already queued (PENDING_DECODE) and won't be queued again
+        if( !renderSet.contains( tile ) && !fallbackSet.contains( tile ) ) {
           tileRenderRunnable.cancel( true );
-          remove( tileRenderRunnable );
+          unneededRunnables.add( tileRenderRunnable );
         }
       }
     }
-    for( Tile tile : renderSet ) {
-      if( isShutdownOrTerminating() ) {
-        return;
+    return unneededRunnables;
+  }
+
+  private void fetch( TileRenderRunnable runnable, EncodedTileCache encodedTileCache ) {
+    runnable.setStagingExecutor( this );
+    runnable.setEncodedTileCache( encodedTileCache );
+    mPendingFetchCount.incrementAndGet();
+    try {
+      mFetchExecutor.execute( runnable );
+    } catch( RejectedExecutionException e ) {
+      mPendingFetchCount.decrementAndGet();
+    }
+  }
+
+  /**
+   * Hands a fetched tile to the render threads to be decoded.
+   *
+   * @return False if the tile could not be handed over, because this executor is shut down.
+   */
+  boolean decode( TileRenderRunnable runnable ) {
+    if( isShutdownOrTerminating() ) {
+      return false;
+    }
+    try {
+      execute( runnable );
+    } catch( RejectedExecutionException e ) {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Called once for each fetch, when it has been handed over, or abandoned.  The render task is
+   * only done once there is nothing left to fetch or decode.
+   */
+  void onFetchFinished() {
+    synchronized( this ) {
+      if( mPendingFetchCount.decrementAndGet() == 0 && getQueue().size() == 0 && getActiveCount() == 0 ) {
+        notifyPostExecute();
       }
-      if( tile.getState() != Tile.State.UNASSIGNED ) {
-        continue;
+    }
+  }
+
+  private void notifyPostExecute() {
+    if( mTileCanvasViewGroupWeakReference == null ) {
+      return;
+    }
+    TileCanvasViewGroup tileCanvasViewGroup = mTileCanvasViewGroupWeakReference.get();
+    if( tileCanvasViewGroup != null ) {
+      tileCanvasViewGroup.onRenderTaskPostExecute();
+    }
+  }
+
+  /**
+   * Tiles known to be missing are marked MISSING rather than queued, and tiles no longer known
+   * to be missing (e.g., their entry expired) are made available to queue again.
+   */
+  private static void updateMissingTiles( Set<Tile> tiles, MissingTileCache missingTileCache ) {
+    for( Tile tile : tiles ) {
+      Tile.State state = tile.getState();
+      if( state == Tile.State.UNASSIGNED || state == Tile.State.MISSING ) {
+        boolean isMissing = missingTileCache != null && missingTileCache.contains( tile );
+        tile.setState( isMissing ? Tile.State.MISSING : Tile.State.UNASSIGNED );
       }
-      TileRenderRunnable runnable = new TileRenderRunnable();
-      runnable.setTile( tile );
-      runnable.setContext( context );
-      runnable.setBitmapProvider( bitmapProvider );
-      runnable.setHandler( mHandler );
-      execute( runnable );
-      tile.setState( Tile.State.PENDING_DECODE );
     }
   }
 
+  // previews are not passed the missing tile cache, since a preview failing says nothing about the tile
+  private TileRenderRunnable createRunnable( Tile tile, Context context, BitmapProvider bitmapProvider, MissingTileCache missingTileCache, boolean isPreview, int priority ) {
+    TileRenderRunnable runnable = new TileRenderRunnable();
+    runnable.setTile( tile );
+    runnable.setContext( context );
+    runnable.setBitmapProvider( bitmapProvider );
+    runnable.setMissingTileCache( missingTileCache );
+    runnable.setHandler( mHandler );
+    runnable.setPreview( isPreview );
+    runnable.setPriority( priority );
+    runnable.setSequence( mSequence++ );
+    return runnable;
+  }
+
   private void broadcastCancel() {
     if( mTileCanvasViewGroupWeakReference != null ) {
       TileCanvasViewGroup tileCanvasViewGroup = mTileCanvasViewGroupWeakReference.get();
@@ -84,14 +331,32 @@ public class TileRenderPoolExecutor extends ThreadPoolExecutor {
   }
 
   public void cancel() {
-    for( Runnable runnable : getQueue() ) {
+    List<Runnable> fetchRunnables = new ArrayList<>();
+    mFetchExecutor.getQueue().drainTo( fetchRunnables );
+    cancel( fetchRunnables );
+    mPendingFetchCount.addAndGet( -fetchRunnables.size() );
+    List<Runnable> runnables = new ArrayList<>();
+    getQueue().drainTo( runnables );
+    cancel( runnables );
+    broadcastCancel();
+  }
+
+  private static void cancel( Collection<Runnable> runnables ) {
+    for( Runnable runnable : runnables ) {
       if( runnable instanceof TileRenderRunnable ) {
         TileRenderRunnable tileRenderRunnable = (TileRenderRunnable) runnable;
         tileRenderRunnable.cancel( true );
+        tileRenderRunnable.abandon();
       }
     }
-    getQueue().clear();
-    broadcastCancel();
+  }
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    cancel( mFetchExecutor.shutdownNow() );
+    List<Runnable> runnables = super.shutdownNow();
+    cancel( runnables );
+    return runnables;
   }
 
   public boolean isShutdownOrTerminating() {
@@ -102,11 +367,8 @@ public class TileRenderPoolExecutor extends ThreadPoolExecutor {
   protected void afterExecute( Runnable runnable, Throwable throwable ) {
     synchronized( this ) {
       super.afterExecute( runnable, throwable );
-      if( getQueue().size() == 0 && getActiveCount() == 1 ) {
-        TileCanvasViewGroup tileCanvasViewGroup = mTileCanvasViewGroupWeakReference.get();
-        if( tileCanvasViewGroup != null ) {
-          tileCanvasViewGroup.onRenderTaskPostExecute();
-        }
+      if( getQueue().size() == 0 && getActiveCount() == 1 && mPendingFetchCount.get() == 0 ) {
+        notifyPostExecute();
       }
     }
   }
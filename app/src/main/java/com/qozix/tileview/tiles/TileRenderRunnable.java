@@ -1,37 +1,68 @@
 package com.qozix.tileview.tiles;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.os.Handler;
 import android.os.Message;
 import android.os.Process;
 
+import com.qozix.tileview.graphics.BitmapMemoryGovernor;
+import com.qozix.tileview.graphics.BatchingBitmapProvider;
 import com.qozix.tileview.graphics.BitmapProvider;
+import com.qozix.tileview.graphics.BytePool;
+import com.qozix.tileview.graphics.EncodedTile;
+import com.qozix.tileview.graphics.StagedBitmapProvider;
 
+import java.io.FileNotFoundException;
 import java.lang.ref.WeakReference;
+import java.util.concurrent.Semaphore;
 
 /**
  * @author Mike Dunn, 3/10/16.
  */
-class TileRenderRunnable implements Runnable {
+class TileRenderRunnable implements Runnable, Comparable<TileRenderRunnable> {
+
+  public static final int PRIORITY_HIGH = 0;
+  public static final int PRIORITY_NORMAL = 1;
 
   private WeakReference<Tile> mTileWeakReference;
   private WeakReference<Handler> mHandlerWeakReference;
   private WeakReference<Context> mContextWeakReference;
   private WeakReference<BitmapProvider> mBitmapProviderWeakReference;
+  private MissingTileCache mMissingTileCache;
 
   private boolean mCancelled = false;
   private boolean mComplete = false;
 
+  private boolean mIsPreview;
+  private int mPriority = PRIORITY_NORMAL;
+  private long mSequence;
+
+  // the thread running the current stage, if any; guarded by this
   private volatile Thread mThread;
 
   private Throwable mThrowable;
 
+  // set for tiles rendered in two stages (see StagedBitmapProvider): fetched, then decoded
+  private TileRenderPoolExecutor mStagingExecutor;
+  private volatile boolean mIsFetchStage;
+  private EncodedTile mEncodedTile;
+  private Throwable mFetchThrowable;
+  private EncodedTileCache mEncodedTileCache;
+  // the decode slot held from the fetch until the decode is done, or null
+  private Semaphore mDecodeSlots;
+
   public boolean cancel( boolean mayInterrupt ) {
-    if( mayInterrupt && mThread != null ) {
-      mThread.interrupt();
-    }
     boolean cancelled = mCancelled;
     mCancelled = true;
+    if( mayInterrupt ) {
+      // only while a stage runs; a thread that has moved on to other runnables is left alone
+      synchronized( this ) {
+        if( mThread != null ) {
+          mThread.interrupt();
+        }
+      }
+    }
     return !cancelled;
   }
 
@@ -43,6 +74,41 @@ class TileRenderRunnable implements Runnable {
     return mComplete;
   }
 
+  public boolean isPreview() {
+    return mIsPreview;
+  }
+
+  /**
+   * A preview render decodes a low resolution version of the tile (see Tile.generatePreviewBitmap)
+   * rather than the tile itself.
+   */
+  public void setPreview( boolean isPreview ) {
+    mIsPreview = isPreview;
+  }
+
+  public int getPriority() {
+    return mPriority;
+  }
+
+  public void setPriority( int priority ) {
+    mPriority = priority;
+  }
+
+  /**
+   * Runnables of the same priority are run in the order of their sequence numbers.
+   */
+  public void setSequence( long sequence ) {
+    mSequence = sequence;
+  }
+
+  @Override
+  public int compareTo( TileRenderRunnable other ) {
+    if( mPriority != other.mPriority ) {
+      return mPriority < other.mPriority ? -1 : 1;
+    }
+    return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+  }
+
   public void setHandler( Handler handler ) {
     mHandlerWeakReference = new WeakReference<>( handler );
   }
@@ -80,6 +146,30 @@ class TileRenderRunnable implements Runnable {
     mTileWeakReference = new WeakReference<>( tile );
   }
 
+  /**
+   * @param missingTileCache The cache tiles the BitmapProvider has nothing for are added to, or null.
+   */
+  public void setMissingTileCache( MissingTileCache missingTileCache ) {
+    mMissingTileCache = missingTileCache;
+  }
+
+  /**
+   * Renders the tile in two stages: its bytes are fetched on the executor's fetch threads, then
+   * handed to the executor's render threads to be decoded.  The BitmapProvider must be a
+   * StagedBitmapProvider.
+   */
+  public void setStagingExecutor( TileRenderPoolExecutor stagingExecutor ) {
+    mStagingExecutor = stagingExecutor;
+    mIsFetchStage = stagingExecutor != null;
+  }
+
+  /**
+   * @param encodedTileCache The cache fetched tiles are looked up in before their BitmapProvider is asked, and added to after, or null.
+   */
+  public void setEncodedTileCache( EncodedTileCache encodedTileCache ) {
+    mEncodedTileCache = encodedTileCache;
+  }
+
   public Tile getTile() {
     if( mTileWeakReference != null ) {
       return mTileWeakReference.get();
@@ -111,23 +201,241 @@ class TileRenderRunnable implements Runnable {
     if( bitmapProvider == null ) {
       return TileRenderHandler.Status.INCOMPLETE;
     }
+    if( mStagingExecutor != null ) {
+      bitmapProvider = createEncodedTileDecoder( (StagedBitmapProvider) bitmapProvider );
+    }
+    // hold back until the memory governor has room for the decode
+    BitmapMemoryGovernor bitmapMemoryGovernor = tile.getBitmapMemoryGovernor();
+    if( bitmapMemoryGovernor == null ) {
+      return decodeTile( tile, context, bitmapProvider );
+    }
+    long reservation = tile.estimateByteCount( mIsPreview ? Tile.PREVIEW_SAMPLE_FACTOR : 1 );
+    try {
+      bitmapMemoryGovernor.reserve( reservation );
+    } catch( InterruptedException e ) {
+      return TileRenderHandler.Status.INCOMPLETE;
+    }
+    try {
+      if( mCancelled || mThread.isInterrupted() ) {
+        return TileRenderHandler.Status.INCOMPLETE;
+      }
+      return decodeTile( tile, context, bitmapProvider );
+    } finally {
+      bitmapMemoryGovernor.endReservation( reservation );
+    }
+  }
+
+  private TileRenderHandler.Status decodeTile( Tile tile, Context context, BitmapProvider bitmapProvider ) {
+    if( mIsPreview ) {
+      try {
+        tile.generatePreviewBitmap( context, bitmapProvider );
+      } catch( Throwable throwable ) {
+        return TileRenderHandler.Status.INCOMPLETE;
+      }
+      if( mCancelled || !tile.hasPreviewBitmap() || mThread.isInterrupted() ) {
+        return TileRenderHandler.Status.INCOMPLETE;
+      }
+      return TileRenderHandler.Status.COMPLETE;
+    }
     try {
+      // the fetch failed, which is handled as if the decode had
+      if( mFetchThrowable != null ) {
+        throw mFetchThrowable;
+      }
       tile.generateBitmap( context, bitmapProvider );
     } catch( Throwable throwable ) {
       mThrowable = throwable;
+      // other failures (e.g., out of memory, or an I/O error) say nothing about the tile, which is left to be asked for again
+      if( !isNotFound( throwable ) || !markMissing( tile ) ) {
+        tile.discardBitmap();
+      }
       return TileRenderHandler.Status.ERROR;
     }
-    if( mCancelled || tile.getBitmap() == null || mThread.isInterrupted() ) {
-      tile.destroy( true );
+    if( mCancelled || mThread.isInterrupted() ) {
+      tile.discardBitmap();
+      return TileRenderHandler.Status.INCOMPLETE;
+    }
+    if( tile.getBitmap() == null ) {
+      if( markMissing( tile ) ) {
+        return TileRenderHandler.Status.MISSING;
+      }
+      tile.discardBitmap();
       return TileRenderHandler.Status.INCOMPLETE;
     }
     return TileRenderHandler.Status.COMPLETE;
   }
 
+  /**
+   * @return True if the failure says the tile does not exist, rather than that it could not be read.
+   */
+  private static boolean isNotFound( Throwable throwable ) {
+    return throwable instanceof FileNotFoundException || throwable.getCause() instanceof FileNotFoundException;
+  }
+
+  /**
+   * A tile that was cancelled might have failed because it was interrupted, and is not missing;
+   * a tile destroyed while decoding has its bitmap released, and is not missing either.
+   *
+   * @return True if the tile was added to the missing tile cache.
+   */
+  private boolean markMissing( Tile tile ) {
+    if( mMissingTileCache == null || mCancelled || mThread.isInterrupted() || tile.isDestroyed() ) {
+      return false;
+    }
+    mMissingTileCache.add( tile );
+    tile.setState( Tile.State.MISSING );
+    return true;
+  }
+
+  /**
+   * Adapts the decode stage to Tile.generateBitmap, which the rest of decodeTile is shared with.
+   */
+  private BitmapProvider createEncodedTileDecoder( final StagedBitmapProvider stagedBitmapProvider ) {
+    final EncodedTile encodedTile = mEncodedTile;
+    return new BitmapProvider() {
+      @Override
+      public Bitmap getBitmap( Tile tile, Context context ) {
+        if( encodedTile == null ) {
+          return null;
+        }
+        return stagedBitmapProvider.decode( tile, encodedTile, context );
+      }
+    };
+  }
+
+  /**
+   * The fetch stage: reads the tile's bytes once a decode slot is free, so only a bounded number
+   * of fetched tiles wait to be decoded, then hands this runnable to the render threads.  A fetch
+   * that finds nothing, or fails, is handed over as well, and reported by the decode stage.
+   */
+  private void fetchTile() {
+    boolean isHandedOff = false;
+    try {
+      if( mCancelled || mThread.isInterrupted() ) {
+        return;
+      }
+      android.os.Process.setThreadPriority( Process.THREAD_PRIORITY_BACKGROUND );
+      Tile tile = getTile();
+      Context context = getContext();
+      BitmapProvider bitmapProvider = getBitmapProvider();
+      if( tile == null || context == null || !(bitmapProvider instanceof StagedBitmapProvider) ) {
+        return;
+      }
+      Semaphore decodeSlots = mStagingExecutor.getDecodeSlots();
+      try {
+        decodeSlots.acquire();
+      } catch( InterruptedException e ) {
+        return;
+      }
+      synchronized( this ) {
+        mDecodeSlots = decodeSlots;
+      }
+      try {
+        mEncodedTile = fetch( (StagedBitmapProvider) bitmapProvider, tile, context );
+      } catch( Throwable throwable ) {
+        mFetchThrowable = throwable;
+      }
+      if( mCancelled || mThread.isInterrupted() ) {
+        return;
+      }
+      mIsFetchStage = false;
+      isHandedOff = mStagingExecutor.decode( this );
+    } finally {
+      if( !isHandedOff ) {
+        abandon();
+      }
+      mStagingExecutor.onFetchFinished();
+    }
+  }
+
+  private EncodedTile fetch( StagedBitmapProvider stagedBitmapProvider, Tile tile, Context context ) throws Exception {
+    BytePool bytePool = mStagingExecutor.getBytePool();
+    if( mEncodedTileCache != null ) {
+      EncodedTile encodedTile = mEncodedTileCache.get( tile, bytePool );
+      if( encodedTile != null ) {
+        return encodedTile;
+      }
+    }
+    EncodedTile encodedTile = stagedBitmapProvider.fetch( tile, context, bytePool );
+    if( encodedTile != null && mEncodedTileCache != null ) {
+      mEncodedTileCache.put( tile, encodedTile );
+    }
+    return encodedTile;
+  }
+
+  /**
+   * Releases what a fetched tile holds, its bytes and its decode slot, and what a batching
+   * BitmapProvider planned for it, once it is decoded or will not be.  Safe to call more than once.
+   */
+  synchronized void discard() {
+    // previews are requested at another sample size, and were never batched
+    if( !mIsPreview ) {
+      BitmapProvider bitmapProvider = getBitmapProvider();
+      Tile tile = getTile();
+      if( bitmapProvider instanceof BatchingBitmapProvider && tile != null ) {
+        ((BatchingBitmapProvider) bitmapProvider).releaseBatch( tile );
+      }
+    }
+    if( mEncodedTile != null ) {
+      mEncodedTile.release();
+      mEncodedTile = null;
+    }
+    if( mDecodeSlots != null ) {
+      mDecodeSlots.release();
+      mDecodeSlots = null;
+    }
+  }
+
+  /**
+   * Discards a runnable that will not deliver its tile, and makes the tile available to queue
+   * again, rather than leave it pending a decode that will never come.  Previews leave the tile
+   * alone, since it is still pending its own render.
+   */
+  void abandon() {
+    discard();
+    if( mIsPreview ) {
+      return;
+    }
+    Tile tile = getTile();
+    if( tile != null && tile.getState() == Tile.State.PENDING_DECODE ) {
+      tile.setState( Tile.State.UNASSIGNED );
+    }
+  }
+
   @Override
   public void run() {
-    mThread = Thread.currentThread();
-    TileRenderHandler.Status status = renderTile();
+    synchronized( this ) {
+      mThread = Thread.currentThread();
+    }
+    try {
+      if( mIsFetchStage ) {
+        fetchTile();
+      } else {
+        decodeAndDeliver();
+      }
+    } finally {
+      // once handed off, the decode stage may already have taken mThread over
+      synchronized( this ) {
+        if( mThread == Thread.currentThread() ) {
+          mThread = null;
+        }
+      }
+      // a cancel that came too late to stop the stage must not interrupt the thread's next runnable
+      Thread.interrupted();
+    }
+  }
+
+  private void decodeAndDeliver() {
+    TileRenderHandler.Status status = TileRenderHandler.Status.INCOMPLETE;
+    try {
+      status = renderTile();
+    } finally {
+      if( status == TileRenderHandler.Status.INCOMPLETE ) {
+        abandon();
+      } else {
+        discard();
+      }
+    }
     if( status == TileRenderHandler.Status.INCOMPLETE ) {
       return;
     }
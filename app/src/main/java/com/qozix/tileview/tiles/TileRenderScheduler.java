@@ -0,0 +1,119 @@
+package com.qozix.tileview.tiles;
+
+import android.graphics.Rect;
+import android.support.v4.view.ViewCompat;
+import android.view.animation.AnimationUtils;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Decides, once per animation frame, whether a render pass should run.
+ *
+ * Any number of render requests made during a frame collapse into a single frame callback
+ * (aligned to Choreographer frames where available), so scroll events never post messages of their own.
+ * On each frame the viewport velocity is measured; while it is above the maximum render velocity
+ * (e.g., a fast fling) render passes are deferred, but never for longer than the maximum deferral,
+ * so tiles still appear during long flings.  When the viewport is slow or still, the render pass
+ * runs immediately - it fast-fails in TileCanvasViewGroup if the row/column window has not changed.
+ * While the viewport keeps moving the scheduler keeps sampling it, and stops as soon as it is still.
+ */
+class TileRenderScheduler implements Runnable {
+
+  // pixels per millisecond
+  public static final float DEFAULT_MAXIMUM_RENDER_VELOCITY = 2f;
+
+  private final WeakReference<TileCanvasViewGroup> mTileCanvasViewGroupWeakReference;
+
+  private float mMaximumRenderVelocity = DEFAULT_MAXIMUM_RENDER_VELOCITY;
+  private int mMaximumDeferral;
+
+  private boolean mIsFramePending;
+
+  private boolean mHasLastFrame;
+  private long mLastFrameTime;
+  private int mLastViewportLeft;
+  private int mLastViewportTop;
+
+  private long mDeferredSince = -1;
+
+  public TileRenderScheduler( TileCanvasViewGroup tileCanvasViewGroup ) {
+    mTileCanvasViewGroupWeakReference = new WeakReference<>( tileCanvasViewGroup );
+  }
+
+  public float getMaximumRenderVelocity() {
+    return mMaximumRenderVelocity;
+  }
+
+  public void setMaximumRenderVelocity( float maximumRenderVelocity ) {
+    mMaximumRenderVelocity = maximumRenderVelocity;
+  }
+
+  public int getMaximumDeferral() {
+    return mMaximumDeferral;
+  }
+
+  public void setMaximumDeferral( int maximumDeferral ) {
+    mMaximumDeferral = maximumDeferral;
+  }
+
+  /**
+   * Schedules an evaluation on the next animation frame, if one is not already scheduled.
+   */
+  public void requestFrame() {
+    if( mIsFramePending ) {
+      return;
+    }
+    TileCanvasViewGroup tileCanvasViewGroup = mTileCanvasViewGroupWeakReference.get();
+    if( tileCanvasViewGroup != null ) {
+      mIsFramePending = true;
+      ViewCompat.postOnAnimation( tileCanvasViewGroup, this );
+    }
+  }
+
+  public void cancel() {
+    TileCanvasViewGroup tileCanvasViewGroup = mTileCanvasViewGroupWeakReference.get();
+    if( tileCanvasViewGroup != null ) {
+      tileCanvasViewGroup.removeCallbacks( this );
+    }
+    mIsFramePending = false;
+    mHasLastFrame = false;
+    mDeferredSince = -1;
+  }
+
+  @Override
+  public void run() {
+    mIsFramePending = false;
+    TileCanvasViewGroup tileCanvasViewGroup = mTileCanvasViewGroupWeakReference.get();
+    if( tileCanvasViewGroup == null ) {
+      return;
+    }
+    Rect viewport = tileCanvasViewGroup.getViewport();
+    if( viewport == null ) {
+      return;
+    }
+    long now = AnimationUtils.currentAnimationTimeMillis();
+    float velocity = 0;
+    if( mHasLastFrame && now > mLastFrameTime ) {
+      float distance = (float) Math.hypot( viewport.left - mLastViewportLeft, viewport.top - mLastViewportTop );
+      velocity = distance / (now - mLastFrameTime);
+    }
+    mHasLastFrame = true;
+    mLastFrameTime = now;
+    mLastViewportLeft = viewport.left;
+    mLastViewportTop = viewport.top;
+    if( velocity > mMaximumRenderVelocity ) {
+      if( mDeferredSince < 0 ) {
+        mDeferredSince = now;
+      }
+      if( now - mDeferredSince < mMaximumDeferral ) {
+        requestFrame();
+        return;
+      }
+    }
+    mDeferredSince = -1;
+    tileCanvasViewGroup.renderTiles();
+    if( velocity > 0 ) {
+      requestFrame();
+    }
+  }
+}
@@ -0,0 +1,284 @@
+package com.qozix.tileview.widgets;
+
+import android.os.SystemClock;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A compact binary record of the viewport changes a ZoomPanLayout goes through.
+ *
+ * Every scroll, fling, pinch and programmatic animation broadcast by the ZoomPanLayout is stored
+ * as a fixed-size entry (time offset, scroll position, scale, event and origin) in a buffer
+ * that is allocated once, up front, so recording never allocates on the UI thread.  Once the
+ * buffer is full further entries are dropped (see getDroppedEntryCount).
+ *
+ * A trace can be written to a file with flush, read back with load, and replayed against
+ * any ZoomPanLayout (or TileView) with a GestureTracePlayer.
+ *
+ * <pre>{@code
+ * GestureTrace trace = new GestureTrace( 10000 );
+ * tileView.setGestureTrace( trace );
+ * // ... user interaction ...
+ * trace.flush( new File( context.getFilesDir(), "session.trace" ) );
+ * }</pre>
+ */
+public class GestureTrace {
+
+  public static final int EVENT_PAN_BEGIN = 0;
+  public static final int EVENT_PAN_UPDATE = 1;
+  public static final int EVENT_PAN_END = 2;
+  public static final int EVENT_ZOOM_BEGIN = 3;
+  public static final int EVENT_ZOOM_UPDATE = 4;
+  public static final int EVENT_ZOOM_END = 5;
+
+  private static final int MAGIC = 0x5A505452;  // "ZPTR"
+  private static final int VERSION = 1;
+
+  // int magic, int version, int entry count, long start time
+  private static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+  // int time offset, int x, int y, float scale, byte event, byte origin
+  static final int ENTRY_SIZE = 4 + 4 + 4 + 4 + 1 + 1;
+
+  // entries are read in chunks of this size, rather than into a buffer of the size the header claims
+  private static final int READ_CHUNK_SIZE = 64 * 1024;
+
+  private static final byte ORIGIN_PROGRAMMATIC = 0;
+
+  // values() copies the array on each call
+  private static final ZoomPanLayout.ZoomPanListener.Origination[] ORIGINATIONS = ZoomPanLayout.ZoomPanListener.Origination.values();
+
+  private ByteBuffer mBuffer;
+
+  private long mStartTime = -1;
+  private int mDroppedEntryCount;
+
+  /**
+   * Creates a GestureTrace able to hold the number of entries passed.
+   *
+   * @param capacity The maximum number of entries this trace will hold.
+   */
+  public GestureTrace( int capacity ) {
+    mBuffer = ByteBuffer.allocate( capacity * ENTRY_SIZE );
+  }
+
+  private GestureTrace( ByteBuffer buffer, long startTime ) {
+    mBuffer = buffer;
+    mStartTime = startTime;
+  }
+
+  public int getCapacity() {
+    return mBuffer.capacity() / ENTRY_SIZE;
+  }
+
+  public int getEntryCount() {
+    return mBuffer.position() / ENTRY_SIZE;
+  }
+
+  public int getDroppedEntryCount() {
+    return mDroppedEntryCount;
+  }
+
+  public boolean isFull() {
+    return mBuffer.remaining() < ENTRY_SIZE;
+  }
+
+  /**
+   * Appends an entry to the trace.  This is called by ZoomPanLayout for each broadcast zoom or
+   * pan event, and is safe to call at touch-event frequency.
+   *
+   * @param event  One of the EVENT_* constants.
+   * @param origin The Origination of the event, or null if it was programmatic.
+   * @param x      The horizontal scroll position after the event.
+   * @param y      The vertical scroll position after the event.
+   * @param scale  The scale after the event.
+   */
+  public void record( int event, ZoomPanLayout.ZoomPanListener.Origination origin, int x, int y, float scale ) {
+    if( isFull() ) {
+      mDroppedEntryCount++;
+      return;
+    }
+    long now = SystemClock.uptimeMillis();
+    if( mStartTime < 0 ) {
+      mStartTime = now;
+    }
+    mBuffer.putInt( (int) (now - mStartTime) );
+    mBuffer.putInt( x );
+    mBuffer.putInt( y );
+    mBuffer.putFloat( scale );
+    mBuffer.put( (byte) event );
+    mBuffer.put( getOriginCode( origin ) );
+  }
+
+  /**
+   * Discards all recorded entries, keeping the allocated buffer.
+   */
+  public void clear() {
+    mBuffer.clear();
+    mStartTime = -1;
+    mDroppedEntryCount = 0;
+  }
+
+  public int getTimeOffset( int index ) {
+    return mBuffer.getInt( index * ENTRY_SIZE );
+  }
+
+  public int getX( int index ) {
+    return mBuffer.getInt( index * ENTRY_SIZE + 4 );
+  }
+
+  public int getY( int index ) {
+    return mBuffer.getInt( index * ENTRY_SIZE + 8 );
+  }
+
+  public float getScale( int index ) {
+    return mBuffer.getFloat( index * ENTRY_SIZE + 12 );
+  }
+
+  public int getEvent( int index ) {
+    return mBuffer.get( index * ENTRY_SIZE + 16 );
+  }
+
+  public ZoomPanLayout.ZoomPanListener.Origination getOrigin( int index ) {
+    int code = mBuffer.get( index * ENTRY_SIZE + 17 );
+    if( code == ORIGIN_PROGRAMMATIC ) {
+      return null;
+    }
+    return ORIGINATIONS[code - 1];
+  }
+
+  /**
+   * Writes the recorded entries to the file passed, replacing any existing content.
+   *
+   * @param file The destination file.
+   * @throws IOException If the file cannot be written.
+   */
+  public void flush( File file ) throws IOException {
+    OutputStream outputStream = new BufferedOutputStream( new FileOutputStream( file ) );
+    try {
+      writeTo( outputStream );
+    } finally {
+      outputStream.close();
+    }
+  }
+
+  public void writeTo( OutputStream outputStream ) throws IOException {
+    DataOutputStream dataOutputStream = new DataOutputStream( outputStream );
+    dataOutputStream.writeInt( MAGIC );
+    dataOutputStream.writeInt( VERSION );
+    dataOutputStream.writeInt( getEntryCount() );
+    dataOutputStream.writeLong( mStartTime );
+    dataOutputStream.write( mBuffer.array(), 0, mBuffer.position() );
+    dataOutputStream.flush();
+  }
+
+  /**
+   * Reads a trace previously written with flush.  The returned trace is full; it can be replayed
+   * but will not accept new entries.
+   *
+   * @param file The file to read.
+   * @return The GestureTrace described by the file.
+   * @throws IOException If the file cannot be read or is not a gesture trace.
+   */
+  public static GestureTrace load( File file ) throws IOException {
+    InputStream inputStream = new BufferedInputStream( new FileInputStream( file ) );
+    try {
+      return readFrom( inputStream, (file.length() - HEADER_SIZE) / ENTRY_SIZE );
+    } finally {
+      inputStream.close();
+    }
+  }
+
+  /**
+   * Reads a trace previously written with writeTo.
+   *
+   * @param inputStream The stream to read, positioned at the start of the trace.
+   * @return The GestureTrace read.
+   * @throws IOException If the stream cannot be read, is not a gesture trace, ends before the entries it declares, or has an entry with an unknown event or origin.
+   */
+  public static GestureTrace readFrom( InputStream inputStream ) throws IOException {
+    return readFrom( inputStream, Integer.MAX_VALUE / ENTRY_SIZE );
+  }
+
+  private static GestureTrace readFrom( InputStream inputStream, long maximumEntryCount ) throws IOException {
+    DataInputStream dataInputStream = new DataInputStream( inputStream );
+    if( dataInputStream.readInt() != MAGIC ) {
+      throw new IOException( "Not a gesture trace" );
+    }
+    int version = dataInputStream.readInt();
+    if( version != VERSION ) {
+      throw new IOException( "Unsupported gesture trace version " + version );
+    }
+    int entryCount = dataInputStream.readInt();
+    if( entryCount < 0 || entryCount > maximumEntryCount ) {
+      throw new IOException( "Invalid gesture trace entry count " + entryCount );
+    }
+    long startTime = dataInputStream.readLong();
+    byte[] entries = readEntries( dataInputStream, entryCount * ENTRY_SIZE );
+    validateEntries( entries );
+    ByteBuffer buffer = ByteBuffer.wrap( entries );
+    buffer.position( entries.length );
+    return new GestureTrace( buffer, startTime );
+  }
+
+  /**
+   * The declared length is only trusted as far as the stream backs it: the entries are read in
+   * chunks, so a length the stream falls short of fails once the stream ends, without first
+   * allocating the whole length.
+   */
+  private static byte[] readEntries( DataInputStream dataInputStream, int length ) throws IOException {
+    if( length <= READ_CHUNK_SIZE ) {
+      byte[] entries = new byte[length];
+      dataInputStream.readFully( entries );
+      return entries;
+    }
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream( READ_CHUNK_SIZE );
+    byte[] chunk = new byte[READ_CHUNK_SIZE];
+    int remaining = length;
+    while( remaining > 0 ) {
+      int read = dataInputStream.read( chunk, 0, Math.min( remaining, chunk.length ) );
+      if( read == -1 ) {
+        throw new EOFException( "Gesture trace ends " + remaining + " bytes short of its entries" );
+      }
+      byteArrayOutputStream.write( chunk, 0, read );
+      remaining -= read;
+    }
+    return byteArrayOutputStream.toByteArray();
+  }
+
+  /**
+   * Codes are checked once here, so a corrupt or foreign trace fails to load rather than failing
+   * part way through a replay.
+   */
+  private static void validateEntries( byte[] entries ) throws IOException {
+    for( int offset = 0; offset < entries.length; offset += ENTRY_SIZE ) {
+      int event = entries[offset + 16];
+      if( event < EVENT_PAN_BEGIN || event > EVENT_ZOOM_END ) {
+        throw new IOException( "Unknown gesture trace event " + event + " in entry " + offset / ENTRY_SIZE );
+      }
+      int origin = entries[offset + 17];
+      if( origin < ORIGIN_PROGRAMMATIC || origin > ORIGINATIONS.length ) {
+        throw new IOException( "Unknown gesture trace origin " + origin + " in entry " + offset / ENTRY_SIZE );
+      }
+    }
+  }
+
+  private static byte getOriginCode( ZoomPanLayout.ZoomPanListener.Origination origin ) {
+    if( origin == null ) {
+      return ORIGIN_PROGRAMMATIC;
+    }
+    return (byte) (origin.ordinal() + 1);
+  }
+
+}
@@ -0,0 +1,97 @@
+package com.qozix.tileview.widgets;
+
+import android.support.v4.view.ViewCompat;
+import android.view.animation.AnimationUtils;
+
+/**
+ * Replays a GestureTrace against a ZoomPanLayout (or TileView), applying each recorded scale
+ * and scroll position at the same time offset it was recorded at, and re-broadcasting the
+ * recorded zoom and pan events to the layout's ZoomPanListeners.
+ *
+ * Entries are applied on animation frames, so a replay drives the view through the same
+ * viewport sequence as the original session, which makes it suitable for reproducible benchmarks.
+ */
+public class GestureTracePlayer {
+
+  private GestureTrace mGestureTrace;
+  private ZoomPanLayout mZoomPanLayout;
+  private GestureTracePlaybackListener mGestureTracePlaybackListener;
+
+  private int mNextEntryIndex;
+  private long mPlaybackStartTime;
+  private boolean mIsPlaying;
+
+  public GestureTracePlayer( GestureTrace gestureTrace ) {
+    mGestureTrace = gestureTrace;
+  }
+
+  public void setGestureTracePlaybackListener( GestureTracePlaybackListener gestureTracePlaybackListener ) {
+    mGestureTracePlaybackListener = gestureTracePlaybackListener;
+  }
+
+  public boolean isPlaying() {
+    return mIsPlaying;
+  }
+
+  /**
+   * Starts replaying the trace from its first entry.  Any playback in progress is stopped first.
+   *
+   * @param zoomPanLayout The ZoomPanLayout the trace should drive.
+   */
+  public void play( ZoomPanLayout zoomPanLayout ) {
+    stop();
+    mZoomPanLayout = zoomPanLayout;
+    mNextEntryIndex = 0;
+    mPlaybackStartTime = AnimationUtils.currentAnimationTimeMillis();
+    mIsPlaying = true;
+    ViewCompat.postOnAnimation( mZoomPanLayout, mFrameRunnable );
+  }
+
+  /**
+   * Stops playback, leaving the ZoomPanLayout at whatever state the last applied entry described.
+   */
+  public void stop() {
+    if( mZoomPanLayout != null ) {
+      mZoomPanLayout.removeCallbacks( mFrameRunnable );
+    }
+    mIsPlaying = false;
+  }
+
+  private void applyEntriesUntil( long elapsed ) {
+    int entryCount = mGestureTrace.getEntryCount();
+    while( mNextEntryIndex < entryCount && mGestureTrace.getTimeOffset( mNextEntryIndex ) <= elapsed ) {
+      mZoomPanLayout.replayGestureTraceEntry(
+        mGestureTrace.getEvent( mNextEntryIndex ),
+        mGestureTrace.getOrigin( mNextEntryIndex ),
+        mGestureTrace.getX( mNextEntryIndex ),
+        mGestureTrace.getY( mNextEntryIndex ),
+        mGestureTrace.getScale( mNextEntryIndex )
+      );
+      mNextEntryIndex++;
+    }
+  }
+
+  private Runnable mFrameRunnable = new Runnable() {
+    @Override
+    public void run() {
+      if( !mIsPlaying ) {
+        return;
+      }
+      long elapsed = AnimationUtils.currentAnimationTimeMillis() - mPlaybackStartTime;
+      applyEntriesUntil( elapsed );
+      if( mNextEntryIndex < mGestureTrace.getEntryCount() ) {
+        ViewCompat.postOnAnimation( mZoomPanLayout, this );
+      } else {
+        mIsPlaying = false;
+        if( mGestureTracePlaybackListener != null ) {
+          mGestureTracePlaybackListener.onPlaybackComplete( mGestureTrace, elapsed );
+        }
+      }
+    }
+  };
+
+  public interface GestureTracePlaybackListener {
+    void onPlaybackComplete( GestureTrace gestureTrace, long duration );
+  }
+
+}
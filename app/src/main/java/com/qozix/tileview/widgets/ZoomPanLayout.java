@@ -65,6 +65,8 @@ public class ZoomPanLayout extends ViewGroup implements
   private GestureDetector mGestureDetector;
   private TouchUpGestureDetector mTouchUpGestureDetector;
 
+  private GestureTrace mGestureTrace;
+
   /**
    * Constructor to use when creating a ZoomPanLayout from code.
    *
@@ -323,6 +325,25 @@ public class ZoomPanLayout extends ViewGroup implements
     return mZoomPanListeners.remove( listener );
   }
 
+  /**
+   * Attaches a GestureTrace that will record every scroll, fling, pinch and programmatic
+   * animation event broadcast by this ZoomPanLayout.  Pass null to stop recording.
+   *
+   * @param gestureTrace The GestureTrace to record into, or null.
+   */
+  public void setGestureTrace( GestureTrace gestureTrace ) {
+    mGestureTrace = gestureTrace;
+  }
+
+  /**
+   * Returns the GestureTrace currently recording events, if any.
+   *
+   * @return The GestureTrace attached to this ZoomPanLayout, or null.
+   */
+  public GestureTrace getGestureTrace() {
+    return mGestureTrace;
+  }
+
   /**
    * Scrolls and centers the ZoomPanLayout to the x and y values provided.
    *
@@ -558,91 +579,144 @@ public class ZoomPanLayout extends ViewGroup implements
     }
   }
 
+  private void recordGestureTrace( int event, ZoomPanListener.Origination origin ) {
+    if( mGestureTrace != null ) {
+      mGestureTrace.record( event, origin, getScrollX(), getScrollY(), mScale );
+    }
+  }
+
+  /**
+   * Applies a single GestureTrace entry: the scale and scroll position are set directly,
+   * and the recorded event is broadcast to ZoomPanListeners as it was originally.
+   * Replayed entries are not recorded.
+   */
+  void replayGestureTraceEntry( int event, ZoomPanListener.Origination origin, int x, int y, float scale ) {
+    setScale( scale );
+    scrollTo( x, y );
+    for( ZoomPanListener listener : mZoomPanListeners ) {
+      switch( event ) {
+        case GestureTrace.EVENT_PAN_BEGIN:
+          listener.onPanBegin( getScrollX(), getScrollY(), origin );
+          break;
+        case GestureTrace.EVENT_PAN_UPDATE:
+          listener.onPanUpdate( getScrollX(), getScrollY(), origin );
+          break;
+        case GestureTrace.EVENT_PAN_END:
+          listener.onPanEnd( getScrollX(), getScrollY(), origin );
+          break;
+        case GestureTrace.EVENT_ZOOM_BEGIN:
+          listener.onZoomBegin( mScale, origin );
+          break;
+        case GestureTrace.EVENT_ZOOM_UPDATE:
+          listener.onZoomUpdate( mScale, origin );
+          break;
+        case GestureTrace.EVENT_ZOOM_END:
+          listener.onZoomEnd( mScale, origin );
+          break;
+      }
+    }
+  }
+
   private void broadcastDragBegin() {
+    recordGestureTrace( GestureTrace.EVENT_PAN_BEGIN, ZoomPanListener.Origination.DRAG );
     for( ZoomPanListener listener : mZoomPanListeners ) {
       listener.onPanBegin( getScrollX(), getScrollY(), ZoomPanListener.Origination.DRAG );
     }
   }
 
   private void broadcastDragUpdate() {
+    recordGestureTrace( GestureTrace.EVENT_PAN_UPDATE, ZoomPanListener.Origination.DRAG );
     for( ZoomPanListener listener : mZoomPanListeners ) {
       listener.onPanUpdate( getScrollX(), getScrollY(), ZoomPanListener.Origination.DRAG );
     }
   }
 
   private void broadcastDragEnd() {
+    recordGestureTrace( GestureTrace.EVENT_PAN_END, ZoomPanListener.Origination.DRAG );
     for( ZoomPanListener listener : mZoomPanListeners ) {
       listener.onPanEnd( getScrollX(), getScrollY(), ZoomPanListener.Origination.DRAG );
     }
   }
 
   private void broadcastFlingBegin() {
+    recordGestureTrace( GestureTrace.EVENT_PAN_BEGIN, ZoomPanListener.Origination.FLING );
     for( ZoomPanListener listener : mZoomPanListeners ) {
       listener.onPanBegin( mScroller.getStartX(), mScroller.getStartY(), ZoomPanListener.Origination.FLING );
     }
   }
 
   private void broadcastFlingUpdate() {
+    recordGestureTrace( GestureTrace.EVENT_PAN_UPDATE, ZoomPanListener.Origination.FLING );
     for( ZoomPanListener listener : mZoomPanListeners ) {
       listener.onPanUpdate( mScroller.getCurrX(), mScroller.getCurrY(), ZoomPanListener.Origination.FLING );
     }
   }
 
   private void broadcastFlingEnd() {
+    recordGestureTrace( GestureTrace.EVENT_PAN_END, ZoomPanListener.Origination.FLING );
     for( ZoomPanListener listener : mZoomPanListeners ) {
       listener.onPanEnd( mScroller.getFinalX(), mScroller.getFinalY(), ZoomPanListener.Origination.FLING );
     }
   }
 
   private void broadcastProgrammaticPanBegin() {
+    recordGestureTrace( GestureTrace.EVENT_PAN_BEGIN, null );
     for( ZoomPanListener listener : mZoomPanListeners ) {
       listener.onPanBegin( getScrollX(), getScrollY(), null );
     }
   }
 
   private void broadcastProgrammaticPanUpdate() {
+    recordGestureTrace( GestureTrace.EVENT_PAN_UPDATE, null );
     for( ZoomPanListener listener : mZoomPanListeners ) {
       listener.onPanUpdate( getScrollX(), getScrollY(), null );
     }
   }
 
   private void broadcastProgrammaticPanEnd() {
+    recordGestureTrace( GestureTrace.EVENT_PAN_END, null );
     for( ZoomPanListener listener : mZoomPanListeners ) {
       listener.onPanEnd( getScrollX(), getScrollY(), null );
     }
   }
 
   private void broadcastPinchBegin() {
+    recordGestureTrace( GestureTrace.EVENT_ZOOM_BEGIN, ZoomPanListener.Origination.PINCH );
     for( ZoomPanListener listener : mZoomPanListeners ) {
       listener.onZoomBegin( mScale, ZoomPanListener.Origination.PINCH );
     }
   }
 
   private void broadcastPinchUpdate() {
+    recordGestureTrace( GestureTrace.EVENT_ZOOM_UPDATE, ZoomPanListener.Origination.PINCH );
     for( ZoomPanListener listener : mZoomPanListeners ) {
       listener.onZoomUpdate( mScale, ZoomPanListener.Origination.PINCH );
     }
   }
 
   private void broadcastPinchEnd() {
+    recordGestureTrace( GestureTrace.EVENT_ZOOM_END, ZoomPanListener.Origination.PINCH );
     for( ZoomPanListener listener : mZoomPanListeners ) {
       listener.onZoomEnd( mScale, ZoomPanListener.Origination.PINCH );
     }
   }
 
   private void broadcastProgrammaticZoomBegin() {
+    recordGestureTrace( GestureTrace.EVENT_ZOOM_BEGIN, null );
     for( ZoomPanListener listener : mZoomPanListeners ) {
       listener.onZoomBegin( mScale, null );
     }
   }
 
   private void broadcastProgrammaticZoomUpdate() {
+    recordGestureTrace( GestureTrace.EVENT_ZOOM_UPDATE, null );
     for( ZoomPanListener listener : mZoomPanListeners ) {
       listener.onZoomUpdate( mScale, null );
     }
   }
 
   private void broadcastProgrammaticZoomEnd() {
+    recordGestureTrace( GestureTrace.EVENT_ZOOM_END, null );
     for( ZoomPanListener listener : mZoomPanListeners ) {
       listener.onZoomEnd( mScale, null );
     }
@@ -0,0 +1,441 @@
+package com.qozix.tileview.zip;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads tiles out of a zip file (including ZIP64 files, with more than 65535 entries or larger
+ * than 4GB), without java.util.zip.ZipFile, which serializes every read through a lock.
+ *
+ * The central directory is parsed once, when the file is opened, into a compact open-addressing
+ * index of name hashes and entry offsets - no String or object per entry.  Entries are then read
+ * with positional reads on a single shared FileChannel, which need no locking, so any number of
+ * render threads can read at once.  Stored (uncompressed) entries are read straight into the
+ * destination; deflated entries are supported, but tiles are best stored, since encoded images
+ * do not compress further (e.g., zip -0 -r tiles.zip tiles).
+ *
+ * Names are matched by their UTF-8 bytes, so names with characters outside ASCII must have been
+ * written as UTF-8, as current zip tools do.
+ *
+ * A ZipTileBundle can be read from any number of threads.
+ */
+public class ZipTileBundle {
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+  private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int END_SIZE = 22;
+  private static final int ZIP64_END_SIZE = 56;
+  private static final int ZIP64_LOCATOR_SIZE = 20;
+  private static final int MAXIMUM_COMMENT_LENGTH = 0xFFFF;
+
+  private static final int ZIP64_EXTRA_ID = 0x0001;
+  private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+  private static final int METHOD_STORED = 0;
+  private static final int METHOD_DEFLATED = 8;
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private static final Charset CHARSET = Charset.forName( "UTF-8" );
+
+  private final File mFile;
+  private volatile FileChannel mFileChannel;
+  private volatile boolean mIsClosed;
+
+  // per entry, in central directory order
+  private int mEntryCount;
+  private long[] mHashes;
+  private long[] mLocalHeaderOffsets;
+  private int[] mCompressedSizes;
+  private int[] mSizes;
+  private boolean[] mIsDeflated;
+
+  // open addressing over the entries, by hash: each slot holds an entry index plus one, 0 when empty
+  private int[] mSlots;
+
+  private ZipTileBundle( File file ) throws IOException {
+    mFile = file;
+    mFileChannel = new RandomAccessFile( file, "r" ).getChannel();
+    try {
+      readCentralDirectory();
+    } catch( IOException | RuntimeException e ) {
+      mFileChannel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Opens a zip file and indexes its central directory.
+   */
+  public static ZipTileBundle open( File file ) throws IOException {
+    return new ZipTileBundle( file );
+  }
+
+  public File getFile() {
+    return mFile;
+  }
+
+  /**
+   * @return The number of entries indexed; directories, encrypted entries and entries compressed with methods other than deflate are not.
+   */
+  public int getEntryCount() {
+    return mEntryCount;
+  }
+
+  /**
+   * Closes the file.  Reads afterwards fail.
+   */
+  public void close() throws IOException {
+    mIsClosed = true;
+    mFileChannel.close();
+  }
+
+  /**
+   * Looks an entry up, reading its local header once, so it can then be sized and read without
+   * looking it up again.
+   *
+   * @param name The path of the entry in the zip file, e.g. "tiles/map/1000/3-4.jpg".
+   * @return The entry, or null if the zip file has no such entry.
+   */
+  public Entry find( String name ) throws IOException {
+    byte[] nameBytes = name.getBytes( CHARSET );
+    long hash = hash( nameBytes );
+    int slot = 0;
+    int entry;
+    while( (entry = findEntry( hash, slot )) != -1 ) {
+      long dataOffset = getDataOffset( entry, nameBytes );
+      // names are checked against the local header, which only differs on a hash collision
+      if( dataOffset != -1 ) {
+        return new Entry( entry, mSizes[entry], dataOffset );
+      }
+      slot = findSlot( hash, slot, entry ) + 1;
+    }
+    return null;
+  }
+
+  /**
+   * @param name The path of the entry in the zip file, e.g. "tiles/map/1000/3-4.jpg".
+   * @return The uncompressed size of the entry, or -1 if the zip file has no such entry.
+   */
+  public int getSize( String name ) throws IOException {
+    Entry entry = find( name );
+    return entry == null ? -1 : entry.getSize();
+  }
+
+  /**
+   * Reads an entry, uncompressed, into an array, which must be at least getSize long.
+   *
+   * @param name        The path of the entry in the zip file.
+   * @param destination The array the entry is read into, from its start.
+   * @return The size of the entry, or -1 if the zip file has no such entry.
+   */
+  public int read( String name, byte[] destination ) throws IOException {
+    Entry entry = find( name );
+    return entry == null ? -1 : read( entry, destination );
+  }
+
+  /**
+   * Reads an entry found by this bundle, uncompressed, into an array, which must be at least the
+   * entry's size long.
+   *
+   * @param entry       The entry, as returned by find.
+   * @param destination The array the entry is read into, from its start.
+   * @return The size of the entry.
+   */
+  public int read( Entry entry, byte[] destination ) throws IOException {
+    readEntry( entry.mIndex, entry.mDataOffset, destination );
+    return entry.mSize;
+  }
+
+  private int findEntry( long hash, int firstProbe ) {
+    int mask = mSlots.length - 1;
+    for( int probe = firstProbe; probe < mSlots.length; probe++ ) {
+      int value = mSlots[(int) (hash + probe) & mask];
+      if( value == 0 ) {
+        return -1;
+      }
+      if( mHashes[value - 1] == hash ) {
+        return value - 1;
+      }
+    }
+    return -1;
+  }
+
+  private int findSlot( long hash, int firstProbe, int entry ) {
+    int mask = mSlots.length - 1;
+    int probe = firstProbe;
+    while( mSlots[(int) (hash + probe) & mask] != entry + 1 ) {
+      probe++;
+    }
+    return probe;
+  }
+
+  private static long hash( byte[] bytes ) {
+    long hash = FNV_OFFSET_BASIS;
+    for( byte b : bytes ) {
+      hash = (hash ^ (b & 0xFF)) * FNV_PRIME;
+    }
+    return hash;
+  }
+
+  /**
+   * @return The offset of the entry's data, or -1 if the local header does not have the name passed.
+   */
+  private long getDataOffset( int entry, byte[] nameBytes ) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate( LOCAL_HEADER_SIZE + nameBytes.length ).order( ByteOrder.LITTLE_ENDIAN );
+    long localHeaderOffset = mLocalHeaderOffsets[entry];
+    readFully( header, localHeaderOffset );
+    if( header.getInt( 0 ) != LOCAL_HEADER_SIGNATURE ) {
+      throw new IOException( "Invalid local header at " + localHeaderOffset );
+    }
+    int nameLength = header.getShort( 26 ) & 0xFFFF;
+    int extraLength = header.getShort( 28 ) & 0xFFFF;
+    if( nameLength != nameBytes.length ) {
+      return -1;
+    }
+    for( int i = 0; i < nameLength; i++ ) {
+      if( header.get( LOCAL_HEADER_SIZE + i ) != nameBytes[i] ) {
+        return -1;
+      }
+    }
+    return localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+  }
+
+  private void readEntry( int entry, long dataOffset, byte[] destination ) throws IOException {
+    int size = mSizes[entry];
+    if( !mIsDeflated[entry] ) {
+      readFully( ByteBuffer.wrap( destination, 0, size ), dataOffset );
+      return;
+    }
+    byte[] compressed = new byte[mCompressedSizes[entry]];
+    readFully( ByteBuffer.wrap( compressed ), dataOffset );
+    Inflater inflater = new Inflater( true );
+    try {
+      inflater.setInput( compressed );
+      int length = 0;
+      while( length < size ) {
+        int inflated = inflater.inflate( destination, length, size - length );
+        if( inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()) ) {
+          break;
+        }
+        length += inflated;
+      }
+      if( length != size ) {
+        throw new IOException( "Truncated deflated entry at " + dataOffset );
+      }
+    } catch( DataFormatException e ) {
+      throw new IOException( "Invalid deflated entry at " + dataOffset, e );
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Positional reads leave the channel's position alone, so threads can read at once without
+   * locking.  A thread interrupted while reading (e.g., a cancelled render) closes the channel
+   * for every thread, so it is reopened, and reads that failed because of it are retried.
+   */
+  private void readFully( ByteBuffer buffer, long position ) throws IOException {
+    while( true ) {
+      FileChannel fileChannel = mFileChannel;
+      try {
+        while( buffer.hasRemaining() ) {
+          int read = fileChannel.read( buffer, position + buffer.position() );
+          if( read == -1 ) {
+            throw new IOException( "Unexpected end of zip file at " + (position + buffer.position()) );
+          }
+        }
+        return;
+      } catch( ClosedByInterruptException e ) {
+        reopen( fileChannel );
+        throw e;
+      } catch( ClosedChannelException e ) {
+        if( mIsClosed ) {
+          throw e;
+        }
+        reopen( fileChannel );
+      }
+    }
+  }
+
+  private synchronized void reopen( FileChannel closedFileChannel ) throws IOException {
+    if( !mIsClosed && mFileChannel == closedFileChannel ) {
+      mFileChannel = new RandomAccessFile( mFile, "r" ).getChannel();
+    }
+  }
+
+  private void readCentralDirectory() throws IOException {
+    long fileSize = mFileChannel.size();
+    int tailLength = (int) Math.min( fileSize, END_SIZE + MAXIMUM_COMMENT_LENGTH );
+    ByteBuffer tail = ByteBuffer.allocate( tailLength ).order( ByteOrder.LITTLE_ENDIAN );
+    readFully( tail, fileSize - tailLength );
+    int endPosition = -1;
+    for( int position = tailLength - END_SIZE; position >= 0; position-- ) {
+      if( tail.getInt( position ) == END_SIGNATURE ) {
+        endPosition = position;
+        break;
+      }
+    }
+    if( endPosition == -1 ) {
+      throw new IOException( "Not a zip file" );
+    }
+    long entryCount = tail.getShort( endPosition + 10 ) & 0xFFFF;
+    long directorySize = tail.getInt( endPosition + 12 ) & ZIP64_MAGIC;
+    long directoryOffset = tail.getInt( endPosition + 16 ) & ZIP64_MAGIC;
+    if( entryCount == 0xFFFF || directorySize == ZIP64_MAGIC || directoryOffset == ZIP64_MAGIC ) {
+      long locatorOffset = fileSize - tailLength + endPosition - ZIP64_LOCATOR_SIZE;
+      if( locatorOffset < 0 ) {
+        throw new IOException( "Missing ZIP64 end of central directory locator" );
+      }
+      ByteBuffer locator = ByteBuffer.allocate( ZIP64_LOCATOR_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+      readFully( locator, locatorOffset );
+      if( locator.getInt( 0 ) != ZIP64_LOCATOR_SIGNATURE ) {
+        throw new IOException( "Missing ZIP64 end of central directory locator" );
+      }
+      long zip64EndOffset = locator.getLong( 8 );
+      ByteBuffer zip64End = ByteBuffer.allocate( ZIP64_END_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+      readFully( zip64End, zip64EndOffset );
+      if( zip64End.getInt( 0 ) != ZIP64_END_SIGNATURE ) {
+        throw new IOException( "Invalid ZIP64 end of central directory" );
+      }
+      entryCount = zip64End.getLong( 32 );
+      directorySize = zip64End.getLong( 40 );
+      directoryOffset = zip64End.getLong( 48 );
+    }
+    if( directorySize > Integer.MAX_VALUE || directoryOffset < 0 || directoryOffset + directorySize > fileSize
+      || entryCount < 0 || entryCount > directorySize / CENTRAL_HEADER_SIZE ) {
+      throw new IOException( "Invalid central directory" );
+    }
+    // the mapping is only used while indexing, and is released with the buffer
+    ByteBuffer directory = mFileChannel.map( FileChannel.MapMode.READ_ONLY, directoryOffset, directorySize );
+    directory.order( ByteOrder.LITTLE_ENDIAN );
+    indexCentralDirectory( directory, (int) entryCount );
+  }
+
+  private void indexCentralDirectory( ByteBuffer directory, int entryCount ) throws IOException {
+    mHashes = new long[entryCount];
+    mLocalHeaderOffsets = new long[entryCount];
+    mCompressedSizes = new int[entryCount];
+    mSizes = new int[entryCount];
+    mIsDeflated = new boolean[entryCount];
+    int limit = directory.limit();
+    int position = 0;
+    for( int i = 0; i < entryCount; i++ ) {
+      if( position + CENTRAL_HEADER_SIZE > limit || directory.getInt( position ) != CENTRAL_HEADER_SIGNATURE ) {
+        throw new IOException( "Invalid central directory entry " + i );
+      }
+      int flags = directory.getShort( position + 8 ) & 0xFFFF;
+      int method = directory.getShort( position + 10 ) & 0xFFFF;
+      long compressedSize = directory.getInt( position + 20 ) & ZIP64_MAGIC;
+      long size = directory.getInt( position + 24 ) & ZIP64_MAGIC;
+      int nameLength = directory.getShort( position + 28 ) & 0xFFFF;
+      int extraLength = directory.getShort( position + 30 ) & 0xFFFF;
+      int commentLength = directory.getShort( position + 32 ) & 0xFFFF;
+      long localHeaderOffset = directory.getInt( position + 42 ) & ZIP64_MAGIC;
+      int namePosition = position + CENTRAL_HEADER_SIZE;
+      int extraPosition = namePosition + nameLength;
+      position = extraPosition + extraLength + commentLength;
+      if( position > limit ) {
+        throw new IOException( "Truncated central directory entry " + i );
+      }
+      // sizes and offsets too large for the entry are in its ZIP64 extra field, in this order, when they overflowed
+      int extraEnd = extraPosition + extraLength;
+      while( extraPosition + 4 <= extraEnd ) {
+        int id = directory.getShort( extraPosition ) & 0xFFFF;
+        int dataSize = directory.getShort( extraPosition + 2 ) & 0xFFFF;
+        int field = extraPosition + 4;
+        int dataEnd = Math.min( field + dataSize, extraEnd );
+        if( id == ZIP64_EXTRA_ID ) {
+          if( size == ZIP64_MAGIC && field + 8 <= dataEnd ) {
+            size = directory.getLong( field );
+            field += 8;
+          }
+          if( compressedSize == ZIP64_MAGIC && field + 8 <= dataEnd ) {
+            compressedSize = directory.getLong( field );
+            field += 8;
+          }
+          if( localHeaderOffset == ZIP64_MAGIC && field + 8 <= dataEnd ) {
+            localHeaderOffset = directory.getLong( field );
+          }
+          break;
+        }
+        extraPosition = field + dataSize;
+      }
+      boolean isDirectory = nameLength > 0 && directory.get( namePosition + nameLength - 1 ) == '/';
+      boolean isEncrypted = (flags & 1) != 0;
+      if( isDirectory || isEncrypted || (method != METHOD_STORED && method != METHOD_DEFLATED)
+        || size > Integer.MAX_VALUE || compressedSize > Integer.MAX_VALUE ) {
+        continue;
+      }
+      long hash = FNV_OFFSET_BASIS;
+      for( int j = 0; j < nameLength; j++ ) {
+        hash = (hash ^ (directory.get( namePosition + j ) & 0xFF)) * FNV_PRIME;
+      }
+      mHashes[mEntryCount] = hash;
+      mLocalHeaderOffsets[mEntryCount] = localHeaderOffset;
+      mCompressedSizes[mEntryCount] = (int) compressedSize;
+      mSizes[mEntryCount] = (int) size;
+      mIsDeflated[mEntryCount] = method == METHOD_DEFLATED;
+      mEntryCount++;
+    }
+    // at most half full, so probes stay short
+    int slotCount = Integer.highestOneBit( Math.max( mEntryCount, 1 ) ) * 4;
+    mSlots = new int[slotCount];
+    int mask = slotCount - 1;
+    for( int i = 0; i < mEntryCount; i++ ) {
+      int slot = (int) mHashes[i] & mask;
+      while( mSlots[slot] != 0 ) {
+        slot = (slot + 1) & mask;
+      }
+      mSlots[slot] = i + 1;
+    }
+  }
+
+  /**
+   * An entry found in the bundle: where its data starts, and how large it is uncompressed.
+   */
+  public static final class Entry {
+
+    private final int mIndex;
+    private final int mSize;
+    private final long mDataOffset;
+
+    private Entry( int index, int size, long dataOffset ) {
+      mIndex = index;
+      mSize = size;
+      mDataOffset = dataOffset;
+    }
+
+    /**
+     * @return The uncompressed size of the entry.
+     */
+    public int getSize() {
+      return mSize;
+    }
+
+    /**
+     * @return The offset of the entry's data in the zip file.
+     */
+    public long getDataOffset() {
+      return mDataOffset;
+    }
+
+  }
+
+}
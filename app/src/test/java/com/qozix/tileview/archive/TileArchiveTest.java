@@ -0,0 +1,244 @@
+package com.qozix.tileview.archive;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class TileArchiveTest {
+
+  private static final String NAME = "1000";
+
+  private File mDirectory;
+  private File mArchiveFile;
+
+  @Before
+  public void setUp() throws Exception {
+    mDirectory = File.createTempFile( "tiles", "" );
+    assertTrue( mDirectory.delete() );
+    assertTrue( mDirectory.mkdir() );
+    mArchiveFile = new File( mDirectory, "map.tva" );
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = mDirectory.listFiles();
+    if( files != null ) {
+      for( File file : files ) {
+        file.delete();
+      }
+    }
+    mDirectory.delete();
+  }
+
+  @Test
+  public void writeThenRead_preservesTilesInEveryLayout() throws Exception {
+    int[] layouts = { TileArchiveWriter.LAYOUT_ROW_MAJOR, TileArchiveWriter.LAYOUT_Z_ORDER, TileArchiveWriter.LAYOUT_HILBERT };
+    for( int layout : layouts ) {
+      TileArchiveWriter writer = new TileArchiveWriter();
+      writer.setLayout( layout );
+      writer.addLevel( NAME, 3, 2 );
+      writer.addLevel( "500", 1, 1 );
+      for( int row = 0; row < 2; row++ ) {
+        for( int column = 0; column < 3; column++ ) {
+          // one absent tile
+          if( column == 1 && row == 1 ) {
+            continue;
+          }
+          writer.addTile( NAME, column, row, createTile( column + "-" + row, getTileBytes( column, row ) ) );
+        }
+      }
+      writer.addTile( "500", 0, 0, createTile( "500", getTileBytes( 7, 7 ) ) );
+      writer.write( mArchiveFile );
+
+      TileArchive archive = TileArchive.open( mArchiveFile );
+      assertEquals( 2, archive.getLevelNames().size() );
+      assertNull( archive.getLevel( "250" ) );
+      TileArchive.Level level = archive.getLevel( NAME );
+      assertEquals( NAME, level.getName() );
+      assertEquals( 3, level.getColumnCount() );
+      assertEquals( 2, level.getRowCount() );
+      for( int row = 0; row < 2; row++ ) {
+        for( int column = 0; column < 3; column++ ) {
+          if( column == 1 && row == 1 ) {
+            assertNull( level.getTile( column, row ) );
+            assertEquals( 0, level.getTileLength( column, row ) );
+            assertEquals( -1, level.getTileOffset( column, row ) );
+            continue;
+          }
+          byte[] expected = getTileBytes( column, row );
+          assertEquals( expected.length, level.getTileLength( column, row ) );
+          assertArrayEquals( expected, toArray( level.getTile( column, row ) ) );
+          byte[] copied = new byte[expected.length];
+          archive.read( level.getTileOffset( column, row ), copied, copied.length );
+          assertArrayEquals( expected, copied );
+        }
+      }
+      assertArrayEquals( getTileBytes( 7, 7 ), toArray( archive.getLevel( "500" ).getTile( 0, 0 ) ) );
+    }
+  }
+
+  @Test
+  public void getTile_outsideOfLevel_isAbsent() throws Exception {
+    writeSingleTileArchive();
+    TileArchive.Level level = TileArchive.open( mArchiveFile ).getLevel( NAME );
+    assertNull( level.getTile( -1, 0 ) );
+    assertNull( level.getTile( 0, -1 ) );
+    assertNull( level.getTile( 1, 0 ) );
+    assertNull( level.getTile( 0, 1 ) );
+  }
+
+  @Test
+  public void getTile_blobBeyondEnd_isAbsent() throws Exception {
+    writeSingleTileArchive();
+    patchLong( getIndexOffset(), mArchiveFile.length() );
+    assertNull( TileArchive.open( mArchiveFile ).getLevel( NAME ).getTile( 0, 0 ) );
+  }
+
+  @Test
+  public void getTile_negativeBlobOffset_isAbsent() throws Exception {
+    writeSingleTileArchive();
+    patchLong( getIndexOffset(), -1 );
+    TileArchive.Level level = TileArchive.open( mArchiveFile ).getLevel( NAME );
+    assertNull( level.getTile( 0, 0 ) );
+    assertEquals( -1, level.getTileOffset( 0, 0 ) );
+  }
+
+  @Test
+  public void getTile_blobLengthBeyondEnd_isAbsent() throws Exception {
+    writeSingleTileArchive();
+    patchInt( getIndexOffset() + 8, Integer.MAX_VALUE );
+    assertNull( TileArchive.open( mArchiveFile ).getLevel( NAME ).getTile( 0, 0 ) );
+  }
+
+  @Test( expected = IOException.class )
+  public void open_rejectsOtherData() throws Exception {
+    writeSingleTileArchive();
+    patchInt( 0, 0x504B0304 );
+    TileArchive.open( mArchiveFile );
+  }
+
+  @Test( expected = IOException.class )
+  public void open_rejectsUnsupportedVersion() throws Exception {
+    writeSingleTileArchive();
+    patchInt( 4, TileArchiveFormat.VERSION + 1 );
+    TileArchive.open( mArchiveFile );
+  }
+
+  @Test( expected = IOException.class )
+  public void open_rejectsTruncatedHeader() throws Exception {
+    writeSingleTileArchive();
+    RandomAccessFile file = new RandomAccessFile( mArchiveFile, "rw" );
+    try {
+      file.setLength( TileArchiveFormat.HEADER_SIZE + 8 );
+    } finally {
+      file.close();
+    }
+    TileArchive.open( mArchiveFile );
+  }
+
+  @Test( expected = IOException.class )
+  public void open_rejectsNegativeNameLength() throws Exception {
+    writeSingleTileArchive();
+    patchInt( TileArchiveFormat.HEADER_SIZE, -1 );
+    TileArchive.open( mArchiveFile );
+  }
+
+  @Test( expected = IOException.class )
+  public void open_rejectsIndexBeyondEnd() throws Exception {
+    writeSingleTileArchive();
+    patchLong( getIndexOffsetPosition(), mArchiveFile.length() );
+    TileArchive.open( mArchiveFile );
+  }
+
+  @Test( expected = IOException.class )
+  public void open_rejectsNegativeIndexOffset() throws Exception {
+    writeSingleTileArchive();
+    patchLong( getIndexOffsetPosition(), -8 );
+    TileArchive.open( mArchiveFile );
+  }
+
+  @Test( expected = IOException.class )
+  public void open_rejectsLevelLargerThanIndex() throws Exception {
+    writeSingleTileArchive();
+    // the row count, which makes the index run past the end of the archive
+    patchInt( getIndexOffsetPosition() - 4, 1 << 20 );
+    TileArchive.open( mArchiveFile );
+  }
+
+  private void writeSingleTileArchive() throws IOException {
+    TileArchiveWriter writer = new TileArchiveWriter();
+    writer.addLevel( NAME, 1, 1 );
+    writer.addTile( NAME, 0, 0, createTile( "tile", getTileBytes( 0, 0 ) ) );
+    writer.write( mArchiveFile );
+  }
+
+  // the position of the single level's index offset in the header
+  private static long getIndexOffsetPosition() {
+    return TileArchiveFormat.HEADER_SIZE + 4 + NAME.length() + 8;
+  }
+
+  private long getIndexOffset() throws IOException {
+    RandomAccessFile file = new RandomAccessFile( mArchiveFile, "r" );
+    try {
+      file.seek( getIndexOffsetPosition() );
+      return file.readLong();
+    } finally {
+      file.close();
+    }
+  }
+
+  private void patchInt( long position, int value ) throws IOException {
+    RandomAccessFile file = new RandomAccessFile( mArchiveFile, "rw" );
+    try {
+      file.seek( position );
+      file.writeInt( value );
+    } finally {
+      file.close();
+    }
+  }
+
+  private void patchLong( long position, long value ) throws IOException {
+    RandomAccessFile file = new RandomAccessFile( mArchiveFile, "rw" );
+    try {
+      file.seek( position );
+      file.writeLong( value );
+    } finally {
+      file.close();
+    }
+  }
+
+  private File createTile( String name, byte[] bytes ) throws IOException {
+    File file = new File( mDirectory, name + ".jpg" );
+    FileOutputStream outputStream = new FileOutputStream( file );
+    try {
+      outputStream.write( bytes );
+    } finally {
+      outputStream.close();
+    }
+    return file;
+  }
+
+  // distinct contents and lengths for each tile
+  private static byte[] getTileBytes( int column, int row ) {
+    byte[] bytes = new byte[10 + column * 7 + row * 13];
+    for( int i = 0; i < bytes.length; i++ ) {
+      bytes[i] = (byte) (column * 31 + row * 17 + i);
+    }
+    return bytes;
+  }
+
+  private static byte[] toArray( ByteBuffer buffer ) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get( bytes );
+    return bytes;
+  }
+
+}
@@ -0,0 +1,79 @@
+package com.qozix.tileview.archive;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TileArchiveWriterTest {
+
+  @Test
+  public void getZOrderKey_interleavesColumnAndRow() {
+    assertEquals( 0, TileArchiveWriter.getZOrderKey( 0, 0 ) );
+    assertEquals( 1, TileArchiveWriter.getZOrderKey( 1, 0 ) );
+    assertEquals( 2, TileArchiveWriter.getZOrderKey( 0, 1 ) );
+    assertEquals( 3, TileArchiveWriter.getZOrderKey( 1, 1 ) );
+    assertEquals( 4, TileArchiveWriter.getZOrderKey( 2, 0 ) );
+    assertEquals( 15, TileArchiveWriter.getZOrderKey( 3, 3 ) );
+    assertEquals( 0x5555, TileArchiveWriter.getZOrderKey( 0xFF, 0 ) );
+    assertEquals( 0xAAAA, TileArchiveWriter.getZOrderKey( 0, 0xFF ) );
+  }
+
+  @Test
+  public void getZOrderKey_keepsHighBits() {
+    assertEquals( 1L << 60, TileArchiveWriter.getZOrderKey( 1 << 30, 0 ) );
+    assertEquals( 1L << 61, TileArchiveWriter.getZOrderKey( 0, 1 << 30 ) );
+  }
+
+  @Test
+  public void getZOrderKey_visitsEveryCellOnce() {
+    int side = 16;
+    boolean[] visited = new boolean[side * side];
+    for( int row = 0; row < side; row++ ) {
+      for( int column = 0; column < side; column++ ) {
+        long key = TileArchiveWriter.getZOrderKey( column, row );
+        assertTrue( key >= 0 && key < visited.length );
+        assertFalse( visited[(int) key] );
+        visited[(int) key] = true;
+      }
+    }
+  }
+
+  @Test
+  public void getHilbertKey_firstOrderCurve() {
+    assertEquals( 0, TileArchiveWriter.getHilbertKey( 0, 0, 2 ) );
+    assertEquals( 1, TileArchiveWriter.getHilbertKey( 0, 1, 2 ) );
+    assertEquals( 2, TileArchiveWriter.getHilbertKey( 1, 1, 2 ) );
+    assertEquals( 3, TileArchiveWriter.getHilbertKey( 1, 0, 2 ) );
+  }
+
+  @Test
+  public void getHilbertKey_singleCell() {
+    assertEquals( 0, TileArchiveWriter.getHilbertKey( 0, 0, 1 ) );
+  }
+
+  @Test
+  public void getHilbertKey_visitsEveryCellOnceThroughAdjacentCells() {
+    for( int side = 2; side <= 64; side <<= 1 ) {
+      int[] columns = new int[side * side];
+      int[] rows = new int[side * side];
+      boolean[] visited = new boolean[side * side];
+      for( int row = 0; row < side; row++ ) {
+        for( int column = 0; column < side; column++ ) {
+          long key = TileArchiveWriter.getHilbertKey( column, row, side );
+          assertTrue( key >= 0 && key < visited.length );
+          assertFalse( visited[(int) key] );
+          visited[(int) key] = true;
+          columns[(int) key] = column;
+          rows[(int) key] = row;
+        }
+      }
+      // consecutive cells along the curve share an edge
+      for( int i = 1; i < columns.length; i++ ) {
+        assertEquals( 1, Math.abs( columns[i] - columns[i - 1] ) + Math.abs( rows[i] - rows[i - 1] ) );
+      }
+      assertEquals( 0, columns[0] );
+      assertEquals( 0, rows[0] );
+    }
+  }
+
+}
@@ -0,0 +1,83 @@
+package com.qozix.tileview.graphics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FileNameTemplateTest {
+
+  @Test
+  public void format_matchesStringFormat() {
+    String[] patterns = {
+      "tiles/map/1000/%d-%d.jpg",
+      "tiles/map/1000/%d_%d.png",
+      "%d%d",
+      "%s/%s.jpg",
+      "%d.jpg",
+      "tiles.jpg",
+      "",
+      "%2$d_%1$d.jpg",
+      "%1$d_%2$d.jpg",
+      "%1$d_%1$d.jpg",
+      // explicit indices do not take the next argument
+      "%2$d_%d.jpg",
+      "%2$d_%d_%d.jpg",
+      "%1$d/%d-%2$s-%s.jpg",
+      "100%%/%d-%d.jpg",
+      "%%d-%d.jpg",
+      "%d-%d%%",
+      // formatted with String.format
+      "%03d-%03d.jpg",
+      "%x-%x.jpg",
+      "%<d-%d.jpg",
+      "%d-%<d.jpg",
+      "%,d-%d.jpg",
+      "%3$d-%d.jpg",
+      "%10$d-%d.jpg"
+    };
+    int[][] cells = { { 0, 0 }, { 3, 4 }, { 12, 7 }, { 1234, 56789 } };
+    for( String pattern : patterns ) {
+      FileNameTemplate template = new FileNameTemplate( pattern );
+      assertEquals( pattern, template.getPattern() );
+      for( int[] cell : cells ) {
+        String expected;
+        try {
+          expected = String.format( pattern, cell[0], cell[1] );
+        } catch( RuntimeException e ) {
+          // patterns String.format rejects are rejected the same way
+          try {
+            template.format( cell[0], cell[1] );
+            fail( "Expected " + pattern + " to be rejected" );
+          } catch( RuntimeException expectedException ) {
+            assertEquals( e.getClass(), expectedException.getClass() );
+          }
+          continue;
+        }
+        assertEquals( pattern, expected, template.format( cell[0], cell[1] ) );
+      }
+    }
+  }
+
+  @Test( expected = RuntimeException.class )
+  public void format_danglingPercent_isRejected() {
+    new FileNameTemplate( "tiles/%d-%d%" ).format( 1, 2 );
+  }
+
+  @Test
+  public void format_overflowingIndex_isFormattedByStringFormat() {
+    FileNameTemplate template = new FileNameTemplate( "%4294967297$d-%d.jpg" );
+    try {
+      String expected = String.format( "%4294967297$d-%d.jpg", 1, 2 );
+      assertEquals( expected, template.format( 1, 2 ) );
+    } catch( RuntimeException e ) {
+      // String.format rejects the index, and so does the template, rather than reading it as the column
+      try {
+        template.format( 1, 2 );
+        fail();
+      } catch( RuntimeException expectedException ) {
+        assertEquals( e.getClass(), expectedException.getClass() );
+      }
+    }
+  }
+
+}
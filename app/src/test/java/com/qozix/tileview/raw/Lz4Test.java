@@ -0,0 +1,200 @@
+package com.qozix.tileview.raw;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Lz4Test {
+
+  @Test
+  public void compressThenDecompress_emptyAndShortInputs() throws Exception {
+    // shorter than a match, and shorter than the literals every block must end with
+    int[] lengths = { 0, 1, 3, 4, 5, 11, 12, 13 };
+    for( int length : lengths ) {
+      byte[] source = new byte[length];
+      Arrays.fill( source, (byte) 7 );
+      assertRoundTrip( source );
+    }
+  }
+
+  @Test
+  public void compressThenDecompress_incompressibleInput() throws Exception {
+    byte[] source = new byte[64 * 1024];
+    new Random( 1 ).nextBytes( source );
+    int compressedLength = assertRoundTrip( source );
+    assertTrue( compressedLength <= Lz4.maxCompressedLength( source.length ) );
+  }
+
+  @Test
+  public void compressThenDecompress_longLiteralRuns() throws Exception {
+    // literal lengths that take one, two and several extra length bytes
+    int[] lengths = { 15, 16, 269, 270, 271, 1000 };
+    Random random = new Random( 2 );
+    for( int length : lengths ) {
+      byte[] source = new byte[length + 64];
+      random.nextBytes( source );
+      // a match after the literals
+      Arrays.fill( source, length, source.length, (byte) 3 );
+      assertRoundTrip( source );
+    }
+  }
+
+  @Test
+  public void compressThenDecompress_longMatchRuns() throws Exception {
+    byte[] source = new byte[100 * 1024];
+    Arrays.fill( source, (byte) 42 );
+    int compressedLength = assertRoundTrip( source );
+    assertTrue( compressedLength < 1024 );
+  }
+
+  @Test
+  public void compressThenDecompress_repeatedPatterns() throws Exception {
+    // matches at short distances overlap the bytes they produce
+    for( int period = 1; period <= 9; period++ ) {
+      byte[] source = new byte[5000];
+      for( int i = 0; i < source.length; i++ ) {
+        source[i] = (byte) (i % period);
+      }
+      assertRoundTrip( source );
+    }
+  }
+
+  @Test
+  public void compressThenDecompress_mixedInput() throws Exception {
+    Random random = new Random( 3 );
+    byte[] source = new byte[200 * 1024];
+    int position = 0;
+    while( position < source.length ) {
+      int length = Math.min( source.length - position, 1 + random.nextInt( 600 ) );
+      if( random.nextBoolean() ) {
+        byte[] literals = new byte[length];
+        random.nextBytes( literals );
+        System.arraycopy( literals, 0, source, position, length );
+      } else if( position > 0 ) {
+        // a copy of earlier bytes, near or far
+        int distance = 1 + random.nextInt( Math.min( position, 70000 ) );
+        for( int i = 0; i < length; i++ ) {
+          source[position + i] = source[position + i - distance];
+        }
+      }
+      position += length;
+    }
+    assertRoundTrip( source );
+  }
+
+  @Test
+  public void compressThenDecompress_atOffsets() throws Exception {
+    byte[] source = new byte[3000];
+    for( int i = 0; i < source.length; i++ ) {
+      source[i] = (byte) (i / 10);
+    }
+    int sourceOffset = 100;
+    int sourceLength = 2500;
+    byte[] compressed = new byte[50 + Lz4.maxCompressedLength( sourceLength )];
+    int compressedLength = Lz4.compress( source, sourceOffset, sourceLength, compressed, 50 );
+    byte[] decompressed = new byte[sourceLength + 200];
+    assertEquals( sourceLength, Lz4.decompress( compressed, 50, compressedLength, decompressed, 200, sourceLength ) );
+    assertArrayEquals( Arrays.copyOfRange( source, sourceOffset, sourceOffset + sourceLength ), Arrays.copyOfRange( decompressed, 200, decompressed.length ) );
+    // bytes before the destination offset are untouched
+    for( int i = 0; i < 200; i++ ) {
+      assertEquals( 0, decompressed[i] );
+    }
+  }
+
+  @Test
+  public void decompress_rejectsTruncatedBlocks() throws Exception {
+    byte[] source = new byte[4000];
+    for( int i = 0; i < source.length; i++ ) {
+      source[i] = (byte) (i % 37);
+    }
+    byte[] compressed = compress( source );
+    byte[] destination = new byte[source.length];
+    for( int length = 1; length < compressed.length; length++ ) {
+      try {
+        int decompressedLength = Lz4.decompress( compressed, 0, length, destination, 0, destination.length );
+        // a block cut after a sequence's literals is well formed, but short
+        assertTrue( decompressedLength < source.length );
+      } catch( IOException e ) {
+        // expected
+      }
+    }
+  }
+
+  @Test( expected = IOException.class )
+  public void decompress_rejectsZeroOffset() throws Exception {
+    // one literal, then a match at offset 0
+    byte[] block = { (byte) 0x10, 1, 0, 0, (byte) 0x50, 1, 2, 3, 4, 5 };
+    Lz4.decompress( block, 0, block.length, new byte[64], 0, 64 );
+  }
+
+  @Test( expected = IOException.class )
+  public void decompress_rejectsOffsetBeforeStart() throws Exception {
+    // one literal, then a match 2 bytes back
+    byte[] block = { (byte) 0x10, 1, 2, 0, (byte) 0x50, 1, 2, 3, 4, 5 };
+    Lz4.decompress( block, 0, block.length, new byte[64], 0, 64 );
+  }
+
+  @Test( expected = IOException.class )
+  public void decompress_rejectsOffsetBeforeDestinationOffset() throws Exception {
+    // the bytes before the destination offset are not part of the block's output
+    byte[] block = { (byte) 0x10, 1, 2, 0, (byte) 0x50, 1, 2, 3, 4, 5 };
+    Lz4.decompress( block, 0, block.length, new byte[64], 10, 54 );
+  }
+
+  @Test( expected = IOException.class )
+  public void decompress_rejectsMatchBeyondDestination() throws Exception {
+    // one literal, then a 19 byte match into 8 bytes of room
+    byte[] block = { (byte) 0x1F, 1, 1, 0, 0, (byte) 0x50, 1, 2, 3, 4, 5 };
+    Lz4.decompress( block, 0, block.length, new byte[8], 0, 8 );
+  }
+
+  @Test( expected = IOException.class )
+  public void decompress_rejectsLiteralsBeyondSource() throws Exception {
+    // 8 literals announced, 3 present
+    byte[] block = { (byte) 0x80, 1, 2, 3 };
+    Lz4.decompress( block, 0, block.length, new byte[64], 0, 64 );
+  }
+
+  @Test( expected = IOException.class )
+  public void decompress_rejectsLiteralsBeyondDestination() throws Exception {
+    byte[] block = { (byte) 0x50, 1, 2, 3, 4, 5 };
+    Lz4.decompress( block, 0, block.length, new byte[4], 0, 4 );
+  }
+
+  @Test( expected = IOException.class )
+  public void decompress_rejectsMissingLiteralLength() throws Exception {
+    byte[] block = { (byte) 0xF0, (byte) 255 };
+    Lz4.decompress( block, 0, block.length, new byte[1024], 0, 1024 );
+  }
+
+  @Test( expected = IOException.class )
+  public void decompress_rejectsMissingMatchLength() throws Exception {
+    byte[] block = { (byte) 0x1F, 1, 1, 0 };
+    Lz4.decompress( block, 0, block.length, new byte[1024], 0, 1024 );
+  }
+
+  @Test( expected = IOException.class )
+  public void decompress_rejectsTruncatedOffset() throws Exception {
+    byte[] block = { (byte) 0x10, 1, 1 };
+    Lz4.decompress( block, 0, block.length, new byte[64], 0, 64 );
+  }
+
+  private static byte[] compress( byte[] source ) {
+    byte[] compressed = new byte[Lz4.maxCompressedLength( source.length )];
+    int compressedLength = Lz4.compress( source, 0, source.length, compressed, 0 );
+    return Arrays.copyOf( compressed, compressedLength );
+  }
+
+  private static int assertRoundTrip( byte[] source ) throws IOException {
+    byte[] compressed = compress( source );
+    byte[] decompressed = new byte[source.length];
+    assertEquals( source.length, Lz4.decompress( compressed, 0, compressed.length, decompressed, 0, decompressed.length ) );
+    assertArrayEquals( source, decompressed );
+    return compressed.length;
+  }
+
+}
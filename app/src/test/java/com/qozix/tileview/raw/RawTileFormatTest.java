@@ -0,0 +1,177 @@
+package com.qozix.tileview.raw;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RawTileFormatTest {
+
+  @Test
+  public void writeThenRead_compressiblePixels() throws Exception {
+    byte[] pixels = new byte[16 * 8 * 2];
+    Arrays.fill( pixels, (byte) 0x55 );
+    byte[] tile = write( 16, 8, RawTileFormat.CONFIG_RGB_565, pixels, true );
+    assertTrue( tile.length < RawTileFormat.HEADER_SIZE + pixels.length );
+    RawTileFormat.Header header = readHeader( tile );
+    assertEquals( 16, header.width );
+    assertEquals( 8, header.height );
+    assertEquals( RawTileFormat.CONFIG_RGB_565, header.config );
+    assertEquals( RawTileFormat.COMPRESSION_LZ4, header.compression );
+    assertEquals( pixels.length, header.pixelLength );
+    assertEquals( tile.length - RawTileFormat.HEADER_SIZE, header.payloadLength );
+    assertArrayEquals( pixels, readPixels( tile, header ) );
+  }
+
+  @Test
+  public void writeThenRead_incompressiblePixelsAreStored() throws Exception {
+    byte[] pixels = new byte[16 * 16 * 4];
+    new Random( 1 ).nextBytes( pixels );
+    byte[] tile = write( 16, 16, RawTileFormat.CONFIG_ARGB_8888, pixels, true );
+    assertEquals( RawTileFormat.HEADER_SIZE + pixels.length, tile.length );
+    RawTileFormat.Header header = readHeader( tile );
+    assertEquals( RawTileFormat.COMPRESSION_NONE, header.compression );
+    assertArrayEquals( pixels, readPixels( tile, header ) );
+  }
+
+  @Test
+  public void writeThenRead_uncompressed() throws Exception {
+    byte[] pixels = new byte[4 * 4 * 4];
+    Arrays.fill( pixels, (byte) 1 );
+    byte[] tile = write( 4, 4, RawTileFormat.CONFIG_ARGB_8888, pixels, false );
+    RawTileFormat.Header header = readHeader( tile );
+    assertEquals( RawTileFormat.COMPRESSION_NONE, header.compression );
+    assertEquals( pixels.length, header.payloadLength );
+    assertArrayEquals( pixels, readPixels( tile, header ) );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void write_rejectsTooFewPixels() throws Exception {
+    write( 4, 4, RawTileFormat.CONFIG_ARGB_8888, new byte[4 * 4 * 2], false );
+  }
+
+  @Test( expected = IOException.class )
+  public void readHeader_rejectsOtherData() throws Exception {
+    byte[] tile = writeSample();
+    ByteBuffer.wrap( tile ).putInt( 0, 0xFFD8FFE0 );
+    readHeader( tile );
+  }
+
+  @Test( expected = IOException.class )
+  public void readHeader_rejectsUnsupportedVersion() throws Exception {
+    byte[] tile = writeSample();
+    ByteBuffer.wrap( tile ).putInt( 4, RawTileFormat.VERSION + 1 );
+    readHeader( tile );
+  }
+
+  @Test( expected = IOException.class )
+  public void readHeader_rejectsUnsupportedConfig() throws Exception {
+    byte[] tile = writeSample();
+    ByteBuffer.wrap( tile ).putInt( 16, 2 );
+    readHeader( tile );
+  }
+
+  @Test( expected = IOException.class )
+  public void readHeader_rejectsUnsupportedCompression() throws Exception {
+    byte[] tile = writeSample();
+    ByteBuffer.wrap( tile ).putInt( 20, 2 );
+    readHeader( tile );
+  }
+
+  @Test( expected = IOException.class )
+  public void readHeader_rejectsMismatchedDimensions() throws Exception {
+    byte[] tile = writeSample();
+    ByteBuffer.wrap( tile ).putInt( 8, 9 );
+    readHeader( tile );
+  }
+
+  @Test( expected = IOException.class )
+  public void readHeader_rejectsOverflowingDimensions() throws Exception {
+    byte[] tile = writeSample();
+    // 65536 * 65536 * 4 overflows to 0 as an int
+    ByteBuffer buffer = ByteBuffer.wrap( tile );
+    buffer.putInt( 8, 65536 );
+    buffer.putInt( 12, 65536 );
+    buffer.putInt( 24, 0 );
+    readHeader( tile );
+  }
+
+  @Test( expected = IOException.class )
+  public void readHeader_rejectsTruncatedHeader() throws Exception {
+    byte[] tile = writeSample();
+    readHeader( Arrays.copyOf( tile, RawTileFormat.HEADER_SIZE - 1 ) );
+  }
+
+  @Test( expected = IOException.class )
+  public void readHeader_rejectsTruncatedPayload() throws Exception {
+    byte[] tile = writeSample();
+    readHeader( Arrays.copyOf( tile, tile.length - 1 ) );
+  }
+
+  @Test( expected = IOException.class )
+  public void readHeader_rejectsNegativePayloadLength() throws Exception {
+    byte[] tile = writeSample();
+    ByteBuffer.wrap( tile ).putInt( 28, -1 );
+    readHeader( tile );
+  }
+
+  @Test( expected = IOException.class )
+  public void readHeader_rejectsShortUncompressedPayload() throws Exception {
+    byte[] pixels = new byte[4 * 4 * 4];
+    byte[] tile = write( 4, 4, RawTileFormat.CONFIG_ARGB_8888, pixels, false );
+    ByteBuffer.wrap( tile ).putInt( 28, pixels.length - 1 );
+    readHeader( tile );
+  }
+
+  @Test( expected = IOException.class )
+  public void readPixels_rejectsPayloadShorterThanPixels() throws Exception {
+    byte[] tile = writeSample();
+    RawTileFormat.Header header = readHeader( tile );
+    assertEquals( RawTileFormat.COMPRESSION_LZ4, header.compression );
+    // the payload of a tile half the size
+    byte[] pixels = new byte[header.pixelLength / 2];
+    Arrays.fill( pixels, (byte) 0x55 );
+    byte[] smallerTile = write( header.width, header.height / 2, header.config, pixels, true );
+    header.payloadLength = smallerTile.length - RawTileFormat.HEADER_SIZE;
+    readPixels( smallerTile, header );
+  }
+
+  @Test( expected = IOException.class )
+  public void readPixels_rejectsMalformedPayload() throws Exception {
+    byte[] tile = writeSample();
+    RawTileFormat.Header header = readHeader( tile );
+    // literals announced past the end of the payload
+    tile[RawTileFormat.HEADER_SIZE] = (byte) 0xE0;
+    readPixels( tile, header );
+  }
+
+  private static byte[] writeSample() throws IOException {
+    byte[] pixels = new byte[8 * 8 * 2];
+    Arrays.fill( pixels, (byte) 0x55 );
+    return write( 8, 8, RawTileFormat.CONFIG_RGB_565, pixels, true );
+  }
+
+  private static byte[] write( int width, int height, int config, byte[] pixels, boolean shouldCompress ) throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    RawTileFormat.write( outputStream, width, height, config, pixels, shouldCompress );
+    return outputStream.toByteArray();
+  }
+
+  private static RawTileFormat.Header readHeader( byte[] tile ) throws IOException {
+    return RawTileFormat.readHeader( new DataInputStream( new ByteArrayInputStream( tile ) ), tile.length );
+  }
+
+  private static byte[] readPixels( byte[] tile, RawTileFormat.Header header ) throws IOException {
+    byte[] payload = Arrays.copyOfRange( tile, RawTileFormat.HEADER_SIZE, RawTileFormat.HEADER_SIZE + header.payloadLength );
+    byte[] pixels = RawTileFormat.readPixels( header, payload, new byte[header.pixelLength] );
+    return Arrays.copyOf( pixels, header.pixelLength );
+  }
+
+}
@@ -0,0 +1,107 @@
+package com.qozix.tileview.widgets;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class GestureTraceTest {
+
+  @Test
+  public void writeThenRead_preservesEntries() throws Exception {
+    GestureTrace trace = new GestureTrace( 8 );
+    trace.record( GestureTrace.EVENT_PAN_BEGIN, ZoomPanLayout.ZoomPanListener.Origination.DRAG, 10, 20, 1f );
+    trace.record( GestureTrace.EVENT_PAN_UPDATE, ZoomPanLayout.ZoomPanListener.Origination.FLING, -5, 300, 1f );
+    trace.record( GestureTrace.EVENT_ZOOM_UPDATE, ZoomPanLayout.ZoomPanListener.Origination.PINCH, 0, 0, 0.25f );
+    trace.record( GestureTrace.EVENT_ZOOM_END, null, Integer.MAX_VALUE, Integer.MIN_VALUE, 4f );
+
+    GestureTrace read = GestureTrace.readFrom( new ByteArrayInputStream( write( trace ) ) );
+
+    assertEquals( trace.getEntryCount(), read.getEntryCount() );
+    for( int i = 0; i < trace.getEntryCount(); i++ ) {
+      assertEquals( trace.getTimeOffset( i ), read.getTimeOffset( i ) );
+      assertEquals( trace.getX( i ), read.getX( i ) );
+      assertEquals( trace.getY( i ), read.getY( i ) );
+      assertEquals( trace.getScale( i ), read.getScale( i ), 0f );
+      assertEquals( trace.getEvent( i ), read.getEvent( i ) );
+      assertEquals( trace.getOrigin( i ), read.getOrigin( i ) );
+    }
+    assertTrue( read.isFull() );
+  }
+
+  @Test
+  public void writeThenRead_emptyTrace() throws Exception {
+    GestureTrace read = GestureTrace.readFrom( new ByteArrayInputStream( write( new GestureTrace( 4 ) ) ) );
+    assertEquals( 0, read.getEntryCount() );
+  }
+
+  @Test( expected = IOException.class )
+  public void read_rejectsNegativeEntryCount() throws Exception {
+    GestureTrace.readFrom( new ByteArrayInputStream( header( -1 ) ) );
+  }
+
+  @Test( expected = IOException.class )
+  public void read_rejectsEntryCountBeyondStream() throws Exception {
+    // claims about 2GB of entries, backed by none
+    GestureTrace.readFrom( new ByteArrayInputStream( header( Integer.MAX_VALUE / GestureTrace.ENTRY_SIZE ) ) );
+  }
+
+  @Test( expected = IOException.class )
+  public void read_rejectsTruncatedEntries() throws Exception {
+    GestureTrace trace = new GestureTrace( 2 );
+    trace.record( GestureTrace.EVENT_PAN_BEGIN, null, 1, 2, 1f );
+    trace.record( GestureTrace.EVENT_PAN_END, null, 3, 4, 1f );
+    byte[] bytes = write( trace );
+    byte[] truncated = new byte[bytes.length - 1];
+    System.arraycopy( bytes, 0, truncated, 0, truncated.length );
+    GestureTrace.readFrom( new ByteArrayInputStream( truncated ) );
+  }
+
+  @Test( expected = IOException.class )
+  public void read_rejectsUnknownEvent() throws Exception {
+    byte[] bytes = writeSingleEntry();
+    bytes[bytes.length - 2] = (byte) (GestureTrace.EVENT_ZOOM_END + 1);
+    GestureTrace.readFrom( new ByteArrayInputStream( bytes ) );
+  }
+
+  @Test( expected = IOException.class )
+  public void read_rejectsUnknownOrigin() throws Exception {
+    byte[] bytes = writeSingleEntry();
+    bytes[bytes.length - 1] = (byte) (ZoomPanLayout.ZoomPanListener.Origination.values().length + 1);
+    GestureTrace.readFrom( new ByteArrayInputStream( bytes ) );
+  }
+
+  @Test( expected = IOException.class )
+  public void read_rejectsOtherData() throws Exception {
+    GestureTrace.readFrom( new ByteArrayInputStream( new byte[32] ) );
+  }
+
+  private static byte[] write( GestureTrace trace ) throws IOException {
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    trace.writeTo( byteArrayOutputStream );
+    return byteArrayOutputStream.toByteArray();
+  }
+
+  // the event and origin codes are the last two bytes
+  private static byte[] writeSingleEntry() throws IOException {
+    GestureTrace trace = new GestureTrace( 1 );
+    trace.record( GestureTrace.EVENT_PAN_UPDATE, ZoomPanLayout.ZoomPanListener.Origination.DRAG, 1, 2, 1f );
+    return write( trace );
+  }
+
+  private static byte[] header( int entryCount ) throws IOException {
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    DataOutputStream dataOutputStream = new DataOutputStream( byteArrayOutputStream );
+    byte[] valid = write( new GestureTrace( 1 ) );
+    // magic and version from a valid trace
+    dataOutputStream.write( valid, 0, 8 );
+    dataOutputStream.writeInt( entryCount );
+    dataOutputStream.writeLong( 0 );
+    return byteArrayOutputStream.toByteArray();
+  }
+
+}
@@ -0,0 +1,450 @@
+package com.qozix.tileview.zip;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ZipTileBundleTest {
+
+  private static final Charset CHARSET = Charset.forName( "UTF-8" );
+
+  private File mZipFile;
+
+  @Before
+  public void setUp() throws Exception {
+    mZipFile = File.createTempFile( "tiles", ".zip" );
+  }
+
+  @After
+  public void tearDown() {
+    mZipFile.delete();
+  }
+
+  @Test
+  public void read_storedAndDeflatedEntries() throws Exception {
+    ZipOutputStream zipOutputStream = new ZipOutputStream( new FileOutputStream( mZipFile ) );
+    try {
+      zipOutputStream.setComment( "a comment the end of central directory is found before" );
+      zipOutputStream.putNextEntry( new ZipEntry( "tiles/" ) );
+      zipOutputStream.closeEntry();
+      putStored( zipOutputStream, "tiles/0-0.jpg", getTileBytes( 0 ) );
+      zipOutputStream.putNextEntry( new ZipEntry( "tiles/0-1.jpg" ) );
+      zipOutputStream.write( getRepetitiveBytes( 5000 ) );
+      zipOutputStream.closeEntry();
+      putStored( zipOutputStream, "tiles/\u00e9t\u00e9.jpg", getTileBytes( 2 ) );
+    } finally {
+      zipOutputStream.close();
+    }
+    ZipTileBundle zipTileBundle = ZipTileBundle.open( mZipFile );
+    try {
+      // the directory is not indexed
+      assertEquals( 3, zipTileBundle.getEntryCount() );
+      assertEntry( zipTileBundle, "tiles/0-0.jpg", getTileBytes( 0 ) );
+      assertEntry( zipTileBundle, "tiles/0-1.jpg", getRepetitiveBytes( 5000 ) );
+      assertEntry( zipTileBundle, "tiles/\u00e9t\u00e9.jpg", getTileBytes( 2 ) );
+      assertAbsent( zipTileBundle, "tiles/" );
+      assertAbsent( zipTileBundle, "tiles/1-1.jpg" );
+      assertAbsent( zipTileBundle, "0-0.jpg" );
+    } finally {
+      zipTileBundle.close();
+    }
+  }
+
+  @Test
+  public void read_manyEntries() throws Exception {
+    ZipBuilder zipBuilder = new ZipBuilder();
+    for( int i = 0; i < 3000; i++ ) {
+      zipBuilder.add( "tiles/" + i + ".png", getTileBytes( i ) );
+    }
+    zipBuilder.write( mZipFile );
+    ZipTileBundle zipTileBundle = ZipTileBundle.open( mZipFile );
+    try {
+      assertEquals( 3000, zipTileBundle.getEntryCount() );
+      for( int i = 0; i < 3000; i++ ) {
+        assertEntry( zipTileBundle, "tiles/" + i + ".png", getTileBytes( i ) );
+      }
+      assertAbsent( zipTileBundle, "tiles/3000.png" );
+    } finally {
+      zipTileBundle.close();
+    }
+  }
+
+  @Test
+  public void read_zip64() throws Exception {
+    ZipBuilder zipBuilder = new ZipBuilder();
+    zipBuilder.isZip64 = true;
+    // an unrelated extra field before the ZIP64 one
+    zipBuilder.centralExtra = getExtraField( 0xCAFE, 6 );
+    zipBuilder.add( "tiles/0-0.jpg", getTileBytes( 0 ) );
+    zipBuilder.addDeflated( "tiles/1-0.jpg", getRepetitiveBytes( 3000 ) );
+    zipBuilder.add( "tiles/2-0.jpg", getTileBytes( 2 ) );
+    zipBuilder.write( mZipFile );
+    ZipTileBundle zipTileBundle = ZipTileBundle.open( mZipFile );
+    try {
+      assertEquals( 3, zipTileBundle.getEntryCount() );
+      assertEntry( zipTileBundle, "tiles/0-0.jpg", getTileBytes( 0 ) );
+      assertEntry( zipTileBundle, "tiles/1-0.jpg", getRepetitiveBytes( 3000 ) );
+      assertEntry( zipTileBundle, "tiles/2-0.jpg", getTileBytes( 2 ) );
+    } finally {
+      zipTileBundle.close();
+    }
+  }
+
+  @Test
+  public void read_localExtraFieldDiffersFromCentral() throws Exception {
+    ZipBuilder zipBuilder = new ZipBuilder();
+    // e.g., alignment padding, which is only in the local header
+    zipBuilder.localExtra = getExtraField( 0xD935, 11 );
+    zipBuilder.centralExtra = getExtraField( 0x5455, 5 );
+    zipBuilder.add( "tiles/0-0.jpg", getTileBytes( 0 ) );
+    zipBuilder.addDeflated( "tiles/1-0.jpg", getRepetitiveBytes( 3000 ) );
+    zipBuilder.write( mZipFile );
+    ZipTileBundle zipTileBundle = ZipTileBundle.open( mZipFile );
+    try {
+      assertEntry( zipTileBundle, "tiles/0-0.jpg", getTileBytes( 0 ) );
+      assertEntry( zipTileBundle, "tiles/1-0.jpg", getRepetitiveBytes( 3000 ) );
+    } finally {
+      zipTileBundle.close();
+    }
+  }
+
+  @Test
+  public void getSize_comparesNames() throws Exception {
+    ZipBuilder zipBuilder = new ZipBuilder();
+    // the central directory indexes a name the local header does not have, as a colliding hash would
+    zipBuilder.add( "tiles/0-0.jpg", "tiles/9-9.jpg", getTileBytes( 0 ) );
+    zipBuilder.add( "tiles/1-0.jpg", getTileBytes( 1 ) );
+    zipBuilder.write( mZipFile );
+    ZipTileBundle zipTileBundle = ZipTileBundle.open( mZipFile );
+    try {
+      assertAbsent( zipTileBundle, "tiles/0-0.jpg" );
+      assertEntry( zipTileBundle, "tiles/1-0.jpg", getTileBytes( 1 ) );
+    } finally {
+      zipTileBundle.close();
+    }
+  }
+
+  @Test
+  public void open_skipsEncryptedAndUnsupportedEntries() throws Exception {
+    ZipBuilder zipBuilder = new ZipBuilder();
+    zipBuilder.add( "tiles/0-0.jpg", getTileBytes( 0 ) );
+    zipBuilder.add( "tiles/1-0.jpg", getTileBytes( 1 ) );
+    zipBuilder.add( "tiles/2-0.jpg", getTileBytes( 2 ) );
+    zipBuilder.entries.get( 1 ).flags = 1;
+    zipBuilder.entries.get( 2 ).method = 12;
+    zipBuilder.write( mZipFile );
+    ZipTileBundle zipTileBundle = ZipTileBundle.open( mZipFile );
+    try {
+      assertEquals( 1, zipTileBundle.getEntryCount() );
+      assertEntry( zipTileBundle, "tiles/0-0.jpg", getTileBytes( 0 ) );
+      assertAbsent( zipTileBundle, "tiles/1-0.jpg" );
+      assertAbsent( zipTileBundle, "tiles/2-0.jpg" );
+    } finally {
+      zipTileBundle.close();
+    }
+  }
+
+  @Test
+  public void open_emptyZip() throws Exception {
+    new ZipBuilder().write( mZipFile );
+    ZipTileBundle zipTileBundle = ZipTileBundle.open( mZipFile );
+    try {
+      assertEquals( 0, zipTileBundle.getEntryCount() );
+      assertAbsent( zipTileBundle, "tiles/0-0.jpg" );
+    } finally {
+      zipTileBundle.close();
+    }
+  }
+
+  @Test( expected = IOException.class )
+  public void open_rejectsOtherData() throws Exception {
+    FileOutputStream outputStream = new FileOutputStream( mZipFile );
+    try {
+      outputStream.write( getTileBytes( 100 ) );
+    } finally {
+      outputStream.close();
+    }
+    ZipTileBundle.open( mZipFile );
+  }
+
+  @Test( expected = IOException.class )
+  public void open_rejectsDirectoryBeyondEnd() throws Exception {
+    ZipBuilder zipBuilder = new ZipBuilder();
+    zipBuilder.add( "tiles/0-0.jpg", getTileBytes( 0 ) );
+    zipBuilder.directoryOffsetDelta = 1000;
+    zipBuilder.write( mZipFile );
+    ZipTileBundle.open( mZipFile );
+  }
+
+  @Test( expected = IOException.class )
+  public void open_rejectsMoreEntriesThanTheDirectoryHolds() throws Exception {
+    ZipBuilder zipBuilder = new ZipBuilder();
+    zipBuilder.add( "tiles/0-0.jpg", getTileBytes( 0 ) );
+    zipBuilder.entryCountDelta = 1;
+    zipBuilder.write( mZipFile );
+    ZipTileBundle.open( mZipFile );
+  }
+
+  @Test( expected = IOException.class )
+  public void open_rejectsTruncatedDirectoryEntry() throws Exception {
+    ZipBuilder zipBuilder = new ZipBuilder();
+    zipBuilder.add( "tiles/0-0.jpg", getTileBytes( 0 ) );
+    // an extra field running past the end of the directory
+    zipBuilder.centralExtraLengthDelta = 200;
+    zipBuilder.write( mZipFile );
+    ZipTileBundle.open( mZipFile );
+  }
+
+  @Test( expected = IOException.class )
+  public void read_rejectsInvalidLocalHeader() throws Exception {
+    ZipBuilder zipBuilder = new ZipBuilder();
+    zipBuilder.add( "tiles/0-0.jpg", getTileBytes( 0 ) );
+    zipBuilder.entries.get( 0 ).localHeaderOffsetDelta = 1;
+    zipBuilder.write( mZipFile );
+    ZipTileBundle zipTileBundle = ZipTileBundle.open( mZipFile );
+    try {
+      zipTileBundle.read( "tiles/0-0.jpg", new byte[1024] );
+    } finally {
+      zipTileBundle.close();
+    }
+  }
+
+  private static void assertEntry( ZipTileBundle zipTileBundle, String name, byte[] expected ) throws IOException {
+    ZipTileBundle.Entry entry = zipTileBundle.find( name );
+    assertNotNull( entry );
+    assertEquals( expected.length, entry.getSize() );
+    byte[] entryDestination = new byte[expected.length];
+    assertEquals( expected.length, zipTileBundle.read( entry, entryDestination ) );
+    assertArrayEquals( expected, entryDestination );
+    assertEquals( expected.length, zipTileBundle.getSize( name ) );
+    // a larger destination than needed, which is filled from its start
+    byte[] destination = new byte[expected.length + 10];
+    assertEquals( expected.length, zipTileBundle.read( name, destination ) );
+    for( int i = 0; i < expected.length; i++ ) {
+      assertEquals( expected[i], destination[i] );
+    }
+  }
+
+  private static void assertAbsent( ZipTileBundle zipTileBundle, String name ) throws IOException {
+    assertNull( zipTileBundle.find( name ) );
+    assertEquals( -1, zipTileBundle.getSize( name ) );
+    assertEquals( -1, zipTileBundle.read( name, new byte[1024] ) );
+  }
+
+  private static void putStored( ZipOutputStream zipOutputStream, String name, byte[] bytes ) throws IOException {
+    ZipEntry zipEntry = new ZipEntry( name );
+    zipEntry.setMethod( ZipEntry.STORED );
+    zipEntry.setSize( bytes.length );
+    zipEntry.setCompressedSize( bytes.length );
+    zipEntry.setCrc( getCrc( bytes ) );
+    zipOutputStream.putNextEntry( zipEntry );
+    zipOutputStream.write( bytes );
+    zipOutputStream.closeEntry();
+  }
+
+  private static long getCrc( byte[] bytes ) {
+    CRC32 crc = new CRC32();
+    crc.update( bytes );
+    return crc.getValue();
+  }
+
+  private static byte[] getExtraField( int id, int dataSize ) {
+    ByteBuffer extra = ByteBuffer.allocate( 4 + dataSize ).order( ByteOrder.LITTLE_ENDIAN );
+    extra.putShort( (short) id );
+    extra.putShort( (short) dataSize );
+    return extra.array();
+  }
+
+  // distinct contents and lengths for each tile
+  private static byte[] getTileBytes( int index ) {
+    byte[] bytes = new byte[20 + index % 97];
+    for( int i = 0; i < bytes.length; i++ ) {
+      bytes[i] = (byte) (index * 31 + i);
+    }
+    return bytes;
+  }
+
+  private static byte[] getRepetitiveBytes( int length ) {
+    byte[] bytes = new byte[length];
+    for( int i = 0; i < length; i++ ) {
+      bytes[i] = (byte) (i % 13);
+    }
+    return bytes;
+  }
+
+  /**
+   * Writes zip files field by field, so they can have ZIP64 records and extra fields on
+   * entries of any size, or be malformed.
+   */
+  private static class ZipBuilder {
+
+    boolean isZip64;
+    byte[] localExtra = new byte[0];
+    byte[] centralExtra = new byte[0];
+    int centralExtraLengthDelta;
+    long directoryOffsetDelta;
+    int entryCountDelta;
+    final List<Entry> entries = new ArrayList<>();
+
+    void add( String name, byte[] bytes ) {
+      add( name, name, bytes );
+    }
+
+    void add( String centralName, String localName, byte[] bytes ) {
+      Entry entry = new Entry();
+      entry.centralName = centralName.getBytes( CHARSET );
+      entry.localName = localName.getBytes( CHARSET );
+      entry.size = bytes.length;
+      entry.crc = getCrc( bytes );
+      entry.data = bytes;
+      entries.add( entry );
+    }
+
+    void addDeflated( String name, byte[] bytes ) {
+      add( name, bytes );
+      Deflater deflater = new Deflater( Deflater.DEFAULT_COMPRESSION, true );
+      deflater.setInput( bytes );
+      deflater.finish();
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      while( !deflater.finished() ) {
+        compressed.write( buffer, 0, deflater.deflate( buffer ) );
+      }
+      deflater.end();
+      Entry entry = entries.get( entries.size() - 1 );
+      entry.method = 8;
+      entry.data = compressed.toByteArray();
+    }
+
+    void write( File file ) throws IOException {
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      for( Entry entry : entries ) {
+        entry.localHeaderOffset = outputStream.size();
+        ByteBuffer header = allocate( 30 + entry.localName.length + localExtra.length );
+        header.putInt( 0x04034b50 );
+        header.putShort( (short) 45 );
+        header.putShort( (short) entry.flags );
+        header.putShort( (short) entry.method );
+        header.putInt( 0 );
+        header.putInt( (int) entry.crc );
+        header.putInt( entry.data.length );
+        header.putInt( entry.size );
+        header.putShort( (short) entry.localName.length );
+        header.putShort( (short) localExtra.length );
+        header.put( entry.localName );
+        header.put( localExtra );
+        outputStream.write( header.array() );
+        outputStream.write( entry.data );
+      }
+      long directoryOffset = outputStream.size();
+      for( Entry entry : entries ) {
+        // the sizes and offset, in the order the ZIP64 extra field has them
+        byte[] zip64Extra = new byte[0];
+        if( isZip64 ) {
+          ByteBuffer extra = allocate( 28 );
+          extra.putShort( (short) 0x0001 );
+          extra.putShort( (short) 24 );
+          extra.putLong( entry.size );
+          extra.putLong( entry.data.length );
+          extra.putLong( entry.localHeaderOffset + entry.localHeaderOffsetDelta );
+          zip64Extra = extra.array();
+        }
+        int extraLength = centralExtra.length + zip64Extra.length;
+        ByteBuffer header = allocate( 46 + entry.centralName.length + extraLength );
+        header.putInt( 0x02014b50 );
+        header.putShort( (short) 45 );
+        header.putShort( (short) 45 );
+        header.putShort( (short) entry.flags );
+        header.putShort( (short) entry.method );
+        header.putInt( 0 );
+        header.putInt( (int) entry.crc );
+        header.putInt( isZip64 ? -1 : entry.data.length );
+        header.putInt( isZip64 ? -1 : entry.size );
+        header.putShort( (short) entry.centralName.length );
+        header.putShort( (short) (extraLength + centralExtraLengthDelta) );
+        header.putShort( (short) 0 );
+        header.putShort( (short) 0 );
+        header.putShort( (short) 0 );
+        header.putInt( 0 );
+        header.putInt( isZip64 ? -1 : (int) (entry.localHeaderOffset + entry.localHeaderOffsetDelta) );
+        header.put( entry.centralName );
+        header.put( centralExtra );
+        header.put( zip64Extra );
+        outputStream.write( header.array() );
+      }
+      long directorySize = outputStream.size() - directoryOffset;
+      long entryCount = entries.size() + entryCountDelta;
+      directoryOffset += directoryOffsetDelta;
+      if( isZip64 ) {
+        long zip64EndOffset = outputStream.size();
+        ByteBuffer zip64End = allocate( 56 );
+        zip64End.putInt( 0x06064b50 );
+        zip64End.putLong( 44 );
+        zip64End.putShort( (short) 45 );
+        zip64End.putShort( (short) 45 );
+        zip64End.putInt( 0 );
+        zip64End.putInt( 0 );
+        zip64End.putLong( entryCount );
+        zip64End.putLong( entryCount );
+        zip64End.putLong( directorySize );
+        zip64End.putLong( directoryOffset );
+        outputStream.write( zip64End.array() );
+        ByteBuffer locator = allocate( 20 );
+        locator.putInt( 0x07064b50 );
+        locator.putInt( 0 );
+        locator.putLong( zip64EndOffset );
+        locator.putInt( 1 );
+        outputStream.write( locator.array() );
+      }
+      ByteBuffer end = allocate( 22 );
+      end.putInt( 0x06054b50 );
+      end.putShort( (short) 0 );
+      end.putShort( (short) 0 );
+      end.putShort( (short) (isZip64 ? 0xFFFF : entryCount) );
+      end.putShort( (short) (isZip64 ? 0xFFFF : entryCount) );
+      end.putInt( isZip64 ? -1 : (int) directorySize );
+      end.putInt( isZip64 ? -1 : (int) directoryOffset );
+      end.putShort( (short) 0 );
+      outputStream.write( end.array() );
+      FileOutputStream fileOutputStream = new FileOutputStream( file );
+      try {
+        outputStream.writeTo( fileOutputStream );
+      } finally {
+        fileOutputStream.close();
+      }
+    }
+
+    private static ByteBuffer allocate( int size ) {
+      return ByteBuffer.allocate( size ).order( ByteOrder.LITTLE_ENDIAN );
+    }
+
+    static class Entry {
+      byte[] centralName;
+      byte[] localName;
+      int flags;
+      int method;
+      long crc;
+      int size;
+      byte[] data;
+      long localHeaderOffset;
+      long localHeaderOffsetDelta;
+    }
+  }
+
+}